@@ -2,7 +2,11 @@ package no.ntnu.ctscanarkivsystemserver;
 
 import com.sun.research.ws.wadl.Application;
 import no.ntnu.ctscanarkivsystemserver.config.FileStorageProperties;
+import no.ntnu.ctscanarkivsystemserver.config.ImageProcessingProperties;
+import no.ntnu.ctscanarkivsystemserver.config.PaginationProperties;
 import no.ntnu.ctscanarkivsystemserver.config.Properties;
+import no.ntnu.ctscanarkivsystemserver.config.SearchProperties;
+import no.ntnu.ctscanarkivsystemserver.config.VolumeProperties;
 import org.springframework.boot.ApplicationArguments;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
@@ -15,7 +19,11 @@ import java.util.TimeZone;
 @SpringBootApplication
 @EnableConfigurationProperties({
         FileStorageProperties.class,
-        Properties.class
+        ImageProcessingProperties.class,
+        PaginationProperties.class,
+        Properties.class,
+        SearchProperties.class,
+        VolumeProperties.class
 })
 public class CtScanArkivsystemServerApplication {
 
@@ -32,15 +32,20 @@ public class AcademicController {
     private final UserService userService;
     private final FileStorageService fileStorageService;
     private final FileService fileService;
+    private final DicomMetadataService dicomMetadataService;
+    private final PlaceholderService placeholderService;
 
     @Autowired
     public AcademicController(ProjectService projectService, TagService tagService, UserService userService,
-                              FileStorageService fileStorageService, FileService fileService) {
+                              FileStorageService fileStorageService, FileService fileService,
+                              DicomMetadataService dicomMetadataService, PlaceholderService placeholderService) {
         this.projectService = projectService;
         this.tagService = tagService;
         this.userService = userService;
         this.fileStorageService = fileStorageService;
         this.fileService = fileService;
+        this.dicomMetadataService = dicomMetadataService;
+        this.placeholderService = placeholderService;
     }
 
     /**
@@ -409,6 +414,8 @@ public class AcademicController {
     /**
      * Uploads files into the correct folders in the file server.
      * If the file already exist it wont be saved.
+     * The headers of uploaded DICOM files are indexed so the files can be found by metadata,
+     * and placeholders of uploaded images are made in the background.
      * @param files files to upload.
      * @param projectId project files are associated with.
      * @return If successful: 200 OK with a list of all files which where not uploaded.
@@ -427,6 +434,8 @@ public class AcademicController {
             Project projectToUploadFilesTo = projectService.getProject(projectId);
             if(projectService.isUserPermittedToChangeProject(projectToUploadFilesTo, userService.getCurrentLoggedUser())) {
                 notAddedFiles = fileStorageService.storeFile(files, projectToUploadFilesTo, subFolder);
+                dicomMetadataService.indexUploadedFiles(files, notAddedFiles, projectToUploadFilesTo, subFolder);
+                placeholderService.createUploadedPlaceholders(files, notAddedFiles, projectToUploadFilesTo, subFolder);
             } else {
                 //User is not permitted to do changes on this project.
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
@@ -444,6 +453,88 @@ public class AcademicController {
         return ResponseEntity.ok(notAddedFiles);
     }
 
+    /**
+     * Indexes the headers of all DICOM files in a sub project folder which are not indexed yet.
+     * Used for files which were added to the file-server without being uploaded through the system.
+     * @param projectId id of project to index files in.
+     * @param subFolder sub project folder to index files in.
+     * @return If successful: 200 OK with number of files indexed.
+     *         If subFolder variable is null or empty: 400-Bad Request.
+     *         If user or project does not exist: 404 Not Found.
+     *         If logged in user is not allowed to do changes on the project: 403 Forbidden.
+     *         If sub project folder was not found: 410-Gone.
+     */
+    @PostMapping(path = "/indexDicomFiles")
+    public ResponseEntity<Integer> indexDicomFiles(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder) {
+        int indexed;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToIndex = projectService.getProject(projectId);
+            if(projectService.isUserPermittedToChangeProject(projectToIndex, userService.getCurrentLoggedUser())) {
+                indexed = dicomMetadataService.indexSubFolder(projectToIndex, subFolder);
+            } else {
+                //User is not permitted to do changes on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(indexed);
+    }
+
+    /**
+     * Makes placeholders of all images in a sub project folder which do not have one yet.
+     * Used for images which were added to the file-server without being uploaded through the system.
+     * @param projectId id of project to make placeholders in.
+     * @param subFolder sub project folder to make placeholders in.
+     * @return If successful: 200 OK with number of placeholders made.
+     *         If subFolder variable is null or empty: 400-Bad Request.
+     *         If user or project does not exist: 404 Not Found.
+     *         If logged in user is not allowed to do changes on the project: 403 Forbidden.
+     *         If sub project folder was not found: 410-Gone.
+     */
+    @PostMapping(path = "/createPlaceholders")
+    public ResponseEntity<Integer> createPlaceholders(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder) {
+        int created;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToCreatePlaceholdersIn = projectService.getProject(projectId);
+            if(projectService.isUserPermittedToChangeProject(projectToCreatePlaceholdersIn, userService.getCurrentLoggedUser())) {
+                created = placeholderService.createSubFolderPlaceholders(projectToCreatePlaceholdersIn, subFolder);
+            } else {
+                //User is not permitted to do changes on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(created);
+    }
+
     /**
      * Add tags to a file.
      * @param tagNames names of tags to be added.
@@ -669,9 +760,9 @@ public class AcademicController {
      *         If the user don't have any projects: 204-Mo Content.
      */
     @GetMapping(path = "/getMyProjects")
-    public ResponseEntity<List<Project>> getMyProjects() {
+    public ResponseEntity<List<ProjectListItem>> getMyProjects() {
         try {
-            List<Project> myProjects = projectService.getMyProjects(userService.getCurrentLoggedUser().getUserId());
+            List<ProjectListItem> myProjects = projectService.getMyProjects(userService.getCurrentLoggedUser().getUserId());
             if(myProjects.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NO_CONTENT).build();
             } else {
@@ -4,6 +4,7 @@ import no.ntnu.ctscanarkivsystemserver.exception.EmailExistsException;
 import no.ntnu.ctscanarkivsystemserver.exception.TagNotFoundException;
 import no.ntnu.ctscanarkivsystemserver.exception.UserNotFoundException;
 import no.ntnu.ctscanarkivsystemserver.model.DateDTO;
+import no.ntnu.ctscanarkivsystemserver.model.ResultPage;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
 import no.ntnu.ctscanarkivsystemserver.model.UserDTO;
 import no.ntnu.ctscanarkivsystemserver.service.ServerService;
@@ -193,12 +194,25 @@ public class AdminController {
     }
 
     /**
-     * Gets all users in the database.
-     * @return If Successful: 200-Ok with a list of all users.
+     * Gets all users in the database, or a page of users sorted by email if limit or cursor is given.
+     * @param limit max number of users on a page. Optional.
+     * @param cursor cursor of the page to get, from nextCursor of the previous page. Optional.
+     * @return If Successful: 200-Ok with a list of all users, or a page with users and the cursor of the next page.
+     *         If cursor is not valid: 400-Bad Request.
      *         If list is null or empty: 404-Not Found.
      */
     @GetMapping(path = "/allUsers")
-    public ResponseEntity<?> getAllUsers() {
+    public ResponseEntity<?> getAllUsers(@RequestParam(required = false) Integer limit,
+                                         @RequestParam(required = false) String cursor) {
+        if(limit != null || cursor != null) {
+            try {
+                ResultPage<User> page = userService.getUsersPage(cursor, limit);
+                return page.getItems().isEmpty() ? ResponseEntity.notFound().build() : ResponseEntity.ok(page);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return ResponseEntity.badRequest().build();
+            }
+        }
         List<User> allUsers = userService.getAllUsers();
         if(allUsers == null || allUsers.isEmpty()) {
             return ResponseEntity.notFound().build();
@@ -1,7 +1,10 @@
 package no.ntnu.ctscanarkivsystemserver.api;
 
 
+import no.ntnu.ctscanarkivsystemserver.exception.ConversionNotFoundException;
+import no.ntnu.ctscanarkivsystemserver.exception.DirectoryCreationException;
 import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
 import no.ntnu.ctscanarkivsystemserver.exception.ProjectNotFoundException;
 import no.ntnu.ctscanarkivsystemserver.exception.UserNotFoundException;
 import no.ntnu.ctscanarkivsystemserver.exception.TagNotFoundException;
@@ -20,6 +23,8 @@ import javax.ws.rs.BadRequestException;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
@@ -35,20 +40,56 @@ public class UserController {
     private final FileStorageService fileStorageService;
     //For files in database.
     private final FileService fileService;
+    //For DICOM metadata in database.
+    private final DicomMetadataService dicomMetadataService;
+    //For thumbnails of many images in one response.
+    private final SpriteSheetService spriteSheetService;
+    //For images of planes through CT volumes.
+    private final VolumeService volumeService;
+    //For intensity projections of CT volumes.
+    private final ProjectionService projectionService;
+    //For batch conversion of images.
+    private final ConversionService conversionService;
 
     @Autowired
     public UserController(UserService userService, ProjectService projectService, TagService tagService,
-                          FileStorageService fileStorageService, FileService fileService) {
+                          FileStorageService fileStorageService, FileService fileService,
+                          DicomMetadataService dicomMetadataService, SpriteSheetService spriteSheetService,
+                          VolumeService volumeService, ProjectionService projectionService,
+                          ConversionService conversionService) {
         this.userService = userService;
         this.projectService = projectService;
         this.tagService = tagService;
         this.fileStorageService = fileStorageService;
         this.fileService = fileService;
+        this.dicomMetadataService = dicomMetadataService;
+        this.spriteSheetService = spriteSheetService;
+        this.volumeService = volumeService;
+        this.projectionService = projectionService;
+        this.conversionService = conversionService;
     }
 
+    /**
+     * Gets all users, or a page of users sorted by email if limit or cursor is given.
+     * @param limit max number of users on a page. Optional.
+     * @param cursor cursor of the page to get, from nextCursor of the previous page. Optional.
+     * @return If Successful: 200-Ok with a list of all users, or a page with users and the cursor of the next page.
+     *         If cursor is not valid: 400-Bad Request.
+     *         If there are no users: 404-Not Found.
+     */
     @GetMapping(path = "/allUsers")
-    public ResponseEntity<?> getAllUsers() {
+    public ResponseEntity<?> getAllUsers(@RequestParam(required = false) Integer limit,
+                                         @RequestParam(required = false) String cursor) {
         System.out.println("Getting all users!");
+        if(limit != null || cursor != null) {
+            try {
+                ResultPage<User> page = userService.getUsersPage(cursor, limit);
+                return page.getItems().isEmpty() ? ResponseEntity.notFound().build() : ResponseEntity.ok(page);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return ResponseEntity.badRequest().build();
+            }
+        }
         List<User> allUsers = userService.getAllUsers();
         if (allUsers == null || allUsers.isEmpty()) {
             return ResponseEntity.notFound().build();
@@ -73,12 +114,27 @@ public class UserController {
     }
 
     /**
-     * This API request will return a list of all existing projects
-     * @return Response code 200 OK and the list of projects.
+     * This API request will return a list of all existing projects, or a page of projects sorted by name
+     * if limit or cursor is given.
+     * @param limit max number of projects on a page. Optional.
+     * @param cursor cursor of the page to get, from nextCursor of the previous page. Optional.
+     * @return Response code 200 OK and the list of projects, or a page with projects and the cursor of the next page.
+     *         If cursor is not valid: 400-Bad Request.
+     *         If there are no projects: 404-Not Found.
      */
     @GetMapping(path = "/getAllProjects")
-    public ResponseEntity<List<Project>> getAllProject() {
-        List<Project> allProjects = projectService.getAllProjects();
+    public ResponseEntity<?> getAllProject(@RequestParam(required = false) Integer limit,
+                                           @RequestParam(required = false) String cursor) {
+        if(limit != null || cursor != null) {
+            try {
+                ResultPage<ProjectListItem> page = projectService.getProjectsPage(cursor, limit);
+                return page.getItems().isEmpty() ? ResponseEntity.notFound().build() : ResponseEntity.ok(page);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return ResponseEntity.badRequest().build();
+            }
+        }
+        List<ProjectListItem> allProjects = projectService.getAllProjectItems();
         if(allProjects == null || allProjects.isEmpty()) {
             return ResponseEntity.notFound().build();
         } else {
@@ -123,7 +179,7 @@ public class UserController {
      *         If tagName has less than 2 characters: 400-Bad Request.
      */
     @GetMapping(path = "/getAllProjectsTagIsUsedIn")
-    public ResponseEntity<List<Project>> getAllProjectsTagIsUsedIn(@RequestParam String tagName) {
+    public ResponseEntity<List<ProjectListItem>> getAllProjectsTagIsUsedIn(@RequestParam String tagName) {
         if(tagName == null || tagName.trim().isEmpty()) {
             //tagName cannot be null or empty!
             return ResponseEntity.badRequest().build();
@@ -164,8 +220,7 @@ public class UserController {
         }
         try {
             Project projectToDownloadFilesFrom = projectService.getProject(projectId);
-            if(!projectToDownloadFilesFrom.getIsPrivate() || projectService.hasSpecialPermission(projectToDownloadFilesFrom, userService.getCurrentLoggedUser())
-                    || projectService.isUserPermittedToChangeProject(projectToDownloadFilesFrom, userService.getCurrentLoggedUser())) {
+            if(projectService.isUserPermittedToSeeProject(projectToDownloadFilesFrom, userService.getCurrentLoggedUser())) {
                 if(fileNames.size() == 1) {
                     fileBytes = fileStorageService.loadFileAsBytes(fileNames.get(0), projectToDownloadFilesFrom, subFolder);
                 } else if(fileNames.size() > 1) {
@@ -199,31 +254,57 @@ public class UserController {
 
     /**
      * Gets an image from the file server.
-     * Note: scale does not work for image type gif.
+     * Every frame of animated gifs is scaled.
+     * Raw volumes (.raw) are returned as png of the middle slice, with the format read from the .mhd sidecar.
      * @param imageName name of image including file type.
      * @param projectId id of project image is associated with.
      * @param subFolder Folder name of the sub-project.
      * @param size Size to scale image to.
-     * @return If successful: 200-OK with the image.
+     * @param windowCenter Window center for DICOM (.IMA) images. Optional, the window in the file is used if not given.
+     * @param windowWidth Window width for DICOM (.IMA) images. Optional, the window in the file is used if not given.
+     * @param quality Quality tier to scale with: fast, balanced or ultra. Optional, the server default is used if not given.
+     *                Under load a lower tier is served.
+     * @return If successful: 200-OK with the image. DICOM images and scaled TIFF images are returned as png.
+     *         Scaled images have the header X-Image-Quality with the tier which was served.
      *         If imageName does not include file type or is not a supported image: 400-Bad request
      *         If user or project does not exist: 404-Not Found.
      *         If logged in user is not allowed to see project files: 403-Forbidden.
      *         If image was not found: 410-Gone.
+     *         If the server is busy processing other images: 503-Service Unavailable with Retry-After header.
      */
     @ResponseBody
     @PostMapping(path = "/getImage")
     public ResponseEntity<byte[]> getImage(@RequestParam("imageName") String imageName, @RequestParam("projectId") UUID projectId,
-                                                 @RequestParam("subFolder") String subFolder, @RequestParam("size") int size) {
+                                                 @RequestParam("subFolder") String subFolder, @RequestParam("size") int size,
+                                                 @RequestParam(value = "windowCenter", required = false) Double windowCenter,
+                                                 @RequestParam(value = "windowWidth", required = false) Double windowWidth,
+                                                 @RequestParam(value = "quality", required = false) String quality) {
         byte[] fileBytes;
+        ImageQuality servedQuality = null;
         try {
             Project projectToDownloadImageFrom = projectService.getProject(projectId);
-            if(!projectToDownloadImageFrom.getIsPrivate() || projectService.hasSpecialPermission(projectToDownloadImageFrom, userService.getCurrentLoggedUser())
-                    || projectService.isUserPermittedToChangeProject(projectToDownloadImageFrom, userService.getCurrentLoggedUser())) {
-                fileBytes = fileStorageService.getImageAsBytes(imageName, projectToDownloadImageFrom, subFolder, size);
+            if(projectService.isUserPermittedToSeeProject(projectToDownloadImageFrom, userService.getCurrentLoggedUser())) {
+                if (imageName.endsWith(".raw")) {
+                    //Raw files are volumes, the preview is the middle slice. Format is read from the .mhd sidecar.
+                    ResliceRequest middleSlice = new ResliceRequest();
+                    middleSlice.setFileName(imageName);
+                    middleSlice.setSize(size);
+                    fileBytes = volumeService.renderSlice(projectToDownloadImageFrom, subFolder, middleSlice, null);
+                } else {
+                    ImageRendition rendition = fileStorageService.getImageRendition(imageName, projectToDownloadImageFrom,
+                            subFolder, size, windowCenter, windowWidth,
+                            quality == null ? null : ImageQuality.valueOf(quality.trim().toUpperCase()));
+                    fileBytes = rendition.getBytes();
+                    servedQuality = rendition.getQuality();
+                }
             } else {
                 //User is not permitted to see files on this project.
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
             }
+        } catch (ImageProcessingRejectedException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
         } catch (ProjectNotFoundException | UserNotFoundException e) {
             System.out.println(e.getMessage());
             return ResponseEntity.notFound().build();
@@ -237,7 +318,290 @@ public class UserController {
             System.out.println(e.getMessage());
             return ResponseEntity.badRequest().build();
         }
-        return ResponseEntity.ok().contentType(MediaType.IMAGE_JPEG).body(fileBytes);
+        MediaType mediaType = imageName.toUpperCase().endsWith(".IMA") || imageName.endsWith(".raw")
+                || (imageName.endsWith(".tiff") && size > 0) ? MediaType.IMAGE_PNG : MediaType.IMAGE_JPEG;
+        if (imageName.endsWith(".gif")) {
+            mediaType = MediaType.IMAGE_GIF;
+        }
+        if (servedQuality != null) {
+            return ResponseEntity.ok().contentType(mediaType).header("X-Image-Quality", servedQuality.name()).body(fileBytes);
+        }
+        return ResponseEntity.ok().contentType(mediaType).body(fileBytes);
+    }
+
+    /**
+     * Gets an image of a plane through a CT volume.
+     * The volume is a multi-page TIFF or raw volume given by fileName, or all TIFF files in the sub-project as a stack.
+     * Params of the reslice request: fileName, plane (axial, coronal, sagittal or oblique), index (slice along the
+     * axis of an orthogonal plane, default middle), normalX, normalY, normalZ and offset (for oblique planes),
+     * roiX, roiY, roiWidth and roiHeight (region of the plane), size, windowMin and windowMax.
+     * Params of a raw volume: width, height, depth, bitDepth (8, 16 or 32 float), signed, bigEndian,
+     * headerBytes (-1 for voxels at the end of the file), spacingX, spacingY and spacingZ.
+     * Params not given are read from a .mhd sidecar with the same name as the raw file.
+     * @param projectId id of project volume is associated with.
+     * @param subFolder Folder name of the sub-project.
+     * @param request which plane to render.
+     * @param rawFormat format of a raw volume.
+     * @return If successful: 200-OK with the plane as png.
+     *         If plane, index, normal or file is not valid: 400-Bad request
+     *         If user or project does not exist: 404-Not Found.
+     *         If logged in user is not allowed to see project files: 403-Forbidden.
+     *         If volume was not found: 410-Gone.
+     *         If the server is busy processing other images: 503-Service Unavailable with Retry-After header.
+     */
+    @ResponseBody
+    @PostMapping(path = "/getVolumeSlice")
+    public ResponseEntity<byte[]> getVolumeSlice(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder,
+                                                 ResliceRequest request, RawVolumeFormat rawFormat) {
+        byte[] imageBytes;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToGetVolumeFrom = projectService.getProject(projectId);
+            if(projectService.isUserPermittedToSeeProject(projectToGetVolumeFrom, userService.getCurrentLoggedUser())) {
+                imageBytes = volumeService.renderSlice(projectToGetVolumeFrom, subFolder, request, rawFormat);
+            } else {
+                //User is not permitted to see files on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ImageProcessingRejectedException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException | IOException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException | BadRequestException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).body(imageBytes);
+    }
+
+    /**
+     * Gets a maximum, minimum or average intensity projection of a CT volume.
+     * The volume is a multi-page TIFF or raw volume given by fileName, or all TIFF files in the sub-project as a stack.
+     * Params of the projection request: fileName, type (mip, minip or average), plane (axial, coronal or sagittal),
+     * size, windowMin and windowMax.
+     * Params of a raw volume are the same as for getVolumeSlice.
+     * @param projectId id of project volume is associated with.
+     * @param subFolder Folder name of the sub-project.
+     * @param request which projection to render.
+     * @param rawFormat format of a raw volume.
+     * @return If successful: 200-OK with the projection as png.
+     *         If type, plane or file is not valid: 400-Bad request
+     *         If user or project does not exist: 404-Not Found.
+     *         If logged in user is not allowed to see project files: 403-Forbidden.
+     *         If volume was not found: 410-Gone.
+     *         If the server is busy processing other images: 503-Service Unavailable with Retry-After header.
+     */
+    @ResponseBody
+    @PostMapping(path = "/getProjection")
+    public ResponseEntity<byte[]> getProjection(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder,
+                                                ProjectionRequest request, RawVolumeFormat rawFormat) {
+        byte[] imageBytes;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToGetVolumeFrom = projectService.getProject(projectId);
+            if(projectService.isUserPermittedToSeeProject(projectToGetVolumeFrom, userService.getCurrentLoggedUser())) {
+                imageBytes = projectionService.renderProjection(projectToGetVolumeFrom, subFolder, request, rawFormat);
+            } else {
+                //User is not permitted to see files on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ImageProcessingRejectedException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException | IOException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException | BadRequestException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok().contentType(MediaType.IMAGE_PNG).body(imageBytes);
+    }
+
+    /**
+     * Starts converting images of a sub-project to png or jpg, for example a scan series of TIFF files.
+     * The conversion runs in the background, use getConversion to see the progress.
+     * Params of the conversion request: fileNames (default all TIFF files in the sub-project), format (png or jpg,
+     * default png), size (default 0, original size), quality (fast, balanced or ultra) and targetSubFolder.
+     * Converted files are stored in targetSubFolder if given, which needs permission to change the project.
+     * Else they are put in a ZIP file which can be downloaded with getConversionResult.
+     * @param projectId id of project images are associated with.
+     * @param subFolder Folder name of the sub-project.
+     * @param request which files to convert and how.
+     * @return If successful: 200-OK with the id and progress of the conversion.
+     *         If format, quality, a file or target sub folder is not valid, or there are no files: 400-Bad request
+     *         If user or project does not exist: 404-Not Found.
+     *         If logged in user is not allowed to see project files, or to change the project when storing in
+     *         a sub folder: 403-Forbidden.
+     *         If sub folder was not found: 410-Gone.
+     *         If too many conversions are running: 503-Service Unavailable with Retry-After header.
+     */
+    @PostMapping(path = "/convertFiles")
+    public ResponseEntity<ConversionStatus> convertFiles(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder,
+                                                         ConversionRequest request) {
+        ConversionStatus status;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToConvertFilesIn = projectService.getProject(projectId);
+            User currentUser = userService.getCurrentLoggedUser();
+            boolean isPermittedToChange = projectService.isUserPermittedToChangeProject(projectToConvertFilesIn, currentUser);
+            if(request.getTargetSubFolder() != null && !isPermittedToChange) {
+                //User is not permitted to store files in this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+            if(isPermittedToChange || projectService.isUserPermittedToSeeProject(projectToConvertFilesIn, currentUser)) {
+                status = conversionService.startConversion(projectToConvertFilesIn, subFolder, request, currentUser.getUserId());
+            } else {
+                //User is not permitted to see files on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ImageProcessingRejectedException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException | DirectoryCreationException | IOException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException | BadRequestException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(status);
+    }
+
+    /**
+     * Gets the progress of a conversion started by the logged in user.
+     * @param jobId id of conversion.
+     * @return If successful: 200-OK with the progress of the conversion.
+     *         If conversion or user does not exist: 404-Not Found.
+     */
+    @GetMapping(path = "/getConversion")
+    public ResponseEntity<ConversionStatus> getConversion(@RequestParam("jobId") UUID jobId) {
+        try {
+            return ResponseEntity.ok(conversionService.getStatus(jobId, userService.getCurrentLoggedUser().getUserId()));
+        } catch (ConversionNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    /**
+     * Downloads the ZIP file of a conversion started by the logged in user.
+     * @param jobId id of conversion.
+     * @return If successful: 200-OK with the ZIP file.
+     *         If conversion is not done yet: 202-Accepted.
+     *         If conversion or user does not exist, or the conversion stored files in a sub folder: 404-Not Found.
+     *         If the ZIP file could not be read: 500-Internal Server Error.
+     */
+    @GetMapping(path = "/getConversionResult")
+    public ResponseEntity<Resource> getConversionResult(@RequestParam("jobId") UUID jobId) {
+        try {
+            Path zipFile = conversionService.getZipFile(jobId, userService.getCurrentLoggedUser().getUserId());
+            if(zipFile == null) {
+                return ResponseEntity.status(HttpStatus.ACCEPTED).build();
+            }
+            return ResponseEntity.ok()
+                    .contentLength(Files.size(zipFile))
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + jobId + ".zip\"")
+                    .body(new InputStreamResource(Files.newInputStream(zipFile)));
+        } catch (ConversionNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
+    /**
+     * Gets thumbnails of many images as one sprite sheet with the position of each thumbnail.
+     * Either give the names of the images, or a directory with offset and count to get a range of the images
+     * in the directory sorted by name.
+     * @param projectId id of project images are associated with.
+     * @param subFolder Folder name of the sub-project.
+     * @param size Size of each thumbnail.
+     * @param imageNames names of images including file type. Optional.
+     * @param directory directory to get images from if imageNames is not given. Optional, default is images.
+     * @param offset index of first image in directory. Optional, default is 0.
+     * @param count max number of images from directory. Optional, default and max is the number of images of this size
+     *              which fit in a sheet.
+     * @return If successful: 200-OK with the sprite sheet as base64 and where each thumbnail is in it.
+     *         If size is not valid, too many images or pixels are asked for or directory is not valid: 400-Bad request
+     *         If user or project does not exist: 404-Not Found.
+     *         If logged in user is not allowed to see project files: 403-Forbidden.
+     *         If directory was not found: 410-Gone.
+     *         If the server is busy processing other images: 503-Service Unavailable with Retry-After header.
+     */
+    @PostMapping(path = "/getThumbnails")
+    public ResponseEntity<SpriteSheetDTO> getThumbnails(@RequestParam("projectId") UUID projectId, @RequestParam("subFolder") String subFolder,
+                                                        @RequestParam("size") int size,
+                                                        @RequestParam(value = "imageNames", required = false) List<String> imageNames,
+                                                        @RequestParam(value = "directory", defaultValue = "images") String directory,
+                                                        @RequestParam(value = "offset", defaultValue = "0") int offset,
+                                                        @RequestParam(value = "count", defaultValue = "" + SpriteSheetService.MAX_TILES) int count) {
+        SpriteSheetDTO spriteSheet;
+        if(subFolder == null || subFolder.trim().isEmpty()) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            Project projectToGetImagesFrom = projectService.getProject(projectId);
+            if(projectService.isUserPermittedToSeeProject(projectToGetImagesFrom, userService.getCurrentLoggedUser())) {
+                if(imageNames == null || imageNames.isEmpty()) {
+                    imageNames = spriteSheetService.getImageNames(directory, projectToGetImagesFrom, subFolder, offset,
+                            Math.min(count, spriteSheetService.getMaxTiles(size)));
+                }
+                spriteSheet = spriteSheetService.getSpriteSheet(imageNames, projectToGetImagesFrom, subFolder, size);
+            } else {
+                //User is not permitted to see files on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ImageProcessingRejectedException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds())).build();
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        } catch (FileNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        } catch (FileStorageException | IOException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        } catch (IllegalArgumentException | BadRequestException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.badRequest().build();
+        }
+        return ResponseEntity.ok(spriteSheet);
     }
 
     /**
@@ -247,6 +611,8 @@ public class UserController {
      * @param directory directory to get files from (Folders inside sub folder).
      * @param projectId id of project directory is associated with.
      * @param subFolder Folder name of the sub-project.
+     * @param placeholders true to include the placeholder of each image, a tiny preview as a data URI which can be
+     *                     shown while the thumbnail loads. Default is false.
      * @return If successful: 200-OK with a map of all files in a directory and tags which are associated with each file.
      *         If directory is not a valid directory: 400-Bad Request
      *         If subFolder variable is null or empty: 400-Bad Request
@@ -256,17 +622,17 @@ public class UserController {
      */
     @GetMapping(path = "/getAllFileNames")
     public ResponseEntity<List<FileOTD>> getAllFileNames(@RequestParam("directory") String directory, @RequestParam("projectId") UUID projectId,
-                                                        @RequestParam("subFolder") String subFolder) {
+                                                        @RequestParam("subFolder") String subFolder,
+                                                        @RequestParam(value = "placeholders", required = false, defaultValue = "false") boolean placeholders) {
         List<FileOTD> files;
         if(subFolder == null || subFolder.trim().isEmpty()) {
             return ResponseEntity.badRequest().build();
         }
         try {
             Project projectToGetFileNamesFrom = projectService.getProject(projectId);
-            if (!projectToGetFileNamesFrom.getIsPrivate() || projectService.hasSpecialPermission(projectToGetFileNamesFrom, userService.getCurrentLoggedUser())
-                    || projectService.isUserPermittedToChangeProject(projectToGetFileNamesFrom, userService.getCurrentLoggedUser())) {
+            if (projectService.isUserPermittedToSeeProject(projectToGetFileNamesFrom, userService.getCurrentLoggedUser())) {
                 List<String> allFileNamesInDir = fileStorageService.getAllFileNames(directory, projectToGetFileNamesFrom, subFolder);
-                files = fileService.getTagsOnFiles(projectId, subFolder, allFileNamesInDir);
+                files = fileService.getTagsOnFiles(projectId, subFolder, allFileNamesInDir, placeholders);
             } else {
                 //User is not permitted to see files on this project.
                 return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
@@ -287,6 +653,52 @@ public class UserController {
         return ResponseEntity.ok(files);
     }
 
+    /**
+     * Gets all DICOM files in a series in slice order, for navigating through the slices.
+     * @param projectId id of project the series is in.
+     * @param seriesInstanceUid uid of series.
+     * @return If successful: 200-OK with all files in series ordered by instance number and then slice location.
+     *         If user or project does not exist: 404-Not Found.
+     *         If logged in user is not allowed to see project files: 403-Forbidden.
+     */
+    @GetMapping(path = "/getDicomSeries")
+    public ResponseEntity<List<DicomFileDTO>> getDicomSeries(@RequestParam("projectId") UUID projectId,
+                                                             @RequestParam("seriesInstanceUid") String seriesInstanceUid) {
+        List<DicomFileDTO> series;
+        try {
+            Project projectToGetSeriesFrom = projectService.getProject(projectId);
+            if (projectService.isUserPermittedToSeeProject(projectToGetSeriesFrom, userService.getCurrentLoggedUser())) {
+                series = dicomMetadataService.getSeries(projectToGetSeriesFrom, seriesInstanceUid);
+            } else {
+                //User is not permitted to see files on this project.
+                return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+            }
+        } catch (ProjectNotFoundException | UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(series);
+    }
+
+    /**
+     * Searches for DICOM files by metadata in all projects the logged in user is allowed to see files in.
+     * All params are optional and only files matching all given params are returned.
+     * Params: projectId, modality, bodyPartExamined, studyInstanceUid, seriesInstanceUid, description,
+     * minSliceThickness, maxSliceThickness, fromDate and toDate (yyyy-MM-dd).
+     * @param filter filters to search with.
+     * @return If successful: 200-OK with all found files, newest acquisition date first.
+     *         If user does not exist: 404-Not Found.
+     */
+    @GetMapping(path = "/searchDicom")
+    public ResponseEntity<List<DicomFileDTO>> searchDicom(DicomSearchFilter filter) {
+        try {
+            return ResponseEntity.ok(dicomMetadataService.searchDicomFiles(filter, userService.getCurrentLoggedUser()));
+        } catch (UserNotFoundException e) {
+            System.out.println(e.getMessage());
+            return ResponseEntity.notFound().build();
+        }
+    }
+
     /**
      * Return a list of all sub-projects of a project.
      * @param projectId Id of project to get all sub-projects of.
@@ -300,8 +712,7 @@ public class UserController {
         List<String> allSubFolders;
         try {
             Project projectToGetFoldersNamesFrom = projectService.getProject(projectId);
-            if (!projectToGetFoldersNamesFrom.getIsPrivate() || projectService.hasSpecialPermission(projectToGetFoldersNamesFrom, userService.getCurrentLoggedUser())
-                    || projectService.isUserPermittedToChangeProject(projectToGetFoldersNamesFrom, userService.getCurrentLoggedUser())) {
+            if (projectService.isUserPermittedToSeeProject(projectToGetFoldersNamesFrom, userService.getCurrentLoggedUser())) {
                 allSubFolders = fileStorageService.getAllProjectSubFolders(projectToGetFoldersNamesFrom);
             } else {
                 //User is not permitted to see files on this project.
@@ -321,12 +732,25 @@ public class UserController {
     }
 
     /**
-     * Retrieves all tags from the database.
-     * @return If Successful: 200-OK and List with Tags
+     * Retrieves all tags from the database, or a page of tags sorted by name if limit or cursor is given.
+     * @param limit max number of tags on a page. Optional.
+     * @param cursor cursor of the page to get, from nextCursor of the previous page. Optional.
+     * @return If Successful: 200-OK and List with Tags, or a page with tags and the cursor of the next page.
+     *         If cursor is not valid: 400-Bad Request.
      *         If there are no tags: 404-Not Found.
      */
     @GetMapping(path = "/getAllTags")
-    public ResponseEntity<List<Tag>> getAllTags() {
+    public ResponseEntity<?> getAllTags(@RequestParam(required = false) Integer limit,
+                                        @RequestParam(required = false) String cursor) {
+        if(limit != null || cursor != null) {
+            try {
+                ResultPage<Tag> page = tagService.getTagsPage(cursor, limit);
+                return page.getItems().isEmpty() ? ResponseEntity.notFound().build() : ResponseEntity.ok(page);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                return ResponseEntity.badRequest().build();
+            }
+        }
         List<Tag> allTags = tagService.getAllTags();
         if(allTags == null || allTags.isEmpty()) {
             //No tags in the system.
@@ -339,13 +763,18 @@ public class UserController {
     /**
      * Search for project name, description,
      * @param searchWord word to use to search for a project.
-     * @return If Successful: 200-OK with list of all found projects.
-     *         If searchWord is empty: 400-Bad request.
+     * @param limit max number of results on a page. Optional.
+     * @param cursor cursor of the page to get, from nextCursor of the previous page. Optional.
+     * @return If Successful: 200-OK with list of all found projects, or a page with results and the cursor of
+     *         the next page if limit or cursor is given. Each page runs the whole search.
+     *         If searchWord is empty or cursor is not valid: 400-Bad request.
      *         If no projects was found in the database: 204-No Content.
      */
     @GetMapping(path = "/search")
-    public ResponseEntity<List<ProjectSearchResult>> searchForProject(@RequestParam("search") String searchWord, @RequestParam("tagFilter") List<String> filters) {
-        List<ProjectSearchResult> searchResult;
+    public ResponseEntity<?> searchForProject(@RequestParam("search") String searchWord, @RequestParam("tagFilter") List<String> filters,
+                                              @RequestParam(required = false) Integer limit,
+                                              @RequestParam(required = false) String cursor) {
+        Object searchResult;
         List<Tag> filterList = new ArrayList<>();
         if(filters != null && !filters.isEmpty()) {
             for (String filter : filters) {
@@ -356,7 +785,11 @@ public class UserController {
             }
         }
         try {
-            searchResult = projectService.searchForProject(searchWord, filterList);
+            if(limit != null || cursor != null) {
+                searchResult = projectService.searchForProjectPage(searchWord, filterList, cursor, limit);
+            } else {
+                searchResult = projectService.searchForProject(searchWord, filterList);
+            }
         } catch (IllegalArgumentException e) {
             System.out.println(e.getMessage());
             return ResponseEntity.badRequest().build();
@@ -30,7 +30,7 @@ public class CorsConfig {
                         .allowedHeaders("*")
                         // TODO: When the connection becomes secure (HTTPS), change the IP to include an s!
                         .allowedOrigins("http://" + domain + ":" + port, "http://127.0.0.1:3000")
-                        .exposedHeaders("Set-Cookie")
+                        .exposedHeaders("Set-Cookie", "X-Image-Quality")
                         .allowCredentials(true);
             }
         };
@@ -0,0 +1,38 @@
+package no.ntnu.ctscanarkivsystemserver.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * This class helps to get the image processing settings from the application.properties.
+ */
+@Data
+@ConfigurationProperties(prefix = "image")
+public class ImageProcessingProperties {
+    //Number of image processing threads. 0 or less means one thread per core.
+    private int threads;
+    //Max number of bytes all queued and running image jobs are estimated to decode.
+    private long maxQueuedBytes = 512L * 1024 * 1024;
+    //Seconds a client is told to wait before trying again when the image queue is full.
+    private int retryAfterSeconds = 2;
+    //Max number of bytes used to cache rendered images in memory.
+    private long cacheMaxBytes = 256L * 1024 * 1024;
+    //Quality tier used when the client does not ask for one: fast, balanced or ultra.
+    private String defaultQuality = "BALANCED";
+    //Load (0 to 1) from which ultra quality requests are served with balanced quality.
+    private double balancedQualityLoad = 0.5;
+    //Load (0 to 1) from which all requests are served with fast quality.
+    private double fastQualityLoad = 0.8;
+    //Number of worker processes images are scaled in. 0 means images are scaled in the server process.
+    private int workerProcesses;
+    //Max heap of each worker process, as given to -Xmx.
+    private String workerMaxHeap = "512m";
+    //Seconds a worker can use on one image before it is killed and restarted.
+    private int workerTimeoutSeconds = 120;
+    //Number of threads batch conversions load, convert and store files with. 0 or less means one thread per core.
+    private int conversionThreads;
+    //Max number of batch conversion jobs running at the same time.
+    private int conversionMaxJobs = 4;
+    //Minutes a finished batch conversion and its ZIP file are kept.
+    private int conversionRetentionMinutes = 60;
+}
@@ -0,0 +1,28 @@
+package no.ntnu.ctscanarkivsystemserver.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * This class helps to get the page sizes of listings from the application.properties.
+ */
+@Data
+@ConfigurationProperties(prefix = "pagination")
+public class PaginationProperties {
+    //Number of items on a page when the request does not ask for a number.
+    private int defaultPageSize = 50;
+    //Most items a page can have.
+    private int maxPageSize = 500;
+
+    /**
+     * Gets the page size to use for a request.
+     * @param limit page size asked for. Null for the default page size.
+     * @return page size between 1 and the max page size.
+     */
+    public int getPageSize(Integer limit) {
+        if(limit == null) {
+            return Math.min(defaultPageSize, maxPageSize);
+        }
+        return Math.max(1, Math.min(limit, maxPageSize));
+    }
+}
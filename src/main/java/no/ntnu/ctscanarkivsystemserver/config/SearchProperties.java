@@ -0,0 +1,37 @@
+package no.ntnu.ctscanarkivsystemserver.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * This class helps to get the project search settings from the application.properties.
+ */
+@Data
+@ConfigurationProperties(prefix = "search")
+public class SearchProperties {
+    //Where project search runs: java (projects are loaded and searched in the server)
+    //or database (search documents in PostgreSQL, made by db/project_search.sql)
+    //or memory (an inverted index in the server, see ProjectSearchIndex).
+    private String engine = "java";
+    //File the memory index is saved to so it is ready when the server starts.
+    //Empty means .ct-scan-arkivsystem/project-search.index in the home directory of the server user.
+    private String indexSnapshotFile = "";
+    //Seconds after a change before the memory index is saved.
+    private long indexSnapshotDelaySeconds = 30;
+
+    /**
+     * Return true if project search runs in the database.
+     * @return true if engine is database.
+     */
+    public boolean isDatabaseEngine() {
+        return "database".equalsIgnoreCase(engine.trim());
+    }
+
+    /**
+     * Return true if project search runs in an index in the server.
+     * @return true if engine is memory.
+     */
+    public boolean isMemoryEngine() {
+        return "memory".equalsIgnoreCase(engine.trim());
+    }
+}
@@ -0,0 +1,16 @@
+package no.ntnu.ctscanarkivsystemserver.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * This class helps to get the volume settings from the application.properties.
+ */
+@Data
+@ConfigurationProperties(prefix = "volume")
+public class VolumeProperties {
+    //Local directory volumes are copied to before they are memory-mapped. Empty means the temp directory.
+    private String cacheDir;
+    //Max number of bytes of volumes and projections kept in the local cache.
+    private long cacheMaxBytes = 8L * 1024 * 1024 * 1024;
+}
@@ -0,0 +1,128 @@
+package no.ntnu.ctscanarkivsystemserver.dao;
+
+import no.ntnu.ctscanarkivsystemserver.model.DicomFileDTO;
+import no.ntnu.ctscanarkivsystemserver.model.DicomSearchFilter;
+import no.ntnu.ctscanarkivsystemserver.model.database.DicomMetadata;
+import org.springframework.stereotype.Repository;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.transaction.Transactional;
+import java.util.*;
+
+/**
+ * The job of this class is to access the DICOM metadata in the database.
+ */
+@Repository("dicomMetadataRepo")
+public class DicomMetadataDao {
+
+    //Max number of files returned by one search.
+    private static final int MAX_SEARCH_RESULTS = 1000;
+
+    @PersistenceContext
+    EntityManager em;
+
+    /**
+     * Inserts or updates the metadata of a file.
+     * @param metadata metadata to save.
+     * @return the saved metadata.
+     * @throws IllegalArgumentException if metadata is null.
+     */
+    @Transactional
+    public DicomMetadata saveMetadata(DicomMetadata metadata) throws IllegalArgumentException {
+        if(metadata == null) {
+            throw new IllegalArgumentException("Metadata cannot be null");
+        }
+        DicomMetadata saved = em.merge(metadata);
+        em.flush();
+        return saved;
+    }
+
+    /**
+     * Gets the names of all files in a sub project folder which have metadata.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in.
+     * @return names of files with metadata.
+     */
+    public Set<String> getIndexedFileNames(UUID projectId, String subFolder) {
+        Query query = em.createNamedQuery(DicomMetadata.FIND_INDEXED_FILE_NAMES);
+        query.setParameter("projectId", projectId).setParameter("subFolder", subFolder);
+        return new HashSet<String>(query.getResultList());
+    }
+
+    /**
+     * Gets all files in a series ordered by instance number and then slice location.
+     * @param projectId id of project the series is in.
+     * @param seriesInstanceUid uid of series.
+     * @return files in series in slice order.
+     * @throws IllegalArgumentException if projectId or seriesInstanceUid is null.
+     */
+    public List<DicomFileDTO> getSeries(UUID projectId, String seriesInstanceUid) throws IllegalArgumentException {
+        if(projectId == null || seriesInstanceUid == null) {
+            throw new IllegalArgumentException("projectId and seriesInstanceUid cannot be null!");
+        }
+        TypedQuery<DicomFileDTO> query = em.createNamedQuery(DicomMetadata.FIND_SERIES, DicomFileDTO.class);
+        query.setParameter("projectId", projectId).setParameter("seriesInstanceUid", seriesInstanceUid);
+        return query.getResultList();
+    }
+
+    /**
+     * Searches for DICOM files across the whole archive.
+     * Only files in projects which are public or where the user is owner, member or has special permission are returned.
+     * @param filter filters to use. Fields which are null are not used.
+     * @param userId id of user searching. If null files in all projects are returned (Used for admins).
+     * @return files matching all filters, newest acquisition first and in slice order within a series.
+     */
+    public List<DicomFileDTO> searchMetadata(DicomSearchFilter filter, UUID userId) {
+        StringBuilder jpql = new StringBuilder("SELECT new no.ntnu.ctscanarkivsystemserver.model.DicomFileDTO(" +
+                "f.fileName, f.subFolder, p.projectId, d) FROM dicom_metadata d JOIN d.file f JOIN f.inProject p WHERE 1 = 1");
+        Map<String, Object> parameters = new HashMap<>();
+        addCondition(jpql, parameters, "p.projectId = :projectId", "projectId", filter.getProjectId());
+        addCondition(jpql, parameters, "UPPER(d.modality) = :modality", "modality", upperCase(filter.getModality()));
+        addCondition(jpql, parameters, "UPPER(d.bodyPartExamined) = :bodyPart", "bodyPart", upperCase(filter.getBodyPartExamined()));
+        addCondition(jpql, parameters, "d.studyInstanceUid = :studyUid", "studyUid", filter.getStudyInstanceUid());
+        addCondition(jpql, parameters, "d.seriesInstanceUid = :seriesUid", "seriesUid", filter.getSeriesInstanceUid());
+        addCondition(jpql, parameters, "d.sliceThickness >= :minThickness", "minThickness", filter.getMinSliceThickness());
+        addCondition(jpql, parameters, "d.sliceThickness <= :maxThickness", "maxThickness", filter.getMaxSliceThickness());
+        addCondition(jpql, parameters, "d.acquisitionDate >= :fromDate", "fromDate", filter.getFromDate());
+        addCondition(jpql, parameters, "d.acquisitionDate <= :toDate", "toDate", filter.getToDate());
+        if(filter.getDescription() != null && !filter.getDescription().trim().isEmpty()) {
+            addCondition(jpql, parameters, "(LOWER(d.seriesDescription) LIKE :description OR LOWER(d.studyDescription) LIKE :description)",
+                    "description", "%" + filter.getDescription().trim().toLowerCase() + "%");
+        }
+        if(userId != null) {
+            addCondition(jpql, parameters, "(p.isPrivate = false OR p.owner.userId = :userId" +
+                    " OR EXISTS (SELECT m.userId FROM projects pm JOIN pm.projectMembers m WHERE pm = p AND m.userId = :userId)" +
+                    " OR EXISTS (SELECT s.userId FROM projects ps JOIN ps.usersWithSpecialPermission s WHERE ps = p AND s.userId = :userId))",
+                    "userId", userId);
+        }
+        jpql.append(" ORDER BY d.acquisitionDate DESC, d.seriesInstanceUid, d.instanceNumber, d.sliceLocation");
+        TypedQuery<DicomFileDTO> query = em.createQuery(jpql.toString(), DicomFileDTO.class);
+        for(Map.Entry<String, Object> parameter:parameters.entrySet()) {
+            query.setParameter(parameter.getKey(), parameter.getValue());
+        }
+        query.setMaxResults(MAX_SEARCH_RESULTS);
+        return query.getResultList();
+    }
+
+    /**
+     * Adds a condition to a query if the value is set.
+     * @param jpql query to add condition to.
+     * @param parameters parameters of the query.
+     * @param condition condition to add.
+     * @param name name of parameter in condition.
+     * @param value value of parameter. Condition is not added if null.
+     */
+    private void addCondition(StringBuilder jpql, Map<String, Object> parameters, String condition, String name, Object value) {
+        if(value != null) {
+            jpql.append(" AND ").append(condition);
+            parameters.put(name, value);
+        }
+    }
+
+    private String upperCase(String string) {
+        return string == null || string.trim().isEmpty() ? null : string.trim().toUpperCase();
+    }
+}
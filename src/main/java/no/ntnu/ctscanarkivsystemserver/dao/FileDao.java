@@ -1,16 +1,19 @@
 package no.ntnu.ctscanarkivsystemserver.dao;
 
 import no.ntnu.ctscanarkivsystemserver.model.database.File;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
 import no.ntnu.ctscanarkivsystemserver.model.database.Tag;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.transaction.Transactional;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
 
 /**
  * The job of this class is to access the file database to get, remove or edit data.
@@ -19,17 +22,29 @@ import java.util.UUID;
 @Repository("fileRepo")
 public class FileDao {
 
+    //Max number of file names in one IN list, so large folders are looked up in a few queries.
+    private static final int FILE_NAMES_PER_QUERY = 1000;
+
     @PersistenceContext
     EntityManager em;
 
+    private final ProjectSearchDao projectSearchDao;
+
+    @Autowired
+    public FileDao(ProjectSearchDao projectSearchDao) {
+        this.projectSearchDao = projectSearchDao;
+    }
+
     /**
-     * Gets a file from the database by file name and project id.
+     * Gets a file from the database by file name and project id. The tags of the file are loaded before the
+     * transaction ends.
      * @param fileName name of file to get.
      * @param projectId id of project file is associated with.
      * @param subFolder sub project folder file is in.
      * @return file with fileName and projectId like the params. Null if no file was found.
      * @throws IllegalArgumentException if fileName is empty or projectId is null.
      */
+    @Transactional
     public File getFileByNameAndProject(String fileName, UUID projectId, String subFolder) throws IllegalArgumentException {
         Query query = em.createNamedQuery(File.FIND_FILE_BY_NAME_AND_PROJECT);
         if(fileName == null || fileName.trim().isEmpty() || projectId == null) {
@@ -40,10 +55,89 @@ public class FileDao {
         if(queryResult.size() != 1) {
             return null;
         } else {
+            Hibernate.initialize(queryResult.get(0).getTags());
             return queryResult.get(0);
         }
     }
 
+    /**
+     * Gets all files with the given names in a sub project folder, with their tags.
+     * Files and tags are fetched in one query per FILE_NAMES_PER_QUERY names, instead of one query per file
+     * and one per file for its tags.
+     * @param fileNames names of files to get.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in.
+     * @return files which exist in the database by file name.
+     * @throws IllegalArgumentException if fileNames or projectId is null.
+     */
+    public Map<String, File> getFilesWithTagsByNames(Collection<String> fileNames, UUID projectId, String subFolder)
+            throws IllegalArgumentException {
+        if(fileNames == null || projectId == null) {
+            throw new IllegalArgumentException("fileNames or projectId is null");
+        }
+        Map<String, File> files = new HashMap<>();
+        List<String> allFileNames = new ArrayList<>(new HashSet<>(fileNames));
+        for(int start = 0; start < allFileNames.size(); start += FILE_NAMES_PER_QUERY) {
+            Query query = em.createNamedQuery(File.FIND_FILES_WITH_TAGS_BY_NAMES);
+            query.setParameter("projectId", projectId).setParameter("subFolder", subFolder)
+                    .setParameter("fileNames", allFileNames.subList(start, Math.min(start + FILE_NAMES_PER_QUERY, allFileNames.size())));
+            for(Object file:query.getResultList()) {
+                files.put(((File) file).getFileName(), (File) file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Gets the names of all tags used on files in a project.
+     * Only the tag names are selected, so no file or tag entities are loaded.
+     * @param projectId id of project files are associated with.
+     * @return unique names of tags used on files in the project.
+     * @throws IllegalArgumentException if projectId is null.
+     */
+    public List<String> getTagNamesByProject(UUID projectId) throws IllegalArgumentException {
+        if(projectId == null) {
+            throw new IllegalArgumentException("projectId is null!");
+        }
+        Query query = em.createNamedQuery(File.FIND_TAG_NAMES_BY_PROJECT);
+        query.setParameter("projectId", projectId);
+        return query.getResultList();
+    }
+
+    /**
+     * Gets the names of all tags used on the files with the given names in a sub project folder.
+     * Only file and tag names are selected. Tag names are returned in the order of fileNames, and for each file in
+     * the order its tags are read from the database, like when the tags of one file were loaded at a time.
+     * @param fileNames names of files to get tag names of.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in.
+     * @return unique names of tags used on the files.
+     * @throws IllegalArgumentException if fileNames or projectId is null.
+     */
+    public Set<String> getTagNamesByNames(Collection<String> fileNames, UUID projectId, String subFolder)
+            throws IllegalArgumentException {
+        if(fileNames == null || projectId == null) {
+            throw new IllegalArgumentException("fileNames or projectId is null");
+        }
+        Map<String, List<String>> tagNamesByFile = new HashMap<>();
+        List<String> allFileNames = new ArrayList<>(new LinkedHashSet<>(fileNames));
+        for(int start = 0; start < allFileNames.size(); start += FILE_NAMES_PER_QUERY) {
+            Query query = em.createNamedQuery(File.FIND_TAG_NAMES_BY_NAMES);
+            query.setParameter("projectId", projectId).setParameter("subFolder", subFolder)
+                    .setParameter("fileNames", allFileNames.subList(start, Math.min(start + FILE_NAMES_PER_QUERY, allFileNames.size())));
+            for(Object row:query.getResultList()) {
+                Object[] fileAndTagName = (Object[]) row;
+                tagNamesByFile.computeIfAbsent((String) fileAndTagName[0], fileName -> new ArrayList<>())
+                        .add((String) fileAndTagName[1]);
+            }
+        }
+        Set<String> tagNames = new LinkedHashSet<>();
+        for(String fileName:allFileNames) {
+            tagNames.addAll(tagNamesByFile.getOrDefault(fileName, Collections.emptyList()));
+        }
+        return tagNames;
+    }
+
     /**
      * Gets files from the database by project id.
      * @param projectId id of project files are associated with.
@@ -59,6 +153,18 @@ public class FileDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets the names of all files in a sub project folder which have a placeholder.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in.
+     * @return names of files with a placeholder.
+     */
+    public Set<String> getFileNamesWithPlaceholder(UUID projectId, String subFolder) {
+        Query query = em.createNamedQuery(File.FIND_FILE_NAMES_WITH_PLACEHOLDER);
+        query.setParameter("projectId", projectId).setParameter("subFolder", subFolder);
+        return new HashSet<String>(query.getResultList());
+    }
+
     /**
      * Insert a file into the database.
      * @param file file to be added into the database.
@@ -77,20 +183,76 @@ public class FileDao {
 
     /**
      * Adds one or more tags to a file.
+     * The file is returned by the /addFileTag request, so its tags and the collections of its project are loaded
+     * before the transaction ends.
      * @param file file to add tags to.
      * @param tags tags to be added to file.
      * @return file with added tags.
      */
     @Transactional
     public File addTagsToFile(File file, List<Tag> tags) {
-        em.refresh(file);
+        file = attach(file);
         prepareFileForEdit(file);
         for(Tag tag:tags) {
-            file.getTags().add(tag);
+            file.getTags().add(em.contains(tag) ? tag : em.find(Tag.class, tag.getTagName()));
         }
+        File savedFile = saveFile(file);
+        projectSearchDao.refreshProject(file.getInProject().getProjectId());
+        return initializeCollections(savedFile);
+    }
+
+    /**
+     * Sets the placeholder of a file.
+     * @param file file to set placeholder on.
+     * @param placeholder placeholder as a data URI.
+     * @return file with placeholder. Null if saving failed.
+     */
+    @Transactional
+    public File setPlaceholder(File file, String placeholder) {
+        file = attach(file);
+        prepareFileForEdit(file);
+        file.setPlaceholder(placeholder);
         return saveFile(file);
     }
 
+    /**
+     * Gets the instance of a file which belongs to the current transaction, with the state in the database.
+     * Without a persistence context for the whole request, files from an earlier transaction are detached.
+     * @param file file to attach.
+     * @return managed file.
+     * @throws EntityNotFoundException if the file is no longer in the database.
+     */
+    private File attach(File file) throws EntityNotFoundException {
+        if(em.contains(file)) {
+            em.refresh(file);
+            return file;
+        }
+        File managedFile = em.find(File.class, file.getFileId());
+        if(managedFile == null) {
+            throw new EntityNotFoundException("File " + file.getFileId() + " is no longer in the database.");
+        }
+        return managedFile;
+    }
+
+    /**
+     * Loads the lazy collections of a file and of its project, so the file can be read after the transaction
+     * has ended.
+     * @param file file to load collections of. Can be null.
+     * @return the file.
+     */
+    private File initializeCollections(File file) {
+        if(file != null) {
+            Hibernate.initialize(file.getTags());
+            Project project = file.getInProject();
+            if(project != null) {
+                Hibernate.initialize(project.getTags());
+                Hibernate.initialize(project.getProjectMembers());
+                Hibernate.initialize(project.getUsersWithSpecialPermission());
+            }
+        }
+        return file;
+    }
+
     /**
      * Prepares the database for change.
      * @param file to be changed in the database.
@@ -132,11 +294,13 @@ public class FileDao {
      */
     @Transactional
     public boolean removeTag(File file, List<Tag> tagsToBeRemoved) {
-        em.refresh(file);
+        file = attach(file);
         prepareFileForEdit(file);
         for(Tag tag:tagsToBeRemoved) {
             file.getTags().remove(tag);
         }
-        return saveFile(file) != null;
+        boolean saved = saveFile(file) != null;
+        projectSearchDao.refreshProject(file.getInProject().getProjectId());
+        return saved;
     }
 }
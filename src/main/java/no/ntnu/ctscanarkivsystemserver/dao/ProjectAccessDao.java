@@ -0,0 +1,185 @@
+package no.ntnu.ctscanarkivsystemserver.dao;
+
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.model.database.Role;
+import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps who may see and change each project, so access checks are hash lookups of user ids instead of walking
+ * the member and special permission lists of the project.
+ * The access of a project is read from the database the first time it is checked. ProjectDao and UserDao evict it
+ * when the owner, members, users with special permission or privacy change, once their transaction has ended,
+ * so the next check reads the committed state.
+ */
+@Repository("projectAccessRepo")
+public class ProjectAccessDao {
+
+    @PersistenceContext
+    EntityManager em;
+
+    private final Map<UUID, ProjectAccess> accessByProject = new ConcurrentHashMap<>();
+    //Grows with every eviction, so access read before an eviction is not stored after it.
+    private long evictionCount;
+
+    /**
+     * Returns true if a user may see the files of a project. That is if the project is public, the user has special
+     * permission or the user may change the project.
+     * @param project project to check.
+     * @param user user to check.
+     * @return true if user may see the project.
+     */
+    public boolean isPermittedToSee(Project project, User user) {
+        ProjectAccess access = getAccess(project.getProjectId());
+        return !access.isPrivate || (user != null && access.specialPermissionIds.contains(user.getUserId()))
+                || isPermittedToChange(access, user);
+    }
+
+    /**
+     * Returns true if a user may change a project. That is if the user is the owner, a member or an admin.
+     * @param project project to check.
+     * @param user user to check.
+     * @return true if user may change the project.
+     */
+    public boolean isPermittedToChange(Project project, User user) {
+        return isPermittedToChange(getAccess(project.getProjectId()), user);
+    }
+
+    /**
+     * Returns true if a user has special permission on a project.
+     * @param project project to check.
+     * @param user user to check.
+     * @return true if user has special permission.
+     */
+    public boolean hasSpecialPermission(Project project, User user) {
+        return user != null && getAccess(project.getProjectId()).specialPermissionIds.contains(user.getUserId());
+    }
+
+    /**
+     * Forgets the access of a project when the current transaction has ended, committed or not.
+     * Without a transaction it is forgotten right away.
+     * @param projectId id of changed or deleted project.
+     */
+    public void evictAfterTransaction(UUID projectId) {
+        if(projectId != null) {
+            runAfterTransaction(() -> evict(projectId));
+        }
+    }
+
+    /**
+     * Forgets the access of all projects when the current transaction has ended, after a change which can be
+     * in many projects like deleting a user.
+     */
+    public void evictAllAfterTransaction() {
+        runAfterTransaction(() -> evict(null));
+    }
+
+    private boolean isPermittedToChange(ProjectAccess access, User user) {
+        return user != null && (user.getUserId().equals(access.ownerId) || access.memberIds.contains(user.getUserId())
+                || user.getRoles().get(0).getRoleName().equals("ROLE_" + Role.ADMIN));
+    }
+
+    /**
+     * Gets the access of a project, and reads it from the database if it is not known.
+     * Access read while another request evicted it is used but not stored, since it can be older than the eviction.
+     * @param projectId id of project.
+     * @return access of project.
+     */
+    private ProjectAccess getAccess(UUID projectId) {
+        ProjectAccess access = accessByProject.get(projectId);
+        if(access != null) {
+            return access;
+        }
+        long startEvictionCount;
+        synchronized (this) {
+            startEvictionCount = evictionCount;
+        }
+        access = readAccess(projectId);
+        synchronized (this) {
+            if(evictionCount == startEvictionCount) {
+                accessByProject.put(projectId, access);
+            }
+        }
+        return access;
+    }
+
+    /**
+     * Reads the owner, privacy, members and users with special permission of a project as columns,
+     * so no project or user is loaded.
+     * @param projectId id of project.
+     * @return access of project. A project which does not exist is private with no users.
+     */
+    private ProjectAccess readAccess(UUID projectId) {
+        List<?> projectRows = em.createQuery("SELECT o.userId, p.isPrivate FROM projects p LEFT JOIN p.owner o " +
+                "WHERE p.projectId = :projectId").setParameter("projectId", projectId).getResultList();
+        if(projectRows.isEmpty()) {
+            return new ProjectAccess(null, true, new HashSet<>(), new HashSet<>());
+        }
+        Object[] projectRow = (Object[]) projectRows.get(0);
+        return new ProjectAccess((UUID) projectRow[0], !Boolean.FALSE.equals(projectRow[1]),
+                readUserIds("SELECT m.userId FROM projects p JOIN p.projectMembers m WHERE p.projectId = :projectId", projectId),
+                readUserIds("SELECT s.userId FROM projects p JOIN p.usersWithSpecialPermission s WHERE p.projectId = :projectId", projectId));
+    }
+
+    private Set<UUID> readUserIds(String jpql, UUID projectId) {
+        Set<UUID> userIds = new HashSet<>();
+        for(Object userId:em.createQuery(jpql).setParameter("projectId", projectId).getResultList()) {
+            userIds.add((UUID) userId);
+        }
+        return userIds;
+    }
+
+    /**
+     * Forgets access.
+     * @param projectId id of project to forget. Null to forget all.
+     */
+    private synchronized void evict(UUID projectId) {
+        evictionCount++;
+        if(projectId == null) {
+            accessByProject.clear();
+        } else {
+            accessByProject.remove(projectId);
+        }
+    }
+
+    private void runAfterTransaction(Runnable action) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * The owner, members and users with special permission of a project as user ids. Never changed after it is made.
+     */
+    private static class ProjectAccess {
+        private final UUID ownerId;
+        private final boolean isPrivate;
+        private final Set<UUID> memberIds;
+        private final Set<UUID> specialPermissionIds;
+
+        private ProjectAccess(UUID ownerId, boolean isPrivate, Set<UUID> memberIds, Set<UUID> specialPermissionIds) {
+            this.ownerId = ownerId;
+            this.isPrivate = isPrivate;
+            this.memberIds = memberIds;
+            this.specialPermissionIds = specialPermissionIds;
+        }
+    }
+}
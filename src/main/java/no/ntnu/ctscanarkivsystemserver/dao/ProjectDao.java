@@ -1,12 +1,16 @@
 package no.ntnu.ctscanarkivsystemserver.dao;
 
 import no.ntnu.ctscanarkivsystemserver.exception.ProjectNotFoundException;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectListItem;
 import no.ntnu.ctscanarkivsystemserver.model.database.Project;
 import no.ntnu.ctscanarkivsystemserver.model.database.Tag;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import org.hibernate.Hibernate;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
@@ -24,6 +28,17 @@ public class ProjectDao {
     @PersistenceContext
     EntityManager em;
 
+    private final ProjectSearchDao projectSearchDao;
+    private final RequestLookupCache requestLookupCache;
+    private final ProjectAccessDao projectAccessDao;
+
+    @Autowired
+    public ProjectDao(ProjectSearchDao projectSearchDao, RequestLookupCache requestLookupCache,
+                      ProjectAccessDao projectAccessDao) {
+        this.projectSearchDao = projectSearchDao;
+        this.requestLookupCache = requestLookupCache;
+        this.projectAccessDao = projectAccessDao;
+    }
 
     /**
      * Method to create a new project.
@@ -36,6 +51,8 @@ public class ProjectDao {
     public Project createProject(Project newProject) {
         em.persist(newProject);
         em.flush();
+        projectAccessDao.evictAfterTransaction(newProject.getProjectId());
+        projectSearchDao.refreshProject(newProject.getProjectId());
         return newProject;
     }
 
@@ -50,8 +67,10 @@ public class ProjectDao {
     @Transactional
     public boolean deleteProject(Project project) throws NullPointerException {
         if (project != null) {
-            em.remove(project);
+            em.remove(attach(project));
             em.flush();
+            requestLookupCache.evictProject(project.getProjectId());
+            projectSearchDao.removeProject(project.getProjectId());
             return !doesProjectExist(project.getProjectId());
         }
         else {
@@ -59,13 +78,56 @@ public class ProjectDao {
         }
     }
 
+    /**
+     * Gets a page of projects as list items sorted by name and id.
+     * @param afterProjectName name of the last project of the previous page. Null for the first page.
+     * @param afterProjectId id of the last project of the previous page. Null for the first page.
+     * @param limit max number of projects to get.
+     * @return projects after the given project.
+     */
+    public List<ProjectListItem> getProjectsPage(String afterProjectName, UUID afterProjectId, int limit) {
+        Query query;
+        if(afterProjectName == null || afterProjectId == null) {
+            query = em.createNamedQuery(Project.FIND_PROJECT_ITEMS);
+        } else {
+            query = em.createNamedQuery(Project.FIND_PROJECT_ITEMS_AFTER)
+                    .setParameter("projectName", afterProjectName)
+                    .setParameter("projectId", afterProjectId);
+        }
+        return query.setMaxResults(limit).getResultList();
+    }
+
     /**
      * This method runs the SQL query used to get all projects.
+     * The tags, members and users with special permission of each project are loaded before the transaction ends,
+     * in batches of hibernate.default_batch_fetch_size projects.
      * @return The list
      */
+    @Transactional
     public List<Project> getAllProjects() {
         Query query = em.createNamedQuery(Project.FIND_ALL_PROJECTS);
-        return query.getResultList();
+        List<Project> projects = query.getResultList();
+        for(Project project:projects) {
+            initializeCollections(project);
+        }
+        return projects;
+    }
+
+    /**
+     * Gets all projects as list items, in one query.
+     * @return list items of all projects sorted by name.
+     */
+    public List<ProjectListItem> getAllProjectItems() {
+        return em.createNamedQuery(Project.FIND_PROJECT_ITEMS).getResultList();
+    }
+
+    /**
+     * Gets all projects a tag is used in as list items, in one query.
+     * @param tagName name of tag.
+     * @return list items of projects sorted by name.
+     */
+    public List<ProjectListItem> getProjectItemsOfTag(String tagName) {
+        return em.createNamedQuery(Project.FIND_PROJECT_ITEMS_OF_TAG).setParameter("tagName", tagName).getResultList();
     }
 
     /**
@@ -94,19 +156,29 @@ public class ProjectDao {
 
     /**
      * Gets a project from the database with a UUID.
+     * The tags, members and users with special permission are loaded before the transaction ends, so the project
+     * can be used and returned after it.
+     * A project already found in this request is returned without asking the database again.
      * @param uuid UUID of project to find.
      * @return project with UUID.
      * @throws ProjectNotFoundException if no project was found.
      */
+    @Transactional
     public Project getProjectById(UUID uuid) throws ProjectNotFoundException {
-        Query query = em.createNamedQuery(Project.FIND_PROJECTS_BY_UUID);
         if(uuid == null) {
             return null;
         }
+        Project foundProject = requestLookupCache.getProject(uuid);
+        if(foundProject != null) {
+            return foundProject;
+        }
+        Query query = em.createNamedQuery(Project.FIND_PROJECTS_BY_UUID);
         query.setParameter("projectId", uuid);
         List<Project> queryResult = query.getResultList();
         if(queryResult.size() == 1) {
-            return (Project) query.getResultList().get(0);
+            foundProject = initializeCollections(queryResult.get(0));
+            requestLookupCache.putProject(foundProject);
+            return foundProject;
         } else {
             System.out.println("Found no project with id: " + uuid);
             throw new ProjectNotFoundException(uuid);
@@ -114,18 +186,13 @@ public class ProjectDao {
     }
 
     /**
-     * Return a list of all the projects the user owns or are member of.
-     * This will also remove all duplicates.
+     * Return a list of all the projects the user owns or are member of, as list items.
+     * Members are matched in a sub query, so each project is only listed once.
      * @param userId Id of user to get projects from.
      * @return List of all projects user owns or are member of without duplicates.
      */
-    public List<Project> getMyProjects(UUID userId) {
-        List<Project> myProjects = em.createNamedQuery(Project.FIND_MY_PROJECTS)
-                .setParameter("id", userId).getResultList();
-        Set<Project> myProjectWithoutDupes = new LinkedHashSet<>(myProjects);
-        myProjects.clear();
-        myProjects.addAll(myProjectWithoutDupes);
-        return myProjects;
+    public List<ProjectListItem> getMyProjects(UUID userId) {
+        return em.createNamedQuery(Project.FIND_MY_PROJECT_ITEMS).setParameter("id", userId).getResultList();
     }
 
     /**
@@ -136,12 +203,13 @@ public class ProjectDao {
      */
     @Transactional
     public boolean changeProjectOwner(Project project, User newOwner) {
-        em.refresh(project);
+        project = attach(project);
         prepareProjectForEdit(project);
-        project.setOwner(newOwner);
+        project.setOwner(attach(newOwner));
         saveProject(project);
+        projectSearchDao.refreshProject(project.getProjectId());
 
-        return project.getOwner().getUserId() == newOwner.getUserId();
+        return project.getOwner().getUserId().equals(newOwner.getUserId());
     }
 
     /**
@@ -152,7 +220,7 @@ public class ProjectDao {
      */
     @Transactional
     public boolean revokeSpecialPermission(Project inputProject, User user) {
-        em.refresh(inputProject);
+        inputProject = attach(inputProject);
         prepareProjectForEdit(inputProject);
         inputProject.getUsersWithSpecialPermission().remove(user);
         saveProject(inputProject);
@@ -167,9 +235,9 @@ public class ProjectDao {
      */
     @Transactional
     public boolean grantSpecialPermission(Project inputProject, User user) {
-        em.refresh(inputProject);
+        inputProject = attach(inputProject);
         prepareProjectForEdit(inputProject);
-        inputProject.getUsersWithSpecialPermission().add(user);
+        inputProject.getUsersWithSpecialPermission().add(attach(user));
         saveProject(inputProject);
         return inputProject.getUsersWithSpecialPermission().contains(user);
     }
@@ -182,10 +250,11 @@ public class ProjectDao {
      */
     @Transactional
     public boolean addProjectMember(Project inputProject, User user) {
-        em.refresh(inputProject);
+        inputProject = attach(inputProject);
         prepareProjectForEdit(inputProject);
-        inputProject.getProjectMembers().add(user);
+        inputProject.getProjectMembers().add(attach(user));
         saveProject(inputProject);
+        projectSearchDao.refreshProject(inputProject.getProjectId());
         return inputProject.getProjectMembers().contains(user);
     }
 
@@ -197,10 +266,11 @@ public class ProjectDao {
      */
     @Transactional
     public boolean removeProjectMember(Project inputProject, User user) {
-        em.refresh(inputProject);
+        inputProject = attach(inputProject);
         prepareProjectForEdit(inputProject);
         inputProject.getProjectMembers().remove(user);
         saveProject(inputProject);
+        projectSearchDao.refreshProject(inputProject.getProjectId());
         return !inputProject.getProjectMembers().contains(user);
     }
 
@@ -212,12 +282,12 @@ public class ProjectDao {
      */
     @Transactional
     public Project addProjectTag(Project project, List<Tag> tags) {
-        em.refresh(project);
+        project = attach(project);
         prepareProjectForEdit(project);
         for(Tag tag:tags) {
-            project.getTags().add(tag);
+            project.getTags().add(em.contains(tag) ? tag : em.find(Tag.class, tag.getTagName()));
         }
-        return saveProject(project);
+        return initializeCollections(saveAndRefreshProject(project));
     }
 
     /**
@@ -228,12 +298,59 @@ public class ProjectDao {
      */
     @Transactional
     public Project removeProjectTag(Project project, List<Tag> tags) {
-        em.refresh(project);
+        project = attach(project);
         prepareProjectForEdit(project);
         for(Tag tag:tags) {
             project.getTags().remove(tag);
         }
-        return saveProject(project);
+        return initializeCollections(saveAndRefreshProject(project));
+    }
+
+    /**
+     * Gets the instance of a project which belongs to the current transaction, with the state in the database.
+     * Without a persistence context for the whole request, projects from an earlier transaction are detached.
+     * Since the project is about to be changed, it is also forgotten by the lookups of the request, and its access
+     * is forgotten when the transaction has ended.
+     * @param project project to attach.
+     * @return managed project.
+     * @throws EntityNotFoundException if the project is no longer in the database.
+     */
+    private Project attach(Project project) throws EntityNotFoundException {
+        requestLookupCache.evictProject(project.getProjectId());
+        projectAccessDao.evictAfterTransaction(project.getProjectId());
+        if(em.contains(project)) {
+            em.refresh(project);
+            return project;
+        }
+        Project managedProject = em.find(Project.class, project.getProjectId());
+        if(managedProject == null) {
+            throw new EntityNotFoundException("Project " + project.getProjectId() + " is no longer in the database.");
+        }
+        return managedProject;
+    }
+
+    /**
+     * Gets the instance of a user which belongs to the current transaction, so adding it to a project does not
+     * merge an older state of the user into the database.
+     * @param user user to attach.
+     * @return managed user.
+     */
+    private User attach(User user) {
+        return em.contains(user) ? user : em.find(User.class, user.getUserId());
+    }
+
+    /**
+     * Loads the lazy collections of a project, so they can be read after the transaction has ended.
+     * @param project project to load collections of. Can be null.
+     * @return the project.
+     */
+    private Project initializeCollections(Project project) {
+        if(project != null) {
+            Hibernate.initialize(project.getTags());
+            Hibernate.initialize(project.getProjectMembers());
+            Hibernate.initialize(project.getUsersWithSpecialPermission());
+        }
+        return project;
     }
 
 
@@ -271,6 +388,19 @@ public class ProjectDao {
         return null;
     }
 
+    /**
+     * Saves a project and rebuilds its search document.
+     * @param projectToSave The project that you want to change
+     * @return project if successful. Null if something went wrong.
+     */
+    private Project saveAndRefreshProject(Project projectToSave) {
+        Project savedProject = saveProject(projectToSave);
+        if(savedProject != null) {
+            projectSearchDao.refreshProject(savedProject.getProjectId());
+        }
+        return savedProject;
+    }
+
     /**
      * Set a projects privacy.
      * @param project project to set privacy of.
@@ -279,10 +409,10 @@ public class ProjectDao {
      */
     @Transactional
     public boolean setPrivacy(Project project, boolean privacy) {
-        em.refresh(project);
+        project = attach(project);
         prepareProjectForEdit(project);
         project.setIsPrivate(privacy);
-        project = saveProject(project);
+        project = saveAndRefreshProject(project);
         return project != null;
     }
 
@@ -294,10 +424,10 @@ public class ProjectDao {
      */
     @Transactional
     public String setDescription(Project project, String description) {
-        em.refresh(project);
+        project = attach(project);
         prepareProjectForEdit(project);
         project.setDescription(description);
-        project = saveProject(project);
+        project = saveAndRefreshProject(project);
         if(project == null) {
             return null;
         } else {
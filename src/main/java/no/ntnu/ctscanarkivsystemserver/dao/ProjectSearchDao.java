@@ -0,0 +1,324 @@
+package no.ntnu.ctscanarkivsystemserver.dao;
+
+import no.ntnu.ctscanarkivsystemserver.config.SearchProperties;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectSearchResult;
+import no.ntnu.ctscanarkivsystemserver.util.ProjectSearchIndex;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.transaction.Transactional;
+import java.util.*;
+
+/**
+ * The job of this class is to keep the search documents of projects (project_search, see db/project_search.sql)
+ * up to date and to search in them.
+ * Documents are kept in the database when search.engine is database, and in ProjectSearchIndex when search.engine
+ * is memory. Else every method does nothing.
+ * Refreshing joins the transaction of the caller, so a document is changed together with what it is made from.
+ * In memory the document is read in the transaction of the caller, and put in the index when it has committed,
+ * so a rolled back change never reaches the index.
+ */
+@Repository("projectSearchRepo")
+public class ProjectSearchDao {
+
+    //Fields a search word can match, in the order they are listed in the result info of a project.
+    private static final String[] SEARCHED_FIELDS = {"name_text", "description_text", "creation_text", "owner_text",
+            "member_text", "project_tag_text", "file_tag_text", "file_name_text"};
+    private static final String[] RESULT_INFO = {"name", "description", "date", "owner", "member", "project_Tag", "file_tag",
+            "file_name"};
+    private static final String SEARCH_QUERY = buildSearchQuery();
+
+    @PersistenceContext
+    EntityManager em;
+
+    private final boolean databaseEngine;
+    private final ProjectSearchIndex projectSearchIndex;
+    private final boolean enabled;
+
+    @Autowired
+    public ProjectSearchDao(SearchProperties searchProperties, ProjectSearchIndex projectSearchIndex) {
+        this.databaseEngine = searchProperties.isDatabaseEngine();
+        this.projectSearchIndex = projectSearchIndex;
+        this.enabled = databaseEngine || projectSearchIndex.isEnabled();
+    }
+
+    /**
+     * Rebuilds the search document of a project.
+     * @param projectId id of project.
+     */
+    public void refreshProject(UUID projectId) {
+        if(projectId == null) {
+            return;
+        }
+        if(databaseEngine) {
+            em.createNativeQuery("SELECT refresh_project_search(CAST(:projectId AS uuid))")
+                    .setParameter("projectId", projectId.toString()).getSingleResult();
+        } else if(projectSearchIndex.isEnabled()) {
+            Collection<ProjectSearchIndex.Document> documents = loadIndexDocuments(projectId);
+            runAfterCommit(() -> {
+                if(documents.isEmpty()) {
+                    projectSearchIndex.remove(projectId);
+                } else {
+                    projectSearchIndex.put(documents.iterator().next());
+                }
+            });
+        }
+    }
+
+    /**
+     * Removes the search document of a deleted project when the transaction has committed. In the database
+     * the document is deleted together with the project.
+     * @param projectId id of project.
+     */
+    public void removeProject(UUID projectId) {
+        if(projectId != null) {
+            runAfterCommit(() -> projectSearchIndex.remove(projectId));
+        }
+    }
+
+    /**
+     * Runs a change of the index when the transaction of the caller has committed. A rolled back transaction
+     * does not change the index. Without a transaction the change is run right away.
+     * @param change change of the index.
+     */
+    private void runAfterCommit(Runnable change) {
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    change.run();
+                }
+            });
+        } else {
+            change.run();
+        }
+    }
+
+    /**
+     * Adds names of files to the search document of a project, for example when files are uploaded.
+     * Names already in the document are not added again. Names are kept when the document is rebuilt,
+     * since the database only knows of files which have tags or placeholders.
+     * @param projectId id of project.
+     * @param fileNames names of files including file type.
+     */
+    @Transactional
+    public void addFileNames(UUID projectId, Collection<String> fileNames) {
+        if(projectId == null || fileNames.isEmpty()) {
+            return;
+        }
+        if(databaseEngine) {
+            StringJoiner names = new StringJoiner("\u001f");
+            for(String fileName:fileNames) {
+                names.add(fileName.toLowerCase());
+            }
+            em.createNativeQuery("UPDATE project_search SET file_name_text = merge_project_search_names(file_name_text, :names) " +
+                    "WHERE project_id = CAST(:projectId AS uuid)")
+                    .setParameter("names", names.toString())
+                    .setParameter("projectId", projectId.toString()).executeUpdate();
+        } else if(projectSearchIndex.isEnabled()) {
+            runAfterCommit(() -> projectSearchIndex.addFileNames(projectId, fileNames));
+        }
+    }
+
+    /**
+     * Rebuilds the index of all projects in the background when the server has started, if search.engine is memory.
+     * A snapshot loaded at start is searched in the meantime, and is made up to date by the rebuild.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildIndex() {
+        if(!projectSearchIndex.isEnabled()) {
+            return;
+        }
+        Thread rebuild = new Thread(() -> {
+            try {
+                long startChangeCount = projectSearchIndex.getChangeCount();
+                projectSearchIndex.replaceAll(loadIndexDocuments(null), startChangeCount);
+            } catch (RuntimeException e) {
+                System.out.println("Could not rebuild project search index: " + e.getMessage());
+            }
+        }, "search-index-rebuild");
+        rebuild.setDaemon(true);
+        rebuild.start();
+    }
+
+    /**
+     * Loads the index documents of projects. Only columns are selected, so no lazy collection is loaded
+     * outside of a transaction. File names are those the database knows of, names of other files are added
+     * to the index when they are uploaded.
+     * @param projectId id of project to load. Null to load all projects.
+     * @return documents by project id.
+     */
+    private Collection<ProjectSearchIndex.Document> loadIndexDocuments(UUID projectId) {
+        Map<UUID, ProjectSearchIndex.Document> documents = new HashMap<>();
+        String projectCondition = projectId == null ? "" : " WHERE p.projectId = :projectId";
+        for(Object[] row:selectRows("SELECT p.projectId, p.projectName, p.description, p.creation, p.isPrivate, " +
+                "o.firstName, o.lastName, o.email FROM projects p LEFT JOIN p.owner o" + projectCondition, projectId)) {
+            ProjectSearchIndex.Document document = new ProjectSearchIndex.Document();
+            document.setProjectId((UUID) row[0]);
+            document.setProjectName((String) row[1]);
+            document.setDescription((String) row[2]);
+            document.setCreation((Date) row[3]);
+            document.setIsPrivate((Boolean) row[4]);
+            document.setOwnerName(row[5] + " " + row[6]);
+            if(row[7] != null) {
+                document.getOwnerTexts().addAll(Arrays.asList((String) row[5], (String) row[6], (String) row[7]));
+            }
+            documents.put(document.getProjectId(), document);
+        }
+        for(Object[] row:selectRows("SELECT p.projectId, m.firstName, m.lastName, m.email FROM projects p " +
+                "JOIN p.projectMembers m" + projectCondition, projectId)) {
+            ProjectSearchIndex.Document document = documents.get((UUID) row[0]);
+            if(document != null) {
+                document.getMemberTexts().addAll(Arrays.asList((String) row[1], (String) row[2], (String) row[3]));
+            }
+        }
+        for(Object[] row:selectRows("SELECT p.projectId, t.tagName FROM projects p JOIN p.tags t" + projectCondition, projectId)) {
+            ProjectSearchIndex.Document document = documents.get((UUID) row[0]);
+            if(document != null) {
+                document.getProjectTags().add((String) row[1]);
+            }
+        }
+        String fileCondition = projectId == null ? "" : " WHERE f.inProject.projectId = :projectId";
+        for(Object[] row:selectRows("SELECT DISTINCT f.inProject.projectId, t.tagName FROM files f JOIN f.tags t" +
+                fileCondition, projectId)) {
+            ProjectSearchIndex.Document document = documents.get((UUID) row[0]);
+            if(document != null) {
+                document.getFileTags().add((String) row[1]);
+            }
+        }
+        for(Object[] row:selectRows("SELECT DISTINCT f.inProject.projectId, f.fileName FROM files f" + fileCondition, projectId)) {
+            ProjectSearchIndex.Document document = documents.get((UUID) row[0]);
+            if(document != null) {
+                document.getFileNames().add((String) row[1]);
+            }
+        }
+        return documents.values();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Object[]> selectRows(String jpql, UUID projectId) {
+        Query query = em.createQuery(jpql);
+        if(projectId != null) {
+            query.setParameter("projectId", projectId);
+        }
+        return query.getResultList();
+    }
+
+    /**
+     * Rebuilds the search documents of projects.
+     * @param projectIds ids of projects.
+     */
+    public void refreshProjects(Collection<UUID> projectIds) {
+        for(UUID projectId:projectIds) {
+            refreshProject(projectId);
+        }
+    }
+
+    /**
+     * Gets the ids of all projects a user is owner or member of, which are the projects a change of the user
+     * changes the search documents of.
+     * @param userId id of user.
+     * @return ids of projects. Empty if search documents are not kept.
+     */
+    public Set<UUID> getProjectIdsOfUser(UUID userId) {
+        if(!enabled) {
+            return Collections.emptySet();
+        }
+        return toUuids(em.createNativeQuery("SELECT CAST(p.project_id AS text) FROM projects p WHERE p.owner = CAST(:userId AS uuid) " +
+                "UNION SELECT CAST(pm.project_id AS text) FROM project_members pm WHERE pm.user_id = CAST(:userId AS uuid)")
+                .setParameter("userId", userId.toString()).getResultList());
+    }
+
+    /**
+     * Gets the ids of all projects a tag is used in, on the project or on a file.
+     * @param tagName name of tag.
+     * @return ids of projects. Empty if search documents are not kept.
+     */
+    public Set<UUID> getProjectIdsOfTag(String tagName) {
+        if(!enabled) {
+            return Collections.emptySet();
+        }
+        return toUuids(em.createNativeQuery("SELECT CAST(pt.project_id AS text) FROM project_tags pt WHERE pt.tag_name = :tagName " +
+                "UNION SELECT CAST(f.in_project AS text) FROM file_tags ft JOIN files f ON f.file_id = ft.file_id WHERE ft.tag_name = :tagName")
+                .setParameter("tagName", tagName).getResultList());
+    }
+
+    /**
+     * Searches for projects where the search word is part of the name, description, owner, members (first name,
+     * last name, email), project tags, file tags or file names, or is the creation date.
+     * Projects are ranked by how well the words of the project match the search word.
+     * @param searchWord word to search for.
+     * @param date search word as a date (yyyy-MM-dd). Null if the search word is not a date.
+     * @param tagFilter names of tags a project must have all of. Empty for no filter.
+     * @return matching projects with where the search word was found, best match first.
+     */
+    public List<ProjectSearchResult> search(String searchWord, String date, Collection<String> tagFilter) {
+        String word = searchWord.toLowerCase();
+        Query query = em.createNativeQuery(SEARCH_QUERY);
+        query.setParameter("pattern", "%" + escapeLikePattern(word) + "%")
+                .setParameter("word", word)
+                .setParameter("date", date == null ? "" : date)
+                .setParameter("tagCount", new HashSet<>(tagFilter).size())
+                //IN with an empty list is not valid SQL, the list is not used when there is no filter.
+                .setParameter("tagNames", tagFilter.isEmpty() ? Collections.singletonList("") : new ArrayList<>(tagFilter));
+        List<ProjectSearchResult> results = new ArrayList<>();
+        for(Object row:query.getResultList()) {
+            Object[] columns = (Object[]) row;
+            List<String> resultInfo = new ArrayList<>();
+            for(int i = 0; i < RESULT_INFO.length; i++) {
+                if(Boolean.TRUE.equals(columns[6 + i])) {
+                    resultInfo.add(RESULT_INFO[i]);
+                }
+            }
+            results.add(new ProjectSearchResult((String) columns[1], UUID.fromString((String) columns[0]),
+                    (Boolean) columns[2], (Date) columns[3], columns[4] + " " + columns[5], resultInfo));
+        }
+        return results;
+    }
+
+    /**
+     * Builds the search query. Each field is matched with LIKE, which the trigram indexes answer,
+     * except the date which must be equal.
+     * @return search query.
+     */
+    private static String buildSearchQuery() {
+        StringJoiner matches = new StringJoiner(", ");
+        StringJoiner anyMatch = new StringJoiner(" OR ");
+        for(String field:SEARCHED_FIELDS) {
+            String match = field.equals("creation_text") ? "s.creation_text = :date" : "s." + field + " LIKE :pattern ESCAPE '!'";
+            matches.add(match);
+            anyMatch.add(match);
+        }
+        return "SELECT CAST(p.project_id AS text), p.project_name, p.private, p.creation, o.first_name, o.last_name, " + matches +
+                " FROM project_search s JOIN projects p ON p.project_id = s.project_id LEFT JOIN users o ON o.user_id = p.owner" +
+                " WHERE (" + anyMatch + ")" +
+                " AND (:tagCount = 0 OR (SELECT count(DISTINCT pt.tag_name) FROM project_tags pt" +
+                " WHERE pt.project_id = s.project_id AND pt.tag_name IN (:tagNames)) = :tagCount)" +
+                " ORDER BY ts_rank(s.document, plainto_tsquery('simple', :word)) DESC," +
+                " similarity(s.name_text, :word) DESC, p.project_name";
+    }
+
+    /**
+     * Escapes the wildcards of LIKE in a search word, so they are matched as text.
+     * @param word search word.
+     * @return word where !, % and _ are escaped with !.
+     */
+    private String escapeLikePattern(String word) {
+        return word.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
+    private Set<UUID> toUuids(List<?> ids) {
+        Set<UUID> uuids = new HashSet<>();
+        for(Object id:ids) {
+            uuids.add(UUID.fromString((String) id));
+        }
+        return uuids;
+    }
+}
@@ -0,0 +1,135 @@
+package no.ntnu.ctscanarkivsystemserver.dao;
+
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The job of this class is to remember the projects and users the DAOs have looked up during a request,
+ * so repeated lookups in the same request get the same instance without asking the database again.
+ * Lookups are kept as an attribute of the current request and are gone when the request ends.
+ * Outside of a request, like in background threads, nothing is remembered.
+ * DAOs which change projects or users must evict them, so a later lookup in the request gets the new state.
+ */
+@Component
+public class RequestLookupCache {
+
+    private static final String ATTRIBUTE_NAME = RequestLookupCache.class.getName();
+
+    /**
+     * Gets a project looked up earlier in this request.
+     * @param projectId id of project.
+     * @return project. Null if it has not been looked up.
+     */
+    public Project getProject(UUID projectId) {
+        Lookups lookups = getLookups(false);
+        return lookups == null || projectId == null ? null : lookups.projects.get(projectId);
+    }
+
+    /**
+     * Remembers a project for the rest of this request.
+     * @param project project to remember. Can be null.
+     */
+    public void putProject(Project project) {
+        Lookups lookups = getLookups(true);
+        if(lookups != null && project != null) {
+            lookups.projects.put(project.getProjectId(), project);
+        }
+    }
+
+    /**
+     * Forgets a project, after it has been changed or deleted.
+     * @param projectId id of project.
+     */
+    public void evictProject(UUID projectId) {
+        Lookups lookups = getLookups(false);
+        if(lookups != null) {
+            lookups.projects.remove(projectId);
+        }
+    }
+
+    /**
+     * Forgets all projects, after a change which can be in many projects like deleting a tag.
+     */
+    public void evictProjects() {
+        Lookups lookups = getLookups(false);
+        if(lookups != null) {
+            lookups.projects.clear();
+        }
+    }
+
+    /**
+     * Gets a user looked up earlier in this request.
+     * @param userId id of user.
+     * @return user. Null if it has not been looked up.
+     */
+    public User getUserById(UUID userId) {
+        Lookups lookups = getLookups(false);
+        return lookups == null || userId == null ? null : lookups.usersById.get(userId);
+    }
+
+    /**
+     * Gets a user looked up earlier in this request.
+     * @param email email of user in lower case.
+     * @return user. Null if it has not been looked up.
+     */
+    public User getUserByEmail(String email) {
+        Lookups lookups = getLookups(false);
+        return lookups == null || email == null ? null : lookups.usersByEmail.get(email);
+    }
+
+    /**
+     * Remembers a user for the rest of this request, by both id and email.
+     * @param user user to remember. Can be null.
+     */
+    public void putUser(User user) {
+        Lookups lookups = getLookups(true);
+        if(lookups != null && user != null) {
+            lookups.usersById.put(user.getUserId(), user);
+            lookups.usersByEmail.put(user.getEmail().toLowerCase(), user);
+        }
+    }
+
+    /**
+     * Forgets all users and projects, after a user has been changed or deleted.
+     * Projects are forgotten too since they hold the user as owner or member.
+     */
+    public void evictUsers() {
+        Lookups lookups = getLookups(false);
+        if(lookups != null) {
+            lookups.usersById.clear();
+            lookups.usersByEmail.clear();
+            lookups.projects.clear();
+        }
+    }
+
+    /**
+     * Gets the lookups of the current request.
+     * @param create true to make them if the request has none yet.
+     * @return lookups. Null if there is no current request, or there are none and create is false.
+     */
+    private Lookups getLookups(boolean create) {
+        RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+        if(attributes == null) {
+            return null;
+        }
+        Lookups lookups = (Lookups) attributes.getAttribute(ATTRIBUTE_NAME, RequestAttributes.SCOPE_REQUEST);
+        if(lookups == null && create) {
+            lookups = new Lookups();
+            attributes.setAttribute(ATTRIBUTE_NAME, lookups, RequestAttributes.SCOPE_REQUEST);
+        }
+        return lookups;
+    }
+
+    private static class Lookups {
+        private final Map<UUID, Project> projects = new HashMap<>();
+        private final Map<UUID, User> usersById = new HashMap<>();
+        private final Map<String, User> usersByEmail = new HashMap<>();
+    }
+}
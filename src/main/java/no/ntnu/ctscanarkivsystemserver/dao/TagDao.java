@@ -1,6 +1,7 @@
 package no.ntnu.ctscanarkivsystemserver.dao;
 
 import no.ntnu.ctscanarkivsystemserver.model.database.Tag;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
@@ -8,6 +9,8 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.transaction.Transactional;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 /**
  * The job of this class is to access the tag database to get, remove or edit data.
@@ -19,6 +22,15 @@ public class TagDao {
     @PersistenceContext
     EntityManager em;
 
+    private final ProjectSearchDao projectSearchDao;
+    private final RequestLookupCache requestLookupCache;
+
+    @Autowired
+    public TagDao(ProjectSearchDao projectSearchDao, RequestLookupCache requestLookupCache) {
+        this.projectSearchDao = projectSearchDao;
+        this.requestLookupCache = requestLookupCache;
+    }
+
     /**
      * Gets a tag from the database by tag name.
      * @param tagName name of tag to get.
@@ -56,7 +68,8 @@ public class TagDao {
     }
 
     /**
-     * Retrieves all tags from the database.
+     * Retrieves all tags from the database with the number of projects they are used in.
+     * The tags are not managed, so they are only for listing.
      * @return all found tags as a List.
      */
     public List<Tag> getAllTags() {
@@ -64,6 +77,23 @@ public class TagDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets a page of tags sorted by name, with the number of projects they are used in.
+     * The tags are not managed, so they are only for listing.
+     * @param afterTagName name of the last tag of the previous page. Null for the first page.
+     * @param limit max number of tags to get.
+     * @return tags after the given tag.
+     */
+    public List<Tag> getTagsPage(String afterTagName, int limit) {
+        Query query;
+        if(afterTagName == null) {
+            query = em.createNamedQuery(Tag.FIND_ALL_TAGS);
+        } else {
+            query = em.createNamedQuery(Tag.FIND_TAGS_PAGE_AFTER).setParameter("tagName", afterTagName);
+        }
+        return query.setMaxResults(limit).getResultList();
+    }
+
     /**
      * Deletes a tag from the database.
      * @param tagToBeRemoved tag to be removed from the database.
@@ -72,8 +102,14 @@ public class TagDao {
     @Transactional
     public boolean deleteTag(Tag tagToBeRemoved) {
         if(tagToBeRemoved != null) {
-            em.remove(tagToBeRemoved);
+            Set<UUID> projectIds = projectSearchDao.getProjectIdsOfTag(tagToBeRemoved.getTagName());
+            Tag managedTag = em.contains(tagToBeRemoved) ? tagToBeRemoved : em.find(Tag.class, tagToBeRemoved.getTagName());
+            if(managedTag != null) {
+                em.remove(managedTag);
+            }
             em.flush();
+            requestLookupCache.evictProjects();
+            projectSearchDao.refreshProjects(projectIds);
             return getTag(tagToBeRemoved.getTagName()) == null;
         }
         return false;
@@ -12,6 +12,8 @@ public interface UserDao {
 
     List<User> selectAllUsers();
 
+    List<User> selectUsersPage(String afterEmail, UUID afterUserId, int limit);
+
     User getUserById(UUID id);
 
     User getUserByEmail(String email);
@@ -3,14 +3,17 @@ package no.ntnu.ctscanarkivsystemserver.dao;
 import no.ntnu.ctscanarkivsystemserver.model.database.Role;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
 import no.ntnu.ctscanarkivsystemserver.model.UserDTO;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
 import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import javax.transaction.Transactional;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -23,6 +26,18 @@ public class UserDataAccessService implements UserDao{
     @PersistenceContext
     EntityManager em;
 
+    private final ProjectSearchDao projectSearchDao;
+    private final RequestLookupCache requestLookupCache;
+    private final ProjectAccessDao projectAccessDao;
+
+    @Autowired
+    public UserDataAccessService(ProjectSearchDao projectSearchDao, RequestLookupCache requestLookupCache,
+                                 ProjectAccessDao projectAccessDao) {
+        this.projectSearchDao = projectSearchDao;
+        this.requestLookupCache = requestLookupCache;
+        this.projectAccessDao = projectAccessDao;
+    }
+
     /**
      * Uses the EntityManager to insert a new user into the database.
      * @param user to be added to the database.
@@ -48,6 +63,26 @@ public class UserDataAccessService implements UserDao{
         return query.getResultList();
     }
 
+    /**
+     * Gets a page of users sorted by email and id.
+     * @param afterEmail email of the last user of the previous page. Null for the first page.
+     * @param afterUserId id of the last user of the previous page. Null for the first page.
+     * @param limit max number of users to get.
+     * @return users after the given user.
+     */
+    @Override
+    public List<User> selectUsersPage(String afterEmail, UUID afterUserId, int limit) {
+        Query query;
+        if(afterEmail == null || afterUserId == null) {
+            query = em.createNamedQuery(User.FIND_USERS_PAGE);
+        } else {
+            query = em.createNamedQuery(User.FIND_USERS_PAGE_AFTER)
+                    .setParameter("email", afterEmail)
+                    .setParameter("userId", afterUserId);
+        }
+        return query.setMaxResults(limit).getResultList();
+    }
+
     /**
      * Return true if user with email is found in database.
      * @param email to see if already exists in database.
@@ -77,7 +112,7 @@ public class UserDataAccessService implements UserDao{
     @Transactional
     @Override
     public User editUser(User userToBeChanged, UserDTO changes) {
-        em.refresh(userToBeChanged);
+        userToBeChanged = attach(userToBeChanged);
         prepareUserForEdit(userToBeChanged);
         if(!changes.getRole().isEmpty()) {
             Role userRole = em.find(Role.class, "ROLE_" + changes.getRole());
@@ -99,7 +134,30 @@ public class UserDataAccessService implements UserDao{
             userToBeChanged.setPassword(changes.getPassword().trim());
         }
 
-        return saveUser(userToBeChanged);
+        User savedUser = saveUser(userToBeChanged);
+        projectSearchDao.refreshProjects(projectSearchDao.getProjectIdsOfUser(userToBeChanged.getUserId()));
+        return savedUser;
+    }
+
+    /**
+     * Gets the instance of a user which belongs to the current transaction, with the state in the database.
+     * Without a persistence context for the whole request, users from an earlier transaction are detached.
+     * Since the user is about to be changed, users and projects are also forgotten by the lookups of the request.
+     * @param user user to attach.
+     * @return managed user.
+     * @throws EntityNotFoundException if the user is no longer in the database.
+     */
+    private User attach(User user) throws EntityNotFoundException {
+        requestLookupCache.evictUsers();
+        if(em.contains(user)) {
+            em.refresh(user);
+            return user;
+        }
+        User managedUser = em.find(User.class, user.getUserId());
+        if(managedUser == null) {
+            throw new EntityNotFoundException("User " + user.getUserId() + " is no longer in the database.");
+        }
+        return managedUser;
     }
 
     /**
@@ -144,9 +202,13 @@ public class UserDataAccessService implements UserDao{
     @Override
     public boolean removeUser(User userToBeRemoved) {
         if(userToBeRemoved != null) {
+            Set<UUID> projectIds = projectSearchDao.getProjectIdsOfUser(userToBeRemoved.getUserId());
+            userToBeRemoved = attach(userToBeRemoved);
             removeRoleFromUser(userToBeRemoved);
             em.remove(userToBeRemoved);
             em.flush();
+            projectAccessDao.evictAllAfterTransaction();
+            projectSearchDao.refreshProjects(projectIds);
             return getUserById(userToBeRemoved.getUserId()) == null;
         }
         return false;
@@ -165,18 +227,24 @@ public class UserDataAccessService implements UserDao{
 
     /**
      * Search the database for a user with the id. If found the user will be returned.
+     * A user already found in this request is returned without asking the database again.
      * @param id of the user to be found.
      * @return user with id.
      */
     @Override
     public User getUserById(UUID id) {
-        Query query = em.createNamedQuery(User.FIND_USER_BY_ID);
         if(id == null) {
             return null;
         }
+        User foundUser = requestLookupCache.getUserById(id);
+        if(foundUser != null) {
+            return foundUser;
+        }
+        Query query = em.createNamedQuery(User.FIND_USER_BY_ID);
         query.setParameter("userId", id);
         List<User> queryResult = query.getResultList();
         if(queryResult.size() == 1) {
+            requestLookupCache.putUser(queryResult.get(0));
             return queryResult.get(0);
         } else {
             System.out.println("Found no users with id: " + id);
@@ -186,19 +254,25 @@ public class UserDataAccessService implements UserDao{
 
     /**
      * Search the database for a user with the email. If found the user will be returned.
+     * A user already found in this request is returned without asking the database again.
      * @param email of the user to find in the database.
      * @return user with email.
      */
     @Override
     public User getUserByEmail(String email) {
-        Query query = em.createNamedQuery(User.FIND_USER_BY_EMAIL);
         if(email == null) {
             return null;
         }
         email = email.toLowerCase();
+        User foundUser = requestLookupCache.getUserByEmail(email);
+        if(foundUser != null) {
+            return foundUser;
+        }
+        Query query = em.createNamedQuery(User.FIND_USER_BY_EMAIL);
         query.setParameter("email", email);
         List<User> queryResult = query.getResultList();
         if(queryResult.size() == 1) {
+            requestLookupCache.putUser(queryResult.get(0));
             return queryResult.get(0);
         } else {
             System.out.println("Found no users with email: " + email);
@@ -0,0 +1,9 @@
+package no.ntnu.ctscanarkivsystemserver.exception;
+
+import java.util.UUID;
+
+public class ConversionNotFoundException extends RuntimeException {
+    public ConversionNotFoundException(UUID jobId) {
+        super("No conversion with the id: " + jobId + " found!");
+    }
+}
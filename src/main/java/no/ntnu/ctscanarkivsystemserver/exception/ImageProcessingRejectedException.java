@@ -0,0 +1,18 @@
+package no.ntnu.ctscanarkivsystemserver.exception;
+
+/**
+ * This exception is thrown when the image processing queue is full and an image job is rejected.
+ */
+public class ImageProcessingRejectedException extends RuntimeException {
+
+    private final int retryAfterSeconds;
+
+    public ImageProcessingRejectedException(String message, int retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,22 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Which files of a sub-project to convert and how.
+ */
+@Data
+public class ConversionRequest {
+    //Files to convert including file type. If null or empty all TIFF files in the sub-project are converted.
+    private List<String> fileNames;
+    //Format to convert to: png or jpg.
+    private String format = "png";
+    //Size to scale images to. If 0 images are converted in original size.
+    private int size;
+    //Quality tier to scale with: fast, balanced or ultra. If null the server default is used.
+    private String quality;
+    //Sub-project to store converted files in. If null converted files are put in a ZIP file.
+    private String targetSubFolder;
+}
@@ -0,0 +1,12 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+/**
+ * State of a batch conversion.
+ */
+public enum ConversionState {
+    RUNNING,
+    //All files are handled. Files which could not be converted are listed as failed.
+    DONE,
+    //The output could not be written, the result can not be used.
+    FAILED
+}
@@ -0,0 +1,22 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Progress of a batch conversion.
+ */
+@Data
+@AllArgsConstructor
+public class ConversionStatus {
+    private UUID jobId;
+    private ConversionState state;
+    private int totalFiles;
+    private int convertedFiles;
+    private List<String> failedFiles;
+    //Sub-project converted files are stored in. Null if they are put in a ZIP file.
+    private String targetSubFolder;
+}
@@ -0,0 +1,19 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import no.ntnu.ctscanarkivsystemserver.model.database.DicomMetadata;
+
+import java.util.UUID;
+
+/**
+ * A DICOM file found by a metadata query, with what is needed to get the file from the file-server.
+ */
+@Data
+@AllArgsConstructor
+public class DicomFileDTO {
+    private String fileName;
+    private String subFolder;
+    private UUID projectId;
+    private DicomMetadata metadata;
+}
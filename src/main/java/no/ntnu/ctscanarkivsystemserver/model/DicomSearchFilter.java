@@ -0,0 +1,27 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Filters for searching DICOM files by metadata. Fields which are null are not used.
+ */
+@Data
+public class DicomSearchFilter {
+    private UUID projectId;
+    private String modality;
+    private String bodyPartExamined;
+    private String studyInstanceUid;
+    private String seriesInstanceUid;
+    //Part of series or study description.
+    private String description;
+    private Double minSliceThickness;
+    private Double maxSliceThickness;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private Date fromDate;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+    private Date toDate;
+}
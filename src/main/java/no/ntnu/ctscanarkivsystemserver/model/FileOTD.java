@@ -18,8 +18,16 @@ public class FileOTD {
 
     private List<Tag> fileTags;
 
+    //Tiny preview of the image as a data URI. Null if not asked for or the file has none.
+    private String placeholder;
+
     public FileOTD(String fileName, List<Tag> fileTags) {
         this.fileTags = fileTags;
         this.fileName = fileName;
     }
+
+    public FileOTD(String fileName, List<Tag> fileTags, String placeholder) {
+        this(fileName, fileTags);
+        this.placeholder = placeholder;
+    }
 }
@@ -0,0 +1,14 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+/**
+ * How much work is spent on scaling an image.
+ * Under load the server serves a cheaper tier than the one requested.
+ */
+public enum ImageQuality {
+    //Nearest neighbour like scaling from an image decoded close to the target size. No anti aliasing.
+    FAST,
+    //Scaling method chosen by Scalr from the size, with anti aliasing.
+    BALANCED,
+    //Best scaling method with anti aliasing, from an image decoded at a few times the target size.
+    ULTRA
+}
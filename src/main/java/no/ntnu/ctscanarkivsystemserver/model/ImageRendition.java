@@ -0,0 +1,14 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A rendered image and the quality tier it was rendered with.
+ */
+@Data
+@AllArgsConstructor
+public class ImageRendition {
+    private byte[] bytes;
+    private ImageQuality quality;
+}
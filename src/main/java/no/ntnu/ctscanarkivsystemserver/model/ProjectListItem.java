@@ -0,0 +1,23 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * A project in a listing. Only what lists of projects show, read in the same query as the projects.
+ * The whole project with tags and members is got with getProject.
+ */
+@Data
+@AllArgsConstructor
+public class ProjectListItem {
+    private UUID projectId;
+    private String projectName;
+    private Boolean isPrivate;
+    private Date creation;
+    private String description;
+    private UUID ownerId;
+    private String ownerName;
+}
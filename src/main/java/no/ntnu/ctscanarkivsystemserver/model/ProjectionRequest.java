@@ -0,0 +1,20 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+
+/**
+ * Which projection of a volume to make and how to render it.
+ */
+@Data
+public class ProjectionRequest {
+    //Multi-page TIFF or raw volume (.raw). If null all TIFF files in the sub-project are used as a stack.
+    private String fileName;
+    private String type = ProjectionType.MIP.name();
+    //Plane the projection is shown in. Axial projects along the slices.
+    private String plane = ReslicePlane.AXIAL.name();
+    //Size to scale image to. If 0 image is returned in projected size.
+    private int size;
+    //Values shown as black and white. If null the value range of the projection is used.
+    private Double windowMin;
+    private Double windowMax;
+}
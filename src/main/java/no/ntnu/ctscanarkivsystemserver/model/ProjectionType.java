@@ -0,0 +1,13 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+/**
+ * How the voxels along a ray through a volume are reduced to one pixel.
+ */
+public enum ProjectionType {
+    //Maximum intensity projection.
+    MIP,
+    //Minimum intensity projection.
+    MINIP,
+    //Average intensity projection.
+    AVERAGE
+}
@@ -0,0 +1,69 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+
+/**
+ * How the voxels of a .raw volume are stored. Read from a MetaImage (.mhd) sidecar or given as request params.
+ * Fields which are null are taken from the sidecar.
+ */
+@Data
+public class RawVolumeFormat {
+    private Integer width;
+    private Integer height;
+    private Integer depth;
+    //8, 16 or 32 (32 is float).
+    private Integer bitDepth;
+    //Only used for 16 bit.
+    private Boolean signed;
+    private Boolean bigEndian;
+    //Bytes before the first voxel. -1 means the voxels are at the end of the file.
+    private Long headerBytes;
+    private Double spacingX;
+    private Double spacingY;
+    private Double spacingZ;
+
+    /**
+     * Fills fields which are not set with the values from another format.
+     * @param defaults format to take missing values from.
+     */
+    public void fillMissing(RawVolumeFormat defaults) {
+        if (width == null) {
+            width = defaults.getWidth();
+        }
+        if (height == null) {
+            height = defaults.getHeight();
+        }
+        if (depth == null) {
+            depth = defaults.getDepth();
+        }
+        if (bitDepth == null) {
+            bitDepth = defaults.getBitDepth();
+        }
+        if (signed == null) {
+            signed = defaults.getSigned();
+        }
+        if (bigEndian == null) {
+            bigEndian = defaults.getBigEndian();
+        }
+        if (headerBytes == null) {
+            headerBytes = defaults.getHeaderBytes();
+        }
+        if (spacingX == null) {
+            spacingX = defaults.getSpacingX();
+        }
+        if (spacingY == null) {
+            spacingY = defaults.getSpacingY();
+        }
+        if (spacingZ == null) {
+            spacingZ = defaults.getSpacingZ();
+        }
+    }
+
+    /**
+     * Return true if the dimensions and bit depth are known.
+     * @return true if the volume can be read with this format.
+     */
+    public boolean isComplete() {
+        return width != null && height != null && depth != null && bitDepth != null;
+    }
+}
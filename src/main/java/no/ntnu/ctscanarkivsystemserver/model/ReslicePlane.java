@@ -0,0 +1,15 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+/**
+ * Planes a volume can be resliced along.
+ */
+public enum ReslicePlane {
+    //Plane of the slices in the stack.
+    AXIAL,
+    //Front view, x and z.
+    CORONAL,
+    //Side view, y and z.
+    SAGITTAL,
+    //Plane with any normal through the volume.
+    OBLIQUE
+}
@@ -0,0 +1,31 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+
+/**
+ * Which plane of a volume to make an image of and how to render it.
+ */
+@Data
+public class ResliceRequest {
+    //Multi-page TIFF or raw volume (.raw). If null all TIFF files in the sub-project are used as a stack.
+    private String fileName;
+    private String plane = ReslicePlane.AXIAL.name();
+    //Slice index along the axis of an orthogonal plane. If null the middle slice is used.
+    private Integer index;
+    //Normal of an oblique plane.
+    private double normalX;
+    private double normalY;
+    private double normalZ = 1;
+    //Distance of an oblique plane from the center of the volume, in voxels.
+    private double offset;
+    //Region of the plane to render, in pixels of the plane at full resolution. If null the whole plane is rendered.
+    private Integer roiX;
+    private Integer roiY;
+    private Integer roiWidth;
+    private Integer roiHeight;
+    //Size to scale image to. If 0 image is returned in resliced size.
+    private int size;
+    //Voxel values shown as black and white. If null the value range of the volume is used.
+    private Double windowMin;
+    private Double windowMax;
+}
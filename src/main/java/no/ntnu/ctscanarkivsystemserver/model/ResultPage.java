@@ -0,0 +1,18 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * One page of a listing. The next page is asked for with the cursor of this page.
+ * @param <T> type of items.
+ */
+@Data
+@AllArgsConstructor
+public class ResultPage<T> {
+    private List<T> items;
+    //Cursor of the next page. Null if this is the last page.
+    private String nextCursor;
+}
@@ -0,0 +1,24 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thumbnails of many images drawn into one image, with the position of each thumbnail.
+ */
+@Data
+@NoArgsConstructor
+public class SpriteSheetDTO {
+    //The sheet as base64, null if no thumbnail could be made.
+    private String sprite;
+    private String format;
+    private int width;
+    private int height;
+    private int tileSize;
+    private List<SpriteTile> tiles = new ArrayList<>();
+    //Images which could not be loaded or decoded.
+    private List<String> failedImages = new ArrayList<>();
+}
@@ -0,0 +1,17 @@
+package no.ntnu.ctscanarkivsystemserver.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Where a thumbnail is in a sprite sheet, in pixels from the top left corner of the sheet.
+ */
+@Data
+@AllArgsConstructor
+public class SpriteTile {
+    private String fileName;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+}
@@ -0,0 +1,93 @@
+package no.ntnu.ctscanarkivsystemserver.model.database;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import javax.persistence.*;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * This is the model class for the DICOM header of a .IMA file.
+ * Only attributes used to find and order scans are stored. The row is linked one to one with the file it was read from.
+ */
+@Data
+@NoArgsConstructor
+@Entity(name = "dicom_metadata")
+@Table(name = "dicom_metadata", indexes = {
+        @Index(name = "dicom_metadata_modality_idx", columnList = "modality"),
+        @Index(name = "dicom_metadata_series_idx", columnList = "series_instance_uid, instance_number"),
+        @Index(name = "dicom_metadata_study_idx", columnList = "study_instance_uid"),
+        @Index(name = "dicom_metadata_acquisition_date_idx", columnList = "acquisition_date"),
+        @Index(name = "dicom_metadata_slice_thickness_idx", columnList = "slice_thickness"),
+        @Index(name = "dicom_metadata_body_part_idx", columnList = "body_part_examined")})
+@NamedQuery(name = DicomMetadata.FIND_SERIES, query =
+        "SELECT new no.ntnu.ctscanarkivsystemserver.model.DicomFileDTO(f.fileName, f.subFolder, f.inProject.projectId, d) " +
+        "FROM dicom_metadata d JOIN d.file f WHERE f.inProject.projectId =: projectId " +
+        "AND d.seriesInstanceUid =: seriesInstanceUid ORDER BY d.instanceNumber, d.sliceLocation, f.fileName")
+@NamedQuery(name = DicomMetadata.FIND_INDEXED_FILE_NAMES, query =
+        "SELECT f.fileName FROM dicom_metadata d JOIN d.file f WHERE f.inProject.projectId =: projectId AND f.subFolder LIKE: subFolder")
+public class DicomMetadata {
+    public static final String FIND_SERIES = "DicomMetadata.findSeries";
+    public static final String FIND_INDEXED_FILE_NAMES = "DicomMetadata.findIndexedFileNames";
+
+    @Id
+    @Column(name="file_id")
+    private UUID fileId;
+
+    @OneToOne
+    @MapsId
+    @JoinColumn(name = "file_id", referencedColumnName = "file_id")
+    @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+    private File file;
+
+    @Column(name="modality")
+    private String modality;
+
+    @Column(name="study_instance_uid")
+    private String studyInstanceUid;
+
+    @Column(name="study_description")
+    private String studyDescription;
+
+    @Column(name="series_instance_uid")
+    private String seriesInstanceUid;
+
+    @Column(name="series_number")
+    private Integer seriesNumber;
+
+    @Column(name="series_description")
+    private String seriesDescription;
+
+    @Column(name="body_part_examined")
+    private String bodyPartExamined;
+
+    @Temporal(TemporalType.DATE)
+    @Column(name="acquisition_date")
+    private Date acquisitionDate;
+
+    @Column(name="slice_thickness")
+    private Double sliceThickness;
+
+    @Column(name="instance_number")
+    private Integer instanceNumber;
+
+    @Column(name="slice_location")
+    private Double sliceLocation;
+
+    @Column(name="image_rows")
+    private Integer rows;
+
+    @Column(name="image_columns")
+    private Integer columns;
+
+    /**
+     * The constructor of DICOM metadata.
+     * @param file file the metadata was read from.
+     */
+    public DicomMetadata(File file) {
+        this.fileId = file.getFileId();
+        this.file = file;
+    }
+}
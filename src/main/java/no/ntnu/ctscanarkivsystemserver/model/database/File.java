@@ -1,7 +1,9 @@
 package no.ntnu.ctscanarkivsystemserver.model.database;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 import javax.persistence.*;
 import java.util.ArrayList;
@@ -16,16 +18,33 @@ import java.util.UUID;
  * @author TrymV
  */
 @Data
+//Files are equal if they have the same id, so files from different transactions can be compared.
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
 @NoArgsConstructor
 @Entity(name = "files")
 @NamedQuery(name = File.FIND_FILE_BY_NAME_AND_PROJECT, query =
         "SELECT f FROM files f WHERE f.fileName LIKE: fileName AND f.inProject.projectId =: projectId AND f.subFolder LIKE: subFolder")
 @NamedQuery(name = File.FIND_FILE_BY_PROJECT, query = "SELECT f FROM files f WHERE f.inProject.projectId =:projectId")
+@NamedQuery(name = File.FIND_FILE_NAMES_WITH_PLACEHOLDER, query =
+        "SELECT f.fileName FROM files f WHERE f.inProject.projectId = :projectId AND f.subFolder = :subFolder AND f.placeholder IS NOT NULL")
+@NamedQuery(name = File.FIND_FILES_WITH_TAGS_BY_NAMES, query =
+        "SELECT DISTINCT f FROM files f LEFT JOIN FETCH f.tags WHERE f.inProject.projectId = :projectId " +
+        "AND f.subFolder = :subFolder AND f.fileName IN :fileNames")
+@NamedQuery(name = File.FIND_TAG_NAMES_BY_PROJECT, query =
+        "SELECT DISTINCT t.tagName FROM files f JOIN f.tags t WHERE f.inProject.projectId = :projectId")
+@NamedQuery(name = File.FIND_TAG_NAMES_BY_NAMES, query =
+        "SELECT f.fileName, t.tagName FROM files f JOIN f.tags t WHERE f.inProject.projectId = :projectId " +
+        "AND f.subFolder = :subFolder AND f.fileName IN :fileNames")
 public class File {
+    public static final String FIND_TAG_NAMES_BY_PROJECT = "File.findTagNamesByProject";
+    public static final String FIND_TAG_NAMES_BY_NAMES = "File.findTagNamesByNames";
+    public static final String FIND_FILES_WITH_TAGS_BY_NAMES = "File.findFilesWithTagsByNames";
     public static final String FIND_FILE_BY_NAME_AND_PROJECT = "File.findFileByNameAndProject";
     public static final String FIND_FILE_BY_PROJECT = "File.findFileProject";
+    public static final String FIND_FILE_NAMES_WITH_PLACEHOLDER = "File.findFileNamesWithPlaceholder";
 
     @Id
+    @EqualsAndHashCode.Include
     @Column(name="file_id")
     private UUID fileId;
 
@@ -35,6 +54,10 @@ public class File {
     @Column(name="sub_folder")
     private String subFolder;
 
+    //Tiny preview of an image as a data URI, shown while the thumbnail loads. Null if the file is not an image.
+    @Column(name="placeholder")
+    private String placeholder;
+
     @ManyToOne
     @JoinColumn(
             name="in_project",
@@ -42,6 +65,7 @@ public class File {
     )
     private Project inProject;
 
+    @ToString.Exclude
     @ManyToMany(cascade = CascadeType.MERGE, fetch = FetchType.LAZY)
     @JoinTable(name = "file_tags",
             joinColumns = @JoinColumn(
@@ -1,6 +1,8 @@
 package no.ntnu.ctscanarkivsystemserver.model.database;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 import javax.persistence.*;
 import java.util.ArrayList;
@@ -14,18 +16,39 @@ import java.util.UUID;
  */
 @Entity(name = "projects")
 @Data
+//Projects are equal if they have the same id, so projects from different transactions can be compared.
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
 @NamedQuery(name = Project.FIND_ALL_PROJECTS, query = "SELECT p FROM projects p ORDER BY p.projectName")
 @NamedQuery(name = Project.FIND_PROJECTS_BY_NAME, query = "SELECT p FROM projects p WHERE p.projectName LIKE: projectName")
 @NamedQuery(name = Project.FIND_PROJECTS_BY_UUID, query = "SELECT p FROM projects p WHERE p.projectId =: projectId")
-@NamedQuery(name = Project.FIND_MY_PROJECTS, query = "SELECT p FROM projects p left JOIN p.projectMembers pm WHERE p.owner.userId =: id OR pm.userId =:id")
+@NamedQuery(name = Project.FIND_PROJECT_ITEMS, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.ProjectListItem(p.projectId, p.projectName, p.isPrivate, " +
+        "p.creation, p.description, o.userId, CONCAT(o.firstName, ' ', o.lastName)) FROM projects p LEFT JOIN p.owner o " +
+        "ORDER BY p.projectName, p.projectId")
+@NamedQuery(name = Project.FIND_PROJECT_ITEMS_AFTER, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.ProjectListItem(p.projectId, p.projectName, p.isPrivate, " +
+        "p.creation, p.description, o.userId, CONCAT(o.firstName, ' ', o.lastName)) FROM projects p LEFT JOIN p.owner o " +
+        "WHERE p.projectName >= :projectName AND (p.projectName > :projectName OR p.projectId > :projectId) " +
+        "ORDER BY p.projectName, p.projectId")
+@NamedQuery(name = Project.FIND_MY_PROJECT_ITEMS, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.ProjectListItem(p.projectId, p.projectName, p.isPrivate, " +
+        "p.creation, p.description, o.userId, CONCAT(o.firstName, ' ', o.lastName)) FROM projects p LEFT JOIN p.owner o " +
+        "WHERE o.userId = :id OR p.projectId IN (SELECT mp.projectId FROM projects mp JOIN mp.projectMembers m " +
+        "WHERE m.userId = :id) ORDER BY p.projectName")
+@NamedQuery(name = Project.FIND_PROJECT_ITEMS_OF_TAG, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.ProjectListItem(p.projectId, p.projectName, p.isPrivate, " +
+        "p.creation, p.description, o.userId, CONCAT(o.firstName, ' ', o.lastName)) FROM projects p LEFT JOIN p.owner o " +
+        "WHERE p.projectId IN (SELECT tp.projectId FROM projects tp JOIN tp.tags t WHERE t.tagName = :tagName) " +
+        "ORDER BY p.projectName")
 public class Project {
 
     public static final String FIND_ALL_PROJECTS = "Project.findAllNames";
     public static final String FIND_PROJECTS_BY_NAME = "Project.findProjectsByName";
     public static final String FIND_PROJECTS_BY_UUID = "Project.findProjectsByUUID";
-    public static final String FIND_MY_PROJECTS = "Project.findMyProjects";
+    //Projects as list items (ProjectListItem), sorted by name and id.
+    public static final String FIND_PROJECT_ITEMS = "Project.findProjectItems";
+    public static final String FIND_PROJECT_ITEMS_AFTER = "Project.findProjectItemsAfter";
+    public static final String FIND_MY_PROJECT_ITEMS = "Project.findMyProjectItems";
+    public static final String FIND_PROJECT_ITEMS_OF_TAG = "Project.findProjectItemsOfTag";
 
     @Id
+    @EqualsAndHashCode.Include
     @Column(name="project_id")
     private UUID projectId;
 
@@ -42,6 +65,7 @@ public class Project {
     @Column(name="description")
     private String description;
 
+    @ToString.Exclude
     @ManyToMany(cascade = CascadeType.MERGE, fetch = FetchType.LAZY)
     @JoinTable(name = "project_tags",
             joinColumns = @JoinColumn(
@@ -52,6 +76,7 @@ public class Project {
                     referencedColumnName = "tag_name"))
     private List<Tag> tags = new ArrayList<>();
 
+    @ToString.Exclude
     @ManyToMany(cascade = CascadeType.MERGE, fetch = FetchType.LAZY)
     @JoinTable(name="project_special_permission",
             joinColumns = @JoinColumn(
@@ -62,6 +87,7 @@ public class Project {
                     referencedColumnName = "user_id"))
     private List<User> usersWithSpecialPermission = new ArrayList<>();
 
+    @ToString.Exclude
     @ManyToMany(cascade = CascadeType.MERGE, fetch = FetchType.LAZY)
     @JoinTable(name="project_members",
             joinColumns = @JoinColumn(
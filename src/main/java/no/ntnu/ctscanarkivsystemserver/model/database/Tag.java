@@ -2,7 +2,9 @@ package no.ntnu.ctscanarkivsystemserver.model.database;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 import javax.persistence.*;
 import java.util.ArrayList;
@@ -16,10 +18,15 @@ import java.util.List;
 @Data
 @NoArgsConstructor
 @NamedQuery(name = Tag.FIND_TAG_BY_NAME, query = "SELECT t FROM tags t WHERE t.tagName LIKE: tagName")
-@NamedQuery(name = Tag.FIND_ALL_TAGS, query = "SELECT t FROM tags t ORDER BY t.tagName")
+@NamedQuery(name = Tag.FIND_ALL_TAGS, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.database.Tag(t.tagName, COUNT(p)) " +
+        "FROM tags t LEFT JOIN t.projects p GROUP BY t.tagName ORDER BY t.tagName")
+@NamedQuery(name = Tag.FIND_TAGS_PAGE_AFTER, query = "SELECT new no.ntnu.ctscanarkivsystemserver.model.database.Tag(t.tagName, COUNT(p)) " +
+        "FROM tags t LEFT JOIN t.projects p WHERE t.tagName > :tagName GROUP BY t.tagName ORDER BY t.tagName")
 public class Tag {
     public static final String FIND_TAG_BY_NAME = "Tag.findTagByName";
+    //Tags with the number of projects they are used in, counted in the database.
     public static final String FIND_ALL_TAGS = "Tag.findAllTags";
+    public static final String FIND_TAGS_PAGE_AFTER = "Tag.findTagsPageAfter";
 
     @Id
     @Column(name="tag_name")
@@ -27,13 +34,27 @@ public class Tag {
 
     //This variable has to be set and will be 0 as default.
     @Transient
+    @EqualsAndHashCode.Exclude
     private int numberOfProjects;
 
-    @ManyToMany(mappedBy = "tags", fetch = FetchType.EAGER)
+    //Not part of equals, hashCode and toString, so comparing tags does not load their projects.
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    @ManyToMany(mappedBy = "tags", fetch = FetchType.LAZY)
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     private List<Project> projects = new ArrayList<>();
 
     public Tag(String tagName) {
         this.tagName = tagName;
     }
+
+    /**
+     * Constructor for tags listed with the number of projects they are used in.
+     * @param tagName name of tag.
+     * @param numberOfProjects number of projects tag is used in.
+     */
+    public Tag(String tagName, long numberOfProjects) {
+        this.tagName = tagName;
+        this.numberOfProjects = (int) numberOfProjects;
+    }
 }
@@ -2,8 +2,10 @@ package no.ntnu.ctscanarkivsystemserver.model.database;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 import javax.persistence.*;
 
@@ -14,16 +16,24 @@ import java.util.*;
 
 @Entity(name = "users")
 @Data
+//Users are equal if they have the same id, so users from different transactions can be compared.
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
 @NoArgsConstructor
 @NamedQuery(name = User.FIND_ALL_USERS, query = "SELECT u FROM users u ORDER BY u.email")
+@NamedQuery(name = User.FIND_USERS_PAGE, query = "SELECT u FROM users u ORDER BY u.email, u.userId")
+@NamedQuery(name = User.FIND_USERS_PAGE_AFTER, query = "SELECT u FROM users u WHERE u.email >= :email " +
+        "AND (u.email > :email OR u.userId > :userId) ORDER BY u.email, u.userId")
 @NamedQuery(name = User.FIND_USER_BY_EMAIL, query = "SELECT u FROM users u WHERE u.email LIKE: email")
 @NamedQuery(name = User.FIND_USER_BY_ID, query = "SELECT u FROM users u WHERE u.userId =: userId")
 public class User {
     public static final String FIND_ALL_USERS = "User.findAllUsers";
+    public static final String FIND_USERS_PAGE = "User.findUsersPage";
+    public static final String FIND_USERS_PAGE_AFTER = "User.findUsersPageAfter";
     public static final String FIND_USER_BY_EMAIL = "User.findUserByEmail";
     public static final String FIND_USER_BY_ID = "User.findUserById";
 
     @Id
+    @EqualsAndHashCode.Include
     @Column(name="user_id")
     private UUID userId;
 
@@ -54,6 +64,7 @@ public class User {
     private List<Role> roles = new ArrayList<>();
 
     @Getter
+    @ToString.Exclude
     @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
     @OneToMany(fetch = FetchType.LAZY, mappedBy = "owner")
     private List<Project> ownProjects;
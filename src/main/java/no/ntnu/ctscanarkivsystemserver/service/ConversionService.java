@@ -0,0 +1,339 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.config.ImageProcessingProperties;
+import no.ntnu.ctscanarkivsystemserver.exception.ConversionNotFoundException;
+import no.ntnu.ctscanarkivsystemserver.exception.DirectoryCreationException;
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.ConversionRequest;
+import no.ntnu.ctscanarkivsystemserver.model.ConversionState;
+import no.ntnu.ctscanarkivsystemserver.model.ConversionStatus;
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Converts many images of a sub-project to png or jpg in the background, for example a scan series of TIFF files.
+ * Files are loaded, converted and stored in parallel on a bounded pool. The conversion itself runs on the image
+ * processing pool after all other image jobs, so batch conversions do not slow down browsing.
+ * Converted files are written to a ZIP file as they finish, or stored in another sub-project.
+ * Progress is kept until a while after the conversion is done.
+ */
+@Service
+public class ConversionService {
+
+    //Conversions run after every interactive image job, which use ImageProcessingExecutor.getPriority of their size.
+    private static final int CONVERSION_PRIORITY = Integer.MAX_VALUE;
+    //How many times a file is tried again when the image processing queue is full.
+    private static final int MAX_REJECTED_ATTEMPTS = 30;
+
+    private final FileStorageService fileStorageService;
+    private final ImageService imageService;
+    private final ImageWorkerPool imageWorkerPool;
+    private final ImageProcessingExecutor imageProcessingExecutor;
+    private final ThreadPoolExecutor conversionExecutor;
+    private final Map<UUID, ConversionJob> jobs = new ConcurrentHashMap<>();
+    private final Path outputDirectory;
+    private final int maxJobs;
+    private final long retentionMillis;
+    private final int retryAfterSeconds;
+
+    @Autowired
+    public ConversionService(ImageProcessingProperties imageProcessingProperties, FileStorageService fileStorageService,
+                             ImageService imageService, ImageWorkerPool imageWorkerPool,
+                             ImageProcessingExecutor imageProcessingExecutor, VolumeService volumeService) {
+        this.fileStorageService = fileStorageService;
+        this.imageService = imageService;
+        this.imageWorkerPool = imageWorkerPool;
+        this.imageProcessingExecutor = imageProcessingExecutor;
+        this.outputDirectory = volumeService.getCacheDirectory().resolve("conversions");
+        this.maxJobs = imageProcessingProperties.getConversionMaxJobs();
+        this.retentionMillis = TimeUnit.MINUTES.toMillis(imageProcessingProperties.getConversionRetentionMinutes());
+        this.retryAfterSeconds = imageProcessingProperties.getRetryAfterSeconds();
+        int threads = imageProcessingProperties.getConversionThreads();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.conversionExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "conversion-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Starts converting files of a sub-project. The conversion runs in the background.
+     * @param project project files are in.
+     * @param subFolder sub-project files are in.
+     * @param request which files to convert and how.
+     * @param userId id of user starting the conversion. Only this user can see the progress and result.
+     * @return progress of the started conversion.
+     * @throws IllegalArgumentException if format, quality or a file name is not valid, or there are no files to convert.
+     * @throws ImageProcessingRejectedException if too many conversions are running.
+     * @throws FileNotFoundException if sub-project was not found.
+     * @throws FileStorageException if getting file names from the file server failed.
+     * @throws DirectoryCreationException if the target sub-project could not be created.
+     * @throws IOException if the ZIP file could not be created.
+     */
+    public ConversionStatus startConversion(Project project, String subFolder, ConversionRequest request, UUID userId)
+            throws IllegalArgumentException, ImageProcessingRejectedException, FileNotFoundException, FileStorageException,
+            DirectoryCreationException, IOException {
+        String format = request.getFormat() == null ? "png" : request.getFormat().trim().toLowerCase();
+        if (!format.equals("png") && !format.equals("jpg")) {
+            throw new IllegalArgumentException("Can not convert to " + format + ". Valid formats are png and jpg.");
+        }
+        ImageQuality quality = request.getQuality() == null ? imageProcessingExecutor.getDefaultQuality()
+                : ImageQuality.valueOf(request.getQuality().trim().toUpperCase());
+        List<String> fileNames = request.getFileNames();
+        if (fileNames == null || fileNames.isEmpty()) {
+            fileNames = fileStorageService.getAllFileNames("tiff", project, subFolder);
+        }
+        for (String fileName : fileNames) {
+            if (!imageService.isFileAnImage(fileName) || fileStorageService.isFilenameInvalid(fileName)) {
+                throw new IllegalArgumentException("File is not a image or the system does not support it. File name is: " + fileName);
+            }
+        }
+        if (fileNames.isEmpty()) {
+            throw new IllegalArgumentException("No files to convert in sub folder " + subFolder);
+        }
+        Map<String, String> convertedNames = getConvertedNames(fileNames, format);
+        removeExpiredJobs();
+        String targetSubFolder = request.getTargetSubFolder();
+        if (targetSubFolder != null) {
+            if (fileStorageService.isFolderNameInvalid(targetSubFolder)) {
+                throw new IllegalArgumentException("Target sub folder name is not valid: " + targetSubFolder);
+            }
+            fileStorageService.createSubFolder(project, targetSubFolder);
+        }
+        ConversionJob job = new ConversionJob(UUID.randomUUID(), userId, convertedNames.size(), targetSubFolder);
+        synchronized (jobs) {
+            long running = jobs.values().stream().filter(runningJob -> runningJob.state == ConversionState.RUNNING).count();
+            if (running >= maxJobs) {
+                throw new ImageProcessingRejectedException("Too many conversions are running.", retryAfterSeconds);
+            }
+            if (targetSubFolder == null) {
+                Files.createDirectories(outputDirectory);
+                job.zipFile = outputDirectory.resolve(job.jobId + ".zip");
+                job.zip = new ZipOutputStream(Files.newOutputStream(job.zipFile));
+            }
+            jobs.put(job.jobId, job);
+        }
+        System.out.println("Started conversion " + job.jobId + " of " + convertedNames.size() + " files to " + format);
+        for (Map.Entry<String, String> file : convertedNames.entrySet()) {
+            conversionExecutor.execute(() -> convertFile(job, file.getKey(), file.getValue(), project, subFolder, format,
+                    request.getSize(), quality));
+        }
+        return job.getStatus();
+    }
+
+    /**
+     * Gets the progress of a conversion.
+     * @param jobId id of conversion.
+     * @param userId id of user asking.
+     * @return progress of conversion.
+     * @throws ConversionNotFoundException if there is no conversion with the id started by the user.
+     */
+    public ConversionStatus getStatus(UUID jobId, UUID userId) throws ConversionNotFoundException {
+        return getJob(jobId, userId).getStatus();
+    }
+
+    /**
+     * Gets the ZIP file of a finished conversion.
+     * @param jobId id of conversion.
+     * @param userId id of user asking.
+     * @return path to ZIP file. Null if the conversion is not done yet.
+     * @throws ConversionNotFoundException if there is no conversion with the id started by the user,
+     * or the conversion did not make a ZIP file.
+     */
+    public Path getZipFile(UUID jobId, UUID userId) throws ConversionNotFoundException {
+        ConversionJob job = getJob(jobId, userId);
+        if (job.targetSubFolder != null || job.state == ConversionState.FAILED) {
+            throw new ConversionNotFoundException(jobId);
+        }
+        return job.state == ConversionState.DONE ? job.zipFile : null;
+    }
+
+    private ConversionJob getJob(UUID jobId, UUID userId) throws ConversionNotFoundException {
+        ConversionJob job = jobs.get(jobId);
+        if (job == null || !job.userId.equals(userId)) {
+            throw new ConversionNotFoundException(jobId);
+        }
+        return job;
+    }
+
+    /**
+     * Loads, converts and stores one file of a conversion. A file which fails is listed as failed.
+     */
+    private void convertFile(ConversionJob job, String fileName, String convertedName, Project project, String subFolder,
+                             String format, int size, ImageQuality quality) {
+        try {
+            byte[] originalBytes = fileStorageService.loadFileAsBytes(fileName, project, subFolder);
+            byte[] converted = null;
+            for (int attempt = 1; converted == null; attempt++) {
+                try {
+                    converted = imageProcessingExecutor.execute(
+                            () -> imageWorkerPool.scaleImage(originalBytes, format, size, quality),
+                            imageService.estimateDecodedBytes(originalBytes, size, quality), CONVERSION_PRIORITY);
+                } catch (ImageProcessingRejectedException e) {
+                    if (attempt >= MAX_REJECTED_ATTEMPTS) {
+                        throw new IOException(e.getMessage());
+                    }
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(e.getRetryAfterSeconds()));
+                }
+            }
+            if (converted.length == 0) {
+                //ImageIO writes nothing if the writer can not encode the image, as 16 bit images as jpg.
+                throw new IOException("Image can not be written as " + format);
+            }
+            if (job.zip != null) {
+                synchronized (job) {
+                    job.zip.putNextEntry(new ZipEntry(convertedName));
+                    job.zip.write(converted);
+                    job.zip.closeEntry();
+                }
+            } else if (!fileStorageService.storeFile(convertedName, converted, project, job.targetSubFolder)) {
+                throw new IOException("File " + convertedName + " already exists in " + job.targetSubFolder);
+            }
+            job.fileDone(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fileDone(fileName);
+        } catch (Exception e) {
+            System.out.println("Could not convert " + fileName + ": " + e.getMessage());
+            job.fileDone(fileName);
+        }
+    }
+
+    /**
+     * Finds the name of each converted file, so no two files of a conversion get the same name in the ZIP file or
+     * target sub-project.
+     * The file type of a file name is replaced by the new file type, as scan.tiff to scan.png. If an earlier file already
+     * got that name, as scan.png and scan.tiff, the original file type is kept, as scan.tiff.png. If that is taken too,
+     * a number is added, as scan.tiff (2).png. Names are compared ignoring case.
+     * @param fileNames names of files including file type. A name listed more than once is converted once.
+     * @param format new file type.
+     * @return name of converted file by file name, in the order of fileNames.
+     */
+    static Map<String, String> getConvertedNames(List<String> fileNames, String format) {
+        Map<String, String> convertedNames = new LinkedHashMap<>();
+        Set<String> usedNames = new HashSet<>();
+        for (String fileName : fileNames) {
+            if (convertedNames.containsKey(fileName)) {
+                continue;
+            }
+            int dot = fileName.lastIndexOf('.');
+            String convertedName = (dot < 0 ? fileName : fileName.substring(0, dot)) + "." + format;
+            if (!usedNames.add(convertedName.toLowerCase())) {
+                convertedName = fileName + "." + format;
+                for (int number = 2; !usedNames.add(convertedName.toLowerCase()); number++) {
+                    convertedName = fileName + " (" + number + ")." + format;
+                }
+            }
+            convertedNames.put(fileName, convertedName);
+        }
+        return convertedNames;
+    }
+
+    /**
+     * Removes conversions which finished longer ago than the retention time, and their ZIP files.
+     */
+    private void removeExpiredJobs() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> {
+            if (job.state == ConversionState.RUNNING || now - job.finishedAt < retentionMillis) {
+                return false;
+            }
+            job.deleteZipFile();
+            return true;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        conversionExecutor.shutdownNow();
+        for (ConversionJob job : jobs.values()) {
+            job.deleteZipFile();
+        }
+    }
+
+    /**
+     * A conversion and its progress.
+     */
+    private static class ConversionJob {
+        private final UUID jobId;
+        private final UUID userId;
+        private final int totalFiles;
+        private final String targetSubFolder;
+        private final List<String> failedFiles = new ArrayList<>();
+        private int doneFiles;
+        private volatile ConversionState state = ConversionState.RUNNING;
+        private volatile long finishedAt;
+        private Path zipFile;
+        private ZipOutputStream zip;
+
+        ConversionJob(UUID jobId, UUID userId, int totalFiles, String targetSubFolder) {
+            this.jobId = jobId;
+            this.userId = userId;
+            this.totalFiles = totalFiles;
+            this.targetSubFolder = targetSubFolder;
+        }
+
+        /**
+         * Counts a file as done, and finishes the conversion when all files are done.
+         * @param failedFile name of file if it failed, null if it was converted.
+         */
+        synchronized void fileDone(String failedFile) {
+            if (failedFile != null) {
+                failedFiles.add(failedFile);
+            }
+            doneFiles++;
+            if (doneFiles < totalFiles) {
+                return;
+            }
+            state = ConversionState.DONE;
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    System.out.println("Could not finish ZIP file of conversion " + jobId + ": " + e.getMessage());
+                    state = ConversionState.FAILED;
+                }
+            }
+            finishedAt = System.currentTimeMillis();
+            System.out.println("Conversion " + jobId + " is done. " + failedFiles.size() + " of " + totalFiles + " files failed.");
+        }
+
+        synchronized ConversionStatus getStatus() {
+            return new ConversionStatus(jobId, state, totalFiles, doneFiles - failedFiles.size(),
+                    new ArrayList<>(failedFiles), targetSubFolder);
+        }
+
+        synchronized void deleteZipFile() {
+            if (zipFile == null) {
+                return;
+            }
+            try {
+                if (state == ConversionState.RUNNING) {
+                    zip.close();
+                }
+                Files.deleteIfExists(zipFile);
+            } catch (IOException e) {
+                System.out.println("Could not delete ZIP file of conversion " + jobId + ": " + e.getMessage());
+            }
+        }
+    }
+}
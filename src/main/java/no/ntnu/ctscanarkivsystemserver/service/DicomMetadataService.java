@@ -0,0 +1,183 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.dao.DicomMetadataDao;
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.model.DicomFileDTO;
+import no.ntnu.ctscanarkivsystemserver.model.DicomSearchFilter;
+import no.ntnu.ctscanarkivsystemserver.model.database.DicomMetadata;
+import no.ntnu.ctscanarkivsystemserver.model.database.File;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.model.database.Role;
+import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import no.ntnu.ctscanarkivsystemserver.util.DicomHeader;
+import no.ntnu.ctscanarkivsystemserver.util.DicomParser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * This class handles indexing of DICOM headers and queries on the indexed metadata.
+ * Headers are read when files are uploaded, or by crawling a sub project folder for files which are not indexed yet.
+ */
+@Service
+public class DicomMetadataService {
+
+    private final DicomMetadataDao dicomMetadataDao;
+    private final FileService fileService;
+    private final FileStorageService fileStorageService;
+
+    @Autowired
+    public DicomMetadataService(DicomMetadataDao dicomMetadataDao, FileService fileService, FileStorageService fileStorageService) {
+        this.dicomMetadataDao = dicomMetadataDao;
+        this.fileService = fileService;
+        this.fileStorageService = fileStorageService;
+    }
+
+    /**
+     * Indexes the headers of uploaded DICOM files.
+     * A file which can not be indexed is skipped, since the file itself is already stored.
+     * @param files uploaded files.
+     * @param notAddedFiles names of files which were not stored.
+     * @param project project files were uploaded to.
+     * @param subFolder sub project folder files were uploaded to.
+     * @return number of files indexed.
+     */
+    public int indexUploadedFiles(MultipartFile[] files, List<String> notAddedFiles, Project project, String subFolder) {
+        int indexed = 0;
+        for(MultipartFile file:files) {
+            String fileName = file == null ? null : file.getOriginalFilename();
+            if(fileName != null && isDicomFile(fileName) && !notAddedFiles.contains(fileName)) {
+                try (InputStream inputStream = file.getInputStream()) {
+                    saveHeader(DicomParser.readHeader(inputStream), fileName, project, subFolder);
+                    indexed++;
+                } catch (IOException e) {
+                    System.out.println("Could not index DICOM file " + fileName + ": " + e.getMessage());
+                }
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Indexes all DICOM files in a sub project folder which are not indexed yet.
+     * @param project project to index files in.
+     * @param subFolder sub project folder to index files in.
+     * @return number of files indexed.
+     * @throws FileNotFoundException if sub project folder was not found.
+     * @throws FileStorageException if getting file names from the file server failed.
+     */
+    public int indexSubFolder(Project project, String subFolder) throws FileNotFoundException, FileStorageException {
+        Set<String> indexedFileNames = dicomMetadataDao.getIndexedFileNames(project.getProjectId(), subFolder.toLowerCase());
+        int indexed = 0;
+        for(String fileName:fileStorageService.getAllFileNames("dicom", project, subFolder)) {
+            if(isDicomFile(fileName) && !indexedFileNames.contains(fileName)) {
+                try {
+                    saveHeader(fileStorageService.readDicomHeader(fileName, project, subFolder), fileName, project, subFolder);
+                    indexed++;
+                } catch (IOException | FileStorageException e) {
+                    System.out.println("Could not index DICOM file " + fileName + ": " + e.getMessage());
+                }
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Gets all files in a series in slice order.
+     * @param project project the series is in.
+     * @param seriesInstanceUid uid of series.
+     * @return files in series ordered by instance number and then slice location.
+     * @throws IllegalArgumentException if seriesInstanceUid is null.
+     */
+    public List<DicomFileDTO> getSeries(Project project, String seriesInstanceUid) throws IllegalArgumentException {
+        return dicomMetadataDao.getSeries(project.getProjectId(), seriesInstanceUid);
+    }
+
+    /**
+     * Searches for DICOM files in all projects the user is allowed to see files in.
+     * @param filter filters to use. Fields which are null are not used.
+     * @param user user searching.
+     * @return files matching all filters.
+     */
+    public List<DicomFileDTO> searchDicomFiles(DicomSearchFilter filter, User user) {
+        boolean isAdmin = user.getRoles().get(0).getRoleName().equals("ROLE_" + Role.ADMIN);
+        return dicomMetadataDao.searchMetadata(filter, isAdmin ? null : user.getUserId());
+    }
+
+    /**
+     * Saves a header as metadata of a file. The file is added to the database if it does not exist.
+     * @param header header of DICOM file.
+     * @param fileName name of file including file type.
+     * @param project project file is in.
+     * @param subFolder sub project folder file is in.
+     */
+    private void saveHeader(DicomHeader header, String fileName, Project project, String subFolder) {
+        File file = fileService.addFileToDatabase(fileName, subFolder.toLowerCase(), project);
+        DicomMetadata metadata = new DicomMetadata(file);
+        metadata.setModality(header.getString(DicomHeader.MODALITY));
+        metadata.setStudyInstanceUid(header.getString(DicomHeader.STUDY_INSTANCE_UID));
+        metadata.setStudyDescription(header.getString(DicomHeader.STUDY_DESCRIPTION));
+        metadata.setSeriesInstanceUid(header.getString(DicomHeader.SERIES_INSTANCE_UID));
+        metadata.setSeriesNumber(header.getInteger(DicomHeader.SERIES_NUMBER));
+        metadata.setSeriesDescription(header.getString(DicomHeader.SERIES_DESCRIPTION));
+        metadata.setBodyPartExamined(header.getString(DicomHeader.BODY_PART_EXAMINED));
+        Date acquisitionDate = parseDate(header.getString(DicomHeader.ACQUISITION_DATE));
+        metadata.setAcquisitionDate(acquisitionDate != null ? acquisitionDate : parseDate(header.getString(DicomHeader.STUDY_DATE)));
+        metadata.setSliceThickness(header.getDouble(DicomHeader.SLICE_THICKNESS));
+        metadata.setInstanceNumber(header.getInteger(DicomHeader.INSTANCE_NUMBER));
+        metadata.setSliceLocation(getSliceLocation(header));
+        metadata.setRows(header.contains(DicomHeader.ROWS) ? header.getUnsignedShort(DicomHeader.ROWS, 0) : null);
+        metadata.setColumns(header.contains(DicomHeader.COLUMNS) ? header.getUnsignedShort(DicomHeader.COLUMNS, 0) : null);
+        dicomMetadataDao.saveMetadata(metadata);
+    }
+
+    /**
+     * Gets the slice location. If the file has no slice location the z value of the image position is used.
+     * @param header header of DICOM file.
+     * @return slice location. Null if not found.
+     */
+    private Double getSliceLocation(DicomHeader header) {
+        Double sliceLocation = header.getDouble(DicomHeader.SLICE_LOCATION);
+        if(sliceLocation == null) {
+            double[] imagePosition = header.getDoubles(DicomHeader.IMAGE_POSITION_PATIENT);
+            if(imagePosition != null && imagePosition.length == 3) {
+                sliceLocation = imagePosition[2];
+            }
+        }
+        return sliceLocation;
+    }
+
+    /**
+     * Parses a DICOM date (YYYYMMDD).
+     * @param date date to parse.
+     * @return the date. Null if date is null or not valid.
+     */
+    private Date parseDate(String date) {
+        if(date == null) {
+            return null;
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+            format.setLenient(false);
+            return format.parse(date);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if file is stored as a DICOM file. Same file type as used in FileStorageService.
+     * @param fileName name of file including file type.
+     * @return true if file is a DICOM file.
+     */
+    private boolean isDicomFile(String fileName) {
+        return fileName.endsWith(".IMA");
+    }
+}
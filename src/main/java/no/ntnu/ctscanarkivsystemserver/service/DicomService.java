@@ -0,0 +1,127 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import no.ntnu.ctscanarkivsystemserver.util.DicomHeader;
+import no.ntnu.ctscanarkivsystemserver.util.DicomImage;
+import no.ntnu.ctscanarkivsystemserver.util.DicomParser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class renders previews of DICOM (.IMA) files.
+ * Grayscale images are rendered with window/level through a lookup table from stored pixel value to 8 bit gray.
+ * A series of slices normally share bit depth, rescale and window, so the lookup tables are cached and reused.
+ */
+@Service
+public class DicomService {
+
+    private static final int LOOKUP_TABLE_CACHE_SIZE = 32;
+
+    private final ImageService imageService;
+    private final Map<String, byte[]> lookupTables = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > LOOKUP_TABLE_CACHE_SIZE;
+                }
+            });
+
+    @Autowired
+    public DicomService(ImageService imageService) {
+        this.imageService = imageService;
+    }
+
+    /**
+     * Renders a DICOM file as a png.
+     * @param dicomBytes content of DICOM file.
+     * @param size Size of returned image. If 0 image will be returned in original size.
+     * @param windowCenter center of window in modality units (HU for CT). If null the window in the file is used.
+     * @param windowWidth width of window in modality units. If null the window in the file is used.
+     * @param quality how much work is spent on scaling.
+     * @return png as byte array.
+     * @throws IOException if the file is not a valid DICOM file or the transfer syntax is not supported.
+     */
+    public byte[] renderPreview(byte[] dicomBytes, int size, Double windowCenter, Double windowWidth, ImageQuality quality)
+            throws IOException {
+        DicomImage image = DicomParser.readImage(new ByteArrayInputStream(dicomBytes));
+        BufferedImage rendered;
+        if (image.isGrayscale()) {
+            rendered = image.render(getLookupTable(image, windowCenter, windowWidth));
+        } else {
+            rendered = image.getColorImage();
+        }
+        return imageService.writeImage(rendered, "png", size, quality);
+    }
+
+    /**
+     * Gets the lookup table for an image, from the cache if it has been made before.
+     * If no window is given the window in the file is used, and if the file has none the full range of the image.
+     * @param image image to get lookup table for.
+     * @param windowCenter center of window. Can be null.
+     * @param windowWidth width of window. Can be null.
+     * @return lookup table for image.
+     */
+    private byte[] getLookupTable(DicomImage image, Double windowCenter, Double windowWidth) {
+        DicomHeader header = image.getHeader();
+        Double slope = header.getDouble(DicomHeader.RESCALE_SLOPE);
+        Double intercept = header.getDouble(DicomHeader.RESCALE_INTERCEPT);
+        double rescaleSlope = slope == null || slope == 0 ? 1 : slope;
+        double rescaleIntercept = intercept == null ? 0 : intercept;
+        if (windowCenter == null || windowWidth == null) {
+            windowCenter = header.getDouble(DicomHeader.WINDOW_CENTER);
+            windowWidth = header.getDouble(DicomHeader.WINDOW_WIDTH);
+        }
+        if (windowCenter == null || windowWidth == null) {
+            int[] range = image.getStoredValueRange();
+            double min = range[0] * rescaleSlope + rescaleIntercept;
+            double max = range[1] * rescaleSlope + rescaleIntercept;
+            windowCenter = (min + max) / 2;
+            windowWidth = Math.abs(max - min) + 1;
+        }
+        double center = windowCenter;
+        double width = Math.max(1, windowWidth);
+        String key = image.getBitsStored() + ":" + image.isSigned() + ":" + image.isMonochrome1() + ":"
+                + rescaleSlope + ":" + rescaleIntercept + ":" + center + ":" + width;
+        return lookupTables.computeIfAbsent(key, k -> createLookupTable(image.getMinStoredValue(),
+                image.getMaxStoredValue(), rescaleSlope, rescaleIntercept, center, width, image.isMonochrome1()));
+    }
+
+    /**
+     * Makes a lookup table with the linear VOI function from the DICOM standard (PS3.3 C.11.2.1.2).
+     * @param minStoredValue smallest stored value, first entry in the table.
+     * @param maxStoredValue largest stored value, last entry in the table.
+     * @param slope rescale slope.
+     * @param intercept rescale intercept.
+     * @param center window center.
+     * @param width window width. Must be 1 or larger.
+     * @param inverted true for MONOCHROME1 where low values are white.
+     * @return lookup table from stored value to 8 bit gray.
+     */
+    private byte[] createLookupTable(int minStoredValue, int maxStoredValue, double slope, double intercept,
+                                     double center, double width, boolean inverted) {
+        byte[] lookupTable = new byte[maxStoredValue - minStoredValue + 1];
+        double lower = center - 0.5 - (width - 1) / 2;
+        double upper = center - 0.5 + (width - 1) / 2;
+        for (int i = 0; i < lookupTable.length; i++) {
+            double value = (minStoredValue + i) * slope + intercept;
+            int gray;
+            if (value <= lower) {
+                gray = 0;
+            } else if (value > upper) {
+                gray = 255;
+            } else {
+                gray = (int) Math.round(((value - (center - 0.5)) / (width - 1) + 0.5) * 255);
+                gray = Math.max(0, Math.min(255, gray));
+            }
+            lookupTable[i] = (byte) (inverted ? 255 - gray : gray);
+        }
+        return lookupTable;
+    }
+}
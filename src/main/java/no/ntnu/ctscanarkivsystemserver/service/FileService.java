@@ -12,7 +12,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * This class handles the business logic related to files in the database.
@@ -56,11 +55,7 @@ public class FileService {
      * @return list of all unique file tag names associated with a project.
      */
     public List<String> getAllTagNamesAssociatedWithProject(Project project) {
-        Set<String> allTagNames = new HashSet<>();
-        for(File file:getFiles(project.getProjectId())) {
-            allTagNames.addAll(file.getTags().stream().map(Tag::getTagName).collect(Collectors.toList()));
-        }
-        return new ArrayList<>(allTagNames);
+        return fileDao.getTagNamesByProject(project.getProjectId());
     }
 
     /**
@@ -81,6 +76,29 @@ public class FileService {
         }
     }
 
+    /**
+     * Sets the placeholder of a file. The file is added to the database if it does not exist.
+     * @param fileName name of file including file type.
+     * @param subFolder sub project folder file is in.
+     * @param project project file is in.
+     * @param placeholder placeholder as a data URI.
+     * @return file with placeholder. Null if saving failed.
+     * @throws IllegalArgumentException if fileName is empty or projectId is null.
+     */
+    public File setPlaceholder(String fileName, String subFolder, Project project, String placeholder) throws IllegalArgumentException {
+        return fileDao.setPlaceholder(addFileToDatabase(fileName, subFolder.toLowerCase(), project), placeholder);
+    }
+
+    /**
+     * Gets the names of all files in a sub project folder which have a placeholder.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in.
+     * @return names of files with a placeholder.
+     */
+    public Set<String> getFileNamesWithPlaceholder(UUID projectId, String subFolder) {
+        return fileDao.getFileNamesWithPlaceholder(projectId, subFolder.toLowerCase());
+    }
+
     /**
      * Returns true if tag already exist in file.
      * @param tag tag to see if exist.
@@ -121,16 +139,31 @@ public class FileService {
      * @throws IllegalArgumentException if projectId, subFolder or allFileNames are null.
      */
     public List<FileOTD> getTagsOnFiles(UUID projectId, String subFolder, List<String> allFileNamesInDir) throws IllegalArgumentException {
+        return getTagsOnFiles(projectId, subFolder, allFileNamesInDir, false);
+    }
+
+    /**
+     * Gets all tags a file is associated with, and optionally the placeholder of each image.
+     * @param projectId id of project files are associated with.
+     * @param subFolder sub project folder files are in (The folder name in the file-server).
+     * @param allFileNamesInDir a List of all the files to get tags from.
+     * @param includePlaceholders true if placeholders should be included.
+     * @return list with fileName, tags associated with the file and placeholder of the file.
+     * @throws IllegalArgumentException if projectId, subFolder or allFileNames are null.
+     */
+    public List<FileOTD> getTagsOnFiles(UUID projectId, String subFolder, List<String> allFileNamesInDir,
+                                        boolean includePlaceholders) throws IllegalArgumentException {
         List<FileOTD> files = new ArrayList<>();
         if(projectId == null || subFolder == null || subFolder.trim().isEmpty() || allFileNamesInDir == null) {
             throw new IllegalArgumentException("Fields projectId, subFolder and allFilesNamesInDir cannot be null!");
         } else {
+            Map<String, File> filesInDatabase = fileDao.getFilesWithTagsByNames(allFileNamesInDir, projectId, subFolder.toLowerCase());
             for(String fileName:allFileNamesInDir) {
-                File file = fileDao.getFileByNameAndProject(fileName, projectId, subFolder.toLowerCase());
+                File file = filesInDatabase.get(fileName);
                 if(file == null) {
                     files.add(new FileOTD(fileName, Collections.emptyList()));
                 } else {
-                    files.add(new FileOTD(fileName, file.getTags()));
+                    files.add(new FileOTD(fileName, file.getTags(), includePlaceholders ? file.getPlaceholder() : null));
                 }
             }
         }
@@ -147,18 +180,10 @@ public class FileService {
      * @throws IllegalArgumentException if projectId, subFolder or allFileNames are null.
      */
     public Set<String> getAllFileTagNames(UUID projectId, String subFolder, List<String> allFileNamesInDir) throws IllegalArgumentException {
-        Set<String> fileTagNames = new LinkedHashSet<>();
         if(projectId == null || subFolder == null || subFolder.trim().isEmpty() || allFileNamesInDir == null) {
             throw new IllegalArgumentException("Fields projectId, subFolder and allFilesNamesInDir cannot be null!");
-        } else {
-            for(String fileName:allFileNamesInDir) {
-                File file = fileDao.getFileByNameAndProject(fileName, projectId, subFolder.toLowerCase());
-                if(file != null) {
-                    fileTagNames.addAll(file.getTags().stream().map(Tag::getTagName).collect(Collectors.toList()));
-                }
-            }
         }
-        return fileTagNames;
+        return fileDao.getTagNamesByNames(allFileNamesInDir, projectId, subFolder.toLowerCase());
     }
 
     /**
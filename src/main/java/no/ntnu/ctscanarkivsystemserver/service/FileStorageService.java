@@ -7,9 +7,17 @@ import jcifs.config.PropertyConfiguration;
 import jcifs.context.BaseContext;
 import jcifs.smb.*;
 import no.ntnu.ctscanarkivsystemserver.config.FileStorageProperties;
+import no.ntnu.ctscanarkivsystemserver.dao.ProjectSearchDao;
 import no.ntnu.ctscanarkivsystemserver.exception.DirectoryCreationException;
 import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import no.ntnu.ctscanarkivsystemserver.model.ImageRendition;
 import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.util.DicomHeader;
+import no.ntnu.ctscanarkivsystemserver.util.DicomParser;
+import no.ntnu.ctscanarkivsystemserver.util.EmbeddedPreviewReader;
+import no.ntnu.ctscanarkivsystemserver.util.SmbImageInputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -17,10 +25,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import javax.security.auth.Subject;
+import java.awt.image.BufferedImage;
 import javax.ws.rs.BadRequestException;
 import javax.ws.rs.ForbiddenException;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDate;
 import java.util.*;
 import java.util.List;
@@ -41,6 +55,12 @@ import java.util.zip.ZipOutputStream;
 public class FileStorageService {
 
     private final ImageService imageService;
+    private final ImageProcessingExecutor imageProcessingExecutor;
+    private final ImageWorkerPool imageWorkerPool;
+    private final RenditionCache renditionCache;
+    private final ProjectSearchDao projectSearchDao;
+    //A lossy rendition must be at least this many times the target size to be scaled from.
+    private static final int LOSSY_SOURCE_RATIO = 2;
 
     private final String DOCUMENT_PATH;
     private final String IMAGE_PATH;
@@ -55,7 +75,10 @@ public class FileStorageService {
     private final String url;
 
     @Autowired
-    public FileStorageService(FileStorageProperties fileStorageProperties, ImageService imageService) {
+    public FileStorageService(FileStorageProperties fileStorageProperties, ImageService imageService,
+                              ImageProcessingExecutor imageProcessingExecutor, ImageWorkerPool imageWorkerPool,
+                              RenditionCache renditionCache, ProjectSearchDao projectSearchDao) {
+        this.projectSearchDao = projectSearchDao;
         this.fileStorageLocation = fileStorageProperties.getUploadDir();
         this.DOCUMENT_PATH = fileStorageProperties.getDocumentDir();
         this.IMAGE_PATH = fileStorageProperties.getImageDir();
@@ -67,6 +90,9 @@ public class FileStorageService {
         this.domain = fileStorageProperties.getDomain();
         this.url = fileStorageProperties.getUrl();
         this.imageService = imageService;
+        this.imageProcessingExecutor = imageProcessingExecutor;
+        this.imageWorkerPool = imageWorkerPool;
+        this.renditionCache = renditionCache;
     }
 
     /**
@@ -89,6 +115,7 @@ public class FileStorageService {
      */
     public List<String> storeFile(MultipartFile[] files, Project project, String subFolder) throws FileStorageException, DirectoryCreationException {
         List<String> notAddedFiles = new ArrayList<>();
+        List<String> addedFiles = new ArrayList<>();
         subFolder = backslashToStartOfString(subFolder);
         createProjectDirectories(project, subFolder);
         for (MultipartFile file : files) {
@@ -101,6 +128,8 @@ public class FileStorageService {
                     String notAddedFile = storeFileInDirectory(file, fileStorageLocation + dateNameToPath(project) + subFolder);
                     if (notAddedFile != null) {
                         notAddedFiles.add(notAddedFile);
+                    } else {
+                        addedFiles.add(getFileName(file));
                     }
                 } catch (Exception ex) {
                     throw new FileStorageException("Could not store file " + getFileName(file) + ". Please try again!\nMessage: "
@@ -108,9 +137,46 @@ public class FileStorageService {
                 }
             }
         }
+        //Names are only indexed when the whole upload was stored.
+        projectSearchDao.addFileNames(project.getProjectId(), addedFiles);
         return notAddedFiles;
     }
 
+    /**
+     * Creates a sub project folder and the folders inside it if they do not exist.
+     * @param project project to create sub project folder in.
+     * @param subFolder name of sub project folder.
+     * @throws DirectoryCreationException if creation of directories failed.
+     */
+    public void createSubFolder(Project project, String subFolder) throws DirectoryCreationException {
+        createProjectDirectories(project, backslashToStartOfString(subFolder));
+    }
+
+    /**
+     * Stores file content in the correct directory of a sub project folder. The sub project folder must exist.
+     * If the file already exist it wont be saved.
+     * @param fileName name of file including file type.
+     * @param fileBytes content of file.
+     * @param project project to store file in.
+     * @param subFolder sub project folder to store file in.
+     * @return true if the file was stored, false if it already existed.
+     * @throws FileStorageException if storing the file failed.
+     */
+    public boolean storeFile(String fileName, byte[] fileBytes, Project project, String subFolder) throws FileStorageException {
+        if (isFilenameInvalid(fileName)) {
+            throw new FileStorageException("Sorry! Filename contains invalid path sequence " + fileName);
+        }
+        try {
+            boolean stored = saveFile(fileName, fileBytes, getFileLocation(fileName, project, backslashToStartOfString(subFolder))) == null;
+            if (stored) {
+                projectSearchDao.addFileNames(project.getProjectId(), Collections.singletonList(fileName));
+            }
+            return stored;
+        } catch (IOException e) {
+            throw new FileStorageException("Could not store file " + fileName + ". Message: " + e.getMessage(), e);
+        }
+    }
+
     /**
      * Gets the file content from a file in the file server as byte array.
      * @param fileName Name of file including file type.
@@ -146,27 +212,268 @@ public class FileStorageService {
     }
 
     /**
-     * Gets a image as a byte array.
+     * Copies a file in the file server to a local file without loading it into memory.
+     * @param fileName Name of file including file type.
+     * @param project Project file is associated with.
+     * @param subFolder Folder of sub-project to get file from.
+     * @param target local file to copy to. Will be overwritten.
+     * @throws IOException           if writing the local file failed.
+     * @throws FileStorageException  if this method failed to setup connection.
+     * @throws FileNotFoundException if file with fileName was not found.
+     */
+    public void copyFileToLocal(String fileName, Project project, String subFolder, Path target) throws IOException,
+            FileStorageException, FileNotFoundException {
+        subFolder = backslashToStartOfString(subFolder);
+        try (SmbFile smbFile = new SmbFile(url + "/" + getFileLocation(fileName, project, subFolder) + "/" + fileName, getContextWithCred());
+             SmbFileInputStream inputStream = new SmbFileInputStream(smbFile)) {
+            Files.copy(inputStream, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (SmbException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } catch (CIFSException e) {
+            throw new FileStorageException(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the DICOM header of a file in the file server.
+     * Only the start of the file up to the pixel data is read.
+     * @param fileName Name of DICOM file including file type.
+     * @param project Project file is associated with.
+     * @param subFolder Folder of sub-project to get file from.
+     * @return header of the DICOM file.
+     * @throws IOException           if file is not a valid DICOM file.
+     * @throws FileStorageException  if this method failed to setup connection.
+     * @throws FileNotFoundException if file with fileName was not found.
+     */
+    public DicomHeader readDicomHeader(String fileName, Project project, String subFolder) throws IOException, FileStorageException, FileNotFoundException {
+        subFolder = backslashToStartOfString(subFolder);
+        try (SmbFile smbFile = new SmbFile(url + "/" + getFileLocation(fileName, project, subFolder) + "/" + fileName, getContextWithCred());
+             SmbFileInputStream inputStream = new SmbFileInputStream(smbFile)) {
+            return DicomParser.readHeader(inputStream);
+        } catch (SmbException e) {
+            throw new FileNotFoundException(e.getMessage());
+        } catch (CIFSException e) {
+            throw new FileStorageException(e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a image as a byte array, scaled with the default quality tier or a lower tier under load.
      * @param imageName name of image file including file type.
      * @param project   Project image is associated with.
      * @param subFolder Folder of sub-project to get image from.
      * @param imgSize Size of returned image. If 0 image will be returned in original size.
+     * @param windowCenter Window center used for DICOM files. If null the window in the file is used.
+     * @param windowWidth Window width used for DICOM files. If null the window in the file is used.
      * @return image content as a byte array.
-     * @throws IOException          if loadFileAsBytes method failed to close stream.
+     * @throws IOException          if loadFileAsBytes method failed to close stream or DICOM file could not be read.
+     * @throws FileStorageException if file with imageName was not found.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     */
+    public byte[] getImageAsBytes(String imageName, Project project, String subFolder, int imgSize, Double windowCenter,
+                                  Double windowWidth) throws IOException, FileStorageException, ImageProcessingRejectedException {
+        return getImageRendition(imageName, project, subFolder, imgSize, windowCenter, windowWidth, null).getBytes();
+    }
+
+    /**
+     * Gets a image and the quality tier it was scaled with.
+     * DICOM files are rendered as png with the given window/level.
+     * Scaled images and DICOM previews are cached, so the same rendition is only made once.
+     * A new size of an image is scaled from a larger cached rendition of the image if there is one,
+     * else from a preview embedded in the file (EXIF thumbnail or reduced TIFF page) if it is large enough.
+     * Scaled TIFF images are returned as png. Every frame of animated gifs is scaled.
+     * Under load the image is scaled with a lower quality tier than requested, unless the requested tier is cached.
+     * @param imageName name of image file including file type.
+     * @param project   Project image is associated with.
+     * @param subFolder Folder of sub-project to get image from.
+     * @param imgSize Size of returned image. If 0 image will be returned in original size.
+     * @param windowCenter Window center used for DICOM files. If null the window in the file is used.
+     * @param windowWidth Window width used for DICOM files. If null the window in the file is used.
+     * @param requestedQuality quality tier to scale with. If null the default tier is used.
+     * @return image content and the tier it was scaled with. The tier is null if the original is returned.
+     * @throws IOException          if loadFileAsBytes method failed to close stream or DICOM file could not be read.
      * @throws FileStorageException if file with imageName was not found.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
      */
-    public byte[] getImageAsBytes(String imageName, Project project, String subFolder, int imgSize) throws IOException, FileStorageException {
+    public ImageRendition getImageRendition(String imageName, Project project, String subFolder, int imgSize, Double windowCenter,
+                                            Double windowWidth, ImageQuality requestedQuality)
+            throws IOException, FileStorageException, ImageProcessingRejectedException {
         if (imageService.isFileAnImage(imageName)) {
-            byte[] imageBytes = loadFileAsBytes(imageName, project, subFolder);
-            if (imgSize != 0 && !getFileType(imageName).equals("gif")) {
-                imageBytes = imageService.scaleImage(imageBytes, getFileType(imageName), imgSize);
+            String fileType = getFileType(imageName);
+            boolean isDicom = fileType.equalsIgnoreCase("IMA");
+            if (!isDicom && imgSize == 0) {
+                return new ImageRendition(loadFileAsBytes(imageName, project, subFolder), null);
+            }
+            //Browsers can not show TIFF, so TIFF renditions are png.
+            String renditionType = fileType.equals("tiff") ? "png" : fileType;
+            String renditionKey = getRenditionKey(imageName, project, subFolder, imgSize)
+                    + (isDicom ? "?wc=" + windowCenter + "&ww=" + windowWidth : "");
+            if (requestedQuality == null) {
+                requestedQuality = imageProcessingExecutor.getDefaultQuality();
             }
-            return imageBytes;
+            ImageQuality quality = imageProcessingExecutor.getServableQuality(requestedQuality);
+            //A cached rendition costs nothing, so the requested tier is served if it is cached even under load.
+            for (int tier = requestedQuality.ordinal(); tier >= quality.ordinal(); tier--) {
+                byte[] cached = renditionCache.get(renditionKey + "&quality=" + ImageQuality.values()[tier]);
+                if (cached != null) {
+                    return new ImageRendition(cached, ImageQuality.values()[tier]);
+                }
+            }
+            ImageQuality servedQuality = quality;
+            renditionKey += "&quality=" + servedQuality;
+            byte[] imageBytes;
+            if (isDicom) {
+                byte[] originalBytes = loadFileAsBytes(imageName, project, subFolder);
+                //Stored values, lookup result and scaled image are all kept in memory while rendering.
+                imageBytes = imageProcessingExecutor.execute(
+                        () -> imageWorkerPool.renderDicom(originalBytes, imgSize, windowCenter, windowWidth, servedQuality),
+                        originalBytes.length * 4L, ImageProcessingExecutor.getPriority(imgSize));
+                renditionCache.put(renditionKey, imageBytes);
+            } else if (fileType.equals("gif")) {
+                byte[] originalBytes = loadFileAsBytes(imageName, project, subFolder);
+                //Frames are scaled one by one, only the canvas, one frame and a copy for disposal are decoded at a time.
+                imageBytes = imageProcessingExecutor.execute(
+                        () -> imageWorkerPool.scaleGif(originalBytes, imgSize, servedQuality),
+                        imageService.estimateDecodedBytes(originalBytes, 0, servedQuality) * 3, ImageProcessingExecutor.getPriority(imgSize));
+                renditionCache.put(renditionKey, imageBytes);
+            } else {
+                //Scale from the smallest larger rendition if one is cached. Renditions in a lossy format lose
+                //quality each time they are encoded, so they are only used if they are much larger than the target.
+                String imageKey = getImageKey(imageName, project, subFolder);
+                int minSourceSize = isLossyFileType(fileType) ? imgSize * LOSSY_SOURCE_RATIO : imgSize + 1;
+                byte[] sourceBytes = renditionCache.getSource(imageKey, minSourceSize);
+                BufferedImage preview = sourceBytes == null ? readEmbeddedPreview(imageName, project, subFolder, imgSize) : null;
+                if (preview != null) {
+                    imageBytes = imageProcessingExecutor.execute(
+                            () -> imageService.writeImage(preview, renditionType, imgSize, servedQuality),
+                            (long) preview.getWidth() * preview.getHeight() * 8, ImageProcessingExecutor.getPriority(imgSize));
+                    renditionCache.put(renditionKey, imageBytes);
+                } else {
+                    boolean fromOriginal = sourceBytes == null;
+                    if (fromOriginal) {
+                        sourceBytes = loadFileAsBytes(imageName, project, subFolder);
+                    }
+                    byte[] finalSourceBytes = sourceBytes;
+                    imageBytes = imageProcessingExecutor.execute(
+                            () -> imageWorkerPool.scaleImage(finalSourceBytes, renditionType, imgSize, servedQuality),
+                            imageService.estimateDecodedBytes(finalSourceBytes, imgSize, servedQuality), ImageProcessingExecutor.getPriority(imgSize));
+                    //A rendition larger than the original is upscaled, and is never used to make other sizes.
+                    //Fast renditions are not anti aliased, so they are not used either.
+                    if (fromOriginal && servedQuality != ImageQuality.FAST
+                            && imageService.getLongestSide(finalSourceBytes) >= imgSize) {
+                        renditionCache.put(renditionKey, imageBytes, imageKey, imgSize);
+                    } else {
+                        renditionCache.put(renditionKey, imageBytes);
+                    }
+                }
+            }
+            return new ImageRendition(imageBytes, servedQuality);
         } else {
             throw new IllegalArgumentException("File is not a image or the system does not support it. File name is: " + imageName);
         }
     }
 
+    /**
+     * Scales an image which is already in memory, like an uploaded file, so it is not read from the file server again.
+     * Nothing is cached. JPEG and TIFF images are scaled from their embedded preview if it is large enough,
+     * and DICOM files are rendered as png with the window in the file.
+     * @param imageName name of image file including file type.
+     * @param originalBytes content of the image file.
+     * @param imgSize size of returned image.
+     * @param quality quality tier to scale with.
+     * @return scaled image.
+     * @throws IOException if the image could not be read or written.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     * @throws IllegalArgumentException if the file is not an image.
+     */
+    public byte[] scaleImageBytes(String imageName, byte[] originalBytes, int imgSize, ImageQuality quality)
+            throws IOException, ImageProcessingRejectedException, IllegalArgumentException {
+        if (!imageService.isFileAnImage(imageName)) {
+            throw new IllegalArgumentException("File is not a image or the system does not support it. File name is: " + imageName);
+        }
+        String fileType = getFileType(imageName);
+        if (fileType.equalsIgnoreCase("IMA")) {
+            return imageProcessingExecutor.execute(
+                    () -> imageWorkerPool.renderDicom(originalBytes, imgSize, null, null, quality),
+                    originalBytes.length * 4L, ImageProcessingExecutor.getPriority(imgSize));
+        } else if (fileType.equals("gif")) {
+            return imageProcessingExecutor.execute(() -> imageWorkerPool.scaleGif(originalBytes, imgSize, quality),
+                    imageService.estimateDecodedBytes(originalBytes, 0, quality) * 3, ImageProcessingExecutor.getPriority(imgSize));
+        }
+        String renditionType = fileType.equals("tiff") ? "png" : fileType;
+        BufferedImage preview = null;
+        if (fileType.equals("jpg") || fileType.equals("tiff")) {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(originalBytes))) {
+                preview = EmbeddedPreviewReader.readPreview(input, fileType, imgSize);
+            }
+        }
+        if (preview != null) {
+            BufferedImage finalPreview = preview;
+            return imageProcessingExecutor.execute(
+                    () -> imageService.writeImage(finalPreview, renditionType, imgSize, quality),
+                    (long) preview.getWidth() * preview.getHeight() * 8, ImageProcessingExecutor.getPriority(imgSize));
+        }
+        return imageProcessingExecutor.execute(
+                () -> imageWorkerPool.scaleImage(originalBytes, renditionType, imgSize, quality),
+                imageService.estimateDecodedBytes(originalBytes, imgSize, quality), ImageProcessingExecutor.getPriority(imgSize));
+    }
+
+    /**
+     * Reads a reduced resolution preview embedded in a JPEG or TIFF file.
+     * The file is read with range reads, so only the headers and the preview are fetched from the file server.
+     * @param imageName name of image file including file type.
+     * @param project Project image is associated with.
+     * @param subFolder Folder of sub-project image is in.
+     * @param minSize smallest longest side the preview can have.
+     * @return the preview. Null if the file has no suitable preview or it could not be read.
+     */
+    private BufferedImage readEmbeddedPreview(String imageName, Project project, String subFolder, int minSize) {
+        String fileType = getFileType(imageName);
+        if (!fileType.equals("jpg") && !fileType.equals("tiff")) {
+            return null;
+        }
+        subFolder = backslashToStartOfString(subFolder);
+        try (SmbFile smbFile = new SmbFile(url + "/" + getFileLocation(imageName, project, subFolder) + "/" + imageName, getContextWithCred());
+             SmbImageInputStream input = new SmbImageInputStream(new SmbRandomAccessFile(smbFile, "r"))) {
+            return EmbeddedPreviewReader.readPreview(input, fileType, minSize);
+        } catch (Exception e) {
+            System.out.println("Could not read embedded preview of " + imageName + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Makes the key a rendition of an image is cached with.
+     * @param imageName name of image file including file type.
+     * @param project Project image is associated with.
+     * @param subFolder Folder of sub-project image is in.
+     * @param imgSize Size of rendition.
+     * @return key of rendition.
+     */
+    private String getRenditionKey(String imageName, Project project, String subFolder, int imgSize) {
+        return getImageKey(imageName, project, subFolder) + "?size=" + imgSize;
+    }
+
+    /**
+     * Makes the key all renditions of an image share.
+     * @param imageName name of image file including file type.
+     * @param project Project image is associated with.
+     * @param subFolder Folder of sub-project image is in.
+     * @return key of image.
+     */
+    private String getImageKey(String imageName, Project project, String subFolder) {
+        return project.getProjectId() + backslashToStartOfString(subFolder) + "/" + imageName;
+    }
+
+    /**
+     * Checks if renditions of a file type are encoded with lossy compression.
+     * @param fileType file type without dot.
+     * @return true if the file type is lossy.
+     */
+    private boolean isLossyFileType(String fileType) {
+        return fileType.equalsIgnoreCase("jpg") || fileType.equalsIgnoreCase("jpeg");
+    }
+
     /**
      * Get all file names in a directory.
      * Valid arguments is: documents, images, logs, dicom, tiff and all.
@@ -319,6 +626,7 @@ public class FileStorageService {
             case "PNG":
             case "gif":
             case "raw":
+            case "mhd":
             case "eps":
             case "bmp":
                 fileLocation += IMAGE_PATH;
@@ -361,6 +669,7 @@ public class FileStorageService {
                 case "PNG":
                 case "gif":
                 case "raw":
+                case "mhd":
                 case "eps":
                 case "bmp":
                     notAddedFile = saveFile(file, path + IMAGE_PATH);
@@ -384,17 +693,30 @@ public class FileStorageService {
      * @throws IOException          if outputStream failed to close.
      */
     private String saveFile(MultipartFile file, String path) throws FileStorageException, IOException {
+        return saveFile(getFileName(file), file.getBytes(), path);
+    }
+
+    /**
+     * Save file content into the given path.
+     * @param fileName name of file including file type.
+     * @param fileBytes content of file.
+     * @param path of where to save the given file.
+     * @return null if file was successfully saved else return name of file.
+     * @throws FileStorageException if something went wrong when trying to save file.
+     * @throws IOException          if outputStream failed to close.
+     */
+    private String saveFile(String fileName, byte[] fileBytes, String path) throws FileStorageException, IOException {
         String notCreatedFile = null;
         SmbFile smbFile = null;
         SmbFileOutputStream outputStream = null;
         try {
-            if (doesFileExist(file, path)) {
-                notCreatedFile = getFileName(file);
+            if (doesFileExist(fileName, path)) {
+                notCreatedFile = fileName;
                 System.out.println("File already exist!");
             } else {
-                smbFile = new SmbFile(url + "/" + path + "/" + getFileName(file), getContextWithCred());
+                smbFile = new SmbFile(url + "/" + path + "/" + fileName, getContextWithCred());
                 outputStream = new SmbFileOutputStream(smbFile);
-                outputStream.write(file.getBytes());
+                outputStream.write(fileBytes);
             }
         } catch (Exception e) {
             throw new FileStorageException(e.getMessage());
@@ -411,14 +733,14 @@ public class FileStorageService {
 
     /**
      * Checks if a file already exists in the folder.
-     * @param file file to see if already exists.
+     * @param fileName name of file to see if already exists.
      * @param path path to file including folder file is in.
      * @return true if file already exist
      */
-    private boolean doesFileExist(MultipartFile file, String path) {
+    private boolean doesFileExist(String fileName, String path) {
         try (SmbFile smbFile = new SmbFile(url + "/" + path + "/", getContextWithCred())) {
             for (SmbFile existingFile : smbFile.listFiles()) {
-                if (getFileName(file).equals(existingFile.getName())) {
+                if (fileName.equals(existingFile.getName())) {
                     return true;
                 }
             }
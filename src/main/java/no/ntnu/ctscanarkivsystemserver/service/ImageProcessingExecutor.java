@@ -0,0 +1,212 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.config.ImageProcessingProperties;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs decoding, scaling and conversion of images on a dedicated thread pool instead of on the request threads.
+ * The pool has one thread per core and the queue is limited by how many bytes the queued images are estimated
+ * to use when decoded. If the limit is reached new jobs are rejected right away so the client can try again later.
+ * Jobs with a small target size (thumbnails) are run before jobs with a large target size.
+ * The load of the pool decides which quality tier images are served with, so scaling gets cheaper before jobs
+ * have to be rejected.
+ */
+@Service
+public class ImageProcessingExecutor {
+
+    //Jobs waiting per thread which counts as full load.
+    private static final int FULL_LOAD_QUEUE_DEPTH = 4;
+    //Images in original size run after every scaled image, but before loading volumes and conversions.
+    private static final int ORIGINAL_SIZE_PRIORITY = Integer.MAX_VALUE - 2;
+
+    private final ThreadPoolExecutor executor;
+    private final int threads;
+    private final long maxQueuedBytes;
+    private final int retryAfterSeconds;
+    private final ImageQuality defaultQuality;
+    private final double balancedQualityLoad;
+    private final double fastQualityLoad;
+    private final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Autowired
+    public ImageProcessingExecutor(ImageProcessingProperties imageProcessingProperties) {
+        int threads = imageProcessingProperties.getThreads();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        this.maxQueuedBytes = imageProcessingProperties.getMaxQueuedBytes();
+        this.retryAfterSeconds = imageProcessingProperties.getRetryAfterSeconds();
+        this.defaultQuality = ImageQuality.valueOf(imageProcessingProperties.getDefaultQuality().trim().toUpperCase());
+        this.balancedQualityLoad = imageProcessingProperties.getBalancedQualityLoad();
+        this.fastQualityLoad = imageProcessingProperties.getFastQualityLoad();
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "image-processing-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Runs an image job on the image processing pool and waits for the result.
+     * @param job job to run.
+     * @param estimatedBytes how many bytes the job is estimated to use while running.
+     * @param priority priority of the job, lower runs first. Use getPriority of the target size of the image.
+     * @param <T> type returned by the job.
+     * @return result of the job.
+     * @throws IOException if the job threw an IOException.
+     * @throws ImageProcessingRejectedException if the queue is full.
+     */
+    public <T> T execute(Callable<T> job, long estimatedBytes, int priority) throws IOException, ImageProcessingRejectedException {
+        reserve(estimatedBytes);
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                queuedBytes.addAndGet(-estimatedBytes);
+            }
+        };
+        PrioritizedJob<T> prioritizedJob = new PrioritizedJob<>(() -> {
+            try {
+                return job.call();
+            } finally {
+                release.run();
+            }
+        }, priority, sequence.getAndIncrement());
+        try {
+            executor.execute(prioritizedJob);
+        } catch (RejectedExecutionException e) {
+            release.run();
+            throw new ImageProcessingRejectedException("Image processing pool is shut down.", retryAfterSeconds);
+        }
+        try {
+            return prioritizedJob.get();
+        } catch (InterruptedException e) {
+            if (prioritizedJob.cancel(false)) {
+                executor.remove(prioritizedJob);
+                release.run();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for image processing.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Reserves room for a job in the queue.
+     * A job is always let in if the queue is empty, even if it is larger than the limit.
+     * @param estimatedBytes how many bytes the job is estimated to use.
+     * @throws ImageProcessingRejectedException if there is no room for the job.
+     */
+    private void reserve(long estimatedBytes) throws ImageProcessingRejectedException {
+        while (true) {
+            long current = queuedBytes.get();
+            if (current > 0 && current + estimatedBytes > maxQueuedBytes) {
+                System.out.println("Image processing queue is full. Queued bytes: " + current);
+                throw new ImageProcessingRejectedException("Image processing queue is full.", retryAfterSeconds);
+            }
+            if (queuedBytes.compareAndSet(current, current + estimatedBytes)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return how loaded the image processing is, as the highest of: queued bytes of the limit,
+     * waiting jobs per thread and system load average per core.
+     * @return load from 0. 1 or more is full load.
+     */
+    public double getLoad() {
+        double bytesLoad = queuedBytes.get() / (double) maxQueuedBytes;
+        double queueLoad = executor.getQueue().size() / (double) (threads * FULL_LOAD_QUEUE_DEPTH);
+        //Load average is negative if the platform does not have it.
+        double cpuLoad = Math.max(0, operatingSystem.getSystemLoadAverage() / operatingSystem.getAvailableProcessors());
+        return Math.max(bytesLoad, Math.max(queueLoad, cpuLoad));
+    }
+
+    /**
+     * Return the quality tier an image can be served with at the current load.
+     * A tier is never raised, only lowered when the load is high.
+     * @param requested requested tier. If null the default tier is used.
+     * @return tier to serve.
+     */
+    public ImageQuality getServableQuality(ImageQuality requested) {
+        ImageQuality quality = requested == null ? defaultQuality : requested;
+        double load = getLoad();
+        if (load >= fastQualityLoad) {
+            return ImageQuality.FAST;
+        } else if (load >= balancedQualityLoad && quality == ImageQuality.ULTRA) {
+            return ImageQuality.BALANCED;
+        }
+        return quality;
+    }
+
+    /**
+     * Converts the target size of an image to the priority of its job, so small images run first.
+     * @param targetSize size of the longest side the image is scaled to. 0 if original size.
+     * @return priority of the job, lower runs first.
+     */
+    public static int getPriority(int targetSize) {
+        return targetSize > 0 ? targetSize : ORIGINAL_SIZE_PRIORITY;
+    }
+
+    /**
+     * Return the quality tier used when none is requested.
+     * @return default tier.
+     */
+    public ImageQuality getDefaultQuality() {
+        return defaultQuality;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A job in the queue. Jobs are sorted by priority and then by the order they came in.
+     * @param <T> type returned by the job.
+     */
+    private static class PrioritizedJob<T> extends FutureTask<T> implements Comparable<PrioritizedJob<?>> {
+        private final int priority;
+        private final long sequence;
+
+        PrioritizedJob(Callable<T> callable, int priority, long sequence) {
+            super(callable);
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(PrioritizedJob<?> other) {
+            if (priority != other.priority) {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package no.ntnu.ctscanarkivsystemserver.service;
 
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
 import org.imgscalr.Scalr;
 import org.springframework.stereotype.Service;
 
-import javax.imageio.ImageIO;
+import org.w3c.dom.Node;
+
+import javax.imageio.*;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -19,13 +31,19 @@ import java.util.List;
 @Service
 public class ImageService {
 
+    //How many times larger than the target size the subsampled image is decoded with balanced quality.
+    //Scalr needs some extra pixels to anti alias the final resize.
+    private static final int SUBSAMPLING_OVERSAMPLE = 2;
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+
     /**
      * Checks if file is a image.
      * @param fileName name of file including file type
      * @return true if the file is a image the system supports.
      */
     public boolean isFileAnImage(String fileName) {
-        List<String> imageTypes = new ArrayList<>(Arrays.asList(".jpg", ".png", ".PNG", ".gif", ".raw", ".eps", ".bmp"));
+        List<String> imageTypes = new ArrayList<>(Arrays.asList(".jpg", ".png", ".PNG", ".gif", ".raw", ".eps", ".bmp", ".IMA", ".tiff"));
         for (String imageType : imageTypes) {
             if (fileName.contains(imageType)) {
                 return true;
@@ -34,22 +52,35 @@ public class ImageService {
         return false;
     }
 
+    /**
+     * Scales an image to same as width param with balanced quality.
+     * @param imageBytes Image to scale as byte array.
+     * @param imageFileType File type of the image.
+     * @param width Width to return image as.
+     * @return Scaled image to width as byte array.
+     * @throws IOException If reading image fails.
+     * @throws IllegalArgumentException If the system has no reader for the image.
+     */
+    public byte[] scaleImage(byte[] imageBytes, String imageFileType, Integer width) throws IOException, IllegalArgumentException {
+        return scaleImage(imageBytes, imageFileType, width, ImageQuality.BALANCED);
+    }
+
     /**
      * Scales an image to same as width param.
+     * The image is decoded with source subsampling so only a few times the target size is held in memory,
+     * the final resize is then done by Scalr.
      * @param imageBytes Image to scale as byte array.
      * @param imageFileType File type of the image.
      * @param width Width to return image as.
+     * @param quality How much work is spent on scaling.
      * @return Scaled image to width as byte array.
      * @throws IOException If reading image fails.
+     * @throws IllegalArgumentException If the system has no reader for the image.
      */
-    public byte[] scaleImage(byte[] imageBytes, String imageFileType, Integer width) throws IOException {
+    public byte[] scaleImage(byte[] imageBytes, String imageFileType, Integer width, ImageQuality quality)
+            throws IOException, IllegalArgumentException {
         try {
-            ByteArrayOutputStream thumbOutput = new ByteArrayOutputStream();
-            BufferedImage thumbImg;
-            BufferedImage img = ImageIO.read(new ByteArrayInputStream(imageBytes));
-            thumbImg = Scalr.resize(img, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, width, Scalr.OP_ANTIALIAS);
-            ImageIO.write(thumbImg, imageFileType, thumbOutput);
-            return thumbOutput.toByteArray();
+            return writeImage(readSubsampledImage(imageBytes, width, getSubsamplingOversample(quality)), imageFileType, width, quality);
         } catch (ArrayIndexOutOfBoundsException e) {
             //ImageIO has a bug when it tries to read some gifs ArrayIndexOutOfBoundsException will be thrown.
             //With message: Index 4096 out of bounds for length 4096
@@ -59,6 +90,359 @@ public class ImageService {
         }
     }
 
+    /**
+     * Scales an already decoded image with balanced quality and encodes it.
+     * @param image Image to scale.
+     * @param imageFileType File type to encode the image as.
+     * @param width Width to return image as. If 0 the image is not scaled.
+     * @return Scaled image as byte array.
+     * @throws IOException If encoding the image fails.
+     */
+    public byte[] writeImage(BufferedImage image, String imageFileType, int width) throws IOException {
+        return writeImage(image, imageFileType, width, ImageQuality.BALANCED);
+    }
+
+    /**
+     * Scales an already decoded image and encodes it.
+     * @param image Image to scale.
+     * @param imageFileType File type to encode the image as.
+     * @param width Width to return image as. If 0 the image is not scaled.
+     * @param quality How much work is spent on scaling.
+     * @return Scaled image as byte array.
+     * @throws IOException If encoding the image fails.
+     */
+    public byte[] writeImage(BufferedImage image, String imageFileType, int width, ImageQuality quality) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (width > 0) {
+            image = resize(image, width, quality);
+        }
+        ImageIO.write(image, imageFileType, output);
+        return output.toByteArray();
+    }
+
+    /**
+     * Scales an image with Scalr.
+     * @param image Image to scale.
+     * @param width Size of the longest side of the scaled image.
+     * @param quality How much work is spent on scaling.
+     * @return Scaled image.
+     */
+    private BufferedImage resize(BufferedImage image, int width, ImageQuality quality) {
+        switch (quality) {
+            case FAST:
+                return Scalr.resize(image, Scalr.Method.SPEED, Scalr.Mode.AUTOMATIC, width);
+
+            case ULTRA:
+                return Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.AUTOMATIC, width, Scalr.OP_ANTIALIAS);
+
+            default:
+                return Scalr.resize(image, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, width, Scalr.OP_ANTIALIAS);
+        }
+    }
+
+    /**
+     * Scales every frame of a (animated) gif.
+     * Frames are decoded, drawn on the canvas, scaled and encoded one at a time, so only the canvas and one frame
+     * are held in memory no matter how many frames the gif has.
+     * A frame which can not be decoded is skipped, and the frames after it are still scaled. Decoding stops when the
+     * next frame can not be found, as in a truncated gif. Skipped frames are logged once per gif.
+     * @param gifBytes Gif to scale as byte array.
+     * @param width Size of the longest side of the scaled gif.
+     * @param quality How much work is spent on scaling each frame.
+     * @return Scaled gif as byte array. The original if no frame could be decoded.
+     * @throws IOException If reading or writing the gif fails.
+     */
+    public byte[] scaleGif(byte[] gifBytes, int width, ImageQuality quality) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("gif");
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+        if (!readers.hasNext() || !writers.hasNext()) {
+            throw new IllegalArgumentException("Found no gif reader or writer.");
+        }
+        ImageReader reader = readers.next();
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(gifBytes));
+             ImageOutputStream gifOutput = ImageIO.createImageOutputStream(output)) {
+            reader.setInput(input, true, false);
+            writer.setOutput(gifOutput);
+            IIOMetadataNode screen = getChild(reader.getStreamMetadata().getAsTree(GIF_STREAM_METADATA), "LogicalScreenDescriptor");
+            BufferedImage canvas = new BufferedImage(getIntAttribute(screen, "logicalScreenWidth"),
+                    getIntAttribute(screen, "logicalScreenHeight"), BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = canvas.createGraphics();
+            int frames = 0;
+            int failedFrames = 0;
+            String firstFailure = null;
+            int loopCount = 0;
+            try {
+                writer.prepareWriteSequence(null);
+                for (int frameIndex = 0; ; frameIndex++) {
+                    BufferedImage frame;
+                    IIOMetadataNode frameMetadata;
+                    try {
+                        frameMetadata = (IIOMetadataNode) reader.getImageMetadata(frameIndex).getAsTree(GIF_IMAGE_METADATA);
+                    } catch (IndexOutOfBoundsException e) {
+                        //No more frames.
+                        break;
+                    } catch (IIOException e) {
+                        //The frame can not be found, so neither can the frames after it.
+                        failedFrames++;
+                        firstFailure = firstFailure == null ? "frame " + frameIndex + ": " + e.getMessage() : firstFailure;
+                        break;
+                    }
+                    if (frameIndex == 0) {
+                        loopCount = getLoopCount(frameMetadata);
+                    }
+                    try {
+                        frame = reader.read(frameIndex);
+                    } catch (IndexOutOfBoundsException | IIOException e) {
+                        //ImageIO can not decode some gif frames, see scaleImage. A truncated frame is read past the end.
+                        failedFrames++;
+                        firstFailure = firstFailure == null ? "frame " + frameIndex + ": " + e.getMessage() : firstFailure;
+                        continue;
+                    }
+                    IIOMetadataNode descriptor = getChild(frameMetadata, "ImageDescriptor");
+                    IIOMetadataNode control = getChild(frameMetadata, "GraphicControlExtension");
+                    int x = getIntAttribute(descriptor, "imageLeftPosition");
+                    int y = getIntAttribute(descriptor, "imageTopPosition");
+                    String disposal = control == null ? "none" : control.getAttribute("disposalMethod");
+                    BufferedImage previous = null;
+                    if (disposal.equals("restoreToPrevious")) {
+                        previous = copyArea(canvas, x, y, frame.getWidth(), frame.getHeight());
+                    }
+                    graphics.drawImage(frame, x, y, null);
+                    BufferedImage scaled = resize(canvas, width, quality);
+                    writer.writeToSequence(new IIOImage(scaled, null,
+                            getScaledFrameMetadata(writer, scaled, control, frames == 0 ? loopCount : -1)), null);
+                    if (disposal.equals("restoreToBackgroundColor")) {
+                        graphics.setComposite(AlphaComposite.Clear);
+                        graphics.fillRect(x, y, frame.getWidth(), frame.getHeight());
+                        graphics.setComposite(AlphaComposite.SrcOver);
+                    } else if (previous != null) {
+                        graphics.setComposite(AlphaComposite.Src);
+                        graphics.drawImage(previous, x, y, null);
+                        graphics.setComposite(AlphaComposite.SrcOver);
+                    }
+                    frames++;
+                }
+                if (frames > 0) {
+                    writer.endWriteSequence();
+                }
+                if (failedFrames > 0) {
+                    System.out.println("Could not decode " + failedFrames + " gif frames, " + frames
+                            + " frames were scaled. First failed " + firstFailure);
+                }
+            } finally {
+                graphics.dispose();
+                reader.dispose();
+                writer.dispose();
+            }
+            if (frames == 0) {
+                return gifBytes;
+            }
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Makes the metadata of a scaled frame with the delay of the original frame.
+     * The scaled frame is drawn on the full canvas, so it replaces the previous frame.
+     * @param writer gif writer.
+     * @param frame scaled frame.
+     * @param originalControl graphic control extension of the original frame. Null if it has none.
+     * @param loopCount number of times to loop, 0 for forever. Negative if the frame should not have a loop count.
+     * @return metadata of frame.
+     * @throws IOException if the metadata could not be made.
+     */
+    private IIOMetadata getScaledFrameMetadata(ImageWriter writer, BufferedImage frame, IIOMetadataNode originalControl,
+                                               int loopCount) throws IOException {
+        IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(frame), null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_METADATA);
+        IIOMetadataNode control = getOrAddChild(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("delayTime", originalControl == null ? "0" : originalControl.getAttribute("delayTime"));
+        if (loopCount >= 0) {
+            IIOMetadataNode extensions = getOrAddChild(root, "ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[]{1, (byte) (loopCount & 0xFF), (byte) ((loopCount >> 8) & 0xFF)});
+            extensions.appendChild(loop);
+        }
+        metadata.setFromTree(GIF_IMAGE_METADATA, root);
+        return metadata;
+    }
+
+    /**
+     * Return the loop count of the NETSCAPE2.0 extension of the first frame.
+     * @param frameMetadata metadata of the first frame.
+     * @return number of times to loop, 0 for forever. 0 if the gif has no loop count.
+     */
+    private int getLoopCount(IIOMetadataNode frameMetadata) {
+        IIOMetadataNode extensions = getChild(frameMetadata, "ApplicationExtensions");
+        if (extensions != null) {
+            for (int i = 0; i < extensions.getLength(); i++) {
+                IIOMetadataNode extension = (IIOMetadataNode) extensions.item(i);
+                Object data = extension.getUserObject();
+                if ("NETSCAPE".equals(extension.getAttribute("applicationID")) && data instanceof byte[]
+                        && ((byte[]) data).length >= 3) {
+                    byte[] bytes = (byte[]) data;
+                    return (bytes[1] & 0xFF) | ((bytes[2] & 0xFF) << 8);
+                }
+            }
+        }
+        return 0;
+    }
+
+    private BufferedImage copyArea(BufferedImage image, int x, int y, int width, int height) {
+        BufferedImage copy = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, -x, -y, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    private IIOMetadataNode getChild(Node parent, String name) {
+        for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeName().equals(name)) {
+                return (IIOMetadataNode) child;
+            }
+        }
+        return null;
+    }
+
+    private IIOMetadataNode getOrAddChild(IIOMetadataNode parent, String name) {
+        IIOMetadataNode child = getChild(parent, name);
+        if (child == null) {
+            child = new IIOMetadataNode(name);
+            parent.appendChild(child);
+        }
+        return child;
+    }
+
+    private int getIntAttribute(IIOMetadataNode node, String name) {
+        return node == null ? 0 : Integer.parseInt(node.getAttribute(name));
+    }
+
+    /**
+     * Return how many times larger than the target size an image is decoded before it is scaled.
+     * @param quality quality the image is scaled with.
+     * @return oversampling factor.
+     */
+    private int getSubsamplingOversample(ImageQuality quality) {
+        switch (quality) {
+            case FAST:
+                return 1;
+            case ULTRA:
+                return SUBSAMPLING_OVERSAMPLE * 2;
+            default:
+                return SUBSAMPLING_OVERSAMPLE;
+        }
+    }
+
+    /**
+     * Estimates how many bytes decoding and scaling an image will use.
+     * Only the header of the image is read.
+     * @param imageBytes Image as byte array.
+     * @param targetSize Size of the longest side the image is going to be scaled to. 0 if original size.
+     * @param quality quality tier the image is going to be scaled with, which decides how large it is decoded.
+     * @return estimated number of bytes used while processing the image.
+     */
+    public long estimateDecodedBytes(byte[] imageBytes, int targetSize, ImageQuality quality) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    long width = reader.getWidth(0);
+                    long height = reader.getHeight(0);
+                    int subsampling = getSubsamplingFactor((int) width, (int) height, targetSize,
+                            getSubsamplingOversample(quality));
+                    //4 bytes per pixel for the decoded image, the scaled and encoded image is small in comparison.
+                    return (width / subsampling) * (height / subsampling) * 4 + imageBytes.length;
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read image header: " + e.getMessage());
+        }
+        return imageBytes.length;
+    }
+
+    /**
+     * Return the longest side of an image. Only the header of the image is read.
+     * @param imageBytes Image as byte array.
+     * @return width or height of the image, whichever is largest. 0 if the header could not be read.
+     */
+    public int getLongestSide(byte[] imageBytes) {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (readers.hasNext()) {
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    return Math.max(reader.getWidth(0), reader.getHeight(0));
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not read image header: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Decodes an image with source subsampling so the decoded image is close to the target size.
+     * Every n-th pixel in every n-th row is read, which means the full resolution raster is never allocated.
+     * @param imageBytes Image to decode as byte array.
+     * @param targetSize Size of the longest side the image is going to be scaled to.
+     * @param oversample How many times larger than the target size the image is decoded.
+     * @return Decoded image which is at least oversample times larger than target size,
+     * or the original size if it is smaller.
+     * @throws IOException If reading image fails.
+     * @throws IllegalArgumentException If the system has no reader for the image.
+     */
+    private BufferedImage readSubsampledImage(byte[] imageBytes, int targetSize, int oversample) throws IOException, IllegalArgumentException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageBytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IllegalArgumentException("Found no image reader for image.");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = getSubsamplingFactor(reader.getWidth(0), reader.getHeight(0), targetSize, oversample);
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Return how many pixels can be skipped in each direction while still
+     * decoding an image larger than the target size.
+     * @param sourceWidth Width of the original image.
+     * @param sourceHeight Height of the original image.
+     * @param targetSize Size of the longest side the image is going to be scaled to.
+     * @param oversample How many times larger than the target size the image is decoded.
+     * @return subsampling factor. 1 if the image should be read in full size.
+     */
+    private int getSubsamplingFactor(int sourceWidth, int sourceHeight, int targetSize, int oversample) {
+        if (targetSize <= 0) {
+            return 1;
+        }
+        return Math.max(1, Math.max(sourceWidth, sourceHeight) / (targetSize * oversample));
+    }
+
     /**
      * Convert a tiff image to png.
      * Cannot convert a tiff stack!
@@ -72,4 +456,30 @@ public class ImageService {
         ImageIO.write(tif, "png", bos);
         return bos.toByteArray();
     }
+
+    /**
+     * Makes a placeholder of a small rendition of an image: the rendition as a png in a data URI, which the browser
+     * can show scaled up and blurred while the thumbnail loads.
+     * At this size png is smaller than JPEG, which spends most of its bytes on tables.
+     * Transparent pixels are drawn on white, so the placeholder has no alpha channel to store.
+     * @param renditionBytes small rendition of the image as byte array.
+     * @return placeholder as a data URI.
+     * @throws IOException if reading or writing the rendition fails.
+     * @throws IllegalArgumentException if the system has no reader for the rendition.
+     */
+    public String createPlaceholder(byte[] renditionBytes) throws IOException, IllegalArgumentException {
+        BufferedImage rendition = ImageIO.read(new ByteArrayInputStream(renditionBytes));
+        if (rendition == null) {
+            throw new IllegalArgumentException("Found no image reader for placeholder.");
+        }
+        BufferedImage rgb = new BufferedImage(rendition.getWidth(), rendition.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, rgb.getWidth(), rgb.getHeight());
+        graphics.drawImage(rendition, 0, 0, null);
+        graphics.dispose();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(rgb, "png", bos);
+        return "data:image/png;base64," + Base64.getEncoder().encodeToString(bos.toByteArray());
+    }
 }
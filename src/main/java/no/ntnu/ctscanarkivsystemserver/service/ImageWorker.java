@@ -0,0 +1,91 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+
+import java.io.*;
+
+/**
+ * Main class of an image worker process started by ImageWorkerPool.
+ * The worker reads jobs from stdin and writes results to stdout, one job at a time, until stdin is closed.
+ * Log output is written to stderr, since stdout is used by the protocol.
+ * <INFORMATION>
+ *     Request: int operation, UTF file type, int size, double window center, double window width (NaN if not given),
+ *     int quality (ordinal of ImageQuality), int length of image, image bytes.
+ *     Response: byte status. If status is OK: int length of result, result bytes. Else: UTF error message.
+ *     Status INVALID_IMAGE means the image can not be read, FAILED means any other error.
+ * </INFORMATION>
+ */
+public class ImageWorker {
+
+    static final int SCALE_IMAGE = 1;
+    static final int SCALE_GIF = 2;
+    static final int RENDER_DICOM = 3;
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_FAILED = 1;
+    static final byte STATUS_INVALID_IMAGE = 2;
+
+    private ImageWorker() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        System.setOut(System.err);
+        DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+        ImageService imageService = new ImageService();
+        DicomService dicomService = new DicomService(imageService);
+        while (true) {
+            int operation;
+            try {
+                operation = input.readInt();
+            } catch (EOFException e) {
+                //The server closed the pipe.
+                return;
+            }
+            String fileType = input.readUTF();
+            int size = input.readInt();
+            double windowCenter = input.readDouble();
+            double windowWidth = input.readDouble();
+            ImageQuality quality = ImageQuality.values()[input.readInt()];
+            byte[] imageBytes = new byte[input.readInt()];
+            input.readFully(imageBytes);
+            try {
+                byte[] result;
+                switch (operation) {
+                    case SCALE_IMAGE:
+                        result = imageService.scaleImage(imageBytes, fileType, size, quality);
+                        break;
+
+                    case SCALE_GIF:
+                        result = imageService.scaleGif(imageBytes, size, quality);
+                        break;
+
+                    case RENDER_DICOM:
+                        result = dicomService.renderPreview(imageBytes, size, Double.isNaN(windowCenter) ? null : windowCenter,
+                                Double.isNaN(windowWidth) ? null : windowWidth, quality);
+                        break;
+
+                    default:
+                        throw new IllegalArgumentException("Unknown image worker operation: " + operation);
+                }
+                imageBytes = null;
+                output.writeByte(STATUS_OK);
+                output.writeInt(result.length);
+                output.write(result);
+            } catch (OutOfMemoryError e) {
+                //The heap of the worker may be broken, so the worker stops and the pool starts a new one.
+                imageBytes = null;
+                output.writeByte(STATUS_FAILED);
+                output.writeUTF("Image worker ran out of memory.");
+                output.flush();
+                System.exit(1);
+            } catch (IllegalArgumentException e) {
+                output.writeByte(STATUS_INVALID_IMAGE);
+                output.writeUTF(String.valueOf(e.getMessage()));
+            } catch (Exception e) {
+                output.writeByte(STATUS_FAILED);
+                output.writeUTF(e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+            output.flush();
+        }
+    }
+}
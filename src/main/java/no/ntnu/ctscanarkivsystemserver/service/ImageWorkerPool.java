@@ -0,0 +1,338 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.config.ImageProcessingProperties;
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import org.imgscalr.Scalr;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs image decoding and scaling in a pool of local worker processes (ImageWorker), so a large or broken image
+ * can only run out of the heap of a worker and never out of the heap of the server.
+ * Each worker has its own heap limit. Workers take the next job when they are idle, and a worker which dies,
+ * runs out of memory or times out is replaced by a new one.
+ * If the pool is disabled (image.worker-processes=0) jobs run in this process. If workers are configured but can not
+ * be started, the server does not start, so a misconfigured pool is not silently replaced by decoding in the server.
+ * For the same reason, jobs fail if every worker has died and none can be restarted, instead of running in this process.
+ * When the server runs from the packaged war, workers are started from the war with the Spring Boot PropertiesLauncher.
+ */
+@Service
+public class ImageWorkerPool {
+
+    private static final String PROPERTIES_LAUNCHER = "org.springframework.boot.loader.PropertiesLauncher";
+    //Where classes and libraries are inside the packaged war.
+    private static final String PACKAGED_LOADER_PATH = "WEB-INF/classes,WEB-INF/lib,WEB-INF/lib-provided";
+
+    private final ImageService imageService;
+    private final DicomService dicomService;
+    private final BlockingQueue<WorkerProcess> idleWorkers = new LinkedBlockingQueue<>();
+    private final List<WorkerProcess> workers = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "image-worker-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final String maxHeap;
+    private final int timeoutSeconds;
+    //Arguments after the JVM options which start a worker: classpath and main class.
+    private final List<String> workerLaunchArguments;
+    //True if image.worker-processes is above 0. Does not change when workers die.
+    private final boolean enabled;
+    private volatile boolean shutdown;
+
+    @Autowired
+    public ImageWorkerPool(ImageProcessingProperties imageProcessingProperties, ImageService imageService, DicomService dicomService) {
+        this.imageService = imageService;
+        this.dicomService = dicomService;
+        this.maxHeap = imageProcessingProperties.getWorkerMaxHeap();
+        this.timeoutSeconds = imageProcessingProperties.getWorkerTimeoutSeconds();
+        int processes = imageProcessingProperties.getWorkerProcesses();
+        this.enabled = processes > 0;
+        this.workerLaunchArguments = enabled ? findLaunchArguments() : null;
+        if (enabled) {
+            for (int i = 0; i < processes; i++) {
+                try {
+                    WorkerProcess worker = startWorker();
+                    idleWorkers.add(worker);
+                } catch (IOException e) {
+                    System.out.println("Could not start image worker: " + e.getMessage());
+                }
+            }
+            if (idleWorkers.isEmpty()) {
+                throw new IllegalStateException("No image worker could be started. Set image.worker-processes=0 to decode images in the server.");
+            }
+            System.out.println("Started " + idleWorkers.size() + " image worker processes with max heap " + maxHeap);
+        }
+    }
+
+    /**
+     * Return true if jobs are run in worker processes.
+     * @return true if worker processes are configured, also when none of them is running.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Scales an image, see ImageService.scaleImage.
+     * @param imageBytes Image to scale as byte array.
+     * @param imageFileType File type of the image.
+     * @param width Width to return image as.
+     * @param quality How much work is spent on scaling.
+     * @return Scaled image as byte array.
+     * @throws IOException If reading image fails or the worker failed.
+     * @throws IllegalArgumentException If the system has no reader for the image.
+     */
+    public byte[] scaleImage(byte[] imageBytes, String imageFileType, int width, ImageQuality quality)
+            throws IOException, IllegalArgumentException {
+        if (!isEnabled()) {
+            return imageService.scaleImage(imageBytes, imageFileType, width, quality);
+        }
+        return run(ImageWorker.SCALE_IMAGE, imageBytes, imageFileType, width, null, null, quality);
+    }
+
+    /**
+     * Scales every frame of a gif, see ImageService.scaleGif.
+     * @param gifBytes Gif to scale as byte array.
+     * @param width Size of the longest side of the scaled gif.
+     * @param quality How much work is spent on scaling each frame.
+     * @return Scaled gif as byte array.
+     * @throws IOException If reading or writing the gif fails or the worker failed.
+     */
+    public byte[] scaleGif(byte[] gifBytes, int width, ImageQuality quality) throws IOException {
+        if (!isEnabled()) {
+            return imageService.scaleGif(gifBytes, width, quality);
+        }
+        return run(ImageWorker.SCALE_GIF, gifBytes, "gif", width, null, null, quality);
+    }
+
+    /**
+     * Renders a DICOM file as a png, see DicomService.renderPreview.
+     * @param dicomBytes content of DICOM file.
+     * @param size Size of returned image. If 0 image will be returned in original size.
+     * @param windowCenter center of window in modality units. If null the window in the file is used.
+     * @param windowWidth width of window in modality units. If null the window in the file is used.
+     * @param quality how much work is spent on scaling.
+     * @return png as byte array.
+     * @throws IOException if the file is not a valid DICOM file or the worker failed.
+     */
+    public byte[] renderDicom(byte[] dicomBytes, int size, Double windowCenter, Double windowWidth, ImageQuality quality)
+            throws IOException {
+        if (!isEnabled()) {
+            return dicomService.renderPreview(dicomBytes, size, windowCenter, windowWidth, quality);
+        }
+        return run(ImageWorker.RENDER_DICOM, dicomBytes, "png", size, windowCenter, windowWidth, quality);
+    }
+
+    /**
+     * Runs a job on the next idle worker.
+     * @return result of job.
+     * @throws IOException if the job failed or the worker died.
+     * @throws IllegalArgumentException if the worker could not read the image.
+     */
+    private byte[] run(int operation, byte[] imageBytes, String fileType, int size, Double windowCenter,
+                       Double windowWidth, ImageQuality quality) throws IOException, IllegalArgumentException {
+        startWorkerIfNoneRunning();
+        WorkerProcess worker;
+        try {
+            worker = idleWorkers.poll(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an image worker.", e);
+        }
+        if (worker == null) {
+            throw new IOException("No image worker was available within " + timeoutSeconds + " seconds.");
+        }
+        boolean healthy = false;
+        ScheduledFuture<?> timeout = watchdog.schedule(worker::kill, timeoutSeconds, TimeUnit.SECONDS);
+        try {
+            DataOutputStream output = worker.output;
+            output.writeInt(operation);
+            output.writeUTF(fileType);
+            output.writeInt(size);
+            output.writeDouble(windowCenter == null ? Double.NaN : windowCenter);
+            output.writeDouble(windowWidth == null ? Double.NaN : windowWidth);
+            output.writeInt(quality.ordinal());
+            output.writeInt(imageBytes.length);
+            output.write(imageBytes);
+            output.flush();
+            byte status = worker.input.readByte();
+            byte[] result = null;
+            String message = null;
+            if (status == ImageWorker.STATUS_OK) {
+                result = new byte[worker.input.readInt()];
+                worker.input.readFully(result);
+            } else {
+                message = worker.input.readUTF();
+            }
+            //The whole response is read, so the worker is ready for the next job.
+            healthy = true;
+            if (result != null) {
+                return result;
+            } else if (status == ImageWorker.STATUS_INVALID_IMAGE) {
+                throw new IllegalArgumentException(message);
+            }
+            throw new IOException("Image worker failed: " + message);
+        } catch (EOFException e) {
+            throw new IOException("Image worker stopped while processing image.", e);
+        } finally {
+            timeout.cancel(false);
+            if (healthy && worker.process.isAlive()) {
+                idleWorkers.add(worker);
+            } else {
+                replaceWorker(worker);
+            }
+        }
+    }
+
+    /**
+     * Kills a worker which died or is in an unknown state, and starts a new one.
+     * @param worker worker to replace.
+     */
+    private void replaceWorker(WorkerProcess worker) {
+        worker.kill();
+        workers.remove(worker);
+        if (shutdown) {
+            return;
+        }
+        try {
+            idleWorkers.add(startWorker());
+            System.out.println("Restarted image worker.");
+        } catch (IOException e) {
+            System.out.println("Could not restart image worker: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts a worker if every worker has died and could not be restarted, so the pool recovers when workers can be
+     * started again.
+     * @throws IOException if no worker is running and a new one could not be started.
+     */
+    private synchronized void startWorkerIfNoneRunning() throws IOException {
+        if (!workers.isEmpty()) {
+            return;
+        }
+        if (shutdown) {
+            throw new IOException("Image workers are shut down.");
+        }
+        try {
+            idleWorkers.add(startWorker());
+            System.out.println("Restarted image worker.");
+        } catch (IOException e) {
+            throw new IOException("No image worker is running and a new one could not be started: " + e.getMessage(), e);
+        }
+    }
+
+    private WorkerProcess startWorker() throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> command = new ArrayList<>(Arrays.asList(java, "-Xmx" + maxHeap, "-XX:+ExitOnOutOfMemoryError",
+                "-Djava.awt.headless=true"));
+        command.addAll(workerLaunchArguments);
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        WorkerProcess worker = new WorkerProcess(process);
+        workers.add(worker);
+        return worker;
+    }
+
+    /**
+     * Finds how to start a worker.
+     * When the classes are local files, as when running from an IDE or with exploded classes, the worker main class
+     * is started with the classes of the server, Scalr and all image reader plugins as classpath.
+     * When they are in the packaged war, the war is started with PropertiesLauncher and the worker as main class,
+     * which reads the classes and libraries inside the war.
+     * @return arguments after the JVM options.
+     * @throws IllegalStateException if the classes are neither local files nor in a local war or jar.
+     */
+    private List<String> findLaunchArguments() throws IllegalStateException {
+        Set<String> locations = new LinkedHashSet<>();
+        List<Class<?>> classes = new ArrayList<>(Arrays.asList(ImageWorker.class, Scalr.class));
+        Iterator<ImageReaderSpi> readers = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, false);
+        while (readers.hasNext()) {
+            classes.add(readers.next().getClass());
+        }
+        for (Class<?> workerClass : classes) {
+            CodeSource codeSource = workerClass.getProtectionDomain().getCodeSource();
+            if (codeSource == null) {
+                //Classes of the JDK.
+                continue;
+            }
+            URL location = codeSource.getLocation();
+            if (!"file".equals(location.getProtocol())) {
+                return Arrays.asList("-cp", findPackagedArchive(location),
+                        "-Dloader.main=" + ImageWorker.class.getName(),
+                        "-Dloader.path=" + PACKAGED_LOADER_PATH,
+                        PROPERTIES_LAUNCHER);
+            }
+            try {
+                locations.add(Paths.get(location.toURI()).toString());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                throw new IllegalStateException("Image workers can not be started, classpath can not be found: " + location, e);
+            }
+        }
+        return Arrays.asList("-cp", String.join(File.pathSeparator, locations), ImageWorker.class.getName());
+    }
+
+    /**
+     * Finds the war or jar the server runs from, from the location of a class inside it,
+     * like jar:file:/app/server.war!/WEB-INF/classes!/.
+     * @param location location of a class in the archive.
+     * @return path of the archive.
+     * @throws IllegalStateException if the location is not inside a local archive.
+     */
+    private static String findPackagedArchive(URL location) throws IllegalStateException {
+        String url = location.toString();
+        int separator = url.indexOf("!/");
+        if (url.startsWith("jar:") && separator > 0) {
+            try {
+                URL archive = new URL(url.substring("jar:".length(), separator));
+                if ("file".equals(archive.getProtocol())) {
+                    return Paths.get(archive.toURI()).toString();
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                throw new IllegalStateException("Image workers can not be started, archive can not be found: " + location, e);
+            }
+        }
+        throw new IllegalStateException("Image workers can not be started, classes are not in a local archive: " + location);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shutdown = true;
+        watchdog.shutdownNow();
+        for (WorkerProcess worker : workers) {
+            worker.kill();
+        }
+    }
+
+    /**
+     * A worker process and its pipes.
+     */
+    private static class WorkerProcess {
+        private final Process process;
+        private final DataOutputStream output;
+        private final DataInputStream input;
+
+        WorkerProcess(Process process) {
+            this.process = process;
+            this.output = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.input = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        void kill() {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.ImageQuality;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.annotation.PreDestroy;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class makes the placeholders of images, tiny previews which file listings show while the thumbnails load.
+ * Placeholders are made when files are uploaded, or by crawling a sub project folder for images without one.
+ * Placeholders of uploaded images are made in the background from the uploaded bytes, so the upload does not wait
+ * for them and the files are not read back from the file server.
+ * Raw volumes get no placeholder, since they are not images which can be scaled and can be many GB.
+ */
+@Service
+public class PlaceholderService {
+
+    //Longest side of a placeholder in pixels.
+    private static final int PLACEHOLDER_SIZE = 16;
+    //Most bytes of uploaded images waiting for a placeholder. Images which do not fit are skipped,
+    //and can be given a placeholder later by crawling their sub project folder.
+    private static final long MAX_QUEUED_UPLOAD_BYTES = 256L * 1024 * 1024;
+
+    private final AtomicLong queuedUploadBytes = new AtomicLong();
+    private final ExecutorService uploadPlaceholderExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-placeholders");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileService fileService;
+    private final FileStorageService fileStorageService;
+    private final ImageService imageService;
+
+    @Autowired
+    public PlaceholderService(FileService fileService, FileStorageService fileStorageService, ImageService imageService) {
+        this.fileService = fileService;
+        this.fileStorageService = fileStorageService;
+        this.imageService = imageService;
+    }
+
+    /**
+     * Starts making placeholders of uploaded images in the background.
+     * An image without a placeholder is skipped, since the file itself is already stored.
+     * @param files uploaded files.
+     * @param notAddedFiles names of files which were not stored.
+     * @param project project files were uploaded to.
+     * @param subFolder sub project folder files were uploaded to.
+     * @return number of placeholders which will be made.
+     */
+    public int createUploadedPlaceholders(MultipartFile[] files, List<String> notAddedFiles, Project project, String subFolder) {
+        int queued = 0;
+        for(MultipartFile file:files) {
+            String fileName = file == null ? null : file.getOriginalFilename();
+            if(fileName != null && canHavePlaceholder(fileName) && !notAddedFiles.contains(fileName)
+                    && queueUploadedPlaceholder(file, fileName, project, subFolder)) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Queues making the placeholder of an uploaded image, if there is room for its bytes.
+     * The bytes are read now, since the uploaded file is deleted when the request ends.
+     * @param file uploaded image.
+     * @param fileName name of image including file type.
+     * @param project project image was uploaded to.
+     * @param subFolder sub project folder image was uploaded to.
+     * @return true if the placeholder was queued.
+     */
+    private boolean queueUploadedPlaceholder(MultipartFile file, String fileName, Project project, String subFolder) {
+        long size = file.getSize();
+        if(queuedUploadBytes.addAndGet(size) > MAX_QUEUED_UPLOAD_BYTES) {
+            queuedUploadBytes.addAndGet(-size);
+            System.out.println("Placeholder queue is full, no placeholder is made of " + fileName);
+            return false;
+        }
+        try {
+            byte[] imageBytes = file.getBytes();
+            uploadPlaceholderExecutor.execute(() -> {
+                try {
+                    createPlaceholder(fileName, project, subFolder,
+                            () -> fileStorageService.scaleImageBytes(fileName, imageBytes, PLACEHOLDER_SIZE, ImageQuality.FAST));
+                } finally {
+                    queuedUploadBytes.addAndGet(-size);
+                }
+            });
+            return true;
+        } catch (IOException | RejectedExecutionException e) {
+            queuedUploadBytes.addAndGet(-size);
+            System.out.println("Could not queue placeholder of " + fileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Makes placeholders of all images in a sub project folder which do not have one yet.
+     * @param project project to make placeholders in.
+     * @param subFolder sub project folder to make placeholders in.
+     * @return number of placeholders made.
+     * @throws FileNotFoundException if sub project folder was not found.
+     * @throws FileStorageException if getting file names from the file server failed.
+     */
+    public int createSubFolderPlaceholders(Project project, String subFolder) throws FileNotFoundException, FileStorageException {
+        Set<String> fileNamesWithPlaceholder = fileService.getFileNamesWithPlaceholder(project.getProjectId(), subFolder);
+        int created = 0;
+        for(String fileName:fileStorageService.getAllFileNames("all", project, subFolder)) {
+            if(canHavePlaceholder(fileName) && !fileNamesWithPlaceholder.contains(fileName)
+                    && createPlaceholder(fileName, project, subFolder, () -> fileStorageService.getImageRendition(fileName,
+                    project, subFolder, PLACEHOLDER_SIZE, null, null, ImageQuality.FAST).getBytes())) {
+                created++;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * Returns true if a placeholder can be made of a file: it is an image, and not a raw volume.
+     * @param fileName name of file including file type.
+     * @return true if file can have a placeholder.
+     */
+    private boolean canHavePlaceholder(String fileName) {
+        return imageService.isFileAnImage(fileName) && !fileName.toLowerCase().endsWith(".raw");
+    }
+
+    /**
+     * Makes and saves the placeholder of an image. The image is scaled with fast quality, since the placeholder
+     * is blurred anyway, and JPEG and TIFF files are scaled from their embedded preview if they have one.
+     * @param fileName name of image including file type.
+     * @param project project image is in.
+     * @param subFolder sub project folder image is in.
+     * @param rendition makes a small rendition of the image.
+     * @return true if the placeholder was saved.
+     */
+    private boolean createPlaceholder(String fileName, Project project, String subFolder, RenditionSource rendition) {
+        try {
+            return fileService.setPlaceholder(fileName, subFolder, project, imageService.createPlaceholder(rendition.get())) != null;
+        } catch (IOException | FileStorageException | IllegalArgumentException | ImageProcessingRejectedException e) {
+            System.out.println("Could not make placeholder of " + fileName + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        uploadPlaceholderExecutor.shutdownNow();
+    }
+
+    /**
+     * Makes the small rendition a placeholder is made of.
+     */
+    private interface RenditionSource {
+        byte[] get() throws IOException, FileStorageException, ImageProcessingRejectedException;
+    }
+}
@@ -1,6 +1,10 @@
 package no.ntnu.ctscanarkivsystemserver.service;
 
+import no.ntnu.ctscanarkivsystemserver.config.PaginationProperties;
+import no.ntnu.ctscanarkivsystemserver.config.SearchProperties;
+import no.ntnu.ctscanarkivsystemserver.dao.ProjectAccessDao;
 import no.ntnu.ctscanarkivsystemserver.dao.ProjectDao;
+import no.ntnu.ctscanarkivsystemserver.dao.ProjectSearchDao;
 import no.ntnu.ctscanarkivsystemserver.dao.UserDao;
 import no.ntnu.ctscanarkivsystemserver.exception.*;
 import no.ntnu.ctscanarkivsystemserver.model.*;
@@ -8,6 +12,8 @@ import no.ntnu.ctscanarkivsystemserver.model.database.Project;
 import no.ntnu.ctscanarkivsystemserver.model.database.Role;
 import no.ntnu.ctscanarkivsystemserver.model.database.Tag;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import no.ntnu.ctscanarkivsystemserver.util.PageCursor;
+import no.ntnu.ctscanarkivsystemserver.util.ProjectSearchIndex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Service;
@@ -31,15 +37,28 @@ public class ProjectService {
     private final UserDao userDao;
     private final FileService fileService;
     private final FileStorageService fileStorageService;
+    private final ProjectSearchDao projectSearchDao;
+    private final ProjectSearchIndex projectSearchIndex;
+    private final boolean isSearchInDatabase;
+    private final PaginationProperties paginationProperties;
+    private final ProjectAccessDao projectAccessDao;
 
     @Autowired
     public ProjectService(@Qualifier("projectDaoRepository") ProjectDao projectDao,
                           @Qualifier("postgreSQL") UserDao userDao,
-                          FileService fileService, FileStorageService fileStorageService) {
+                          FileService fileService, FileStorageService fileStorageService,
+                          ProjectSearchDao projectSearchDao, ProjectSearchIndex projectSearchIndex,
+                          SearchProperties searchProperties, PaginationProperties paginationProperties,
+                          ProjectAccessDao projectAccessDao) {
         this.projectDao = projectDao;
         this.userDao = userDao;
         this.fileService = fileService;
         this.fileStorageService = fileStorageService;
+        this.projectSearchDao = projectSearchDao;
+        this.projectSearchIndex = projectSearchIndex;
+        this.isSearchInDatabase = searchProperties.isDatabaseEngine();
+        this.paginationProperties = paginationProperties;
+        this.projectAccessDao = projectAccessDao;
     }
 
     /**
@@ -72,12 +91,12 @@ public class ProjectService {
             throw new NullPointerException("ERROR: projectDto is null");
         }
         Project projectToDelete = projectDao.getProjectById(projectDto.getProjectId());
+        if (projectToDelete == null) {
+            throw new ProjectNotFoundException(projectDto.getProjectId());
+        }
         if (!userIsOwnerOrAdmin(projectToDelete, user)) {
             throw new ForbiddenException("The logged on user is not allowed to delete projects");
         }
-        if (!projectDao.doesProjectExist(projectDto.getProjectId())) {
-            throw new ProjectNotFoundException(projectDto.getProjectId());
-        }
 
         return projectDao.deleteProject(projectToDelete);
     }
@@ -90,6 +109,44 @@ public class ProjectService {
         return projectDao.getAllProjects();
     }
 
+    /**
+     * Gets all projects as list items, with only what lists of projects show.
+     * @return list items of all projects sorted by name.
+     */
+    public List<ProjectListItem> getAllProjectItems() {
+        return projectDao.getAllProjectItems();
+    }
+
+    /**
+     * Gets all projects a tag is used in as list items.
+     * @param tagName name of tag.
+     * @return list items of projects sorted by name.
+     */
+    public List<ProjectListItem> getProjectItemsOfTag(String tagName) {
+        return projectDao.getProjectItemsOfTag(tagName);
+    }
+
+    /**
+     * Gets a page of projects as list items sorted by name.
+     * @param cursor cursor of the page to get, from the previous page. Null for the first page.
+     * @param limit max number of projects on the page. Null for the default page size.
+     * @return page of projects.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public ResultPage<ProjectListItem> getProjectsPage(String cursor, Integer limit) throws IllegalArgumentException {
+        int pageSize = paginationProperties.getPageSize(limit);
+        String[] after = PageCursor.decode(cursor, 2);
+        //One more project than the page size is read to know if there is a next page.
+        List<ProjectListItem> projects = after == null ? projectDao.getProjectsPage(null, null, pageSize + 1)
+                : projectDao.getProjectsPage(after[0], UUID.fromString(after[1]), pageSize + 1);
+        if(projects.size() <= pageSize) {
+            return new ResultPage<>(projects, null);
+        }
+        projects = new ArrayList<>(projects.subList(0, pageSize));
+        ProjectListItem last = projects.get(pageSize - 1);
+        return new ResultPage<>(projects, PageCursor.encode(last.getProjectName(), last.getProjectId()));
+    }
+
     /**
      * Method for returning a specific project
      * @param projectId UUID of the project
@@ -97,11 +154,10 @@ public class ProjectService {
      * @throws ProjectNotFoundException If no project with this UUID exists
      */
     public Project getProject(UUID projectId) throws ProjectNotFoundException {
-        if (projectDao.doesProjectExist(projectId)) {
-            return projectDao.getProjectById(projectId);
-        } else {
+        if (projectId == null) {
             throw new ProjectNotFoundException(projectId);
         }
+        return projectDao.getProjectById(projectId);
     }
 
     /**
@@ -123,14 +179,10 @@ public class ProjectService {
         UUID projectId = projectDto.getProjectId();
         UUID newOwnerId = projectDto.getUserId();
         User newOwner = userDao.getUserById(newOwnerId);
-        Project projectToEdit = projectDao.getProjectById(projectId);
+        Project projectToEdit = getProject(projectId);
         User oldOwner = projectToEdit.getOwner();
 
-        if (!projectDao.doesProjectExist(projectId)) {
-            System.out.println("ERROR: This project does not exist.");
-            throw new ProjectNotFoundException(projectId);
-        }
-        else if (newOwner == null) {
+        if (newOwner == null) {
             System.out.println("ERROR: User does not exist");
             throw new UserNotFoundException(newOwnerId);
         }
@@ -214,18 +266,18 @@ public class ProjectService {
      */
     public boolean grantSpecialPermission(UUID projectId, String userEmail, User loggedInUser) throws ProjectNotFoundException,
             UserNotFoundException, ForbiddenException, IllegalArgumentException {
-        if (!projectDao.doesProjectExist(projectId)) {
-            throw new ProjectNotFoundException(projectId);
-        } else if (userDao.getUserByEmail(userEmail) == null) {
+        Project project = getProject(projectId);
+        User user = userDao.getUserByEmail(userEmail);
+        if (user == null) {
             throw new UserNotFoundException(userEmail);
-        } else if (projectDao.getProjectById(projectId).getUsersWithSpecialPermission().contains(userDao.getUserByEmail(userEmail))) {
+        } else if (project.getUsersWithSpecialPermission().contains(user)) {
             throw new IllegalArgumentException("User " + userEmail + " already has special permission for this project");
         }
         else {
-            if (!isUserPermittedToChangeProject(projectDao.getProjectById(projectId), loggedInUser)) {
+            if (!isUserPermittedToChangeProject(project, loggedInUser)) {
                 throw new ForbiddenException("User is not allowed to grant special permissions");
             }
-            return projectDao.grantSpecialPermission(projectDao.getProjectById(projectId), userDao.getUserByEmail(userEmail));
+            return projectDao.grantSpecialPermission(project, user);
         }
     }
 
@@ -242,17 +294,17 @@ public class ProjectService {
      */
     public boolean revokeSpecialPermission(UUID projectId, String userEmail, User loggedInUser) throws ProjectNotFoundException,
             UserNotFoundException, ForbiddenException, IllegalArgumentException {
-        if (!projectDao.doesProjectExist(projectId)) {
-            throw new ProjectNotFoundException(projectId);
-        } else if (userDao.getUserByEmail(userEmail) == null) {
+        Project project = getProject(projectId);
+        User user = userDao.getUserByEmail(userEmail);
+        if (user == null) {
             throw new UserNotFoundException(userEmail);
-        } else if (!projectDao.getProjectById(projectId).getUsersWithSpecialPermission().contains(userDao.getUserByEmail(userEmail))) {
+        } else if (!project.getUsersWithSpecialPermission().contains(user)) {
             throw new IllegalArgumentException("User " + userEmail + " does not have special permission for this project");
         } else {
-            if (!isUserPermittedToChangeProject(projectDao.getProjectById(projectId), loggedInUser)) {
+            if (!isUserPermittedToChangeProject(project, loggedInUser)) {
                 throw new ForbiddenException("User is not allowed to grant special permissions");
             }
-            return projectDao.revokeSpecialPermission(projectDao.getProjectById(projectId), userDao.getUserByEmail(userEmail));
+            return projectDao.revokeSpecialPermission(project, user);
         }
     }
 
@@ -298,7 +350,7 @@ public class ProjectService {
      * @return True if he has special permissions, false otherwise
      */
     public boolean hasSpecialPermission(Project project, User newOwner) {
-        return project.getUsersWithSpecialPermission().contains(newOwner);
+        return projectAccessDao.hasSpecialPermission(project, newOwner);
     }
 
     /**
@@ -367,24 +419,18 @@ public class ProjectService {
      * @return true if user is permitted to do changes.
      */
     public boolean isUserPermittedToChangeProject(Project project, User user) {
-        return project.getOwner().equals(user) ||
-               isUserMember(project, user) ||
-               user.getRoles().get(0).getRoleName().equals("ROLE_" + Role.ADMIN);
+        return projectAccessDao.isPermittedToChange(project, user);
     }
 
     /**
-     * Returns true if user is a member of project.
+     * Checks if a user is permitted to see the files of a project. That is if the project is public,
+     * the user has special permission or the user is permitted to change the project.
      * @param project project to check.
      * @param user user to check.
-     * @return true if user is a member of project.
+     * @return true if user is permitted to see the project.
      */
-    private boolean isUserMember(Project project, User user) {
-        for(User userInProject:project.getProjectMembers()) {
-            if(userInProject.equals(user)) {
-                return true;
-            }
-        }
-        return false;
+    public boolean isUserPermittedToSeeProject(Project project, User user) {
+        return projectAccessDao.isPermittedToSee(project, user);
     }
 
     /**
@@ -430,6 +476,8 @@ public class ProjectService {
     /**
      * Search thought all projects for name, description, owner and members (first name, last name, email),
      * project tags, file tags and file names if they contain the search word.
+     * If search.engine is database the search documents in the database are searched, ranked by how well they match.
+     * If search.engine is memory the index in the server is searched once it is loaded or built.
      * @param searchWord word to use to search for in projects.
      * @return map of all projects where at least one search result was ture in, and a String with information
      * about where each place in the project search result was found in.
@@ -437,6 +485,17 @@ public class ProjectService {
      * @throws ProjectNotFoundException if no project was found in the database.
      */
     public List<ProjectSearchResult> searchForProject(String searchWord, List<Tag> tagFilter) throws IllegalArgumentException, ProjectNotFoundException {
+        boolean isSearchInIndex = projectSearchIndex.isEnabled() && projectSearchIndex.isLoaded();
+        if(isSearchInDatabase || isSearchInIndex) {
+            if(searchWord == null) {
+                throw new IllegalArgumentException("Search word cannot be null or empty!");
+            }
+            List<String> tagNames = tagFilter == null ? Collections.emptyList()
+                    : tagFilter.stream().map(Tag::getTagName).collect(Collectors.toList());
+            String date = convertDate(searchWord.toLowerCase());
+            return isSearchInDatabase ? projectSearchDao.search(searchWord, date, tagNames)
+                    : projectSearchIndex.search(searchWord, date, tagNames);
+        }
         List<Project> allProjects = projectDao.getAllProjects();
         if(tagFilter != null && !tagFilter.isEmpty()) {
             allProjects.removeIf(project -> !doesProjectContainTags(project, tagFilter));
@@ -459,6 +518,43 @@ public class ProjectService {
         return searchResult;
     }
 
+    /**
+     * Gets a page of the results of a search, see searchForProject.
+     * Unlike the other listings this is offset pagination: every page runs the whole search and takes a slice of
+     * the ranked results, so with search.engine java every page still walks all projects.
+     * The cursor holds the position and id of the last result of the previous page. If that result moved since,
+     * the next page starts after it, else at the position.
+     * @param searchWord word to use to search for in projects.
+     * @param tagFilter tags a project must have all of.
+     * @param cursor cursor of the page to get, from the previous page. Null for the first page.
+     * @param limit max number of results on the page. Null for the default page size.
+     * @return page of search results.
+     * @throws IllegalArgumentException if search word is empty or the cursor is not valid.
+     * @throws ProjectNotFoundException if no project was found in the database.
+     */
+    public ResultPage<ProjectSearchResult> searchForProjectPage(String searchWord, List<Tag> tagFilter, String cursor, Integer limit)
+            throws IllegalArgumentException, ProjectNotFoundException {
+        int pageSize = paginationProperties.getPageSize(limit);
+        String[] after = PageCursor.decode(cursor, 2);
+        List<ProjectSearchResult> searchResult = searchForProject(searchWord, tagFilter);
+        int start = 0;
+        if(after != null) {
+            start = Integer.parseInt(after[0]);
+            UUID lastProjectId = UUID.fromString(after[1]);
+            for(int i = 0; i < searchResult.size(); i++) {
+                if(searchResult.get(i).getProjectId().equals(lastProjectId)) {
+                    start = i + 1;
+                    break;
+                }
+            }
+        }
+        start = Math.max(0, Math.min(start, searchResult.size()));
+        int end = Math.min(start + pageSize, searchResult.size());
+        List<ProjectSearchResult> page = new ArrayList<>(searchResult.subList(start, end));
+        String nextCursor = end < searchResult.size() ? PageCursor.encode(end, page.get(page.size() - 1).getProjectId()) : null;
+        return new ResultPage<>(page, nextCursor);
+    }
+
     /**
      * Checks if a project contains all tags in filter
      * @param project project to see if contain tags.
@@ -622,7 +718,7 @@ public class ProjectService {
      * @return List of all projects the user owns or are member of without duplicates.
      * @throws IllegalArgumentException If userId is null.
      */
-    public List<Project> getMyProjects(UUID userId) throws IllegalArgumentException {
+    public List<ProjectListItem> getMyProjects(UUID userId) throws IllegalArgumentException {
         if(userId == null) {
             throw new IllegalArgumentException("UserId cannot be null!");
         } else {
@@ -0,0 +1,386 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectionRequest;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectionType;
+import no.ntnu.ctscanarkivsystemserver.model.RawVolumeFormat;
+import no.ntnu.ctscanarkivsystemserver.model.ReslicePlane;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.util.Volume;
+import org.imgscalr.Scalr;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * This class makes maximum, minimum and average intensity projections of CT volumes.
+ * The volume is read slice by slice from the memory-mapped volume file and reduced on the volume pool.
+ * Projections are stored in the local volume cache directory next to the volumes of the sub-project, so a projection
+ * is only computed once even if it is rendered with many sizes and windows. Stored projections count against the
+ * limit of the volume cache and are removed with it, least recently used first.
+ */
+@Service
+public class ProjectionService {
+
+    //Each fork/join task projects at least this many slices before it stops splitting.
+    private static final int MIN_SLICES_PER_TASK = 8;
+
+    private final VolumeService volumeService;
+    private final ImageService imageService;
+    private final ImageProcessingExecutor imageProcessingExecutor;
+    private final RenditionCache renditionCache;
+
+    @Autowired
+    public ProjectionService(VolumeService volumeService, ImageService imageService,
+                             ImageProcessingExecutor imageProcessingExecutor, RenditionCache renditionCache) {
+        this.volumeService = volumeService;
+        this.imageService = imageService;
+        this.imageProcessingExecutor = imageProcessingExecutor;
+        this.renditionCache = renditionCache;
+    }
+
+    /**
+     * Makes an image of a projection of a volume.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param request which volume and projection to render.
+     * @param rawFormat format of a raw volume. Values not given are read from the .mhd sidecar of the raw file.
+     * @return png of the projection.
+     * @throws IOException if the volume could not be read.
+     * @throws FileStorageException if getting files from the file server failed.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     * @throws IllegalArgumentException if type or plane is not valid.
+     */
+    public byte[] renderProjection(Project project, String subFolder, ProjectionRequest request, RawVolumeFormat rawFormat)
+            throws IOException, FileStorageException, ImageProcessingRejectedException, IllegalArgumentException {
+        ProjectionType type = ProjectionType.valueOf(request.getType().trim().toUpperCase());
+        ReslicePlane plane = ReslicePlane.valueOf(request.getPlane().trim().toUpperCase());
+        if (plane == ReslicePlane.OBLIQUE) {
+            throw new IllegalArgumentException("Projections can only be made in the axial, coronal or sagittal plane.");
+        }
+        String fileName = request.getFileName();
+        if (volumeService.isRawVolume(fileName)) {
+            rawFormat = volumeService.getRawVolumeFormat(project, subFolder, fileName, rawFormat);
+        }
+        String volumeKey = volumeService.getVolumeKey(project, subFolder, fileName, rawFormat);
+        String projectionKey = volumeKey + "?type=" + type + "&plane=" + plane;
+        String renditionKey = "projection:" + projectionKey + "&size=" + request.getSize()
+                + "&wmin=" + request.getWindowMin() + "&wmax=" + request.getWindowMax();
+        byte[] rendition = renditionCache.get(renditionKey);
+        if (rendition != null) {
+            return rendition;
+        }
+        Path projectionFile = getProjectionFile(project, subFolder, projectionKey);
+        Projection projection = readProjection(projectionFile);
+        if (projection == null) {
+            Volume volume = volumeService.getVolume(volumeKey, project, subFolder, fileName, rawFormat);
+            long estimatedBytes = (long) volume.getWidth() * Math.max(volume.getHeight(), volume.getDepth()) * 4
+                    * (Runtime.getRuntime().availableProcessors() + 1);
+            projection = imageProcessingExecutor.execute(() -> project(volume, type, plane), estimatedBytes,
+                    ImageProcessingExecutor.getPriority(request.getSize()));
+            if (writeProjection(projectionFile, projection)) {
+                volumeService.cacheFile("projection:" + projectionKey, projectionFile);
+            }
+        } else {
+            //Also counts projections stored before a restart, which the cache does not know yet.
+            volumeService.cacheFile("projection:" + projectionKey, projectionFile);
+        }
+        Projection finalProjection = projection;
+        rendition = imageProcessingExecutor.execute(() -> imageService.writeImage(toImage(finalProjection,
+                request.getWindowMin(), request.getWindowMax()), "png", request.getSize()),
+                (long) projection.width * projection.height * 6, ImageProcessingExecutor.getPriority(request.getSize()));
+        renditionCache.put(renditionKey, rendition);
+        return rendition;
+    }
+
+    /**
+     * Projects a volume along the axis normal to the plane.
+     * @param volume volume to project.
+     * @param type how voxels along the axis are reduced.
+     * @param plane plane the projection is shown in.
+     * @return the projection.
+     * @throws IOException if interrupted.
+     */
+    private Projection project(Volume volume, ProjectionType type, ReslicePlane plane) throws IOException {
+        int width = volume.getWidth();
+        int height = volume.getHeight();
+        int depth = volume.getDepth();
+        if (plane == ReslicePlane.AXIAL) {
+            int slicesPerTask = Math.max(MIN_SLICES_PER_TASK, depth / (Runtime.getRuntime().availableProcessors() * 4));
+            float[] values = volumeService.runInVolumePool(new AxialProjectionTask(volume, type, 0, depth, slicesPerTask));
+            if (type == ProjectionType.AVERAGE) {
+                divide(values, depth);
+            }
+            return new Projection(width, height, volume.getSpacingX(), volume.getSpacingY(), values);
+        }
+        //Each slice is one row of a coronal or sagittal projection, so slices can be projected independently.
+        boolean coronal = plane == ReslicePlane.CORONAL;
+        int projectionWidth = coronal ? width : height;
+        float[] values = new float[projectionWidth * depth];
+        volumeService.runInVolumePool(() -> IntStream.range(0, depth).parallel().forEach(z -> {
+            float[] row = new float[width];
+            int offset = z * projectionWidth;
+            if (coronal) {
+                Arrays.fill(values, offset, offset + width, getInitialValue(type));
+                for (int y = 0; y < height; y++) {
+                    volume.readRow(y, z, row);
+                    combine(type, values, offset, row, width);
+                }
+            } else {
+                for (int y = 0; y < height; y++) {
+                    volume.readRow(y, z, row);
+                    values[offset + y] = reduce(type, row);
+                }
+            }
+        }));
+        if (type == ProjectionType.AVERAGE) {
+            divide(values, coronal ? height : width);
+        }
+        return new Projection(projectionWidth, depth, coronal ? volume.getSpacingX() : volume.getSpacingY(),
+                volume.getSpacingZ(), values);
+    }
+
+    private static float getInitialValue(ProjectionType type) {
+        switch (type) {
+            case MIP:
+                return Float.NEGATIVE_INFINITY;
+            case MINIP:
+                return Float.POSITIVE_INFINITY;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Combines values into an accumulator, element by element.
+     * @param type how values are combined.
+     * @param accumulator accumulator to combine into.
+     * @param offset index in accumulator of the first value.
+     * @param values values to combine.
+     * @param length number of values to combine.
+     */
+    private static void combine(ProjectionType type, float[] accumulator, int offset, float[] values, int length) {
+        switch (type) {
+            case MIP:
+                for (int i = 0; i < length; i++) {
+                    if (values[i] > accumulator[offset + i]) {
+                        accumulator[offset + i] = values[i];
+                    }
+                }
+                break;
+
+            case MINIP:
+                for (int i = 0; i < length; i++) {
+                    if (values[i] < accumulator[offset + i]) {
+                        accumulator[offset + i] = values[i];
+                    }
+                }
+                break;
+
+            default:
+                for (int i = 0; i < length; i++) {
+                    accumulator[offset + i] += values[i];
+                }
+        }
+    }
+
+    /**
+     * Reduces a row of values to one value.
+     * @param type how values are reduced.
+     * @param values values to reduce.
+     * @return max, min or sum of values.
+     */
+    private static float reduce(ProjectionType type, float[] values) {
+        float result = getInitialValue(type);
+        for (float value : values) {
+            switch (type) {
+                case MIP:
+                    result = Math.max(result, value);
+                    break;
+                case MINIP:
+                    result = Math.min(result, value);
+                    break;
+                default:
+                    result += value;
+            }
+        }
+        return result;
+    }
+
+    private static void divide(float[] values, int count) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] /= count;
+        }
+    }
+
+    /**
+     * Makes a grayscale image of a projection. Pixels are made square if the voxels are not.
+     * @param projection projection to show.
+     * @param windowMin value shown as black. If null the value range of the projection is used.
+     * @param windowMax value shown as white. If null the value range of the projection is used.
+     * @return grayscale image.
+     */
+    private BufferedImage toImage(Projection projection, Double windowMin, Double windowMax) {
+        if (windowMin == null || windowMax == null) {
+            double[] range = volumeService.getValueRange(projection.values);
+            windowMin = range[0];
+            windowMax = range[1];
+        }
+        BufferedImage image = volumeService.toGrayImage(projection.values, projection.width, projection.height, null,
+                windowMin, windowMax);
+        if (projection.pixelHeight != projection.pixelWidth) {
+            int height = Math.max(1, (int) Math.round(projection.height * projection.pixelHeight / projection.pixelWidth));
+            image = Scalr.resize(image, Scalr.Method.QUALITY, Scalr.Mode.FIT_EXACT, projection.width, height);
+        }
+        return image;
+    }
+
+    /**
+     * Return the local file a projection is stored in. Projections of a sub-project are kept in one directory.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param projectionKey key of volume, projection type and plane.
+     * @return path of projection file.
+     */
+    private Path getProjectionFile(Project project, String subFolder, String projectionKey) {
+        String subFolderName = subFolder.toLowerCase().replaceAll("[^a-z0-9._-]", "_");
+        String fileName = UUID.nameUUIDFromBytes(projectionKey.getBytes(StandardCharsets.UTF_8)) + ".projection";
+        return volumeService.getCacheDirectory().resolve("projections").resolve(project.getProjectId().toString())
+                .resolve(subFolderName).resolve(fileName);
+    }
+
+    /**
+     * Reads a stored projection.
+     * @param file file of projection.
+     * @return the projection. Null if it is not stored or could not be read.
+     */
+    private Projection readProjection(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.nativeOrder());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                //Read until the buffer is full.
+            }
+            buffer.flip();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            double pixelWidth = buffer.getDouble();
+            double pixelHeight = buffer.getDouble();
+            float[] values = new float[width * height];
+            buffer.asFloatBuffer().get(values);
+            return new Projection(width, height, pixelWidth, pixelHeight, values);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read projection " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stores a projection. A temporary file is moved into place so readers never see a half written projection.
+     * Failing to store is logged and otherwise ignored, the projection is then computed again next time.
+     * @param file file of projection.
+     * @param projection projection to store.
+     * @return true if the projection was stored.
+     */
+    private boolean writeProjection(Path file, Projection projection) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), "projection-", ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(24 + projection.values.length * 4).order(ByteOrder.nativeOrder());
+                buffer.putInt(projection.width).putInt(projection.height)
+                        .putDouble(projection.pixelWidth).putDouble(projection.pixelHeight);
+                buffer.asFloatBuffer().put(projection.values);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Could not store projection " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Values of a projection, row by row, and the physical size of its pixels.
+     */
+    private static class Projection {
+        private final int width;
+        private final int height;
+        private final double pixelWidth;
+        private final double pixelHeight;
+        private final float[] values;
+
+        Projection(int width, int height, double pixelWidth, double pixelHeight, float[] values) {
+            this.width = width;
+            this.height = height;
+            this.pixelWidth = pixelWidth;
+            this.pixelHeight = pixelHeight;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Projects a range of axial slices. The range is split in two until it is small enough, each half is projected
+     * into its own accumulator and the accumulators are combined.
+     */
+    private static class AxialProjectionTask extends RecursiveTask<float[]> {
+        private final Volume volume;
+        private final ProjectionType type;
+        private final int fromSlice;
+        private final int toSlice;
+        private final int slicesPerTask;
+
+        AxialProjectionTask(Volume volume, ProjectionType type, int fromSlice, int toSlice, int slicesPerTask) {
+            this.volume = volume;
+            this.type = type;
+            this.fromSlice = fromSlice;
+            this.toSlice = toSlice;
+            this.slicesPerTask = slicesPerTask;
+        }
+
+        @Override
+        protected float[] compute() {
+            int width = volume.getWidth();
+            if (toSlice - fromSlice > slicesPerTask) {
+                int middle = (fromSlice + toSlice) >>> 1;
+                AxialProjectionTask first = new AxialProjectionTask(volume, type, fromSlice, middle, slicesPerTask);
+                first.fork();
+                float[] second = new AxialProjectionTask(volume, type, middle, toSlice, slicesPerTask).compute();
+                float[] accumulator = first.join();
+                combine(type, accumulator, 0, second, accumulator.length);
+                return accumulator;
+            }
+            float[] accumulator = new float[width * volume.getHeight()];
+            Arrays.fill(accumulator, getInitialValue(type));
+            float[] row = new float[width];
+            for (int z = fromSlice; z < toSlice; z++) {
+                for (int y = 0; y < volume.getHeight(); y++) {
+                    volume.readRow(y, z, row);
+                    combine(type, accumulator, y * width, row, width);
+                }
+            }
+            return accumulator;
+        }
+    }
+}
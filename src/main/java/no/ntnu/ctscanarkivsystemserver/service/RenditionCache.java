@@ -0,0 +1,126 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.config.ImageProcessingProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In memory cache of rendered images (scaled images and DICOM previews).
+ * The cache is limited by the total number of bytes and the least recently used rendition is removed first.
+ * Originals are never cached, only renditions which cost CPU to make.
+ * Renditions made from the original can be registered as sources, so other sizes of the same image can be made
+ * from a cached rendition instead of the original.
+ */
+@Service
+public class RenditionCache {
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, CachedRendition> renditions = new LinkedHashMap<>(16, 0.75f, true);
+    //Key of each source rendition by image and size.
+    private final Map<String, TreeMap<Integer, String>> sourcesByImage = new HashMap<>();
+    private long currentBytes;
+
+    @Autowired
+    public RenditionCache(ImageProcessingProperties imageProcessingProperties) {
+        this.maxBytes = imageProcessingProperties.getCacheMaxBytes();
+    }
+
+    /**
+     * Gets a rendition from the cache.
+     * @param key key of rendition.
+     * @return the rendition. Null if it is not in the cache.
+     */
+    public synchronized byte[] get(String key) {
+        CachedRendition cached = renditions.get(key);
+        return cached == null ? null : cached.bytes;
+    }
+
+    /**
+     * Gets the smallest source rendition of an image which is at least the given size.
+     * @param imageKey key of the image.
+     * @param minSize smallest size the source can have.
+     * @return the source rendition. Null if no source of the image is large enough.
+     */
+    public synchronized byte[] getSource(String imageKey, int minSize) {
+        TreeMap<Integer, String> sources = sourcesByImage.get(imageKey);
+        if (sources == null) {
+            return null;
+        }
+        Map.Entry<Integer, String> source = sources.ceilingEntry(minSize);
+        return source == null ? null : get(source.getValue());
+    }
+
+    /**
+     * Puts a rendition in the cache and removes the least recently used renditions until the cache is below its limit.
+     * Renditions larger than the whole cache are not stored.
+     * @param key key of rendition.
+     * @param rendition the rendered image.
+     */
+    public synchronized void put(String key, byte[] rendition) {
+        put(key, rendition, null, 0);
+    }
+
+    /**
+     * Puts a rendition in the cache and registers it as a source other sizes of the image can be made from.
+     * Only renditions made from the original should be registered, so quality is not lost over many generations.
+     * @param key key of rendition.
+     * @param rendition the rendered image.
+     * @param imageKey key of the image the rendition is made from. Null if the rendition is not a source.
+     * @param size size of the rendition.
+     */
+    public synchronized void put(String key, byte[] rendition, String imageKey, int size) {
+        if (rendition == null || rendition.length > maxBytes) {
+            return;
+        }
+        CachedRendition old = renditions.put(key, new CachedRendition(rendition, imageKey, size));
+        if (old != null) {
+            currentBytes -= old.bytes.length;
+            removeSource(old);
+        }
+        if (imageKey != null) {
+            sourcesByImage.computeIfAbsent(imageKey, image -> new TreeMap<>()).put(size, key);
+        }
+        currentBytes += rendition.length;
+        Iterator<CachedRendition> iterator = renditions.values().iterator();
+        while (currentBytes > maxBytes && iterator.hasNext()) {
+            CachedRendition eldest = iterator.next();
+            currentBytes -= eldest.bytes.length;
+            iterator.remove();
+            removeSource(eldest);
+        }
+    }
+
+    private void removeSource(CachedRendition rendition) {
+        if (rendition.imageKey == null) {
+            return;
+        }
+        TreeMap<Integer, String> sources = sourcesByImage.get(rendition.imageKey);
+        if (sources != null) {
+            sources.remove(rendition.size);
+            if (sources.isEmpty()) {
+                sourcesByImage.remove(rendition.imageKey);
+            }
+        }
+    }
+
+    /**
+     * A rendition and, if it is a source, the image and size it was made from.
+     */
+    private static class CachedRendition {
+        private final byte[] bytes;
+        private final String imageKey;
+        private final int size;
+
+        CachedRendition(byte[] bytes, String imageKey, int size) {
+            this.bytes = bytes;
+            this.imageKey = imageKey;
+            this.size = size;
+        }
+    }
+}
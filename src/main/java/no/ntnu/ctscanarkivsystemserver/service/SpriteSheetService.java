@@ -0,0 +1,225 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.SpriteSheetDTO;
+import no.ntnu.ctscanarkivsystemserver.model.SpriteTile;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import org.imgscalr.Scalr;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class makes sprite sheets with thumbnails of many images, so a gallery can be loaded with one request.
+ * Thumbnails are taken from the rendition cache, and the ones which are missing are loaded and scaled in parallel.
+ */
+@Service
+public class SpriteSheetService {
+
+    public static final int MAX_TILES = 1000;
+    public static final int MAX_TILE_SIZE = 512;
+    //Most pixels in one sheet, 64 MB as INT_RGB. Bounds the sheet as a whole, since many tiles of the max size
+    //would make a sheet of about 1 GB.
+    public static final long MAX_SHEET_PIXELS = 16L * 1024 * 1024;
+    //Number of thumbnails loaded from the file server at the same time for one sheet.
+    private static final int LOAD_THREADS = 8;
+    private static final String SPRITE_FORMAT = "jpg";
+
+    private final FileStorageService fileStorageService;
+    private final ImageService imageService;
+    private final ImageProcessingExecutor imageProcessingExecutor;
+    private final ExecutorService loadExecutor;
+
+    @Autowired
+    public SpriteSheetService(FileStorageService fileStorageService, ImageService imageService,
+                              ImageProcessingExecutor imageProcessingExecutor) {
+        this.fileStorageService = fileStorageService;
+        this.imageService = imageService;
+        this.imageProcessingExecutor = imageProcessingExecutor;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.loadExecutor = Executors.newFixedThreadPool(LOAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "sprite-load-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Gets the names of a range of images in a directory, sorted by name.
+     * @param directory directory to get images from. Valid arguments is: images, dicom, tiff and all.
+     * @param project project images are associated with.
+     * @param subFolder Folder of sub-project to get images from.
+     * @param offset index of first image.
+     * @param count max number of images.
+     * @return names of images in range.
+     * @throws FileNotFoundException if directory was not found.
+     * @throws FileStorageException if getting file names failed.
+     */
+    public List<String> getImageNames(String directory, Project project, String subFolder, int offset, int count)
+            throws FileNotFoundException, FileStorageException {
+        List<String> imageNames = new ArrayList<>();
+        for (String fileName : fileStorageService.getAllFileNames(directory, project, subFolder)) {
+            if (imageService.isFileAnImage(fileName)) {
+                imageNames.add(fileName);
+            }
+        }
+        Collections.sort(imageNames);
+        int from = Math.min(Math.max(offset, 0), imageNames.size());
+        return new ArrayList<>(imageNames.subList(from, Math.min(from + Math.max(count, 0), imageNames.size())));
+    }
+
+    /**
+     * Makes a sprite sheet with thumbnails of images. Images which fail are listed in failedImages instead.
+     * If the server is too busy to scale a thumbnail, the whole sheet is rejected, so a sheet of blank tiles
+     * is not returned as if it was complete.
+     * @param imageNames names of images including file type.
+     * @param project project images are associated with.
+     * @param subFolder Folder of sub-project to get images from.
+     * @param tileSize size of each thumbnail.
+     * @return the sprite sheet.
+     * @throws IllegalArgumentException if there are too many images, tileSize is not valid or the sheet would have
+     *                                  more than MAX_SHEET_PIXELS pixels.
+     * @throws IOException if the sheet could not be made.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     */
+    public SpriteSheetDTO getSpriteSheet(List<String> imageNames, Project project, String subFolder, int tileSize)
+            throws IllegalArgumentException, IOException, ImageProcessingRejectedException {
+        if (imageNames.size() > MAX_TILES || tileSize <= 0 || tileSize > MAX_TILE_SIZE) {
+            throw new IllegalArgumentException("A sprite sheet can have at most " + MAX_TILES + " images with size 1 to "
+                    + MAX_TILE_SIZE + ". Images: " + imageNames.size() + ", size: " + tileSize);
+        }
+        if (getSheetPixels(imageNames.size(), tileSize) > MAX_SHEET_PIXELS) {
+            throw new IllegalArgumentException("A sprite sheet can have at most " + MAX_SHEET_PIXELS + " pixels. Images: "
+                    + imageNames.size() + ", size: " + tileSize);
+        }
+        List<Future<byte[]>> thumbnails = new ArrayList<>();
+        for (String imageName : imageNames) {
+            thumbnails.add(loadExecutor.submit(() -> fileStorageService.getImageAsBytes(imageName, project, subFolder,
+                    tileSize, null, null)));
+        }
+        SpriteSheetDTO spriteSheet = new SpriteSheetDTO();
+        spriteSheet.setTileSize(tileSize);
+        List<String> loadedNames = new ArrayList<>();
+        List<byte[]> loadedThumbnails = new ArrayList<>();
+        try {
+            for (int i = 0; i < imageNames.size(); i++) {
+                try {
+                    loadedThumbnails.add(thumbnails.get(i).get());
+                    loadedNames.add(imageNames.get(i));
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ImageProcessingRejectedException) {
+                        thumbnails.forEach(thumbnail -> thumbnail.cancel(true));
+                        throw (ImageProcessingRejectedException) e.getCause();
+                    }
+                    System.out.println("Could not load thumbnail of " + imageNames.get(i) + ": " + e.getCause().getMessage());
+                    spriteSheet.getFailedImages().add(imageNames.get(i));
+                }
+            }
+        } catch (InterruptedException e) {
+            thumbnails.forEach(thumbnail -> thumbnail.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading thumbnails.", e);
+        }
+        if (!loadedThumbnails.isEmpty()) {
+            int columns = (int) Math.ceil(Math.sqrt(loadedThumbnails.size()));
+            int rows = (loadedThumbnails.size() + columns - 1) / columns;
+            long estimatedBytes = (long) columns * rows * tileSize * tileSize * 4;
+            imageProcessingExecutor.execute(() -> drawSpriteSheet(spriteSheet, loadedNames, loadedThumbnails, columns, rows),
+                    estimatedBytes, ImageProcessingExecutor.getPriority(tileSize));
+        }
+        return spriteSheet;
+    }
+
+    /**
+     * Gets the most images a sheet with the given tile size can have.
+     * @param tileSize size of each thumbnail.
+     * @return max number of images. 0 if tileSize is not valid.
+     */
+    public int getMaxTiles(int tileSize) {
+        if (tileSize <= 0 || tileSize > MAX_TILE_SIZE) {
+            return 0;
+        }
+        int tiles = MAX_TILES;
+        while (tiles > 0 && getSheetPixels(tiles, tileSize) > MAX_SHEET_PIXELS) {
+            tiles--;
+        }
+        return tiles;
+    }
+
+    /**
+     * Gets the number of pixels of a sheet, which is a grid about as wide as it is tall.
+     * @param tiles number of thumbnails.
+     * @param tileSize size of each thumbnail.
+     * @return pixels of sheet.
+     */
+    private static long getSheetPixels(int tiles, int tileSize) {
+        int columns = (int) Math.ceil(Math.sqrt(tiles));
+        int rows = columns == 0 ? 0 : (tiles + columns - 1) / columns;
+        return (long) columns * rows * tileSize * tileSize;
+    }
+
+    /**
+     * Draws the thumbnails into one image in a grid.
+     * @param spriteSheet sprite sheet to put the image and positions into.
+     * @param names names of images.
+     * @param thumbnails thumbnails of images in same order as names.
+     * @param columns columns in grid.
+     * @param rows rows in grid.
+     * @return the sprite sheet.
+     * @throws IOException if encoding of the sheet failed.
+     */
+    private SpriteSheetDTO drawSpriteSheet(SpriteSheetDTO spriteSheet, List<String> names, List<byte[]> thumbnails,
+                                           int columns, int rows) throws IOException {
+        int tileSize = spriteSheet.getTileSize();
+        BufferedImage sheet = new BufferedImage(columns * tileSize, rows * tileSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = sheet.createGraphics();
+        try {
+            int tile = 0;
+            for (int i = 0; i < thumbnails.size(); i++) {
+                BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(thumbnails.get(i)));
+                if (thumbnail == null) {
+                    spriteSheet.getFailedImages().add(names.get(i));
+                    continue;
+                }
+                if (thumbnail.getWidth() > tileSize || thumbnail.getHeight() > tileSize) {
+                    //Images getImageAsBytes could not scale are returned in original size.
+                    thumbnail = Scalr.resize(thumbnail, Scalr.Method.AUTOMATIC, Scalr.Mode.AUTOMATIC, tileSize);
+                }
+                int x = (tile % columns) * tileSize;
+                int y = (tile / columns) * tileSize;
+                graphics.drawImage(thumbnail, x, y, null);
+                spriteSheet.getTiles().add(new SpriteTile(names.get(i), x, y, thumbnail.getWidth(), thumbnail.getHeight()));
+                tile++;
+            }
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageIO.write(sheet, SPRITE_FORMAT, output);
+        spriteSheet.setSprite(Base64.getEncoder().encodeToString(output.toByteArray()));
+        spriteSheet.setFormat(SPRITE_FORMAT);
+        spriteSheet.setWidth(sheet.getWidth());
+        spriteSheet.setHeight(sheet.getHeight());
+        return spriteSheet;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        loadExecutor.shutdownNow();
+    }
+}
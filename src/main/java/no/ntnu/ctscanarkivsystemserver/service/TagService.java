@@ -1,11 +1,14 @@
 package no.ntnu.ctscanarkivsystemserver.service;
 
+import no.ntnu.ctscanarkivsystemserver.config.PaginationProperties;
 import no.ntnu.ctscanarkivsystemserver.dao.TagDao;
 import no.ntnu.ctscanarkivsystemserver.exception.TagExistsException;
 import no.ntnu.ctscanarkivsystemserver.exception.TagNotFoundException;
-import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectListItem;
+import no.ntnu.ctscanarkivsystemserver.model.ResultPage;
 import no.ntnu.ctscanarkivsystemserver.model.database.Tag;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
+import no.ntnu.ctscanarkivsystemserver.util.PageCursor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
@@ -23,11 +26,13 @@ public class TagService {
 
     private final TagDao tagDao;
     private final ProjectService projectService;
+    private final PaginationProperties paginationProperties;
 
     @Autowired
-    public TagService(TagDao tagDao, ProjectService projectService) {
+    public TagService(TagDao tagDao, ProjectService projectService, PaginationProperties paginationProperties) {
         this.tagDao = tagDao;
         this.projectService = projectService;
+        this.paginationProperties = paginationProperties;
     }
 
     /**
@@ -74,7 +79,26 @@ public class TagService {
      * @return all tags from the database.
      */
     public List<Tag> getAllTags() {
-        return setTotalTimesTagIsUsed(tagDao.getAllTags());
+        return tagDao.getAllTags();
+    }
+
+    /**
+     * Gets a page of tags sorted by name.
+     * @param cursor cursor of the page to get, from the previous page. Null for the first page.
+     * @param limit max number of tags on the page. Null for the default page size.
+     * @return page of tags.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public ResultPage<Tag> getTagsPage(String cursor, Integer limit) throws IllegalArgumentException {
+        int pageSize = paginationProperties.getPageSize(limit);
+        String[] after = PageCursor.decode(cursor, 1);
+        //One more tag than the page size is read to know if there is a next page.
+        List<Tag> tags = tagDao.getTagsPage(after == null ? null : after[0], pageSize + 1);
+        if(tags.size() <= pageSize) {
+            return new ResultPage<>(tags, null);
+        }
+        tags = new ArrayList<>(tags.subList(0, pageSize));
+        return new ResultPage<>(tags, PageCursor.encode(tags.get(pageSize - 1).getTagName()));
     }
 
     /**
@@ -84,20 +108,8 @@ public class TagService {
      * @throws TagNotFoundException if no tag with tagName is found.
      * @throws IndexOutOfBoundsException if tagName has less than 2 characters.
      */
-    public List<Project> getAllProjectsTagIsUsedIn(String tagName) throws TagNotFoundException, IndexOutOfBoundsException {
-        return getTag(tagName).getProjects();
-    }
-
-    /**
-     * Sets the number of projects a tag is used in.
-     * @param tagList list of tags to set the number of projects it is used in.
-     * @return list of tags with number of projects tag is used in set.
-     */
-    private List<Tag> setTotalTimesTagIsUsed(List<Tag> tagList) {
-        for(Tag tag:tagList) {
-            tag.setNumberOfProjects(tag.getProjects().size());
-        }
-        return tagList;
+    public List<ProjectListItem> getAllProjectsTagIsUsedIn(String tagName) throws TagNotFoundException, IndexOutOfBoundsException {
+        return projectService.getProjectItemsOfTag(getTag(tagName).getTagName());
     }
 
     /**
@@ -108,11 +120,11 @@ public class TagService {
      * @throws TagNotFoundException if no tag with tag name was found.
      */
     public boolean deleteTag(String tagName, User user) throws TagNotFoundException {
-        List<Project> projectsTagIsUsedIn = getAllProjectsTagIsUsedIn(tagName);
+        List<ProjectListItem> projectsTagIsUsedIn = getAllProjectsTagIsUsedIn(tagName);
         Tag tagToBeDeleted = getTag(tagName);
         List<Tag> tagList = new ArrayList<>(Collections.singletonList(tagToBeDeleted));
         if(!projectsTagIsUsedIn.isEmpty()) {
-            for(Project project:projectsTagIsUsedIn) {
+            for(ProjectListItem project:projectsTagIsUsedIn) {
                 projectService.removeTag(project.getProjectId(), tagList, user);
             }
         }
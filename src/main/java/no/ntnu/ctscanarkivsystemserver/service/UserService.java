@@ -1,12 +1,15 @@
 package no.ntnu.ctscanarkivsystemserver.service;
 
+import no.ntnu.ctscanarkivsystemserver.config.PaginationProperties;
 import no.ntnu.ctscanarkivsystemserver.exception.EmailExistsException;
 import no.ntnu.ctscanarkivsystemserver.dao.UserDao;
 import no.ntnu.ctscanarkivsystemserver.exception.UserNotFoundException;
 import no.ntnu.ctscanarkivsystemserver.model.MyUserDetails;
+import no.ntnu.ctscanarkivsystemserver.model.ResultPage;
 import no.ntnu.ctscanarkivsystemserver.model.database.Role;
 import no.ntnu.ctscanarkivsystemserver.model.database.User;
 import no.ntnu.ctscanarkivsystemserver.model.UserDTO;
+import no.ntnu.ctscanarkivsystemserver.util.PageCursor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -16,6 +19,7 @@ import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -26,10 +30,12 @@ import java.util.UUID;
 public class UserService implements UserDetailsService {
 
     private final UserDao userDao;
+    private final PaginationProperties paginationProperties;
 
     @Autowired
-    public UserService(@Qualifier("postgreSQL") UserDao userDao) {
+    public UserService(@Qualifier("postgreSQL") UserDao userDao, PaginationProperties paginationProperties) {
         this.userDao = userDao;
+        this.paginationProperties = paginationProperties;
     }
 
     @Autowired
@@ -66,6 +72,27 @@ public class UserService implements UserDetailsService {
         return userDao.selectAllUsers();
     }
 
+    /**
+     * Gets a page of users sorted by email.
+     * @param cursor cursor of the page to get, from the previous page. Null for the first page.
+     * @param limit max number of users on the page. Null for the default page size.
+     * @return page of users.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public ResultPage<User> getUsersPage(String cursor, Integer limit) throws IllegalArgumentException {
+        int pageSize = paginationProperties.getPageSize(limit);
+        String[] after = PageCursor.decode(cursor, 2);
+        //One more user than the page size is read to know if there is a next page.
+        List<User> users = after == null ? userDao.selectUsersPage(null, null, pageSize + 1)
+                : userDao.selectUsersPage(after[0], UUID.fromString(after[1]), pageSize + 1);
+        if(users.size() <= pageSize) {
+            return new ResultPage<>(users, null);
+        }
+        users = new ArrayList<>(users.subList(0, pageSize));
+        User last = users.get(pageSize - 1);
+        return new ResultPage<>(users, PageCursor.encode(last.getEmail(), last.getUserId()));
+    }
+
     /**
      * Tries to find a user from the database and return the user as a new UserDetails.
      * If user is not found this returns null.
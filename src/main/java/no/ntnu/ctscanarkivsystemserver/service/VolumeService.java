@@ -0,0 +1,792 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import no.ntnu.ctscanarkivsystemserver.config.VolumeProperties;
+import no.ntnu.ctscanarkivsystemserver.exception.FileStorageException;
+import no.ntnu.ctscanarkivsystemserver.exception.ImageProcessingRejectedException;
+import no.ntnu.ctscanarkivsystemserver.model.RawVolumeFormat;
+import no.ntnu.ctscanarkivsystemserver.model.ReslicePlane;
+import no.ntnu.ctscanarkivsystemserver.model.ResliceRequest;
+import no.ntnu.ctscanarkivsystemserver.model.database.Project;
+import no.ntnu.ctscanarkivsystemserver.util.MetaImageHeader;
+import no.ntnu.ctscanarkivsystemserver.util.Volume;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.IntStream;
+
+/**
+ * This class loads CT volumes and makes images of any plane through them.
+ * A volume is converted to a local file once and then memory-mapped, so voxels are read from the page cache instead
+ * of the heap. Loaded volumes are kept in a local cache which removes the least recently used volume when it is full.
+ * Files made from volumes, like projections, are counted in the same cache and removed the same way.
+ * Reslicing is split by rows over all cores.
+ */
+@Service
+public class VolumeService {
+
+    //Reslice at up to this many times the requested size and scale down, for the same reason images are subsampled.
+    private static final int RESLICE_OVERSAMPLE = 2;
+    //Slices of a loaded volume are decoded at full size. They run after rendered images, also those in original size,
+    //and before conversions.
+    private static final int VOLUME_LOAD_PRIORITY = Integer.MAX_VALUE - 1;
+
+    private final FileStorageService fileStorageService;
+    private final ImageService imageService;
+    private final ImageProcessingExecutor imageProcessingExecutor;
+    private final RenditionCache renditionCache;
+    private final Path cacheDirectory;
+    private final long cacheMaxBytes;
+    private final ForkJoinPool volumePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final LinkedHashMap<String, CacheEntry> cacheEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Volume>> loadingVolumes = new ConcurrentHashMap<>();
+    private long cachedBytes;
+
+    @Autowired
+    public VolumeService(VolumeProperties volumeProperties, FileStorageService fileStorageService, ImageService imageService,
+                         ImageProcessingExecutor imageProcessingExecutor, RenditionCache renditionCache) {
+        this.fileStorageService = fileStorageService;
+        this.imageService = imageService;
+        this.imageProcessingExecutor = imageProcessingExecutor;
+        this.renditionCache = renditionCache;
+        String cacheDir = volumeProperties.getCacheDir();
+        if (cacheDir == null || cacheDir.trim().isEmpty()) {
+            this.cacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "ctscan-volumes");
+        } else {
+            this.cacheDirectory = Paths.get(cacheDir.trim());
+        }
+        this.cacheMaxBytes = volumeProperties.getCacheMaxBytes();
+    }
+
+    /**
+     * Makes an image of a plane through a volume.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param request which volume and plane to render.
+     * @param rawFormat format of a raw volume. Values not given are read from the .mhd sidecar of the raw file.
+     * @return png of the plane.
+     * @throws IOException if the volume could not be read.
+     * @throws FileStorageException if getting files from the file server failed.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     * @throws IllegalArgumentException if plane, index or normal is not valid.
+     */
+    public byte[] renderSlice(Project project, String subFolder, ResliceRequest request, RawVolumeFormat rawFormat)
+            throws IOException, FileStorageException, ImageProcessingRejectedException, IllegalArgumentException {
+        ReslicePlane plane = ReslicePlane.valueOf(request.getPlane().trim().toUpperCase());
+        String fileName = request.getFileName();
+        if (isRawVolume(fileName)) {
+            rawFormat = getRawVolumeFormat(project, subFolder, fileName, rawFormat);
+        }
+        String volumeKey = getVolumeKey(project, subFolder, fileName, rawFormat);
+        Volume volume = getVolume(volumeKey, project, subFolder, fileName, rawFormat);
+        PlaneGeometry geometry = new PlaneGeometry(volume, plane, request);
+        String renditionKey = "volume:" + volumeKey + "?" + geometry + "&size=" + request.getSize()
+                + "&wmin=" + request.getWindowMin() + "&wmax=" + request.getWindowMax();
+        byte[] rendition = renditionCache.get(renditionKey);
+        if (rendition == null) {
+            rendition = imageProcessingExecutor.execute(() -> {
+                float[] values = reslice(volume, geometry);
+                return imageService.writeImage(toGrayImage(values, geometry.width, geometry.height, volume,
+                        request.getWindowMin(), request.getWindowMax()), "png", request.getSize());
+            }, (long) geometry.width * geometry.height * 10, ImageProcessingExecutor.getPriority(request.getSize()));
+            renditionCache.put(renditionKey, rendition);
+        }
+        return rendition;
+    }
+
+    /**
+     * Gets a volume from the cache or loads it. If another request is loading the same volume this waits for it.
+     * @param volumeKey key of volume.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName file of volume. If null all TIFF files in the sub-project are used as a stack.
+     * @param rawFormat format of a raw volume. Not used for TIFF.
+     * @return the volume.
+     * @throws IOException if the volume could not be read.
+     * @throws FileStorageException if getting files from the file server failed.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     */
+    Volume getVolume(String volumeKey, Project project, String subFolder, String fileName, RawVolumeFormat rawFormat)
+            throws IOException, FileStorageException {
+        Volume volume = getCachedVolume(volumeKey);
+        if (volume != null) {
+            return volume;
+        }
+        CompletableFuture<Volume> loading = new CompletableFuture<>();
+        CompletableFuture<Volume> alreadyLoading = loadingVolumes.putIfAbsent(volumeKey, loading);
+        if (alreadyLoading != null) {
+            return waitForVolume(alreadyLoading);
+        }
+        try {
+            volume = getCachedVolume(volumeKey);
+            if (volume == null) {
+                volume = loadVolume(project, subFolder, fileName, rawFormat);
+                cacheVolume(volumeKey, volume);
+            }
+            loading.complete(volume);
+            return volume;
+        } catch (IOException | RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        } finally {
+            loadingVolumes.remove(volumeKey);
+        }
+    }
+
+    /**
+     * Makes the key a volume is cached with. A TIFF stack gets a new key if files are added to or removed from it.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName file of volume. If null all TIFF files in the sub-project are used as a stack.
+     * @param rawFormat format of a raw volume. Not used for TIFF.
+     * @return key of volume.
+     * @throws FileNotFoundException if the TIFF directory was not found.
+     * @throws FileStorageException if getting file names failed.
+     */
+    String getVolumeKey(Project project, String subFolder, String fileName, RawVolumeFormat rawFormat)
+            throws FileNotFoundException, FileStorageException {
+        String key = project.getProjectId() + "/" + subFolder.toLowerCase() + "/";
+        if (fileName == null || fileName.trim().isEmpty()) {
+            List<String> sliceNames = getTiffStackNames(project, subFolder);
+            return key + "tiff-stack:" + sliceNames.size() + ":" + sliceNames.hashCode();
+        } else if (isRawVolume(fileName)) {
+            //The same raw file read with another format is another volume.
+            return key + fileName + ":" + rawFormat;
+        }
+        return key + fileName;
+    }
+
+    /**
+     * Gets the format of a raw volume. Values given in the request are used first, the rest are read from a
+     * MetaImage sidecar with the same name as the raw file and file type .mhd.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName name of raw file.
+     * @param requestFormat values given in the request.
+     * @return format of raw volume.
+     * @throws IOException if the sidecar could not be read.
+     * @throws FileStorageException if getting the sidecar from the file server failed.
+     * @throws IllegalArgumentException if dimensions or bit depth is neither given nor in a sidecar.
+     */
+    RawVolumeFormat getRawVolumeFormat(Project project, String subFolder, String fileName, RawVolumeFormat requestFormat)
+            throws IOException, FileStorageException, IllegalArgumentException {
+        RawVolumeFormat format = requestFormat == null ? new RawVolumeFormat() : requestFormat;
+        if (!format.isComplete() || format.getSpacingX() == null) {
+            String sidecarName = fileName.substring(0, fileName.lastIndexOf('.')) + ".mhd";
+            try {
+                byte[] sidecar = fileStorageService.loadFileAsBytes(sidecarName, project, subFolder);
+                format.fillMissing(MetaImageHeader.parse(new String(sidecar, StandardCharsets.UTF_8)));
+            } catch (FileNotFoundException e) {
+                System.out.println("No sidecar found for raw volume " + fileName);
+            }
+        }
+        if (!format.isComplete()) {
+            throw new IllegalArgumentException("Dimensions and bit depth of " + fileName
+                    + " must be given as params or in a .mhd sidecar.");
+        }
+        return format;
+    }
+
+    boolean isRawVolume(String fileName) {
+        return fileName != null && fileName.endsWith(".raw");
+    }
+
+    private Volume waitForVolume(CompletableFuture<Volume> loading) throws IOException {
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for volume to load.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private synchronized Volume getCachedVolume(String volumeKey) {
+        CacheEntry entry = cacheEntries.get(volumeKey);
+        return entry == null ? null : entry.volume;
+    }
+
+    /**
+     * Adds a volume to the cache and removes the least recently used entries until the cache is below its limit.
+     * The newest volume is never removed, even if it is larger than the limit.
+     * @param volumeKey key of volume.
+     * @param volume volume to add.
+     */
+    private synchronized void cacheVolume(String volumeKey, Volume volume) {
+        addCacheEntry(volumeKey, new CacheEntry(volume, volume.getFile(), volume.getSizeInBytes()));
+    }
+
+    /**
+     * Counts a file in the cache directory made from a volume, like a projection, against the cache limit.
+     * If the file is already counted it is marked as used, so the least recently used entries are removed first.
+     * @param fileKey key of file. Must not be the key of a volume.
+     * @param file file to count.
+     */
+    synchronized void cacheFile(String fileKey, Path file) {
+        if (cacheEntries.get(fileKey) != null) {
+            return;
+        }
+        try {
+            addCacheEntry(fileKey, new CacheEntry(null, file, Files.size(file)));
+        } catch (IOException e) {
+            System.out.println("Could not add " + file + " to volume cache: " + e.getMessage());
+        }
+    }
+
+    private void addCacheEntry(String key, CacheEntry entry) {
+        CacheEntry replaced = cacheEntries.put(key, entry);
+        if (replaced != null) {
+            cachedBytes -= replaced.bytes;
+        }
+        cachedBytes += entry.bytes;
+        Iterator<Map.Entry<String, CacheEntry>> iterator = cacheEntries.entrySet().iterator();
+        while (cachedBytes > cacheMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> eldest = iterator.next();
+            if (eldest.getValue() == entry) {
+                break;
+            }
+            iterator.remove();
+            cachedBytes -= eldest.getValue().bytes;
+            deleteCacheFile(eldest.getValue().file);
+        }
+    }
+
+    private void deleteCacheFile(Path file) {
+        try {
+            //The mapping of a volume stays valid until it is garbage collected, so requests using it are not affected.
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Could not delete cached file " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a volume into a local file and memory-maps it.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName file of volume. If null all TIFF files in the sub-project are used as a stack.
+     * @param rawFormat format of a raw volume. Not used for TIFF.
+     * @return the volume.
+     * @throws IOException if the volume could not be read.
+     * @throws FileStorageException if getting files from the file server failed.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     */
+    private Volume loadVolume(Project project, String subFolder, String fileName, RawVolumeFormat rawFormat)
+            throws IOException, FileStorageException {
+        Files.createDirectories(cacheDirectory);
+        Path volumeFile = Files.createTempFile(cacheDirectory, "volume-", ".raw");
+        volumeFile.toFile().deleteOnExit();
+        try {
+            if (fileName == null || fileName.trim().isEmpty()) {
+                return loadTiffStack(project, subFolder, volumeFile);
+            } else if (isRawVolume(fileName)) {
+                return loadRawVolume(project, subFolder, fileName, rawFormat, volumeFile);
+            }
+            return loadMultiPageTiff(project, subFolder, fileName, volumeFile);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(volumeFile);
+            throw e;
+        }
+    }
+
+    /**
+     * Loads all TIFF files in a sub-project as slices of a volume, sorted by name.
+     * Each slice is decoded on the image processing pool, so it counts against the memory of image jobs.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param volumeFile local file to write voxels to.
+     * @return the volume.
+     * @throws IOException if a slice could not be read.
+     * @throws ImageProcessingRejectedException if the image processing queue is full.
+     */
+    private Volume loadTiffStack(Project project, String subFolder, Path volumeFile)
+            throws IOException, ImageProcessingRejectedException {
+        List<String> sliceNames = getTiffStackNames(project, subFolder);
+        if (sliceNames.isEmpty()) {
+            throw new FileNotFoundException("No TIFF files in sub-project " + subFolder);
+        }
+        try (VolumeWriter writer = new VolumeWriter(volumeFile)) {
+            for (String sliceName : sliceNames) {
+                byte[] sliceBytes = fileStorageService.loadFileAsBytes(sliceName, project, subFolder);
+                long estimatedBytes = imageService.estimateDecodedBytes(sliceBytes, 0, imageProcessingExecutor.getDefaultQuality());
+                imageProcessingExecutor.execute(() -> {
+                    BufferedImage slice = ImageIO.read(new ByteArrayInputStream(sliceBytes));
+                    if (slice == null) {
+                        throw new IOException("Could not read TIFF slice " + sliceName);
+                    }
+                    writer.write(slice.getRaster());
+                    return null;
+                }, estimatedBytes, VOLUME_LOAD_PRIORITY);
+            }
+            return writer.toVolume();
+        }
+    }
+
+    /**
+     * Loads a multi-page TIFF where each page is a slice. The file is copied to the local disk first so the pages
+     * can be read one by one.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName name of the TIFF file.
+     * @param volumeFile local file to write voxels to.
+     * @return the volume.
+     * @throws IOException if the file could not be read.
+     */
+    private Volume loadMultiPageTiff(Project project, String subFolder, String fileName, Path volumeFile) throws IOException {
+        Path tiffCopy = Files.createTempFile(cacheDirectory, "stack-", ".tiff");
+        try {
+            fileStorageService.copyFileToLocal(fileName, project, subFolder, tiffCopy);
+            try (ImageInputStream input = ImageIO.createImageInputStream(tiffCopy.toFile());
+                 VolumeWriter writer = new VolumeWriter(volumeFile)) {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+                if (!readers.hasNext()) {
+                    throw new IllegalArgumentException("File is not a volume the system can read: " + fileName);
+                }
+                ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    int pages = reader.getNumImages(true);
+                    for (int i = 0; i < pages; i++) {
+                        writer.write(reader.read(i).getRaster());
+                    }
+                } finally {
+                    reader.dispose();
+                }
+                return writer.toVolume();
+            }
+        } finally {
+            Files.deleteIfExists(tiffCopy);
+        }
+    }
+
+    /**
+     * Copies a raw volume to the local disk and memory-maps it as it is, so the file is never read into the heap.
+     * A negative header size, -1 in MetaImage, means the voxels are the last bytes of the file.
+     * @param project project the volume is in.
+     * @param subFolder Folder of sub-project the volume is in.
+     * @param fileName name of the raw file.
+     * @param format format of the raw file.
+     * @param volumeFile local file to copy to.
+     * @return the volume.
+     * @throws IOException if the file could not be copied or is smaller than the format says.
+     * @throws IllegalArgumentException if bit depth is not supported.
+     */
+    private Volume loadRawVolume(Project project, String subFolder, String fileName, RawVolumeFormat format, Path volumeFile)
+            throws IOException, IllegalArgumentException {
+        Volume.VoxelType voxelType;
+        switch (format.getBitDepth()) {
+            case 8:
+                voxelType = Volume.VoxelType.UNSIGNED_8;
+                break;
+
+            case 16:
+                voxelType = Boolean.TRUE.equals(format.getSigned()) ? Volume.VoxelType.SIGNED_16 : Volume.VoxelType.UNSIGNED_16;
+                break;
+
+            case 32:
+                voxelType = Volume.VoxelType.FLOAT_32;
+                break;
+
+            default:
+                throw new IllegalArgumentException("Bit depth of raw volume must be 8, 16 or 32. Was: " + format.getBitDepth());
+        }
+        fileStorageService.copyFileToLocal(fileName, project, subFolder, volumeFile);
+        long headerBytes = format.getHeaderBytes() == null ? 0 : format.getHeaderBytes();
+        if (headerBytes < 0) {
+            long voxelBytes = (long) format.getWidth() * format.getHeight() * format.getDepth() * voxelType.getBytes();
+            headerBytes = Files.size(volumeFile) - voxelBytes;
+            if (headerBytes < 0) {
+                throw new IOException("Volume file is smaller than " + format.getWidth() + "x" + format.getHeight() + "x"
+                        + format.getDepth() + " " + voxelType);
+            }
+        }
+        Volume volume = Volume.map(volumeFile, format.getWidth(), format.getHeight(), format.getDepth(), voxelType,
+                Boolean.TRUE.equals(format.getBigEndian()) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN,
+                headerBytes);
+        volume.setSpacing(format.getSpacingX() == null ? 1 : format.getSpacingX(),
+                format.getSpacingY() == null ? 1 : format.getSpacingY(),
+                format.getSpacingZ() == null ? 1 : format.getSpacingZ());
+        return volume;
+    }
+
+    /**
+     * Return the names of all TIFF files in a sub-project sorted by name.
+     * @param project project to get files from.
+     * @param subFolder Folder of sub-project to get files from.
+     * @return names of TIFF files.
+     * @throws FileNotFoundException if the TIFF directory was not found.
+     * @throws FileStorageException if getting file names failed.
+     */
+    private List<String> getTiffStackNames(Project project, String subFolder) throws FileNotFoundException, FileStorageException {
+        List<String> sliceNames = new ArrayList<>();
+        for (String fileName : fileStorageService.getAllFileNames("tiff", project, subFolder)) {
+            if (fileName.endsWith(".tiff")) {
+                sliceNames.add(fileName);
+            }
+        }
+        Collections.sort(sliceNames);
+        return sliceNames;
+    }
+
+    /**
+     * Samples the plane from the volume. Rows are split over the volume pool.
+     * @param volume volume to sample.
+     * @param geometry plane to sample.
+     * @return values of plane, row by row. NaN outside of the volume.
+     * @throws IOException if interrupted.
+     */
+    private float[] reslice(Volume volume, PlaneGeometry geometry) throws IOException {
+        float[] values = new float[geometry.width * geometry.height];
+        runInVolumePool(() -> IntStream.range(0, geometry.height).parallel().forEach(row -> {
+            for (int column = 0; column < geometry.width; column++) {
+                double[] voxel = geometry.toVoxel(column, row);
+                values[row * geometry.width + column] = volume.sample(voxel[0], voxel[1], voxel[2]);
+            }
+        }));
+        return values;
+    }
+
+    /**
+     * Runs a parallel job on the volume pool, so parallel streams in it use the volume pool and not the common pool.
+     * @param job job to run.
+     * @throws IOException if interrupted.
+     */
+    void runInVolumePool(Runnable job) throws IOException {
+        runInVolumePool(ForkJoinTask.adapt(job));
+    }
+
+    /**
+     * Runs a fork/join task on the volume pool.
+     * @param task task to run.
+     * @param <T> type of result.
+     * @return result of task.
+     * @throws IOException if interrupted.
+     */
+    <T> T runInVolumePool(ForkJoinTask<T> task) throws IOException {
+        try {
+            return volumePool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing volume.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Maps values to 8 bit gray with a linear window.
+     * @param values values to map. NaN is black.
+     * @param width width of image.
+     * @param height height of image.
+     * @param volume volume the values are from. Only used if the window is not given.
+     * @param windowMin value shown as black. If null the value range of the volume or the values is used.
+     * @param windowMax value shown as white. If null the value range of the volume or the values is used.
+     * @return grayscale image.
+     */
+    BufferedImage toGrayImage(float[] values, int width, int height, Volume volume, Double windowMin, Double windowMax) {
+        if (windowMin == null || windowMax == null) {
+            double[] range = volume.getValueRange();
+            if (range == null) {
+                range = getValueRange(values);
+            }
+            windowMin = range[0];
+            windowMax = range[1];
+        }
+        double min = windowMin;
+        double scale = windowMax > windowMin ? 255 / (windowMax - windowMin) : 0;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] gray = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < values.length; i++) {
+            float value = values[i];
+            if (!Float.isNaN(value)) {
+                gray[i] = (byte) Math.max(0, Math.min(255, (int) Math.round((value - min) * scale)));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Return the smallest and largest value which is not NaN.
+     * @param values values to check.
+     * @return array with min and max value. 0 and 1 if all values are NaN.
+     */
+    double[] getValueRange(float[] values) {
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        for (float value : values) {
+            if (!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        return min > max ? new double[]{0, 1} : new double[]{min, max};
+    }
+
+    /**
+     * Return the local directory volumes are cached in.
+     * @return cache directory.
+     */
+    Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        volumePool.shutdownNow();
+    }
+
+    /**
+     * A volume or file in the cache directory, and the bytes it takes there.
+     */
+    private static class CacheEntry {
+        private final Volume volume;
+        private final Path file;
+        private final long bytes;
+
+        CacheEntry(Volume volume, Path file, long bytes) {
+            this.volume = volume;
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * A plane through a volume in physical units (voxel spacing), sampled as an image.
+     * Pixels are square with the size of the smallest voxel side, or larger if the image is bigger than needed
+     * for the requested size.
+     */
+    private static class PlaneGeometry {
+        private final double[] spacing;
+        private final double[] center = new double[3];
+        private final double[] u;
+        private final double[] v;
+        private final double pixelSize;
+        private final int width;
+        private final int height;
+        private final String description;
+        private String roi = "";
+
+        PlaneGeometry(Volume volume, ReslicePlane plane, ResliceRequest request) throws IllegalArgumentException {
+            spacing = new double[]{volume.getSpacingX(), volume.getSpacingY(), volume.getSpacingZ()};
+            int[] dimensions = {volume.getWidth(), volume.getHeight(), volume.getDepth()};
+            double[] extent = new double[3];
+            for (int i = 0; i < 3; i++) {
+                extent[i] = dimensions[i] * spacing[i];
+                center[i] = extent[i] / 2;
+            }
+            double step = Math.min(spacing[0], Math.min(spacing[1], spacing[2]));
+            double planeWidth;
+            double planeHeight;
+            if (plane == ReslicePlane.OBLIQUE) {
+                double[] normal = normalize(new double[]{request.getNormalX(), request.getNormalY(), request.getNormalZ()});
+                double[] axis = Math.abs(normal[2]) < 0.9 ? new double[]{0, 0, 1} : new double[]{0, 1, 0};
+                u = normalize(cross(axis, normal));
+                v = cross(normal, u);
+                for (int i = 0; i < 3; i++) {
+                    center[i] += request.getOffset() * step * normal[i];
+                }
+                planeWidth = Math.sqrt(extent[0] * extent[0] + extent[1] * extent[1] + extent[2] * extent[2]);
+                planeHeight = planeWidth;
+                description = "plane=OBLIQUE&normal=" + normal[0] + "," + normal[1] + "," + normal[2] + "&offset=" + request.getOffset();
+            } else {
+                int normalAxis = plane == ReslicePlane.AXIAL ? 2 : plane == ReslicePlane.CORONAL ? 1 : 0;
+                int uAxis = plane == ReslicePlane.SAGITTAL ? 1 : 0;
+                int vAxis = plane == ReslicePlane.AXIAL ? 1 : 2;
+                int index = request.getIndex() == null ? dimensions[normalAxis] / 2 : request.getIndex();
+                if (index < 0 || index >= dimensions[normalAxis]) {
+                    throw new IllegalArgumentException("Slice index " + index + " is outside of the volume. Slices: " + dimensions[normalAxis]);
+                }
+                center[normalAxis] = (index + 0.5) * spacing[normalAxis];
+                u = new double[3];
+                v = new double[3];
+                u[uAxis] = 1;
+                v[vAxis] = 1;
+                planeWidth = extent[uAxis];
+                planeHeight = extent[vAxis];
+                description = "plane=" + plane + "&index=" + index;
+            }
+            int fullWidth = Math.max(1, (int) Math.round(planeWidth / step));
+            int fullHeight = Math.max(1, (int) Math.round(planeHeight / step));
+            if (request.getRoiX() != null && request.getRoiY() != null && request.getRoiWidth() != null && request.getRoiHeight() != null) {
+                if (request.getRoiWidth() <= 0 || request.getRoiHeight() <= 0) {
+                    throw new IllegalArgumentException("Width and height of region must be larger than 0.");
+                }
+                //Move the center to the center of the region, then only sample the region.
+                double regionCenterU = (request.getRoiX() + request.getRoiWidth() / 2.0 - fullWidth / 2.0) * step;
+                double regionCenterV = (request.getRoiY() + request.getRoiHeight() / 2.0 - fullHeight / 2.0) * step;
+                for (int i = 0; i < 3; i++) {
+                    center[i] += regionCenterU * u[i] + regionCenterV * v[i];
+                }
+                fullWidth = request.getRoiWidth();
+                fullHeight = request.getRoiHeight();
+                roi = "&roi=" + request.getRoiX() + "," + request.getRoiY() + "," + fullWidth + "," + fullHeight;
+            }
+            double factor = 1;
+            int size = request.getSize();
+            if (size > 0 && Math.max(fullWidth, fullHeight) > size * RESLICE_OVERSAMPLE) {
+                factor = Math.max(fullWidth, fullHeight) / (double) (size * RESLICE_OVERSAMPLE);
+            }
+            pixelSize = step * factor;
+            width = Math.max(1, (int) Math.round(fullWidth / factor));
+            height = Math.max(1, (int) Math.round(fullHeight / factor));
+        }
+
+        /**
+         * Return the voxel coordinates of the center of a pixel.
+         * @param column column of pixel.
+         * @param row row of pixel.
+         * @return x, y and z in voxel coordinates.
+         */
+        double[] toVoxel(int column, int row) {
+            double a = (column + 0.5 - width / 2.0) * pixelSize;
+            double b = (row + 0.5 - height / 2.0) * pixelSize;
+            double[] voxel = new double[3];
+            for (int i = 0; i < 3; i++) {
+                voxel[i] = (center[i] + a * u[i] + b * v[i]) / spacing[i] - 0.5;
+            }
+            return voxel;
+        }
+
+        private static double[] normalize(double[] vector) {
+            double length = Math.sqrt(vector[0] * vector[0] + vector[1] * vector[1] + vector[2] * vector[2]);
+            if (length == 0 || Double.isNaN(length)) {
+                throw new IllegalArgumentException("Normal of plane cannot be zero.");
+            }
+            return new double[]{vector[0] / length, vector[1] / length, vector[2] / length};
+        }
+
+        private static double[] cross(double[] a, double[] b) {
+            return new double[]{a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0]};
+        }
+
+        @Override
+        public String toString() {
+            return description + roi;
+        }
+    }
+
+    /**
+     * Writes slices into a local volume file. The first slice decides the size and voxel type of the volume.
+     */
+    private static class VolumeWriter implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private int width;
+        private int height;
+        private int depth;
+        private Volume.VoxelType voxelType;
+        private ByteBuffer buffer;
+        private double min = Double.MAX_VALUE;
+        private double max = -Double.MAX_VALUE;
+
+        VolumeWriter(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Writes a slice. Only the first band is used.
+         * @param raster slice to write.
+         * @throws IOException if the slice has another size than the first slice or writing failed.
+         */
+        void write(Raster raster) throws IOException {
+            if (voxelType == null) {
+                width = raster.getWidth();
+                height = raster.getHeight();
+                voxelType = getVoxelType(raster.getDataBuffer().getDataType());
+                buffer = ByteBuffer.allocateDirect(width * voxelType.getBytes()).order(ByteOrder.nativeOrder());
+            } else if (raster.getWidth() != width || raster.getHeight() != height) {
+                throw new IOException("Slice " + depth + " is " + raster.getWidth() + "x" + raster.getHeight()
+                        + ", but the volume is " + width + "x" + height);
+            }
+            float[] row = new float[width];
+            for (int y = 0; y < height; y++) {
+                raster.getSamples(raster.getMinX(), raster.getMinY() + y, width, 1, 0, row);
+                buffer.clear();
+                for (float value : row) {
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                    switch (voxelType) {
+                        case UNSIGNED_8:
+                            buffer.put((byte) value);
+                            break;
+                        case UNSIGNED_16:
+                        case SIGNED_16:
+                            buffer.putShort((short) value);
+                            break;
+                        default:
+                            buffer.putFloat(value);
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            depth++;
+        }
+
+        private static Volume.VoxelType getVoxelType(int dataType) {
+            switch (dataType) {
+                case DataBuffer.TYPE_BYTE:
+                    return Volume.VoxelType.UNSIGNED_8;
+                case DataBuffer.TYPE_USHORT:
+                    return Volume.VoxelType.UNSIGNED_16;
+                case DataBuffer.TYPE_SHORT:
+                    return Volume.VoxelType.SIGNED_16;
+                default:
+                    return Volume.VoxelType.FLOAT_32;
+            }
+        }
+
+        /**
+         * Maps the written file as a volume.
+         * @return the volume.
+         * @throws IOException if no slices were written or mapping failed.
+         */
+        Volume toVolume() throws IOException {
+            if (depth == 0) {
+                throw new IOException("Volume has no slices.");
+            }
+            channel.force(false);
+            Volume volume = Volume.map(file, width, height, depth, voxelType, ByteOrder.nativeOrder(), 0);
+            volume.setValueRange(min, max);
+            return volume;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
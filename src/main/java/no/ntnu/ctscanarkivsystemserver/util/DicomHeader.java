@@ -0,0 +1,171 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Holds the attributes of a DICOM file which are read before the pixel data.
+ * Only top level attributes are kept, sequences and large values are skipped by the parser.
+ */
+public class DicomHeader {
+
+    //Tags of attributes used by the system. The group is the upper 16 bits and the element is the lower 16 bits.
+    public static final int TRANSFER_SYNTAX_UID = 0x00020010;
+    public static final int STUDY_DATE = 0x00080020;
+    public static final int ACQUISITION_DATE = 0x00080022;
+    public static final int ACQUISITION_TIME = 0x00080032;
+    public static final int MODALITY = 0x00080060;
+    public static final int STUDY_DESCRIPTION = 0x00081030;
+    public static final int SERIES_DESCRIPTION = 0x0008103E;
+    public static final int BODY_PART_EXAMINED = 0x00180015;
+    public static final int SLICE_THICKNESS = 0x00180050;
+    public static final int STUDY_INSTANCE_UID = 0x0020000D;
+    public static final int SERIES_INSTANCE_UID = 0x0020000E;
+    public static final int SERIES_NUMBER = 0x00200011;
+    public static final int INSTANCE_NUMBER = 0x00200013;
+    public static final int IMAGE_POSITION_PATIENT = 0x00200032;
+    public static final int SLICE_LOCATION = 0x00201041;
+    public static final int SAMPLES_PER_PIXEL = 0x00280002;
+    public static final int PHOTOMETRIC_INTERPRETATION = 0x00280004;
+    public static final int PLANAR_CONFIGURATION = 0x00280006;
+    public static final int NUMBER_OF_FRAMES = 0x00280008;
+    public static final int ROWS = 0x00280010;
+    public static final int COLUMNS = 0x00280011;
+    public static final int BITS_ALLOCATED = 0x00280100;
+    public static final int BITS_STORED = 0x00280101;
+    public static final int PIXEL_REPRESENTATION = 0x00280103;
+    public static final int WINDOW_CENTER = 0x00281050;
+    public static final int WINDOW_WIDTH = 0x00281051;
+    public static final int RESCALE_INTERCEPT = 0x00281052;
+    public static final int RESCALE_SLOPE = 0x00281053;
+
+    private final Map<Integer, byte[]> values = new HashMap<>();
+    private boolean bigEndian;
+
+    /**
+     * Stores the value of an attribute.
+     * @param tag tag of attribute.
+     * @param value raw value of attribute.
+     */
+    void put(int tag, byte[] value) {
+        values.put(tag, value);
+    }
+
+    void setBigEndian(boolean bigEndian) {
+        this.bigEndian = bigEndian;
+    }
+
+    /**
+     * Return true if binary values in the data set are big endian.
+     * @return true if binary values are big endian.
+     */
+    public boolean isBigEndian() {
+        return bigEndian;
+    }
+
+    /**
+     * Return true if the header contains the attribute.
+     * @param tag tag of attribute.
+     * @return true if the attribute was found in the file.
+     */
+    public boolean contains(int tag) {
+        return values.containsKey(tag);
+    }
+
+    /**
+     * Return a text attribute without padding.
+     * @param tag tag of attribute.
+     * @return value of attribute. Null if attribute was not found or is empty.
+     */
+    public String getString(int tag) {
+        byte[] value = values.get(tag);
+        if (value == null) {
+            return null;
+        }
+        String string = new String(value, StandardCharsets.ISO_8859_1).trim();
+        //UI values are padded with a null byte.
+        while (!string.isEmpty() && string.charAt(string.length() - 1) == 0) {
+            string = string.substring(0, string.length() - 1).trim();
+        }
+        return string.isEmpty() ? null : string;
+    }
+
+    /**
+     * Return the first value of a multi valued text attribute as a number. Used for DS and IS attributes.
+     * @param tag tag of attribute.
+     * @return first value as a number. Null if attribute was not found or is not a number.
+     */
+    public Double getDouble(int tag) {
+        String[] strings = getStrings(tag);
+        if (strings.length == 0) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(strings[0].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return all values of a multi valued number attribute. Used for DS attributes as ImagePositionPatient.
+     * @param tag tag of attribute.
+     * @return all values as numbers. Null if attribute was not found or a value is not a number.
+     */
+    public double[] getDoubles(int tag) {
+        String[] strings = getStrings(tag);
+        if (strings.length == 0) {
+            return null;
+        }
+        double[] doubles = new double[strings.length];
+        try {
+            for (int i = 0; i < strings.length; i++) {
+                doubles[i] = Double.parseDouble(strings[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return doubles;
+    }
+
+    /**
+     * Return the first value of an IS attribute.
+     * @param tag tag of attribute.
+     * @return first value. Null if attribute was not found or is not a number.
+     */
+    public Integer getInteger(int tag) {
+        Double value = getDouble(tag);
+        return value == null ? null : value.intValue();
+    }
+
+    /**
+     * Return a binary US attribute.
+     * @param tag tag of attribute.
+     * @param defaultValue value to return if the attribute was not found.
+     * @return value of attribute.
+     */
+    public int getUnsignedShort(int tag, int defaultValue) {
+        byte[] value = values.get(tag);
+        if (value == null || value.length < 2) {
+            return defaultValue;
+        }
+        if (bigEndian) {
+            return ((value[0] & 0xFF) << 8) | (value[1] & 0xFF);
+        }
+        return ((value[1] & 0xFF) << 8) | (value[0] & 0xFF);
+    }
+
+    /**
+     * Splits a multi valued text attribute.
+     * @param tag tag of attribute.
+     * @return all values. Empty if attribute was not found.
+     */
+    private String[] getStrings(int tag) {
+        String string = getString(tag);
+        if (string == null) {
+            return new String[0];
+        }
+        return string.split("\\\\");
+    }
+}
@@ -0,0 +1,296 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The first frame of a DICOM image.
+ * Grayscale images are kept as stored pixel values so they can be rendered with any window/level.
+ * Color images are kept as a ready to use RGB image.
+ */
+public class DicomImage {
+
+    private final DicomHeader header;
+    private final int rows;
+    private final int columns;
+    private final int bitsStored;
+    private final boolean signed;
+    private final boolean monochrome1;
+    private int[] storedValues;
+    private BufferedImage colorImage;
+
+    private DicomImage(DicomHeader header, int rows, int columns, int bitsStored, boolean signed, boolean monochrome1) {
+        this.header = header;
+        this.rows = rows;
+        this.columns = columns;
+        this.bitsStored = bitsStored;
+        this.signed = signed;
+        this.monochrome1 = monochrome1;
+    }
+
+    /**
+     * Decodes the first frame of the pixel data.
+     * @param header header of the DICOM file.
+     * @param transferSyntaxUid transfer syntax of the pixel data.
+     * @param pixelData native pixel data as one entry or fragments of encapsulated pixel data.
+     * @return decoded image.
+     * @throws IOException if the transfer syntax or pixel format is not supported.
+     */
+    static DicomImage decode(DicomHeader header, String transferSyntaxUid, List<byte[]> pixelData) throws IOException {
+        int rows = header.getUnsignedShort(DicomHeader.ROWS, 0);
+        int columns = header.getUnsignedShort(DicomHeader.COLUMNS, 0);
+        int bitsAllocated = header.getUnsignedShort(DicomHeader.BITS_ALLOCATED, 16);
+        int bitsStored = header.getUnsignedShort(DicomHeader.BITS_STORED, bitsAllocated);
+        int samplesPerPixel = header.getUnsignedShort(DicomHeader.SAMPLES_PER_PIXEL, 1);
+        boolean signed = header.getUnsignedShort(DicomHeader.PIXEL_REPRESENTATION, 0) == 1;
+        String photometric = header.getString(DicomHeader.PHOTOMETRIC_INTERPRETATION);
+        if (rows == 0 || columns == 0 || pixelData.isEmpty()) {
+            throw new IOException("DICOM file has no image.");
+        }
+        DicomImage image = new DicomImage(header, rows, columns, bitsStored, signed, "MONOCHROME1".equals(photometric));
+        switch (transferSyntaxUid) {
+            case DicomParser.JPEG_BASELINE:
+            case DicomParser.JPEG_EXTENDED:
+                image.decodeJpeg(pixelData.get(0));
+                break;
+
+            case DicomParser.RLE_LOSSLESS:
+                image.decodeNative(decodeRle(pixelData.get(0), rows * columns, bitsAllocated, samplesPerPixel),
+                        false, bitsAllocated, samplesPerPixel, 1);
+                break;
+
+            case DicomParser.IMPLICIT_VR_LITTLE_ENDIAN:
+            case DicomParser.EXPLICIT_VR_LITTLE_ENDIAN:
+            case DicomParser.DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN:
+            case DicomParser.EXPLICIT_VR_BIG_ENDIAN:
+                image.decodeNative(pixelData.get(0), header.isBigEndian(), bitsAllocated, samplesPerPixel,
+                        header.getUnsignedShort(DicomHeader.PLANAR_CONFIGURATION, 0));
+                break;
+
+            default:
+                throw new IOException("DICOM transfer syntax is not supported: " + transferSyntaxUid);
+        }
+        return image;
+    }
+
+    /**
+     * Reads the first frame of native (uncompressed) pixel data.
+     * @param pixels pixel data.
+     * @param bigEndian true if 16 bit values are big endian.
+     * @param bitsAllocated bits used for each sample.
+     * @param samplesPerPixel 1 for grayscale, 3 for color.
+     * @param planarConfiguration 0 if color samples are interleaved, 1 if each color has its own plane.
+     * @throws IOException if the pixel format is not supported.
+     */
+    private void decodeNative(byte[] pixels, boolean bigEndian, int bitsAllocated, int samplesPerPixel,
+                              int planarConfiguration) throws IOException {
+        int pixelCount = rows * columns;
+        if (samplesPerPixel == 3 && bitsAllocated == 8) {
+            if (pixels.length < pixelCount * 3) {
+                throw new IOException("DICOM pixel data is shorter than the image size.");
+            }
+            colorImage = new BufferedImage(columns, rows, BufferedImage.TYPE_INT_RGB);
+            for (int i = 0; i < pixelCount; i++) {
+                int r, g, b;
+                if (planarConfiguration == 0) {
+                    r = pixels[i * 3] & 0xFF;
+                    g = pixels[i * 3 + 1] & 0xFF;
+                    b = pixels[i * 3 + 2] & 0xFF;
+                } else {
+                    r = pixels[i] & 0xFF;
+                    g = pixels[pixelCount + i] & 0xFF;
+                    b = pixels[2 * pixelCount + i] & 0xFF;
+                }
+                colorImage.setRGB(i % columns, i / columns, (r << 16) | (g << 8) | b);
+            }
+        } else if (samplesPerPixel == 1 && (bitsAllocated == 8 || bitsAllocated == 16)) {
+            int bytesPerPixel = bitsAllocated / 8;
+            if (pixels.length < pixelCount * bytesPerPixel) {
+                throw new IOException("DICOM pixel data is shorter than the image size.");
+            }
+            storedValues = new int[pixelCount];
+            for (int i = 0; i < pixelCount; i++) {
+                int value;
+                if (bytesPerPixel == 1) {
+                    value = pixels[i] & 0xFF;
+                } else if (bigEndian) {
+                    value = ((pixels[i * 2] & 0xFF) << 8) | (pixels[i * 2 + 1] & 0xFF);
+                } else {
+                    value = ((pixels[i * 2 + 1] & 0xFF) << 8) | (pixels[i * 2] & 0xFF);
+                }
+                storedValues[i] = toStoredValue(value);
+            }
+        } else {
+            throw new IOException("DICOM pixel format is not supported. Samples: " + samplesPerPixel + ", bits: " + bitsAllocated);
+        }
+    }
+
+    /**
+     * Decodes a JPEG compressed frame.
+     * @param jpeg the compressed frame.
+     * @throws IOException if decoding fails.
+     */
+    private void decodeJpeg(byte[] jpeg) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+        if (decoded == null) {
+            throw new IOException("Could not decode JPEG compressed DICOM pixel data.");
+        }
+        if (decoded.getRaster().getNumBands() == 1) {
+            Raster raster = decoded.getRaster();
+            storedValues = raster.getSamples(0, 0, columns, rows, 0, new int[rows * columns]);
+        } else {
+            colorImage = decoded;
+        }
+    }
+
+    /**
+     * Decodes a RLE lossless compressed frame into native little endian pixel data.
+     * Each byte of a sample is compressed in its own segment, the most significant byte first.
+     * @param rle the compressed frame.
+     * @param pixelCount number of pixels in the frame.
+     * @param bitsAllocated bits used for each sample.
+     * @param samplesPerPixel 1 for grayscale, 3 for color.
+     * @return native pixel data.
+     * @throws IOException if the data is not valid.
+     */
+    private static byte[] decodeRle(byte[] rle, int pixelCount, int bitsAllocated, int samplesPerPixel) throws IOException {
+        int bytesPerSample = bitsAllocated / 8;
+        int segmentCount = readLittleEndianInt(rle, 0);
+        if (segmentCount != bytesPerSample * samplesPerPixel || segmentCount > 15) {
+            throw new IOException("RLE data has an unexpected number of segments: " + segmentCount);
+        }
+        byte[] pixels = new byte[pixelCount * segmentCount];
+        for (int segment = 0; segment < segmentCount; segment++) {
+            int start = readLittleEndianInt(rle, 4 + segment * 4);
+            int end = segment + 1 < segmentCount ? readLittleEndianInt(rle, 8 + segment * 4) : rle.length;
+            int sample = segment / bytesPerSample;
+            //Segments come most significant byte first, native data is little endian.
+            int byteInSample = bytesPerSample - 1 - segment % bytesPerSample;
+            int pixel = 0;
+            int position = start;
+            while (position < end && pixel < pixelCount) {
+                int control = rle[position++];
+                if (control >= 0) {
+                    for (int i = 0; i <= control && pixel < pixelCount && position < end; i++) {
+                        setRleByte(pixels, pixel++, rle[position++], sample, byteInSample, bytesPerSample, samplesPerPixel);
+                    }
+                } else if (control != -128 && position < end) {
+                    byte value = rle[position++];
+                    for (int i = 0; i < 1 - control && pixel < pixelCount; i++) {
+                        setRleByte(pixels, pixel++, value, sample, byteInSample, bytesPerSample, samplesPerPixel);
+                    }
+                }
+            }
+        }
+        return pixels;
+    }
+
+    private static void setRleByte(byte[] pixels, int pixel, byte value, int sample, int byteInSample,
+                                   int bytesPerSample, int samplesPerPixel) {
+        pixels[(pixel * samplesPerPixel + sample) * bytesPerSample + byteInSample] = value;
+    }
+
+    private static int readLittleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8
+                | (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    /**
+     * Masks away bits which are not stored and sign extends signed values.
+     * @param value value as read from the pixel data.
+     * @return stored value.
+     */
+    private int toStoredValue(int value) {
+        value &= (1 << bitsStored) - 1;
+        if (signed && (value & (1 << (bitsStored - 1))) != 0) {
+            value -= 1 << bitsStored;
+        }
+        return value;
+    }
+
+    /**
+     * Return true if the image is grayscale and can be rendered with window/level.
+     * @return true if the image is grayscale.
+     */
+    public boolean isGrayscale() {
+        return storedValues != null;
+    }
+
+    /**
+     * Return the smallest value a pixel can have.
+     * @return smallest stored value.
+     */
+    public int getMinStoredValue() {
+        return signed ? -(1 << (bitsStored - 1)) : 0;
+    }
+
+    /**
+     * Return the largest value a pixel can have.
+     * @return largest stored value.
+     */
+    public int getMaxStoredValue() {
+        return signed ? (1 << (bitsStored - 1)) - 1 : (1 << bitsStored) - 1;
+    }
+
+    public int getBitsStored() {
+        return bitsStored;
+    }
+
+    public boolean isSigned() {
+        return signed;
+    }
+
+    public boolean isMonochrome1() {
+        return monochrome1;
+    }
+
+    public DicomHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Return the stored value of the smallest and largest pixel in the image.
+     * @return array with min value and max value.
+     */
+    public int[] getStoredValueRange() {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int value : storedValues) {
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        return new int[]{min, max};
+    }
+
+    /**
+     * Renders a grayscale image with a lookup table from stored value to 8 bit gray.
+     * @param lookupTable lookup table with one entry for each stored value from getMinStoredValue().
+     * @return 8 bit grayscale image.
+     */
+    public BufferedImage render(byte[] lookupTable) {
+        BufferedImage image = new BufferedImage(columns, rows, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] gray = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int offset = getMinStoredValue();
+        for (int i = 0; i < storedValues.length; i++) {
+            gray[i] = lookupTable[storedValues[i] - offset];
+        }
+        return image;
+    }
+
+    /**
+     * Return the color image.
+     * @return the color image. Null if the image is grayscale.
+     */
+    public BufferedImage getColorImage() {
+        return colorImage;
+    }
+}
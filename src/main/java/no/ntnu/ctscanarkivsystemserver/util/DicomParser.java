@@ -0,0 +1,315 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming parser for DICOM files (.IMA).
+ * The parser reads the file from start to end and stops when it reaches the pixel data, so reading only
+ * the header never reads more of the stream than the attributes before the pixel data.
+ * Supported transfer syntaxes: implicit VR little endian, explicit VR little and big endian,
+ * deflated explicit VR little endian, RLE lossless and JPEG baseline/extended.
+ */
+public class DicomParser {
+
+    public static final String IMPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2";
+    public static final String EXPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2.1";
+    public static final String DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN = "1.2.840.10008.1.2.1.99";
+    public static final String EXPLICIT_VR_BIG_ENDIAN = "1.2.840.10008.1.2.2";
+    public static final String JPEG_BASELINE = "1.2.840.10008.1.2.4.50";
+    public static final String JPEG_EXTENDED = "1.2.840.10008.1.2.4.51";
+    public static final String RLE_LOSSLESS = "1.2.840.10008.1.2.5";
+
+    private static final int PIXEL_DATA = 0x7FE00010;
+    private static final int ITEM = 0xFFFEE000;
+    private static final int ITEM_DELIMITATION = 0xFFFEE00D;
+    private static final int SEQUENCE_DELIMITATION = 0xFFFEE0DD;
+    private static final long UNDEFINED_LENGTH = 0xFFFFFFFFL;
+    //Attribute values larger than this are skipped, the system only needs short values from the header.
+    private static final int MAX_STORED_VALUE_LENGTH = 1024;
+    //Value representations which have a 4 byte value length in explicit VR.
+    private static final Set<String> LONG_LENGTH_VRS = new HashSet<>(Arrays.asList(
+            "OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV"));
+
+    private DataInputStream input;
+    private boolean bigEndian;
+    private boolean explicitVr = true;
+    private String transferSyntaxUid = IMPLICIT_VR_LITTLE_ENDIAN;
+
+    private DicomParser(InputStream input) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+    }
+
+    /**
+     * Reads all attributes before the pixel data. The pixel data is not read.
+     * @param input stream of a DICOM file. The stream is not closed.
+     * @return the header of the file.
+     * @throws IOException if reading fails or the file is not a valid DICOM file.
+     */
+    public static DicomHeader readHeader(InputStream input) throws IOException {
+        DicomParser parser = new DicomParser(input);
+        DicomHeader header = new DicomHeader();
+        parser.readDataSet(header, false);
+        return header;
+    }
+
+    /**
+     * Reads the header and the pixel data of a DICOM file.
+     * @param input stream of a DICOM file. The stream is not closed.
+     * @return the image in the file.
+     * @throws IOException if reading fails, the file has no pixel data or the transfer syntax is not supported.
+     */
+    public static DicomImage readImage(InputStream input) throws IOException {
+        DicomParser parser = new DicomParser(input);
+        DicomHeader header = new DicomHeader();
+        List<byte[]> pixelData = parser.readDataSet(header, true);
+        if (pixelData == null) {
+            throw new IOException("DICOM file has no pixel data.");
+        }
+        return DicomImage.decode(header, parser.transferSyntaxUid, pixelData);
+    }
+
+    /**
+     * Reads the file meta information and then the data set.
+     * @param header header to put the attributes into.
+     * @param readPixelData true to read the pixel data.
+     * @return pixel data, one entry for native pixel data or one entry per fragment for encapsulated pixel data.
+     * Null if the pixel data was not read or not found.
+     * @throws IOException if reading fails.
+     */
+    private List<byte[]> readDataSet(DicomHeader header, boolean readPixelData) throws IOException {
+        if (readPreamble()) {
+            readFileMetaInformation(header);
+        } else {
+            //Files without preamble are old ACR-NEMA files which always use implicit VR little endian.
+            explicitVr = false;
+        }
+        header.setBigEndian(bigEndian);
+        while (true) {
+            int tag;
+            try {
+                tag = readTag();
+            } catch (EOFException e) {
+                return null;
+            }
+            long length = readValueLength(tag);
+            if (tag == PIXEL_DATA) {
+                return readPixelData ? readPixelData(length) : null;
+            } else if (length == UNDEFINED_LENGTH) {
+                skipSequence();
+            } else if (length <= MAX_STORED_VALUE_LENGTH) {
+                byte[] value = new byte[(int) length];
+                input.readFully(value);
+                header.put(tag, value);
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    /**
+     * Reads the 128 byte preamble and the "DICM" prefix if they exist.
+     * @return true if the file has a preamble.
+     * @throws IOException if reading fails.
+     */
+    private boolean readPreamble() throws IOException {
+        byte[] preamble = new byte[132];
+        input.mark(preamble.length);
+        int read = 0;
+        while (read < preamble.length) {
+            int count = input.read(preamble, read, preamble.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        if (read == preamble.length && new String(preamble, 128, 4, StandardCharsets.US_ASCII).equals("DICM")) {
+            return true;
+        }
+        input.reset();
+        return false;
+    }
+
+    /**
+     * Reads group 0002 which is always explicit VR little endian and sets up the transfer syntax of the data set.
+     * @param header header to put the attributes into.
+     * @throws IOException if reading fails or the transfer syntax is not supported.
+     */
+    private void readFileMetaInformation(DicomHeader header) throws IOException {
+        bigEndian = false;
+        explicitVr = true;
+        while (true) {
+            input.mark(2);
+            int group = readUnsignedShort();
+            input.reset();
+            if (group != 0x0002) {
+                break;
+            }
+            int tag = readTag();
+            long length = readValueLength(tag);
+            if (length > MAX_STORED_VALUE_LENGTH) {
+                skipFully(length);
+            } else {
+                byte[] value = new byte[(int) length];
+                input.readFully(value);
+                header.put(tag, value);
+            }
+        }
+        String transferSyntax = header.getString(DicomHeader.TRANSFER_SYNTAX_UID);
+        if (transferSyntax != null) {
+            transferSyntaxUid = transferSyntax;
+        }
+        switch (transferSyntaxUid) {
+            case IMPLICIT_VR_LITTLE_ENDIAN:
+                explicitVr = false;
+                break;
+
+            case EXPLICIT_VR_BIG_ENDIAN:
+                bigEndian = true;
+                break;
+
+            case DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN:
+                input = new DataInputStream(new BufferedInputStream(new InflaterInputStream(input, new Inflater(true))));
+                break;
+
+            default:
+                //All other transfer syntaxes use explicit VR little endian for the data set.
+        }
+    }
+
+    /**
+     * Reads the pixel data.
+     * @param length length of pixel data. Undefined length means the pixel data is encapsulated in fragments.
+     * @return native pixel data as one entry or all fragments of encapsulated pixel data.
+     * @throws IOException if reading fails.
+     */
+    private List<byte[]> readPixelData(long length) throws IOException {
+        List<byte[]> pixelData = new ArrayList<>();
+        if (length != UNDEFINED_LENGTH) {
+            pixelData.add(readValue(length));
+            return pixelData;
+        }
+        boolean offsetTable = true;
+        while (true) {
+            int tag = readTag();
+            long itemLength = readUnsignedInt();
+            if (tag == SEQUENCE_DELIMITATION) {
+                return pixelData;
+            } else if (tag != ITEM) {
+                throw new IOException("Unexpected tag in encapsulated pixel data: " + Integer.toHexString(tag));
+            }
+            if (offsetTable) {
+                //The first item is the basic offset table, which is not needed.
+                skipFully(itemLength);
+                offsetTable = false;
+            } else {
+                pixelData.add(readValue(itemLength));
+            }
+        }
+    }
+
+    /**
+     * Skips a sequence with undefined length, including all nested sequences.
+     * @throws IOException if reading fails.
+     */
+    private void skipSequence() throws IOException {
+        while (true) {
+            int tag = readTag();
+            long length = readUnsignedInt();
+            if (tag == SEQUENCE_DELIMITATION) {
+                return;
+            } else if (tag == ITEM && length == UNDEFINED_LENGTH) {
+                skipItem();
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    /**
+     * Skips an item with undefined length.
+     * @throws IOException if reading fails.
+     */
+    private void skipItem() throws IOException {
+        while (true) {
+            int tag = readTag();
+            if (tag == ITEM_DELIMITATION) {
+                readUnsignedInt();
+                return;
+            }
+            long length = readValueLength(tag);
+            if (length == UNDEFINED_LENGTH) {
+                skipSequence();
+            } else {
+                skipFully(length);
+            }
+        }
+    }
+
+    /**
+     * Reads the VR (if explicit) and the value length of an attribute.
+     * Items and delimiters never have a VR.
+     * @param tag tag of the attribute.
+     * @return value length.
+     * @throws IOException if reading fails.
+     */
+    private long readValueLength(int tag) throws IOException {
+        if (explicitVr && (tag >>> 16) != 0xFFFE) {
+            byte[] vr = new byte[2];
+            input.readFully(vr);
+            if (LONG_LENGTH_VRS.contains(new String(vr, StandardCharsets.US_ASCII))) {
+                readUnsignedShort();
+                return readUnsignedInt();
+            }
+            return readUnsignedShort();
+        }
+        return readUnsignedInt();
+    }
+
+    private int readTag() throws IOException {
+        int group = readUnsignedShort();
+        int element = readUnsignedShort();
+        return (group << 16) | element;
+    }
+
+    private int readUnsignedShort() throws IOException {
+        int b1 = input.readUnsignedByte();
+        int b2 = input.readUnsignedByte();
+        return bigEndian ? (b1 << 8) | b2 : (b2 << 8) | b1;
+    }
+
+    private long readUnsignedInt() throws IOException {
+        long first = readUnsignedShort();
+        long second = readUnsignedShort();
+        return bigEndian ? (first << 16) | second : (second << 16) | first;
+    }
+
+    private byte[] readValue(long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("DICOM value is too large: " + length);
+        }
+        byte[] value = new byte[(int) length];
+        input.readFully(value);
+        return value;
+    }
+
+    private void skipFully(long length) throws IOException {
+        while (length > 0) {
+            long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("Unexpected end of DICOM file.");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+/**
+ * Finds reduced resolution versions of an image which are stored in the image file itself:
+ * the EXIF thumbnail of a JPEG, or a reduced resolution page (IFD) of a TIFF.
+ * Only the headers and the bytes of the preview are read, so the stream should support range reads.
+ */
+public class EmbeddedPreviewReader {
+
+    //Only this many TIFF pages are checked for a preview, so stacks with thousands of pages are not scanned.
+    private static final int MAX_TIFF_PAGES = 8;
+    //EXIF thumbnails must fit in the 64KB APP1 segment.
+    private static final int MAX_EXIF_THUMBNAIL_BYTES = 64 * 1024;
+    //How much the aspect ratio of a preview may differ from the image. EXIF thumbnails are often letterboxed.
+    private static final double MAX_ASPECT_DIFFERENCE = 0.02;
+
+    private static final int JPEG_SOI = 0xFFD8;
+    private static final int JPEG_SOS = 0xFFDA;
+    private static final int JPEG_EOI = 0xFFD9;
+    private static final int JPEG_APP1 = 0xFFE1;
+    private static final int EXIF_THUMBNAIL_OFFSET = 0x0201;
+    private static final int EXIF_THUMBNAIL_LENGTH = 0x0202;
+
+    private EmbeddedPreviewReader() {
+    }
+
+    /**
+     * Reads the smallest embedded preview which is at least the given size and has the aspect ratio of the image.
+     * @param input stream of the image file. The stream is not closed.
+     * @param fileType file type of the image without dot.
+     * @param minSize smallest longest side the preview can have.
+     * @return the preview. Null if the file has no suitable preview.
+     * @throws IOException if reading the file failed.
+     */
+    public static BufferedImage readPreview(ImageInputStream input, String fileType, int minSize) throws IOException {
+        switch (fileType.toLowerCase()) {
+            case "jpg":
+            case "jpeg":
+                return readExifThumbnail(input, minSize);
+
+            case "tif":
+            case "tiff":
+                return readReducedTiffPage(input, minSize);
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads the thumbnail in IFD1 of the EXIF segment of a JPEG.
+     * @param input stream of the JPEG file.
+     * @param minSize smallest longest side the thumbnail can have.
+     * @return the thumbnail. Null if there is none or it is too small.
+     * @throws IOException if reading the file failed.
+     */
+    private static BufferedImage readExifThumbnail(ImageInputStream input, int minSize) throws IOException {
+        input.seek(0);
+        input.setByteOrder(ByteOrder.BIG_ENDIAN);
+        if (input.readUnsignedShort() != JPEG_SOI) {
+            return null;
+        }
+        byte[] thumbnail = null;
+        int width = 0;
+        int height = 0;
+        while (width == 0) {
+            int marker = input.readUnsignedShort();
+            if ((marker & 0xFF00) != 0xFF00 || marker == JPEG_SOS || marker == JPEG_EOI) {
+                break;
+            }
+            int length = input.readUnsignedShort();
+            long segmentStart = input.getStreamPosition();
+            if (marker == JPEG_APP1 && thumbnail == null) {
+                thumbnail = readExifThumbnailBytes(input, segmentStart);
+                input.setByteOrder(ByteOrder.BIG_ENDIAN);
+            } else if (isStartOfFrame(marker)) {
+                input.readUnsignedByte();
+                height = input.readUnsignedShort();
+                width = input.readUnsignedShort();
+            }
+            input.seek(segmentStart + length - 2);
+        }
+        if (thumbnail == null || width == 0 || height == 0) {
+            return null;
+        }
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(thumbnail));
+        return isSuitable(preview, width, height, minSize) ? preview : null;
+    }
+
+    /**
+     * Reads the bytes of the EXIF thumbnail from an APP1 segment.
+     * @param input stream of the JPEG file.
+     * @param segmentStart position of the segment data.
+     * @return the JPEG compressed thumbnail. Null if the segment is not EXIF or has no thumbnail.
+     * @throws IOException if reading the file failed.
+     */
+    private static byte[] readExifThumbnailBytes(ImageInputStream input, long segmentStart) throws IOException {
+        byte[] header = new byte[6];
+        input.readFully(header);
+        if (header[0] != 'E' || header[1] != 'x' || header[2] != 'i' || header[3] != 'f') {
+            return null;
+        }
+        long tiffStart = segmentStart + 6;
+        int byteOrder = input.readUnsignedShort();
+        if (byteOrder == 0x4949) {
+            input.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        } else if (byteOrder != 0x4D4D) {
+            return null;
+        }
+        input.readUnsignedShort();
+        //Skip IFD0 to get to IFD1, which describes the thumbnail.
+        input.seek(tiffStart + input.readUnsignedInt());
+        int ifd0Entries = input.readUnsignedShort();
+        input.seek(input.getStreamPosition() + ifd0Entries * 12L);
+        long ifd1 = input.readUnsignedInt();
+        if (ifd1 == 0) {
+            return null;
+        }
+        input.seek(tiffStart + ifd1);
+        int entries = input.readUnsignedShort();
+        long offset = -1;
+        long length = -1;
+        for (int i = 0; i < entries; i++) {
+            int tag = input.readUnsignedShort();
+            int type = input.readUnsignedShort();
+            input.readUnsignedInt();
+            //SHORT values are stored in the first two bytes of the value field.
+            long value = type == 3 ? input.readUnsignedShort() : input.readUnsignedInt();
+            if (type == 3) {
+                input.readUnsignedShort();
+            }
+            if (tag == EXIF_THUMBNAIL_OFFSET) {
+                offset = value;
+            } else if (tag == EXIF_THUMBNAIL_LENGTH) {
+                length = value;
+            }
+        }
+        if (offset < 0 || length <= 0 || length > MAX_EXIF_THUMBNAIL_BYTES) {
+            return null;
+        }
+        byte[] thumbnail = new byte[(int) length];
+        input.seek(tiffStart + offset);
+        input.readFully(thumbnail);
+        return thumbnail;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        //SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC) which use the same range.
+        return marker >= 0xFFC0 && marker <= 0xFFCF && marker != 0xFFC4 && marker != 0xFFC8 && marker != 0xFFCC;
+    }
+
+    /**
+     * Reads the smallest reduced resolution page of a TIFF. Only the first pages are checked.
+     * @param input stream of the TIFF file.
+     * @param minSize smallest longest side the page can have.
+     * @return the page. Null if the TIFF has no smaller page which is large enough.
+     * @throws IOException if reading the file failed.
+     */
+    private static BufferedImage readReducedTiffPage(ImageInputStream input, int minSize) throws IOException {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName("tiff");
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            input.seek(0);
+            reader.setInput(input, false, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            int bestPage = -1;
+            int bestSize = Math.max(width, height);
+            for (int page = 1; page < MAX_TIFF_PAGES; page++) {
+                int pageWidth;
+                int pageHeight;
+                try {
+                    pageWidth = reader.getWidth(page);
+                    pageHeight = reader.getHeight(page);
+                } catch (IndexOutOfBoundsException e) {
+                    break;
+                }
+                int pageSize = Math.max(pageWidth, pageHeight);
+                if (pageSize >= minSize && pageSize < bestSize && hasAspectRatio(pageWidth, pageHeight, width, height)) {
+                    bestPage = page;
+                    bestSize = pageSize;
+                }
+            }
+            return bestPage < 0 ? null : reader.read(bestPage);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    private static boolean isSuitable(BufferedImage preview, int width, int height, int minSize) {
+        return preview != null && Math.max(preview.getWidth(), preview.getHeight()) >= minSize
+                && hasAspectRatio(preview.getWidth(), preview.getHeight(), width, height);
+    }
+
+    private static boolean hasAspectRatio(int previewWidth, int previewHeight, int width, int height) {
+        double previewAspect = previewWidth / (double) previewHeight;
+        double aspect = width / (double) height;
+        return Math.abs(previewAspect - aspect) <= aspect * MAX_ASPECT_DIFFERENCE;
+    }
+}
@@ -0,0 +1,95 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import no.ntnu.ctscanarkivsystemserver.model.RawVolumeFormat;
+
+/**
+ * Parser for MetaImage headers (.mhd), the sidecar format used by ITK and most CT reconstruction software
+ * to describe a .raw volume. Only the fields needed to read the voxels are used.
+ */
+public class MetaImageHeader {
+
+    private MetaImageHeader() {
+    }
+
+    /**
+     * Parses a MetaImage header.
+     * @param header content of .mhd file.
+     * @return format of the raw volume. Fields not in the header are null.
+     * @throws IllegalArgumentException if a value is not valid.
+     */
+    public static RawVolumeFormat parse(String header) throws IllegalArgumentException {
+        RawVolumeFormat format = new RawVolumeFormat();
+        for (String line : header.split("\\r?\\n")) {
+            int separator = line.indexOf('=');
+            if (separator < 0) {
+                continue;
+            }
+            String key = line.substring(0, separator).trim();
+            String[] values = line.substring(separator + 1).trim().split("\\s+");
+            try {
+                switch (key) {
+                    case "DimSize":
+                        format.setWidth(Integer.parseInt(values[0]));
+                        format.setHeight(values.length > 1 ? Integer.parseInt(values[1]) : 1);
+                        format.setDepth(values.length > 2 ? Integer.parseInt(values[2]) : 1);
+                        break;
+
+                    case "ElementSpacing":
+                        format.setSpacingX(Double.parseDouble(values[0]));
+                        format.setSpacingY(values.length > 1 ? Double.parseDouble(values[1]) : 1);
+                        format.setSpacingZ(values.length > 2 ? Double.parseDouble(values[2]) : 1);
+                        break;
+
+                    case "ElementByteOrderMSB":
+                    case "BinaryDataByteOrderMSB":
+                        format.setBigEndian(Boolean.parseBoolean(values[0]));
+                        break;
+
+                    case "HeaderSize":
+                        //-1 means the voxels are at the end of the file, the offset is found when the size is known.
+                        long headerBytes = Long.parseLong(values[0]);
+                        if (headerBytes < -1) {
+                            throw new IllegalArgumentException("MetaImage header has invalid " + key + ": " + line);
+                        }
+                        format.setHeaderBytes(headerBytes);
+                        break;
+
+                    case "ElementType":
+                        setElementType(format, values[0]);
+                        break;
+
+                    default:
+                        //Other fields are not needed.
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("MetaImage header has invalid " + key + ": " + line);
+            }
+        }
+        return format;
+    }
+
+    private static void setElementType(RawVolumeFormat format, String elementType) throws IllegalArgumentException {
+        switch (elementType) {
+            case "MET_UCHAR":
+                format.setBitDepth(8);
+                break;
+
+            case "MET_USHORT":
+                format.setBitDepth(16);
+                format.setSigned(false);
+                break;
+
+            case "MET_SHORT":
+                format.setBitDepth(16);
+                format.setSigned(true);
+                break;
+
+            case "MET_FLOAT":
+                format.setBitDepth(32);
+                break;
+
+            default:
+                throw new IllegalArgumentException("MetaImage element type is not supported: " + elementType);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.StringJoiner;
+
+/**
+ * Makes and reads the cursors of paged listings. A cursor holds the sort keys of the last item of a page,
+ * and the next page starts after that item. Clients should not read cursors, only send them back.
+ */
+public final class PageCursor {
+
+    private static final String KEY_SEPARATOR = "\u001f";
+
+    private PageCursor() {
+    }
+
+    /**
+     * Makes a cursor of the sort keys of an item.
+     * @param keys sort keys of the last item of a page.
+     * @return cursor.
+     */
+    public static String encode(Object... keys) {
+        StringJoiner joiner = new StringJoiner(KEY_SEPARATOR);
+        for(Object key:keys) {
+            joiner.add(String.valueOf(key));
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(joiner.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the sort keys of a cursor.
+     * @param cursor cursor made by encode. Null or empty for the first page.
+     * @param keyCount number of sort keys the cursor must have.
+     * @return sort keys. Null for the first page.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public static String[] decode(String cursor, int keyCount) throws IllegalArgumentException {
+        if(cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        String[] keys = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split(KEY_SEPARATOR, -1);
+        if(keys.length != keyCount) {
+            throw new IllegalArgumentException("Cursor is not valid: " + cursor);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,688 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import lombok.Data;
+import no.ntnu.ctscanarkivsystemserver.config.SearchProperties;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectSearchResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory inverted index of projects, used for project search when search.engine is memory.
+ * Every project is a document with the lower case text of its name, description, owner, members, project tags,
+ * file tags and file names. The key of a posting list is a trigram (three characters) of the text, and a posting
+ * list is a sorted array of document numbers. A search word is looked up by intersecting the posting lists of its
+ * trigrams, and the few documents left are checked for the whole word field by field.
+ * Documents are updated one by one when projects change, and saved to a snapshot file a while after the last
+ * change and on shutdown, so the index is ready right away when the server starts.
+ */
+@Service
+public class ProjectSearchIndex {
+
+    private static final int GRAM_LENGTH = 3;
+    private static final String FIELD_SEPARATOR = "\u001f";
+    //Fields a search word can match, in the order they are listed in the result info of a project.
+    private static final String[] RESULT_INFO = {"name", "description", "date", "owner", "member", "project_Tag",
+            "file_tag", "file_name"};
+    private static final int DATE_FIELD = 2;
+    //How much a match in each field counts when results are ranked.
+    private static final int[] FIELD_WEIGHTS = {16, 4, 8, 2, 2, 8, 4, 1};
+    //First int of a snapshot file, changed when the format of the file changes.
+    private static final int SNAPSHOT_FORMAT = 0x43545332;
+    //Longest string read from a snapshot, so a broken file does not make huge arrays.
+    private static final int MAX_SNAPSHOT_STRING_BYTES = 16 * 1024 * 1024;
+
+    private final boolean enabled;
+    private final Path snapshotFile;
+    private final long snapshotDelaySeconds;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<UUID, Integer> documentNumbers = new HashMap<>();
+    private final List<IndexedDocument> documents = new ArrayList<>();
+    private final Map<String, PostingList> postings = new HashMap<>();
+    //When each project was last changed or removed, so a rebuild does not overwrite newer changes.
+    private final Map<UUID, Long> changedAt = new HashMap<>();
+    private long changeCount;
+    private boolean loaded;
+    private final ScheduledExecutorService snapshotWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-index-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean snapshotScheduled;
+
+    @Autowired
+    public ProjectSearchIndex(SearchProperties searchProperties) {
+        this.enabled = searchProperties.isMemoryEngine();
+        String snapshot = searchProperties.getIndexSnapshotFile();
+        this.snapshotFile = snapshot == null || snapshot.trim().isEmpty()
+                ? Paths.get(System.getProperty("user.home"), ".ct-scan-arkivsystem", "project-search.index") : Paths.get(snapshot.trim());
+        this.snapshotDelaySeconds = searchProperties.getIndexSnapshotDelaySeconds();
+        if (enabled) {
+            loadSnapshot();
+        }
+    }
+
+    /**
+     * Return true if project search uses this index.
+     * @return true if search.engine is memory.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Return true if the index was loaded from a snapshot or has been built.
+     * @return true if the index can be searched.
+     */
+    public boolean isLoaded() {
+        lock.readLock().lock();
+        try {
+            return loaded;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Return a number which grows with every change, used to start a rebuild with.
+     * @return number of changes so far.
+     */
+    public long getChangeCount() {
+        lock.readLock().lock();
+        try {
+            return changeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds or replaces the document of a project. File names already in the index are kept.
+     * @param document document of project.
+     */
+    public void put(Document document) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            putDocument(document);
+            changedAt.put(document.getProjectId(), ++changeCount);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleSnapshot();
+    }
+
+    /**
+     * Removes the document of a project.
+     * @param projectId id of project.
+     */
+    public void remove(UUID projectId) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            removeDocument(projectId);
+            changedAt.put(projectId, ++changeCount);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleSnapshot();
+    }
+
+    /**
+     * Adds names of files to the document of a project, for example when files are uploaded.
+     * @param projectId id of project.
+     * @param fileNames names of files including file type.
+     */
+    public void addFileNames(UUID projectId, Collection<String> fileNames) {
+        if (!enabled || fileNames.isEmpty()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Integer number = documentNumbers.get(projectId);
+            if (number == null) {
+                return;
+            }
+            Document document = copy(documents.get(number).document);
+            if (!document.getFileNames().addAll(fileNames)) {
+                return;
+            }
+            putDocument(document);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        scheduleSnapshot();
+    }
+
+    /**
+     * Replaces all documents with documents built from the database.
+     * Projects which changed after the rebuild started keep their document, and file names already in the index
+     * are kept since the database does not know all of them.
+     * @param rebuilt documents of all projects.
+     * @param startChangeCount change count when the documents were read.
+     */
+    public void replaceAll(Collection<Document> rebuilt, long startChangeCount) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<UUID> rebuiltIds = new HashSet<>();
+            for (Document document : rebuilt) {
+                rebuiltIds.add(document.getProjectId());
+                if (changedAt.getOrDefault(document.getProjectId(), 0L) <= startChangeCount) {
+                    putDocument(document);
+                }
+            }
+            for (UUID projectId : new ArrayList<>(documentNumbers.keySet())) {
+                if (!rebuiltIds.contains(projectId) && changedAt.getOrDefault(projectId, 0L) <= startChangeCount) {
+                    removeDocument(projectId);
+                }
+            }
+            changedAt.clear();
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        System.out.println("Project search index has " + rebuilt.size() + " projects.");
+        scheduleSnapshot();
+    }
+
+    /**
+     * Searches for projects where the search word is part of the name, description, owner, members (first name,
+     * last name, email), project tags, file tags or file names, or is the creation date.
+     * Projects are ranked by which fields match, and then by name.
+     * @param searchWord word to search for.
+     * @param date search word as a date (yyyy-MM-dd). Null if the search word is not a date.
+     * @param tagFilter names of tags a project must have all of. Empty for no filter.
+     * @return matching projects with where the search word was found, best match first.
+     */
+    public List<ProjectSearchResult> search(String searchWord, String date, Collection<String> tagFilter) {
+        String word = searchWord.toLowerCase();
+        List<ScoredResult> scored = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            PostingList candidates = getCandidates(word);
+            for (int i = 0; i < candidates.size; i++) {
+                IndexedDocument indexed = documents.get(candidates.numbers[i]);
+                if (indexed != null && indexed.document.getProjectTags().containsAll(tagFilter)) {
+                    addIfMatching(indexed, word, date, scored);
+                }
+            }
+            if (date != null && word.length() >= GRAM_LENGTH) {
+                //The date is not part of the text, so projects created on the date are found separately.
+                for (IndexedDocument indexed : documents) {
+                    if (indexed != null && date.equals(indexed.fields[DATE_FIELD]) && !candidates.contains(indexed.number)
+                            && indexed.document.getProjectTags().containsAll(tagFilter)) {
+                        addIfMatching(indexed, word, date, scored);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        scored.sort(Comparator.comparingInt((ScoredResult result) -> -result.score)
+                .thenComparing(result -> result.result.getProjectName(), Comparator.nullsLast(String.CASE_INSENSITIVE_ORDER)));
+        List<ProjectSearchResult> results = new ArrayList<>();
+        for (ScoredResult result : scored) {
+            results.add(result.result);
+        }
+        return results;
+    }
+
+    /**
+     * Gets the documents which can contain the word: the intersection of the posting lists of its trigrams.
+     * Words shorter than a trigram can be anywhere, so all documents are candidates.
+     */
+    private PostingList getCandidates(String word) {
+        if (word.length() < GRAM_LENGTH) {
+            PostingList all = new PostingList();
+            for (IndexedDocument indexed : documents) {
+                if (indexed != null) {
+                    all.add(indexed.number);
+                }
+            }
+            return all;
+        }
+        List<PostingList> lists = new ArrayList<>();
+        for (String gram : getGrams(word)) {
+            PostingList list = postings.get(gram);
+            if (list == null) {
+                return new PostingList();
+            }
+            lists.add(list);
+        }
+        //Intersecting from the shortest list keeps every step small.
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        PostingList candidates = lists.get(0);
+        for (int i = 1; i < lists.size() && candidates.size > 0; i++) {
+            candidates = candidates.intersect(lists.get(i));
+        }
+        return candidates;
+    }
+
+    private void addIfMatching(IndexedDocument indexed, String word, String date, List<ScoredResult> scored) {
+        List<String> resultInfo = new ArrayList<>();
+        int score = 0;
+        for (int field = 0; field < RESULT_INFO.length; field++) {
+            boolean matches = field == DATE_FIELD ? date != null && date.equals(indexed.fields[field])
+                    : indexed.fields[field].contains(word);
+            if (matches) {
+                resultInfo.add(RESULT_INFO[field]);
+                score += FIELD_WEIGHTS[field];
+            }
+        }
+        if (!resultInfo.isEmpty()) {
+            Document document = indexed.document;
+            scored.add(new ScoredResult(new ProjectSearchResult(document.getProjectName(), document.getProjectId(),
+                    document.getIsPrivate(), document.getCreation(), document.getOwnerName(), resultInfo), score));
+        }
+    }
+
+    /**
+     * Adds or replaces a document. Must be called with the write lock.
+     */
+    private void putDocument(Document document) {
+        Integer number = documentNumbers.get(document.getProjectId());
+        Set<String> oldGrams = Collections.emptySet();
+        if (number != null) {
+            IndexedDocument old = documents.get(number);
+            document.getFileNames().addAll(old.document.getFileNames());
+            oldGrams = old.grams;
+        } else {
+            number = documents.size();
+            documents.add(null);
+            documentNumbers.put(document.getProjectId(), number);
+        }
+        IndexedDocument indexed = new IndexedDocument(number, document);
+        documents.set(number, indexed);
+        for (String gram : oldGrams) {
+            if (!indexed.grams.contains(gram)) {
+                PostingList list = postings.get(gram);
+                list.remove(number);
+                if (list.size == 0) {
+                    postings.remove(gram);
+                }
+            }
+        }
+        for (String gram : indexed.grams) {
+            if (!oldGrams.contains(gram)) {
+                postings.computeIfAbsent(gram, key -> new PostingList()).add(number);
+            }
+        }
+    }
+
+    /**
+     * Removes a document. Must be called with the write lock.
+     */
+    private void removeDocument(UUID projectId) {
+        Integer number = documentNumbers.remove(projectId);
+        if (number == null) {
+            return;
+        }
+        for (String gram : documents.get(number).grams) {
+            PostingList list = postings.get(gram);
+            list.remove(number);
+            if (list.size == 0) {
+                postings.remove(gram);
+            }
+        }
+        //Numbers are not reused, so posting lists stay sorted by adding at the end.
+        documents.set(number, null);
+    }
+
+    /**
+     * Gets all trigrams of a text.
+     * @param text lower case text.
+     * @return unique trigrams.
+     */
+    private static Set<String> getGrams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            String gram = text.substring(i, i + GRAM_LENGTH);
+            if (!gram.contains(FIELD_SEPARATOR)) {
+                grams.add(gram);
+            }
+        }
+        return grams;
+    }
+
+    private static Document copy(Document document) {
+        Document copy = new Document();
+        copy.setProjectId(document.getProjectId());
+        copy.setProjectName(document.getProjectName());
+        copy.setDescription(document.getDescription());
+        copy.setCreation(document.getCreation());
+        copy.setIsPrivate(document.getIsPrivate());
+        copy.setOwnerName(document.getOwnerName());
+        copy.setOwnerTexts(new ArrayList<>(document.getOwnerTexts()));
+        copy.setMemberTexts(new ArrayList<>(document.getMemberTexts()));
+        copy.setProjectTags(new HashSet<>(document.getProjectTags()));
+        copy.setFileTags(new HashSet<>(document.getFileTags()));
+        copy.setFileNames(new HashSet<>(document.getFileNames()));
+        return copy;
+    }
+
+    /**
+     * Loads the documents of the last snapshot. The posting lists are built from the documents.
+     * The snapshot only holds strings, numbers and booleans, which are read field by field, so a changed or
+     * planted file can at worst give wrong search results until the rebuild.
+     */
+    private void loadSnapshot() {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (input.readInt() != SNAPSHOT_FORMAT) {
+                throw new IOException("Unknown snapshot format.");
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                putDocument(readDocument(input));
+            }
+            loaded = true;
+            System.out.println("Loaded " + count + " projects from search index snapshot " + snapshotFile);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Could not load search index snapshot, the index is rebuilt: " + e.getMessage());
+            documentNumbers.clear();
+            documents.clear();
+            postings.clear();
+        }
+    }
+
+    /**
+     * Saves the snapshot a while after a change, so many changes in a row are saved once.
+     * A change made while a snapshot is written schedules the next one.
+     */
+    private synchronized void scheduleSnapshot() {
+        if (!snapshotScheduled) {
+            snapshotScheduled = true;
+            snapshotWriter.schedule(() -> {
+                synchronized (this) {
+                    snapshotScheduled = false;
+                }
+                saveSnapshot();
+            }, snapshotDelaySeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes all documents to the snapshot file. The file is replaced in one move, so a crash while writing
+     * leaves the last snapshot.
+     */
+    private void saveSnapshot() {
+        List<Document> snapshot = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                return;
+            }
+            for (IndexedDocument indexed : documents) {
+                if (indexed != null) {
+                    snapshot.add(indexed.document);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            Path parent = snapshotFile.toAbsolutePath().getParent();
+            createPrivateDirectory(parent);
+            Path temporary = Files.createTempFile(parent, "search-index", ".tmp");
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                output.writeInt(SNAPSHOT_FORMAT);
+                output.writeInt(snapshot.size());
+                for (Document document : snapshot) {
+                    writeDocument(output, document);
+                }
+            }
+            Files.move(temporary, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Could not save search index snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes the directory of the snapshot if it does not exist, readable and writable by the server user only
+     * where the file system supports it.
+     * @param directory directory to make.
+     * @throws IOException if the directory could not be made.
+     */
+    private static void createPrivateDirectory(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            return;
+        }
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    private static void writeDocument(DataOutputStream output, Document document) throws IOException {
+        output.writeLong(document.getProjectId().getMostSignificantBits());
+        output.writeLong(document.getProjectId().getLeastSignificantBits());
+        writeString(output, document.getProjectName());
+        writeString(output, document.getDescription());
+        output.writeLong(document.getCreation() == null ? Long.MIN_VALUE : document.getCreation().getTime());
+        output.writeByte(document.getIsPrivate() == null ? -1 : document.getIsPrivate() ? 1 : 0);
+        writeString(output, document.getOwnerName());
+        writeStrings(output, document.getOwnerTexts());
+        writeStrings(output, document.getMemberTexts());
+        writeStrings(output, document.getProjectTags());
+        writeStrings(output, document.getFileTags());
+        writeStrings(output, document.getFileNames());
+    }
+
+    private static Document readDocument(DataInputStream input) throws IOException {
+        Document document = new Document();
+        document.setProjectId(new UUID(input.readLong(), input.readLong()));
+        document.setProjectName(readString(input));
+        document.setDescription(readString(input));
+        long creation = input.readLong();
+        document.setCreation(creation == Long.MIN_VALUE ? null : new Date(creation));
+        byte isPrivate = input.readByte();
+        document.setIsPrivate(isPrivate < 0 ? null : isPrivate == 1);
+        document.setOwnerName(readString(input));
+        readStrings(input, document.getOwnerTexts());
+        readStrings(input, document.getMemberTexts());
+        readStrings(input, document.getProjectTags());
+        readStrings(input, document.getFileTags());
+        readStrings(input, document.getFileNames());
+        return document;
+    }
+
+    /**
+     * Writes a string which can be null and longer than writeUTF allows, as its length and UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream output, String text) throws IOException {
+        if (text == null) {
+            output.writeInt(-1);
+        } else {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_SNAPSHOT_STRING_BYTES) {
+            throw new IOException("String in snapshot is too long.");
+        }
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeStrings(DataOutputStream output, Collection<String> texts) throws IOException {
+        output.writeInt(texts.size());
+        for (String text : texts) {
+            writeString(output, text);
+        }
+    }
+
+    private static void readStrings(DataInputStream input, Collection<String> texts) throws IOException {
+        int count = input.readInt();
+        if (count < 0) {
+            throw new IOException("Negative count in snapshot.");
+        }
+        for (int i = 0; i < count; i++) {
+            texts.add(readString(input));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        snapshotWriter.shutdownNow();
+        if (enabled) {
+            saveSnapshot();
+        }
+    }
+
+    /**
+     * What is indexed of a project. Documents are not changed after they are put in the index.
+     */
+    @Data
+    public static class Document {
+        private UUID projectId;
+        private String projectName;
+        private String description;
+        private Date creation;
+        private Boolean isPrivate;
+        //First and last name of owner as shown in search results.
+        private String ownerName;
+        //First name, last name and email of owner.
+        private List<String> ownerTexts = new ArrayList<>();
+        //First name, last name and email of every member.
+        private List<String> memberTexts = new ArrayList<>();
+        private Set<String> projectTags = new HashSet<>();
+        private Set<String> fileTags = new HashSet<>();
+        private Set<String> fileNames = new HashSet<>();
+    }
+
+    /**
+     * A document with the lower case text of each field and its trigrams.
+     */
+    private static class IndexedDocument {
+        private final int number;
+        private final Document document;
+        private final String[] fields;
+        private final Set<String> grams = new HashSet<>();
+
+        IndexedDocument(int number, Document document) {
+            this.number = number;
+            this.document = document;
+            this.fields = new String[]{
+                    lower(document.getProjectName()),
+                    lower(document.getDescription()),
+                    document.getCreation() == null ? "" : new SimpleDateFormat("yyyy-MM-dd").format(document.getCreation()),
+                    join(document.getOwnerTexts()),
+                    join(document.getMemberTexts()),
+                    join(document.getProjectTags()),
+                    join(document.getFileTags()),
+                    join(document.getFileNames())};
+            for (int field = 0; field < fields.length; field++) {
+                if (field != DATE_FIELD) {
+                    grams.addAll(getGrams(fields[field]));
+                }
+            }
+        }
+
+        private static String lower(String text) {
+            return text == null ? "" : text.toLowerCase();
+        }
+
+        private static String join(Collection<String> texts) {
+            StringJoiner joiner = new StringJoiner(FIELD_SEPARATOR);
+            for (String text : texts) {
+                joiner.add(lower(text));
+            }
+            return joiner.toString();
+        }
+    }
+
+    /**
+     * A sorted list of document numbers.
+     */
+    private static class PostingList {
+        private int[] numbers = new int[4];
+        private int size;
+
+        void add(int number) {
+            int index = Arrays.binarySearch(numbers, 0, size, number);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (size == numbers.length) {
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            System.arraycopy(numbers, index, numbers, index + 1, size - index);
+            numbers[index] = number;
+            size++;
+        }
+
+        void remove(int number) {
+            int index = Arrays.binarySearch(numbers, 0, size, number);
+            if (index >= 0) {
+                System.arraycopy(numbers, index + 1, numbers, index, size - index - 1);
+                size--;
+            }
+        }
+
+        boolean contains(int number) {
+            return Arrays.binarySearch(numbers, 0, size, number) >= 0;
+        }
+
+        PostingList intersect(PostingList other) {
+            PostingList result = new PostingList();
+            result.numbers = new int[Math.max(1, Math.min(size, other.size))];
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (numbers[i] < other.numbers[j]) {
+                    i++;
+                } else if (numbers[i] > other.numbers[j]) {
+                    j++;
+                } else {
+                    result.numbers[result.size++] = numbers[i];
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class ScoredResult {
+        private final ProjectSearchResult result;
+        private final int score;
+
+        ScoredResult(ProjectSearchResult result, int score) {
+            this.result = result;
+            this.score = score;
+        }
+    }
+}
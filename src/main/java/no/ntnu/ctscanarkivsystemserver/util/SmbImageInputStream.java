@@ -0,0 +1,121 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import jcifs.SmbRandomAccess;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+import java.io.IOException;
+
+/**
+ * Image input stream which reads a file on the file server with range reads, so image readers only fetch
+ * the bytes they use. Small reads are served from a block which is read in one request.
+ */
+public class SmbImageInputStream extends ImageInputStreamImpl {
+
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    private final SmbRandomAccess file;
+    private final long length;
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private long blockStart = -1;
+    private int blockLength;
+    private long bytesRead;
+
+    /**
+     * Makes a stream of a file. The file is closed when the stream is closed.
+     * @param file file opened for reading.
+     * @throws IOException if the length of the file could not be read.
+     */
+    public SmbImageInputStream(SmbRandomAccess file) throws IOException {
+        this.file = file;
+        this.length = file.length();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!fillBlock()) {
+            return -1;
+        }
+        return block[(int) (streamPos++ - blockStart)] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (length == 0) {
+            return 0;
+        }
+        if (streamPos >= this.length) {
+            return -1;
+        }
+        if (length >= BLOCK_SIZE && !isInBlock()) {
+            //Large reads go straight to the file.
+            file.seek(streamPos);
+            int count = file.read(bytes, offset, (int) Math.min(length, this.length - streamPos));
+            if (count > 0) {
+                streamPos += count;
+                bytesRead += count;
+            }
+            return count;
+        }
+        if (!fillBlock()) {
+            return -1;
+        }
+        int count = (int) Math.min(length, blockStart + blockLength - streamPos);
+        System.arraycopy(block, (int) (streamPos - blockStart), bytes, offset, count);
+        streamPos += count;
+        return count;
+    }
+
+    private boolean isInBlock() {
+        return blockStart >= 0 && streamPos >= blockStart && streamPos < blockStart + blockLength;
+    }
+
+    /**
+     * Reads the block starting at the stream position if the position is not in the current block.
+     * @return false if the stream is at the end of the file.
+     * @throws IOException if reading failed.
+     */
+    private boolean fillBlock() throws IOException {
+        if (isInBlock()) {
+            return true;
+        }
+        if (streamPos >= length) {
+            return false;
+        }
+        blockStart = streamPos;
+        blockLength = 0;
+        file.seek(blockStart);
+        int toRead = (int) Math.min(BLOCK_SIZE, length - blockStart);
+        while (blockLength < toRead) {
+            int count = file.read(block, blockLength, toRead - blockLength);
+            if (count <= 0) {
+                break;
+            }
+            blockLength += count;
+        }
+        bytesRead += blockLength;
+        return blockLength > 0;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Return how many bytes have been read from the file server.
+     * @return bytes read.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        file.close();
+    }
+}
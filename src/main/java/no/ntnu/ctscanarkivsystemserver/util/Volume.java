@@ -0,0 +1,241 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A CT volume memory-mapped from a local file, so the voxels are off-heap and only the pages which are used are read.
+ * The file is mapped in chunks of whole slices, since one mapping can not be larger than 2GB.
+ * Voxel (x, y, z) is stored at index z * width * height + y * width + x.
+ */
+public class Volume {
+
+    /**
+     * How each voxel is stored in the file.
+     */
+    public enum VoxelType {
+        UNSIGNED_8(1), UNSIGNED_16(2), SIGNED_16(2), FLOAT_32(4);
+
+        private final int bytes;
+
+        VoxelType(int bytes) {
+            this.bytes = bytes;
+        }
+
+        public int getBytes() {
+            return bytes;
+        }
+    }
+
+    private final Path file;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final VoxelType voxelType;
+    private final MappedByteBuffer[] chunks;
+    private final int slicesPerChunk;
+    private final long sliceBytes;
+    private double spacingX = 1;
+    private double spacingY = 1;
+    private double spacingZ = 1;
+    private volatile double[] valueRange;
+
+    private Volume(Path file, int width, int height, int depth, VoxelType voxelType, MappedByteBuffer[] chunks, int slicesPerChunk) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.voxelType = voxelType;
+        this.chunks = chunks;
+        this.slicesPerChunk = slicesPerChunk;
+        this.sliceBytes = (long) width * height * voxelType.getBytes();
+    }
+
+    /**
+     * Memory-maps a volume file read only.
+     * @param file local file with the voxels.
+     * @param width voxels in x direction.
+     * @param height voxels in y direction.
+     * @param depth number of slices.
+     * @param voxelType how each voxel is stored.
+     * @param byteOrder byte order of voxels larger than one byte.
+     * @param headerBytes bytes before the first voxel in the file.
+     * @return the mapped volume.
+     * @throws IOException if the file is smaller than the volume or mapping fails.
+     */
+    public static Volume map(Path file, int width, int height, int depth, VoxelType voxelType, ByteOrder byteOrder,
+                             long headerBytes) throws IOException {
+        if (width <= 0 || height <= 0 || depth <= 0) {
+            throw new IOException("Volume dimensions must be larger than 0: " + width + "x" + height + "x" + depth);
+        }
+        long sliceBytes = (long) width * height * voxelType.getBytes();
+        if (sliceBytes > Integer.MAX_VALUE) {
+            throw new IOException("A slice of the volume is larger than 2GB.");
+        }
+        int slicesPerChunk = (int) Math.min(depth, Integer.MAX_VALUE / sliceBytes);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(depth + slicesPerChunk - 1) / slicesPerChunk];
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < headerBytes + sliceBytes * depth) {
+                throw new IOException("Volume file is smaller than " + width + "x" + height + "x" + depth + " " + voxelType);
+            }
+            for (int i = 0; i < chunks.length; i++) {
+                int slices = Math.min(slicesPerChunk, depth - i * slicesPerChunk);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes + i * slicesPerChunk * sliceBytes,
+                        slices * sliceBytes);
+                chunks[i].order(byteOrder);
+            }
+        }
+        return new Volume(file, width, height, depth, voxelType, chunks, slicesPerChunk);
+    }
+
+    /**
+     * Gets the value of a voxel.
+     * @param x x of voxel.
+     * @param y y of voxel.
+     * @param z slice of voxel.
+     * @return value of voxel.
+     */
+    public float getVoxel(int x, int y, int z) {
+        MappedByteBuffer chunk = chunks[z / slicesPerChunk];
+        int position = (int) ((z % slicesPerChunk) * sliceBytes + ((long) y * width + x) * voxelType.getBytes());
+        switch (voxelType) {
+            case UNSIGNED_8:
+                return chunk.get(position) & 0xFF;
+            case UNSIGNED_16:
+                return chunk.getShort(position) & 0xFFFF;
+            case SIGNED_16:
+                return chunk.getShort(position);
+            default:
+                return chunk.getFloat(position);
+        }
+    }
+
+    /**
+     * Reads a row of voxels.
+     * @param y row to read.
+     * @param z slice to read from.
+     * @param row array with room for width values to read into.
+     */
+    public void readRow(int y, int z, float[] row) {
+        MappedByteBuffer chunk = chunks[z / slicesPerChunk];
+        int position = (int) ((z % slicesPerChunk) * sliceBytes + (long) y * width * voxelType.getBytes());
+        switch (voxelType) {
+            case UNSIGNED_8:
+                for (int x = 0; x < width; x++) {
+                    row[x] = chunk.get(position + x) & 0xFF;
+                }
+                break;
+            case UNSIGNED_16:
+                for (int x = 0; x < width; x++) {
+                    row[x] = chunk.getShort(position + x * 2) & 0xFFFF;
+                }
+                break;
+            case SIGNED_16:
+                for (int x = 0; x < width; x++) {
+                    row[x] = chunk.getShort(position + x * 2);
+                }
+                break;
+            default:
+                for (int x = 0; x < width; x++) {
+                    row[x] = chunk.getFloat(position + x * 4);
+                }
+        }
+    }
+
+    /**
+     * Gets the value of a point in voxel coordinates with trilinear interpolation.
+     * @param x x in voxel coordinates.
+     * @param y y in voxel coordinates.
+     * @param z z in voxel coordinates.
+     * @return interpolated value. NaN if the point is outside of the volume.
+     */
+    public float sample(double x, double y, double z) {
+        if (x < 0 || y < 0 || z < 0 || x > width - 1 || y > height - 1 || z > depth - 1) {
+            return Float.NaN;
+        }
+        int x0 = Math.min((int) x, width - 1);
+        int y0 = Math.min((int) y, height - 1);
+        int z0 = Math.min((int) z, depth - 1);
+        int x1 = Math.min(x0 + 1, width - 1);
+        int y1 = Math.min(y0 + 1, height - 1);
+        int z1 = Math.min(z0 + 1, depth - 1);
+        double fx = x - x0;
+        double fy = y - y0;
+        double fz = z - z0;
+        double c00 = getVoxel(x0, y0, z0) * (1 - fx) + getVoxel(x1, y0, z0) * fx;
+        double c10 = getVoxel(x0, y1, z0) * (1 - fx) + getVoxel(x1, y1, z0) * fx;
+        double c01 = getVoxel(x0, y0, z1) * (1 - fx) + getVoxel(x1, y0, z1) * fx;
+        double c11 = getVoxel(x0, y1, z1) * (1 - fx) + getVoxel(x1, y1, z1) * fx;
+        double c0 = c00 * (1 - fy) + c10 * fy;
+        double c1 = c01 * (1 - fy) + c11 * fy;
+        return (float) (c0 * (1 - fz) + c1 * fz);
+    }
+
+    /**
+     * Return the size of the volume in bytes.
+     * @return size of voxel data.
+     */
+    public long getSizeInBytes() {
+        return sliceBytes * depth;
+    }
+
+    /**
+     * Sets the size of a voxel, used when reslicing volumes where the slices are thicker than the pixels.
+     * @param spacingX size in x direction.
+     * @param spacingY size in y direction.
+     * @param spacingZ size in z direction (slice distance).
+     */
+    public void setSpacing(double spacingX, double spacingY, double spacingZ) {
+        this.spacingX = spacingX;
+        this.spacingY = spacingY;
+        this.spacingZ = spacingZ;
+    }
+
+    /**
+     * Return the smallest and largest voxel value if it is known.
+     * @return array with min and max value. Null if not known yet.
+     */
+    public double[] getValueRange() {
+        return valueRange;
+    }
+
+    public void setValueRange(double min, double max) {
+        this.valueRange = new double[]{min, max};
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public VoxelType getVoxelType() {
+        return voxelType;
+    }
+
+    public double getSpacingX() {
+        return spacingX;
+    }
+
+    public double getSpacingY() {
+        return spacingY;
+    }
+
+    public double getSpacingZ() {
+        return spacingZ;
+    }
+}
@@ -0,0 +1,27 @@
+-- DICOM header attributes of .IMA files, one row per file.
+-- Run once on the database before starting a version of the server which indexes DICOM files.
+CREATE TABLE IF NOT EXISTS dicom_metadata (
+    file_id             UUID PRIMARY KEY REFERENCES files (file_id) ON DELETE CASCADE,
+    modality            VARCHAR(16),
+    study_instance_uid  VARCHAR(64),
+    study_description   VARCHAR(255),
+    series_instance_uid VARCHAR(64),
+    series_number       INTEGER,
+    series_description  VARCHAR(255),
+    body_part_examined  VARCHAR(64),
+    acquisition_date    DATE,
+    slice_thickness     DOUBLE PRECISION,
+    instance_number     INTEGER,
+    slice_location      DOUBLE PRECISION,
+    image_rows          INTEGER,
+    image_columns       INTEGER
+);
+
+CREATE INDEX IF NOT EXISTS dicom_metadata_modality_idx ON dicom_metadata (modality);
+CREATE INDEX IF NOT EXISTS dicom_metadata_series_idx ON dicom_metadata (series_instance_uid, instance_number);
+CREATE INDEX IF NOT EXISTS dicom_metadata_study_idx ON dicom_metadata (study_instance_uid);
+CREATE INDEX IF NOT EXISTS dicom_metadata_acquisition_date_idx ON dicom_metadata (acquisition_date);
+CREATE INDEX IF NOT EXISTS dicom_metadata_slice_thickness_idx ON dicom_metadata (slice_thickness);
+CREATE INDEX IF NOT EXISTS dicom_metadata_body_part_idx ON dicom_metadata (body_part_examined);
+-- Metadata is looked up through the files table by project and sub folder.
+CREATE INDEX IF NOT EXISTS files_project_sub_folder_idx ON files (in_project, sub_folder);
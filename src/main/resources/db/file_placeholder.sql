@@ -0,0 +1,3 @@
+-- Tiny previews of images which are shown in file listings while the thumbnails load.
+-- Run once on the database before starting a version of the server which makes placeholders.
+ALTER TABLE files ADD COLUMN IF NOT EXISTS placeholder VARCHAR(2048);
@@ -0,0 +1,6 @@
+-- Indexes for finding the tag names used on files of a project or sub project folder.
+-- Run once on the database before starting a version of the server which reads tag names with aggregate queries.
+-- Files of a project, and files by name in a sub project folder.
+CREATE INDEX IF NOT EXISTS files_project_sub_folder_name_idx ON files (in_project, sub_folder, file_name);
+-- Tag names of a file can be read from the index alone.
+CREATE INDEX IF NOT EXISTS file_tags_file_tag_idx ON file_tags (file_id, tag_name);
@@ -0,0 +1,7 @@
+-- Indexes for the sort keys of paged listings.
+-- Run once on the database before starting a version of the server which pages projects and users.
+-- Projects are listed by name, and by id when names are equal.
+CREATE INDEX IF NOT EXISTS projects_name_id_idx ON projects (project_name, project_id);
+-- Users are listed by email, and by id when emails are equal.
+CREATE INDEX IF NOT EXISTS users_email_id_idx ON users (email, user_id);
+-- Tags are listed by name, which is the primary key of tags.
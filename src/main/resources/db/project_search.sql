@@ -0,0 +1,91 @@
+-- Search documents of projects, used when search.engine=database.
+-- Run once on the database before starting a version of the server which searches in the database.
+-- Each project has one row with the lower case text of everything project search looks in. The server keeps the
+-- rows up to date when projects, project members, tags, users or files change.
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE TABLE IF NOT EXISTS project_search (
+    project_id       UUID PRIMARY KEY REFERENCES projects (project_id) ON DELETE CASCADE,
+    name_text        TEXT NOT NULL DEFAULT '',
+    description_text TEXT NOT NULL DEFAULT '',
+    creation_text    VARCHAR(10),
+    -- First name, last name and email, separated by the unit separator so a search word can not match across fields.
+    owner_text       TEXT NOT NULL DEFAULT '',
+    member_text      TEXT NOT NULL DEFAULT '',
+    project_tag_text TEXT NOT NULL DEFAULT '',
+    file_tag_text    TEXT NOT NULL DEFAULT '',
+    -- Names of files in the database and of files uploaded since the document was made.
+    file_name_text   TEXT NOT NULL DEFAULT '',
+    -- Words of all fields, weighted by field, for ranking.
+    document         TSVECTOR NOT NULL DEFAULT ''
+);
+
+-- Databases where this script was run before file names were searched.
+ALTER TABLE project_search ADD COLUMN IF NOT EXISTS file_name_text TEXT NOT NULL DEFAULT '';
+
+-- Trigram indexes answer the substring (LIKE '%word%') matches of project search.
+CREATE INDEX IF NOT EXISTS project_search_name_trgm_idx ON project_search USING GIN (name_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_description_trgm_idx ON project_search USING GIN (description_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_owner_trgm_idx ON project_search USING GIN (owner_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_member_trgm_idx ON project_search USING GIN (member_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_project_tag_trgm_idx ON project_search USING GIN (project_tag_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_file_tag_trgm_idx ON project_search USING GIN (file_tag_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_file_name_trgm_idx ON project_search USING GIN (file_name_text gin_trgm_ops);
+CREATE INDEX IF NOT EXISTS project_search_creation_idx ON project_search (creation_text);
+CREATE INDEX IF NOT EXISTS project_search_document_idx ON project_search USING GIN (document);
+
+-- Joins two lists of names separated by the unit separator, without duplicates or empty names.
+CREATE OR REPLACE FUNCTION merge_project_search_names(names TEXT, added_names TEXT) RETURNS TEXT AS $$
+    SELECT coalesce(string_agg(DISTINCT name, E'\x1f'), '')
+    FROM unnest(string_to_array(coalesce(names, '') || E'\x1f' || coalesce(added_names, ''), E'\x1f')) AS name
+    WHERE name <> '';
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Rebuilds the search document of one project from the project, its owner, members, tags and files.
+-- File names already in the document are kept, since files without tags or placeholders are not in the database.
+-- Returns the number of documents written, 0 if the project does not exist.
+CREATE OR REPLACE FUNCTION refresh_project_search(refreshed_project_id UUID) RETURNS INTEGER AS $$
+DECLARE
+    written INTEGER;
+BEGIN
+    INSERT INTO project_search (project_id, name_text, description_text, creation_text, owner_text, member_text,
+                                project_tag_text, file_tag_text, file_name_text)
+    SELECT p.project_id,
+           lower(coalesce(p.project_name, '')),
+           lower(coalesce(p.description, '')),
+           to_char(p.creation, 'YYYY-MM-DD'),
+           lower(concat_ws(E'\x1f', o.first_name, o.last_name, o.email)),
+           coalesce((SELECT lower(string_agg(concat_ws(E'\x1f', u.first_name, u.last_name, u.email), E'\x1f'))
+                     FROM project_members pm JOIN users u ON u.user_id = pm.user_id
+                     WHERE pm.project_id = p.project_id), ''),
+           coalesce((SELECT lower(string_agg(pt.tag_name, E'\x1f'))
+                     FROM project_tags pt WHERE pt.project_id = p.project_id), ''),
+           coalesce((SELECT lower(string_agg(DISTINCT ft.tag_name, E'\x1f'))
+                     FROM file_tags ft JOIN files f ON f.file_id = ft.file_id
+                     WHERE f.in_project = p.project_id), ''),
+           coalesce((SELECT lower(string_agg(DISTINCT f.file_name, E'\x1f'))
+                     FROM files f WHERE f.in_project = p.project_id), '')
+    FROM projects p LEFT JOIN users o ON o.user_id = p.owner
+    WHERE p.project_id = refreshed_project_id
+    ON CONFLICT (project_id) DO UPDATE SET
+        name_text = EXCLUDED.name_text,
+        description_text = EXCLUDED.description_text,
+        creation_text = EXCLUDED.creation_text,
+        owner_text = EXCLUDED.owner_text,
+        member_text = EXCLUDED.member_text,
+        project_tag_text = EXCLUDED.project_tag_text,
+        file_tag_text = EXCLUDED.file_tag_text,
+        file_name_text = merge_project_search_names(project_search.file_name_text, EXCLUDED.file_name_text);
+    GET DIAGNOSTICS written = ROW_COUNT;
+    UPDATE project_search SET document =
+            setweight(to_tsvector('simple', name_text), 'A')
+            || setweight(to_tsvector('simple', replace(project_tag_text || E'\x1f' || file_tag_text, E'\x1f', ' ')), 'B')
+            || setweight(to_tsvector('simple', description_text || ' ' || replace(file_name_text, E'\x1f', ' ')), 'C')
+            || setweight(to_tsvector('simple', replace(owner_text || E'\x1f' || member_text, E'\x1f', ' ')), 'D')
+    WHERE project_id = refreshed_project_id;
+    RETURN written;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Builds the documents of all existing projects.
+SELECT refresh_project_search(project_id) FROM projects;
@@ -0,0 +1,3 @@
+-- Index for counting the projects each tag is used in, and finding the projects of a tag.
+-- Run once on the database before starting a version of the server which counts tag usage with GROUP BY.
+CREATE INDEX IF NOT EXISTS project_tags_tag_project_idx ON project_tags (tag_name, project_id);
@@ -0,0 +1,47 @@
+package no.ntnu.ctscanarkivsystemserver.config;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PaginationPropertiesTest {
+
+    @Test
+    void noLimitGivesDefaultPageSize() {
+        PaginationProperties properties = new PaginationProperties();
+        properties.setDefaultPageSize(20);
+        assertEquals(20, properties.getPageSize(null));
+    }
+
+    @Test
+    void defaultPageSizeIsClampedToMaxPageSize() {
+        PaginationProperties properties = new PaginationProperties();
+        properties.setDefaultPageSize(1000);
+        properties.setMaxPageSize(100);
+        assertEquals(100, properties.getPageSize(null));
+    }
+
+    @Test
+    void limitIsUsedWhenInRange() {
+        PaginationProperties properties = new PaginationProperties();
+        assertEquals(1, properties.getPageSize(1));
+        assertEquals(123, properties.getPageSize(123));
+        assertEquals(properties.getMaxPageSize(), properties.getPageSize(properties.getMaxPageSize()));
+    }
+
+    @Test
+    void limitAboveMaxIsClampedToMax() {
+        PaginationProperties properties = new PaginationProperties();
+        properties.setMaxPageSize(100);
+        assertEquals(100, properties.getPageSize(101));
+        assertEquals(100, properties.getPageSize(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void limitBelowOneIsClampedToOne() {
+        PaginationProperties properties = new PaginationProperties();
+        assertEquals(1, properties.getPageSize(0));
+        assertEquals(1, properties.getPageSize(-5));
+        assertEquals(1, properties.getPageSize(Integer.MIN_VALUE));
+    }
+}
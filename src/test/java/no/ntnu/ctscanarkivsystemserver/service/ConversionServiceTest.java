@@ -0,0 +1,51 @@
+package no.ntnu.ctscanarkivsystemserver.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConversionServiceTest {
+
+    @Test
+    void convertedNameReplacesFileType() {
+        Map<String, String> names = ConversionService.getConvertedNames(Arrays.asList("scan.tiff", "slice.01.tif", "raw"), "png");
+        assertEquals("scan.png", names.get("scan.tiff"));
+        assertEquals("slice.01.png", names.get("slice.01.tif"));
+        assertEquals("raw.png", names.get("raw"));
+    }
+
+    @Test
+    void collidingNameKeepsOriginalFileType() {
+        Map<String, String> names = ConversionService.getConvertedNames(Arrays.asList("scan.png", "scan.tiff", "scan.jpg"), "png");
+        assertEquals("scan.png", names.get("scan.png"));
+        assertEquals("scan.tiff.png", names.get("scan.tiff"));
+        assertEquals("scan.jpg.png", names.get("scan.jpg"));
+    }
+
+    @Test
+    void collidingNameWithOriginalFileTypeGetsNumber() {
+        Map<String, String> names = ConversionService.getConvertedNames(
+                Arrays.asList("scan.png", "scan.tiff.png", "scan.tiff", "scan.tif"), "png");
+        assertEquals("scan.png", names.get("scan.png"));
+        assertEquals("scan.tiff.png", names.get("scan.tiff.png"));
+        assertEquals("scan.tiff (2).png", names.get("scan.tiff"));
+        assertEquals("scan.tif.png", names.get("scan.tif"));
+        assertEquals(4, new HashSet<>(names.values()).size());
+    }
+
+    @Test
+    void namesAreUniqueIgnoringCase() {
+        Map<String, String> names = ConversionService.getConvertedNames(Arrays.asList("Scan.TIFF", "scan.tif"), "png");
+        assertEquals("Scan.png", names.get("Scan.TIFF"));
+        assertEquals("scan.tif.png", names.get("scan.tif"));
+    }
+
+    @Test
+    void fileListedTwiceIsConvertedOnce() {
+        Map<String, String> names = ConversionService.getConvertedNames(Arrays.asList("b.tif", "a.tif", "b.tif"), "jpg");
+        assertEquals(Arrays.asList("b.tif", "a.tif"), new ArrayList<>(names.keySet()));
+        assertEquals(Arrays.asList("b.jpg", "a.jpg"), new ArrayList<>(names.values()));
+    }
+}
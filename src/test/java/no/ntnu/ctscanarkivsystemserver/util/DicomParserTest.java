@@ -0,0 +1,387 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DicomParserTest {
+
+    private static final int PATIENT_NAME = 0x00100010;
+    private static final int REFERENCED_IMAGE_SEQUENCE = 0x00081140;
+    private static final int PRIVATE_DATA = 0x00291010;
+
+    @Test
+    void readsImplicitVrLittleEndian() throws IOException {
+        DicomWriter writer = new DicomWriter(false, false).preamble(DicomParser.IMPLICIT_VR_LITTLE_ENDIAN);
+        writeImageHeader(writer, 2, 3, 16, 12, 1);
+        writer.string(DicomHeader.MODALITY, "CS", "CT");
+        writer.string(DicomHeader.IMAGE_POSITION_PATIENT, "DS", "-12.5\\3\\100.25");
+        writer.nativePixels(16, -2048, -1, 0, 1, 2047, 5);
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertEquals("CT", image.getHeader().getString(DicomHeader.MODALITY));
+        assertArrayEquals(new double[]{-12.5, 3, 100.25}, image.getHeader().getDoubles(DicomHeader.IMAGE_POSITION_PATIENT));
+        assertTrue(image.isGrayscale());
+        assertTrue(image.isSigned());
+        assertEquals(-2048, image.getMinStoredValue());
+        assertEquals(2047, image.getMaxStoredValue());
+        assertArrayEquals(new int[]{-2048, 2047}, image.getStoredValueRange());
+    }
+
+    @Test
+    void readsFileWithoutPreambleAsImplicitVrLittleEndian() throws IOException {
+        DicomWriter writer = new DicomWriter(false, false);
+        writeImageHeader(writer, 1, 4, 8, 8, 0);
+        writer.nativePixels(8, 0, 10, 20, 255);
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertArrayEquals(new int[]{0, 10, 20, 255}, renderGray(image));
+    }
+
+    @Test
+    void readsExplicitVrLittleEndianAndSkipsLongAndUndefinedLengthValues() throws IOException {
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.EXPLICIT_VR_LITTLE_ENDIAN);
+        writer.string(DicomHeader.STUDY_DATE, "DA", "20210304");
+        //A sequence of undefined length with an item of undefined length, which holds another such sequence.
+        writer.undefinedLengthSequence(REFERENCED_IMAGE_SEQUENCE).undefinedLengthItem()
+                .string(DicomHeader.MODALITY, "CS", "MR")
+                .undefinedLengthSequence(REFERENCED_IMAGE_SEQUENCE).undefinedLengthItem()
+                .string(DicomHeader.SERIES_DESCRIPTION, "LO", "Nested")
+                .itemDelimitation().sequenceDelimitation()
+                .itemDelimitation().sequenceDelimitation();
+        //Explicit length item in a sequence of defined length.
+        DicomWriter item = new DicomWriter(true, false).string(DicomHeader.BODY_PART_EXAMINED, "CS", "HEAD");
+        writer.element(0x00081150, "SQ", new DicomWriter(true, false).tag(0xFFFEE000).int32(item.size())
+                .bytes(item.toBytes()).toBytes());
+        //Values larger than what is kept from the header are skipped.
+        writer.element(PRIVATE_DATA, "UN", new byte[4000]);
+        writer.element(0x00291020, "OB", new byte[]{1, 2});
+        writer.string(PATIENT_NAME, "PN", "Doe^Jane");
+        writeImageHeader(writer, 2, 2, 8, 8, 0);
+        writer.nativePixels(8, 1, 2, 3, 4);
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        DicomHeader header = image.getHeader();
+        assertEquals("20210304", header.getString(DicomHeader.STUDY_DATE));
+        assertEquals("Doe^Jane", header.getString(PATIENT_NAME));
+        assertFalse(header.contains(DicomHeader.MODALITY), "Attributes in sequences are not part of the header.");
+        assertFalse(header.contains(DicomHeader.SERIES_DESCRIPTION));
+        assertFalse(header.contains(PRIVATE_DATA));
+        assertTrue(header.contains(0x00291020));
+        assertArrayEquals(new int[]{1, 2, 3, 4}, renderGray(image));
+    }
+
+    @Test
+    void readsExplicitVrBigEndian() throws IOException {
+        DicomWriter writer = new DicomWriter(true, true).preamble(DicomParser.EXPLICIT_VR_BIG_ENDIAN);
+        writeImageHeader(writer, 1, 3, 16, 16, 0);
+        writer.unsignedShort(0x00280120, 0x1234);
+        writer.string(DicomHeader.RESCALE_SLOPE, "DS", "2");
+        writer.nativePixels(16, 0x0001, 0x0300, 0x1000);
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertTrue(image.getHeader().isBigEndian());
+        assertEquals(0x1234, image.getHeader().getUnsignedShort(0x00280120, 0));
+        assertEquals(Integer.valueOf(2), image.getHeader().getInteger(DicomHeader.RESCALE_SLOPE));
+        assertFalse(image.isSigned());
+        assertArrayEquals(new int[]{0x0001, 0x1000}, image.getStoredValueRange());
+    }
+
+    @Test
+    void readsDeflatedExplicitVrLittleEndian() throws IOException {
+        DicomWriter dataSet = new DicomWriter(true, false);
+        dataSet.string(DicomHeader.MODALITY, "CS", "CT");
+        writeImageHeader(dataSet, 1, 3, 8, 8, 0);
+        dataSet.nativePixels(8, 7, 8, 9);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try (DeflaterOutputStream output = new DeflaterOutputStream(deflated, new Deflater(Deflater.DEFAULT_COMPRESSION, true))) {
+            output.write(dataSet.toBytes());
+        }
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.DEFLATED_EXPLICIT_VR_LITTLE_ENDIAN)
+                .bytes(deflated.toByteArray());
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertEquals("CT", image.getHeader().getString(DicomHeader.MODALITY));
+        assertArrayEquals(new int[]{7, 8, 9}, renderGray(image));
+    }
+
+    @Test
+    void readsEncapsulatedRle8Bit() throws IOException {
+        //Literal run of 3 bytes, then 5 times 42.
+        byte[] segment = {2, 10, 20, 30, -4, 42};
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.RLE_LOSSLESS);
+        writeImageHeader(writer, 2, 4, 8, 8, 0);
+        writer.encapsulatedPixels(new byte[0], rleFrame(segment));
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertArrayEquals(new int[]{10, 20, 30, 42, 42, 42, 42, 42}, renderGray(image));
+    }
+
+    @Test
+    void readsEncapsulatedRle16BitWithOffsetTableAndOnlyFirstFrame() throws IOException {
+        //Pixels 0x0100, 0x0100, 0x01FF and 0x022C. The segment of the most significant bytes comes first.
+        byte[] high = {-2, 1, 0, 2};
+        byte[] low = {-1, 0, 1, -1, 44};
+        byte[] firstFrame = rleFrame(high, low);
+        byte[] offsetTable = new DicomWriter(false, false).int32(0).int32(firstFrame.length + 8).toBytes();
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.RLE_LOSSLESS);
+        writeImageHeader(writer, 1, 4, 16, 16, 0);
+        writer.encapsulatedPixels(offsetTable, firstFrame, rleFrame(new byte[]{-3, 9}, new byte[]{-3, 9}));
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertArrayEquals(new int[]{0x0100, 0x022C}, image.getStoredValueRange());
+        byte[] lookupTable = new byte[1 << 16];
+        lookupTable[0x0100] = 1;
+        lookupTable[0x01FF] = 2;
+        lookupTable[0x022C] = 3;
+        BufferedImage rendered = image.render(lookupTable);
+        assertArrayEquals(new int[]{1, 1, 2, 3}, rendered.getRaster().getSamples(0, 0, 4, 1, 0, new int[4]));
+    }
+
+    @Test
+    void readsEncapsulatedJpeg() throws IOException {
+        BufferedImage gray = new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY);
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        ImageIO.write(gray, "jpg", jpeg);
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.JPEG_BASELINE);
+        writeImageHeader(writer, 8, 8, 8, 8, 0);
+        writer.encapsulatedPixels(new byte[0], jpeg.toByteArray());
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertTrue(image.isGrayscale());
+        int[] range = image.getStoredValueRange();
+        assertTrue(range[0] >= 0 && range[1] <= 2, "Black image stays black: " + range[0] + ".." + range[1]);
+    }
+
+    @Test
+    void readsPlanarRgb() throws IOException {
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.EXPLICIT_VR_LITTLE_ENDIAN);
+        writeImageHeader(writer, 1, 2, 8, 8, 0);
+        writer.unsignedShort(DicomHeader.SAMPLES_PER_PIXEL, 3);
+        writer.unsignedShort(DicomHeader.PLANAR_CONFIGURATION, 1);
+        writer.string(DicomHeader.PHOTOMETRIC_INTERPRETATION, "CS", "RGB");
+        writer.nativePixels(8, 255, 0, 0, 128, 1, 2);
+
+        DicomImage image = DicomParser.readImage(writer.toStream());
+        assertFalse(image.isGrayscale());
+        assertEquals(0xFF0001, image.getColorImage().getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(0x008002, image.getColorImage().getRGB(1, 0) & 0xFFFFFF);
+    }
+
+    @Test
+    void readHeaderStopsAtPixelData() throws IOException {
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.EXPLICIT_VR_LITTLE_ENDIAN);
+        writer.string(DicomHeader.MODALITY, "CS", "CT");
+        writeImageHeader(writer, 2, 2, 8, 8, 0);
+        //Pixel data which says it is longer than the file.
+        writer.tag(0x7FE00010).bytes("OW".getBytes(StandardCharsets.US_ASCII)).int16(0).int32(1000);
+
+        DicomHeader header = DicomParser.readHeader(writer.toStream());
+        assertEquals("CT", header.getString(DicomHeader.MODALITY));
+        assertEquals(2, header.getUnsignedShort(DicomHeader.COLUMNS, 0));
+        assertThrows(IOException.class, () -> DicomParser.readImage(writer.toStream()));
+    }
+
+    @Test
+    void rejectsFileWithoutPixelData() {
+        DicomWriter writer = new DicomWriter(true, false).preamble(DicomParser.EXPLICIT_VR_LITTLE_ENDIAN);
+        writer.string(DicomHeader.MODALITY, "CS", "CT");
+        assertThrows(IOException.class, () -> DicomParser.readImage(writer.toStream()));
+    }
+
+    @Test
+    void rejectsUnsupportedTransferSyntax() {
+        DicomWriter writer = new DicomWriter(true, false).preamble("1.2.840.10008.1.2.4.90");
+        writeImageHeader(writer, 1, 1, 8, 8, 0);
+        writer.encapsulatedPixels(new byte[0], new byte[]{0, 0});
+        assertThrows(IOException.class, () -> DicomParser.readImage(writer.toStream()));
+    }
+
+    private static void writeImageHeader(DicomWriter writer, int rows, int columns, int bitsAllocated, int bitsStored,
+                                         int pixelRepresentation) {
+        writer.unsignedShort(DicomHeader.ROWS, rows);
+        writer.unsignedShort(DicomHeader.COLUMNS, columns);
+        writer.unsignedShort(DicomHeader.BITS_ALLOCATED, bitsAllocated);
+        writer.unsignedShort(DicomHeader.BITS_STORED, bitsStored);
+        writer.unsignedShort(DicomHeader.PIXEL_REPRESENTATION, pixelRepresentation);
+    }
+
+    /**
+     * Renders an 8 bit image with an identity lookup table and returns the gray values.
+     */
+    private static int[] renderGray(DicomImage image) {
+        byte[] lookupTable = new byte[256];
+        for (int i = 0; i < lookupTable.length; i++) {
+            lookupTable[i] = (byte) i;
+        }
+        BufferedImage rendered = image.render(lookupTable);
+        return rendered.getRaster().getSamples(0, 0, rendered.getWidth(), rendered.getHeight(), 0,
+                new int[rendered.getWidth() * rendered.getHeight()]);
+    }
+
+    /**
+     * Makes an RLE frame: a 64 byte header with the number of segments and their offsets, then the segments.
+     */
+    private static byte[] rleFrame(byte[]... segments) {
+        DicomWriter frame = new DicomWriter(false, false).int32(segments.length);
+        int offset = 64;
+        for (int i = 0; i < 15; i++) {
+            frame.int32(i < segments.length ? offset : 0);
+            if (i < segments.length) {
+                offset += segments[i].length;
+            }
+        }
+        for (byte[] segment : segments) {
+            frame.bytes(segment);
+        }
+        return frame.toBytes();
+    }
+
+    /**
+     * Writes DICOM files for the tests, in the byte order and VR encoding of the data set.
+     */
+    private static class DicomWriter {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private boolean explicitVr;
+        private boolean bigEndian;
+
+        DicomWriter(boolean explicitVr, boolean bigEndian) {
+            this.explicitVr = explicitVr;
+            this.bigEndian = bigEndian;
+        }
+
+        /**
+         * Writes the preamble and the file meta information, which is always explicit VR little endian.
+         */
+        DicomWriter preamble(String transferSyntaxUid) {
+            boolean dataSetExplicitVr = explicitVr;
+            boolean dataSetBigEndian = bigEndian;
+            explicitVr = true;
+            bigEndian = false;
+            bytes(new byte[128]).bytes("DICM".getBytes(StandardCharsets.US_ASCII));
+            element(0x00020001, "OB", new byte[]{0, 1});
+            string(DicomHeader.TRANSFER_SYNTAX_UID, "UI", transferSyntaxUid);
+            explicitVr = dataSetExplicitVr;
+            bigEndian = dataSetBigEndian;
+            return this;
+        }
+
+        DicomWriter string(int tag, String vr, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            if (bytes.length % 2 != 0) {
+                byte[] padded = new byte[bytes.length + 1];
+                System.arraycopy(bytes, 0, padded, 0, bytes.length);
+                padded[bytes.length] = (byte) (vr.equals("UI") ? 0 : ' ');
+                bytes = padded;
+            }
+            return element(tag, vr, bytes);
+        }
+
+        DicomWriter unsignedShort(int tag, int value) {
+            return element(tag, "US", new DicomWriter(explicitVr, bigEndian).int16(value).toBytes());
+        }
+
+        DicomWriter nativePixels(int bitsAllocated, int... values) {
+            DicomWriter pixels = new DicomWriter(explicitVr, bigEndian);
+            for (int value : values) {
+                if (bitsAllocated == 8) {
+                    pixels.bytes(new byte[]{(byte) value});
+                } else {
+                    pixels.int16(value);
+                }
+            }
+            if (pixels.size() % 2 != 0) {
+                pixels.bytes(new byte[1]);
+            }
+            return element(0x7FE00010, bitsAllocated == 8 ? "OB" : "OW", pixels.toBytes());
+        }
+
+        DicomWriter encapsulatedPixels(byte[] offsetTable, byte[]... fragments) {
+            tag(0x7FE00010).bytes("OB".getBytes(StandardCharsets.US_ASCII)).int16(0).int32(0xFFFFFFFF);
+            tag(0xFFFEE000).int32(offsetTable.length).bytes(offsetTable);
+            for (byte[] fragment : fragments) {
+                tag(0xFFFEE000).int32(fragment.length).bytes(fragment);
+            }
+            return tag(0xFFFEE0DD).int32(0);
+        }
+
+        DicomWriter undefinedLengthSequence(int tag) {
+            tag(tag);
+            if (explicitVr) {
+                bytes("SQ".getBytes(StandardCharsets.US_ASCII)).int16(0);
+            }
+            return int32(0xFFFFFFFF);
+        }
+
+        DicomWriter undefinedLengthItem() {
+            return tag(0xFFFEE000).int32(0xFFFFFFFF);
+        }
+
+        DicomWriter itemDelimitation() {
+            return tag(0xFFFEE00D).int32(0);
+        }
+
+        DicomWriter sequenceDelimitation() {
+            return tag(0xFFFEE0DD).int32(0);
+        }
+
+        DicomWriter element(int tag, String vr, byte[] value) {
+            tag(tag);
+            if (explicitVr) {
+                bytes(vr.getBytes(StandardCharsets.US_ASCII));
+                if (vr.equals("OB") || vr.equals("OW") || vr.equals("SQ") || vr.equals("UN")) {
+                    int16(0).int32(value.length);
+                } else {
+                    int16(value.length);
+                }
+            } else {
+                int32(value.length);
+            }
+            return bytes(value);
+        }
+
+        DicomWriter tag(int tag) {
+            return int16(tag >>> 16).int16(tag & 0xFFFF);
+        }
+
+        DicomWriter int16(int value) {
+            if (bigEndian) {
+                return bytes(new byte[]{(byte) (value >>> 8), (byte) value});
+            }
+            return bytes(new byte[]{(byte) value, (byte) (value >>> 8)});
+        }
+
+        DicomWriter int32(int value) {
+            if (bigEndian) {
+                return int16(value >>> 16).int16(value);
+            }
+            return int16(value).int16(value >>> 16);
+        }
+
+        DicomWriter bytes(byte[] bytes) {
+            output.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        int size() {
+            return output.size();
+        }
+
+        byte[] toBytes() {
+            return output.toByteArray();
+        }
+
+        ByteArrayInputStream toStream() {
+            return new ByteArrayInputStream(output.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PageCursorTest {
+
+    @Test
+    void decodeReturnsEncodedKeys() {
+        UUID id = UUID.randomUUID();
+        String cursor = PageCursor.encode("ola.nordmann@ntnu.no", id);
+        assertArrayEquals(new String[]{"ola.nordmann@ntnu.no", id.toString()}, PageCursor.decode(cursor, 2));
+    }
+
+    @Test
+    void decodeKeepsEmptyAndNonAsciiKeys() {
+        String cursor = PageCursor.encode("", "Blåbær", 42);
+        assertArrayEquals(new String[]{"", "Blåbær", "42"}, PageCursor.decode(cursor, 3));
+    }
+
+    @Test
+    void cursorIsUrlSafe() {
+        String cursor = PageCursor.encode("???>>>~~~", "ÿÿÿ");
+        assertTrue(cursor.matches("[A-Za-z0-9_-]+"), cursor);
+    }
+
+    @Test
+    void decodeOfNoCursorIsFirstPage() {
+        assertNull(PageCursor.decode(null, 2));
+        assertNull(PageCursor.decode("", 2));
+    }
+
+    @Test
+    void decodeRejectsCursorWithOtherNumberOfKeys() {
+        String cursor = PageCursor.encode("a", "b", "c");
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode(cursor, 2));
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode(cursor, 4));
+    }
+
+    @Test
+    void decodeRejectsCursorWhichIsNotBase64() {
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode("not a cursor!", 2));
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode("abcde", 2));
+    }
+}
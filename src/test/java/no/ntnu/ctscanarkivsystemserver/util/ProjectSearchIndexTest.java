@@ -0,0 +1,236 @@
+package no.ntnu.ctscanarkivsystemserver.util;
+
+import no.ntnu.ctscanarkivsystemserver.config.SearchProperties;
+import no.ntnu.ctscanarkivsystemserver.model.ProjectSearchResult;
+import no.ntnu.ctscanarkivsystemserver.util.ProjectSearchIndex.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProjectSearchIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private Path snapshotFile;
+    private ProjectSearchIndex index;
+
+    @BeforeEach
+    void setUp() {
+        snapshotFile = directory.resolve("project-search.index");
+        index = newIndex();
+    }
+
+    @AfterEach
+    void tearDown() {
+        index.shutdown();
+    }
+
+    @Test
+    void putDocumentsAreFound() {
+        Document skull = document("Skull scan", "Scan of a human skull");
+        Document femur = document("Femur", "Bone density of a femur");
+        index.replaceAll(Arrays.asList(skull, femur), index.getChangeCount());
+
+        assertEquals(Collections.singletonList(skull.getProjectId()), searchIds("skull"));
+        assertEquals(Collections.singletonList(femur.getProjectId()), searchIds("DENSITY"));
+        assertTrue(searchIds("tibia").isEmpty());
+    }
+
+    @Test
+    void resultInfoListsMatchedFieldsAndRanksNameFirst() {
+        Document inName = document("Mummy", "A cat");
+        Document inDescription = document("Cat", "A mummy");
+        index.replaceAll(Arrays.asList(inDescription, inName), index.getChangeCount());
+
+        List<ProjectSearchResult> results = index.search("mummy", null, Collections.emptyList());
+        assertEquals(Arrays.asList(inName.getProjectId(), inDescription.getProjectId()),
+                results.stream().map(ProjectSearchResult::getProjectId).collect(Collectors.toList()));
+        assertEquals(Collections.singletonList("name"), results.get(0).getResultInfo());
+        assertEquals(Collections.singletonList("description"), results.get(1).getResultInfo());
+    }
+
+    @Test
+    void updatedDocumentIsFoundByNewTextOnly() {
+        Document document = document("Skull scan", "");
+        index.replaceAll(Collections.singletonList(document), index.getChangeCount());
+
+        Document updated = document("Jaw scan", "");
+        updated.setProjectId(document.getProjectId());
+        index.put(updated);
+
+        assertTrue(searchIds("skull").isEmpty());
+        assertEquals(Collections.singletonList(document.getProjectId()), searchIds("jaw"));
+    }
+
+    @Test
+    void removedDocumentIsNotFound() {
+        Document first = document("Skull one", "");
+        Document second = document("Skull two", "");
+        index.replaceAll(Arrays.asList(first, second), index.getChangeCount());
+
+        index.remove(first.getProjectId());
+
+        assertEquals(Collections.singletonList(second.getProjectId()), searchIds("skull"));
+    }
+
+    @Test
+    void addedFileNamesAreFoundAndKeptWhenDocumentIsPut() {
+        Document document = document("Skull", "");
+        index.replaceAll(Collections.singletonList(document), index.getChangeCount());
+
+        index.addFileNames(document.getProjectId(), Collections.singletonList("femur_0001.tiff"));
+        index.put(document("Skull", "", document.getProjectId()));
+
+        List<ProjectSearchResult> results = index.search("femur_0", null, Collections.emptyList());
+        assertEquals(1, results.size());
+        assertEquals(Collections.singletonList("file_name"), results.get(0).getResultInfo());
+    }
+
+    @Test
+    void tagFilterKeepsProjectsWithAllTags() {
+        Document tagged = document("Skull one", "");
+        tagged.getProjectTags().addAll(Arrays.asList("bone", "human"));
+        Document untagged = document("Skull two", "");
+        untagged.getProjectTags().add("bone");
+        index.replaceAll(Arrays.asList(tagged, untagged), index.getChangeCount());
+
+        assertEquals(Collections.singletonList(tagged.getProjectId()),
+                index.search("skull", null, Arrays.asList("bone", "human")).stream()
+                        .map(ProjectSearchResult::getProjectId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void wordsShorterThanTrigramAreMatchedInAllDocuments() {
+        Document first = document("CT of ox", "");
+        Document second = document("MR of fox", "");
+        Document third = document("Skull", "");
+        index.replaceAll(Arrays.asList(first, second, third), index.getChangeCount());
+
+        assertEquals(new HashSet<>(Arrays.asList(first.getProjectId(), second.getProjectId())), new HashSet<>(searchIds("ox")));
+        assertEquals(Collections.singletonList(third.getProjectId()), searchIds("k"));
+        assertEquals(3, searchIds("").size());
+    }
+
+    @Test
+    void dateMatchesCreationDate() {
+        Document document = document("Skull", "");
+        document.setCreation(Date.valueOf("2021-03-04"));
+        index.replaceAll(Collections.singletonList(document), index.getChangeCount());
+
+        List<ProjectSearchResult> results = index.search("2021-03-04", "2021-03-04", Collections.emptyList());
+        assertEquals(1, results.size());
+        assertEquals(Collections.singletonList("date"), results.get(0).getResultInfo());
+    }
+
+    @Test
+    void snapshotRoundTrip() {
+        Document document = document("Skull scan", "Scan of a human skull");
+        document.setCreation(Date.valueOf("2021-03-04"));
+        document.setOwnerName("Ola Nordmann");
+        document.getOwnerTexts().addAll(Arrays.asList("Ola", "Nordmann", "ola@ntnu.no"));
+        document.getMemberTexts().addAll(Arrays.asList("Kari", "Blåbær", "kari@ntnu.no"));
+        document.getProjectTags().add("bone");
+        document.getFileTags().add("raw");
+        document.getFileNames().add("skull.tiff");
+        Document withoutText = new Document();
+        withoutText.setProjectId(UUID.randomUUID());
+        index.replaceAll(Arrays.asList(document, withoutText), index.getChangeCount());
+        index.shutdown();
+        assertTrue(Files.exists(snapshotFile));
+
+        ProjectSearchIndex loaded = newIndex();
+        try {
+            assertTrue(loaded.isLoaded());
+            assertEquals(Collections.singletonList(document.getProjectId()), searchIds(loaded, "blåbær"));
+            ProjectSearchResult result = loaded.search("skull", null, Collections.singletonList("bone")).get(0);
+            assertEquals("Skull scan", result.getProjectName());
+            assertEquals("Ola Nordmann", result.getOwnerName());
+            assertEquals(Boolean.FALSE, result.getIsPrivate());
+            assertEquals(Arrays.asList("name", "description", "file_name"), result.getResultInfo());
+            assertEquals(1, loaded.search("2021-03-04", "2021-03-04", Collections.emptyList()).size());
+            assertEquals(2, searchIds(loaded, "").size());
+        } finally {
+            loaded.shutdown();
+        }
+    }
+
+    @Test
+    void snapshotWithUnknownFormatIsNotLoaded() throws IOException {
+        try (DataOutputStream output = new DataOutputStream(Files.newOutputStream(snapshotFile))) {
+            output.writeInt(0xACED0005);
+            output.writeInt(1);
+        }
+
+        ProjectSearchIndex loaded = newIndex();
+        try {
+            assertFalse(loaded.isLoaded());
+            assertTrue(searchIds(loaded, "").isEmpty());
+        } finally {
+            loaded.shutdown();
+        }
+    }
+
+    @Test
+    void truncatedSnapshotIsNotLoaded() throws IOException {
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            documents.add(document("Skull " + i, "Scan number " + i));
+        }
+        index.replaceAll(documents, index.getChangeCount());
+        index.shutdown();
+        byte[] snapshot = Files.readAllBytes(snapshotFile);
+        Files.write(snapshotFile, Arrays.copyOf(snapshot, snapshot.length - 5));
+
+        ProjectSearchIndex loaded = newIndex();
+        try {
+            assertFalse(loaded.isLoaded());
+            assertTrue(searchIds(loaded, "skull").isEmpty());
+        } finally {
+            loaded.shutdown();
+        }
+    }
+
+    private ProjectSearchIndex newIndex() {
+        SearchProperties properties = new SearchProperties();
+        properties.setEngine("memory");
+        properties.setIndexSnapshotFile(snapshotFile.toString());
+        //Snapshots are only written by shutdown in these tests.
+        properties.setIndexSnapshotDelaySeconds(3600);
+        return new ProjectSearchIndex(properties);
+    }
+
+    private List<UUID> searchIds(String word) {
+        return searchIds(index, word);
+    }
+
+    private static List<UUID> searchIds(ProjectSearchIndex index, String word) {
+        return index.search(word, null, Collections.emptyList()).stream()
+                .map(ProjectSearchResult::getProjectId).collect(Collectors.toList());
+    }
+
+    private static Document document(String name, String description) {
+        return document(name, description, UUID.randomUUID());
+    }
+
+    private static Document document(String name, String description, UUID projectId) {
+        Document document = new Document();
+        document.setProjectId(projectId);
+        document.setProjectName(name);
+        document.setDescription(description);
+        document.setIsPrivate(false);
+        document.setOwnerName("Ola Nordmann");
+        return document;
+    }
+}